@@ -0,0 +1,107 @@
+package net.corda.samples.obligation.benchmarks;
+
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.samples.obligation.contracts.IOUContract;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.internal.GlobalSerializationEnvironment;
+import net.corda.testing.node.MockServices;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static net.corda.testing.internal.InternalSerializationTestHelpersKt.setGlobalSerialization;
+import static net.corda.testing.node.MockServicesKt.makeTestIdentityService;
+
+/**
+ * Measures [IOUContract.verify] for the Issue, Transfer and Settle commands with 1, 100 and 10,000 IOUs per
+ * transaction. The ledger transactions are resolved once per trial so only the contract code is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IOUContractBenchmark {
+
+    private static final TestIdentity ALICE = new TestIdentity(new CordaX500Name("Alice", "TestLand", "US"));
+    private static final TestIdentity BOB = new TestIdentity(new CordaX500Name("Bob", "TestCity", "US"));
+    private static final TestIdentity CHARLIE = new TestIdentity(new CordaX500Name("Charlie", "TestVillage", "US"));
+    private static final TestIdentity NOTARY = new TestIdentity(new CordaX500Name("Notary", "London", "GB"));
+
+    public enum IOUCommand {ISSUE, TRANSFER, SETTLE}
+
+    @Param({"ISSUE", "TRANSFER", "SETTLE"})
+    public IOUCommand command;
+
+    @Param({"1", "100", "10000"})
+    public int statesPerTransaction;
+
+    private final IOUContract contract = new IOUContract();
+    private GlobalSerializationEnvironment serializationEnvironment;
+    private LedgerTransaction ledgerTransaction;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        serializationEnvironment = setGlobalSerialization(true);
+        MockServices services = new MockServices(
+                Collections.singletonList("net.corda.samples.obligation.contracts"),
+                ALICE, makeTestIdentityService(), BOB.getKeyPair(), CHARLIE.getKeyPair());
+        Party notary = NOTARY.getParty();
+
+        // Alice lends to Bob; every command consumes or creates the same number of IOUs.
+        TransactionBuilder issueBuilder = new TransactionBuilder(notary);
+        for (int i = 0; i < statesPerTransaction; i++) {
+            issueBuilder.addOutputState(new IOUState(10, ALICE.getParty(), BOB.getParty()), IOUContract.IOU_CONTRACT_ID);
+        }
+        issueBuilder.addCommand(new Command<>(new IOUContract.Commands.Issue(), keys(ALICE, BOB)));
+        if (command == IOUCommand.ISSUE) {
+            ledgerTransaction = issueBuilder.toWireTransaction(services).toLedgerTransaction(services);
+            return;
+        }
+
+        SignedTransaction issueTx = services.signInitialTransaction(issueBuilder);
+        services.recordTransactions(issueTx);
+
+        TransactionBuilder builder = new TransactionBuilder(notary);
+        for (int i = 0; i < statesPerTransaction; i++) {
+            StateAndRef<IOUState> input = issueTx.getTx().outRef(i);
+            IOUState iou = input.getState().getData();
+            builder.addInputState(input);
+            if (command == IOUCommand.TRANSFER) {
+                builder.addOutputState(new IOUState(iou.getAmount(), CHARLIE.getParty(), iou.getBorrower(), iou.getPaid(), iou.getLinearId()), IOUContract.IOU_CONTRACT_ID);
+            } else {
+                builder.addOutputState(new IOUState(iou.getAmount(), iou.getLender(), iou.getBorrower(), iou.getPaid() + 5, iou.getLinearId()), IOUContract.IOU_CONTRACT_ID);
+            }
+        }
+        if (command == IOUCommand.TRANSFER) {
+            builder.addCommand(new Command<>(new IOUContract.Commands.Transfer(), keys(ALICE, BOB, CHARLIE)));
+        } else {
+            builder.addCommand(new Command<>(new IOUContract.Commands.Settle(), keys(ALICE, BOB)));
+        }
+        ledgerTransaction = builder.toWireTransaction(services).toLedgerTransaction(services);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        serializationEnvironment.unset();
+    }
+
+    @Benchmark
+    public void verify() {
+        contract.verify(ledgerTransaction);
+    }
+
+    private static List<PublicKey> keys(TestIdentity... identities) {
+        return Arrays.stream(identities).map(TestIdentity::getPublicKey).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,58 @@
+package net.corda.samples.obligation.benchmarks;
+
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.serialization.SerializationContext;
+import net.corda.core.serialization.SerializationDefaults;
+import net.corda.core.serialization.SerializationFactory;
+import net.corda.core.serialization.SerializedBytes;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.internal.GlobalSerializationEnvironment;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static net.corda.testing.internal.InternalSerializationTestHelpersKt.setGlobalSerialization;
+
+/**
+ * Measures AMQP serialization and deserialization of a single [IOUState] with the P2P context, which is what
+ * transactions, flow messages and the vault pay for each state.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IOUStateSerializationBenchmark {
+
+    private static final TestIdentity ALICE = new TestIdentity(new CordaX500Name("Alice", "TestLand", "US"));
+    private static final TestIdentity BOB = new TestIdentity(new CordaX500Name("Bob", "TestCity", "US"));
+
+    private GlobalSerializationEnvironment serializationEnvironment;
+    private SerializationFactory factory;
+    private SerializationContext context;
+    private IOUState state;
+    private SerializedBytes<IOUState> serializedState;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        serializationEnvironment = setGlobalSerialization(true);
+        factory = SerializationFactory.Companion.getDefaultFactory();
+        context = SerializationDefaults.INSTANCE.getP2P_CONTEXT();
+        state = new IOUState(10, ALICE.getParty(), BOB.getParty());
+        serializedState = factory.serialize(state, context);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        serializationEnvironment.unset();
+    }
+
+    @Benchmark
+    public SerializedBytes<IOUState> serialize() {
+        return factory.serialize(state, context);
+    }
+
+    @Benchmark
+    public IOUState deserialize() {
+        return factory.deserialize(serializedState, IOUState.class, context);
+    }
+}
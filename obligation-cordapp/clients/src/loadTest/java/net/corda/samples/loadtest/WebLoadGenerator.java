@@ -0,0 +1,206 @@
+package net.corda.samples.loadtest;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A load generator for the web server's endpoints, run against a web server and nodes which are already up, e.g.
+ * started with `./gradlew deployNodes`, `build/nodes/runnodes` and `./runWebServer.sh`.
+ *
+ * It runs three phases over HTTP from [concurrency] threads: [operations] IOUs are issued by the borrower's server to
+ * [lender], the borrower's IOUs are then read page by page from `/api/iou/ious`, and the IOUs issued by the first phase
+ * are finally settled in full. Unlike the `IOULoadGenerator` of the workflows module, which starts flows over RPC,
+ * every request here also goes through the server's RPC connection pool and its servlet threads.
+ *
+ * The throughput and p50/p95/p99 latency of each phase are printed and written as JSON to [resultsFile].
+ *
+ * Run it with `./gradlew clients:webLoadTest`, passing the settings as `-Dwebload.<name>=<value>`, e.g.
+ * `./gradlew clients:webLoadTest -Dwebload.concurrency=32 -Dwebload.operations=1000`.
+ */
+public class WebLoadGenerator {
+
+    private static final int PAGE_SIZE = 100;
+    private static final int AMOUNT = 10;
+
+    private final String server = System.getProperty("webload.server", "http://localhost:50005");
+    private final String lender = System.getProperty("webload.lender", "O=ParticipantB,L=New York,C=US");
+    private final int concurrency = Integer.getInteger("webload.concurrency", 8);
+    private final int operations = Integer.getInteger("webload.operations", 200);
+    private final Path resultsFile = Paths.get(System.getProperty("webload.results", "build/reports/loadtest/web-results.json"));
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public static void main(String[] args) throws Exception {
+        new WebLoadGenerator().run();
+    }
+
+    /**
+     * One request of a phase. Returns normally only if the server answered with a 2xx status.
+     */
+    private interface Request {
+        void send(int index) throws Exception;
+    }
+
+    private static class Response {
+        private final int status;
+        private final String body;
+        private final long totalCount;
+
+        private Response(int status, String body, long totalCount) {
+            this.status = status;
+            this.body = body;
+            this.totalCount = totalCount;
+        }
+    }
+
+    private void run() throws Exception {
+        String[] requestIds = new String[operations];
+        for (int i = 0; i < operations; i++) {
+            requestIds[i] = UUID.randomUUID().toString();
+        }
+        List<String> results = new ArrayList<>();
+
+        results.add(runPhase("POST /issue", operations, i -> expectSuccess(post("/api/iou/issue?amount=" + AMOUNT
+                + "&lender=" + encode(lender) + "&requestId=" + requestIds[i]))));
+
+        // Page through the borrower's IOUs, and keep the unpaid ones owed to the lender for the settle phase.
+        long total = get("/api/iou/ious?page=1&size=" + PAGE_SIZE).totalCount;
+        int pages = (int) Math.max(1, (total + PAGE_SIZE - 1) / PAGE_SIZE);
+        List<String> toSettle = Collections.synchronizedList(new ArrayList<>());
+        results.add(runPhase("GET /ious", pages, i -> {
+            Response page = expectSuccess(get("/api/iou/ious?page=" + (i + 1) + "&size=" + PAGE_SIZE));
+            List<Map<String, Object>> ious = mapper.readValue(page.body, new TypeReference<List<Map<String, Object>>>() {
+            });
+            for (Map<String, Object> iou : ious) {
+                if (lender.equals(iou.get("lender")) && ((Number) iou.get("paid")).intValue() == 0) {
+                    toSettle.add((String) iou.get("linearId"));
+                }
+            }
+        }));
+
+        int settlements = Math.min(operations, toSettle.size());
+        results.add(runPhase("POST /settle", settlements, i -> expectSuccess(post("/api/iou/settle?id=" + toSettle.get(i)
+                + "&amount=" + AMOUNT + "&requestId=" + UUID.randomUUID()))));
+
+        writeResults(results);
+    }
+
+    private String runPhase(String name, int requests, Request request) throws InterruptedException {
+        long[] latenciesMicros = new long[requests];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        long phaseStart = System.nanoTime();
+        for (int worker = 0; worker < concurrency; worker++) {
+            workers.execute(() -> {
+                for (int i = next.getAndIncrement(); i < requests; i = next.getAndIncrement()) {
+                    long start = System.nanoTime();
+                    try {
+                        request.send(i);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                    latenciesMicros[i] = (System.nanoTime() - start) / 1000;
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        long durationMillis = (System.nanoTime() - phaseStart) / 1_000_000;
+
+        Arrays.sort(latenciesMicros);
+        double perSecond = (requests - failures.get()) * 1000.0 / Math.max(durationMillis, 1);
+        System.out.println(String.format(Locale.ROOT, "%s: %d requests, %d failed, %.1f req/s, p50 %.1f ms, p95 %.1f ms, p99 %.1f ms",
+                name, requests, failures.get(), perSecond,
+                percentile(latenciesMicros, 50), percentile(latenciesMicros, 95), percentile(latenciesMicros, 99)));
+        return String.format(Locale.ROOT,
+                "{\"endpoint\": \"%s\", \"requests\": %d, \"failures\": %d, \"durationMillis\": %d, \"requestsPerSecond\": %.2f, "
+                        + "\"latencyMillis\": {\"p50\": %.2f, \"p95\": %.2f, \"p99\": %.2f, \"max\": %.2f}}",
+                name, requests, failures.get(), durationMillis, perSecond, percentile(latenciesMicros, 50),
+                percentile(latenciesMicros, 95), percentile(latenciesMicros, 99), percentile(latenciesMicros, 100));
+    }
+
+    /**
+     * Returns the latency in milliseconds below which [percentile] percent of the sorted latencies lie.
+     */
+    private static double percentile(long[] sortedLatenciesMicros, double percentile) {
+        if (sortedLatenciesMicros.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * sortedLatenciesMicros.length);
+        return sortedLatenciesMicros[Math.max(rank, 1) - 1] / 1000.0;
+    }
+
+    private Response post(String path) throws IOException {
+        return send("POST", path);
+    }
+
+    private Response get(String path) throws IOException {
+        return send("GET", path);
+    }
+
+    private Response send(String method, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(server + path).openConnection();
+        try {
+            connection.setRequestMethod(method);
+            int status = connection.getResponseCode();
+            InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            String count = connection.getHeaderField("X-Total-Count");
+            return new Response(status, body == null ? "" : read(body), count == null ? 0 : Long.parseLong(count));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static Response expectSuccess(Response response) throws IOException {
+        if (response.status / 100 != 2) {
+            throw new IOException("The server answered " + response.status + ": " + response.body);
+        }
+        return response;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String encode(String value) throws IOException {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+    }
+
+    private void writeResults(List<String> results) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append(String.format(Locale.ROOT, "{\n  \"server\": \"%s\",\n  \"concurrency\": %d,\n  \"operations\": %d,\n  \"phases\": [\n",
+                server, concurrency, operations));
+        for (int i = 0; i < results.size(); i++) {
+            json.append("    ").append(results.get(i)).append(i < results.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("  ]\n}\n");
+        if (resultsFile.getParent() != null) {
+            Files.createDirectories(resultsFile.getParent());
+        }
+        Files.write(resultsFile, json.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.println("Load test results written to " + resultsFile.toAbsolutePath());
+    }
+}
@@ -0,0 +1,158 @@
+package net.corda.samples.obligation.webserver;
+
+import net.corda.client.rpc.RPCException;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.FlowHandle;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.flows.IOUIssueFlow;
+import net.corda.samples.obligation.flows.IOUSettleFlow;
+import net.corda.samples.obligation.flows.IOUTransferFlow;
+import net.corda.samples.obligation.states.IOUState;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Define your API endpoints here.
+ *
+ * The flow endpoints do not hold a servlet thread while the flow runs: the connection from the pool is used only to
+ * start the flow, and the response is completed from the flow's [net.corda.core.concurrent.CordaFuture] once the
+ * transaction has been finalised.
+ */
+@RestController
+@RequestMapping("/api/iou")
+public class Controller {
+
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final Sort BY_STATE_REF = new Sort(Arrays.asList(
+            new Sort.SortColumn(new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF_TXN_ID), Sort.Direction.ASC),
+            new Sort.SortColumn(new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF_INDEX), Sort.Direction.ASC)));
+
+    private final NodeRPCConnectionPool pool;
+
+    public Controller(NodeRPCConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Issues an IOU of [amount] from this node to [lender]. A client which retries the request with the same
+     * [requestId] gets the IOU issued by the first attempt back, rather than a second IOU; the same holds for the
+     * transfer and settle endpoints.
+     */
+    @PostMapping(value = "/issue", produces = "text/plain")
+    public CompletableFuture<ResponseEntity<String>> issue(@RequestParam int amount, @RequestParam String lender,
+                                                           @RequestParam(required = false) String requestId) throws InterruptedException {
+        return startFlow(proxy -> requestId == null
+                ? proxy.startFlowDynamic(IOUIssueFlow.InitiatorFlow.class, amount, party(proxy, lender))
+                : proxy.startFlowDynamic(IOUIssueFlow.InitiatorFlow.class, amount, party(proxy, lender), requestId));
+    }
+
+    /**
+     * Transfers the IOU [id], lent by this node, to [newLender].
+     */
+    @PostMapping(value = "/transfer", produces = "text/plain")
+    public CompletableFuture<ResponseEntity<String>> transfer(@RequestParam String id, @RequestParam String newLender,
+                                                              @RequestParam(required = false) String requestId) throws InterruptedException {
+        return startFlow(proxy -> requestId == null
+                ? proxy.startFlowDynamic(IOUTransferFlow.InitiatorFlow.class, UniqueIdentifier.fromString(id), party(proxy, newLender))
+                : proxy.startFlowDynamic(IOUTransferFlow.InitiatorFlow.class, UniqueIdentifier.fromString(id), party(proxy, newLender), requestId));
+    }
+
+    /**
+     * Pays [amount] off the IOU [id], borrowed by this node.
+     */
+    @PostMapping(value = "/settle", produces = "text/plain")
+    public CompletableFuture<ResponseEntity<String>> settle(@RequestParam String id, @RequestParam int amount,
+                                                            @RequestParam(required = false) String requestId) throws InterruptedException {
+        return startFlow(proxy -> requestId == null
+                ? proxy.startFlowDynamic(IOUSettleFlow.InitiatorFlow.class, UniqueIdentifier.fromString(id), amount)
+                : proxy.startFlowDynamic(IOUSettleFlow.InitiatorFlow.class, UniqueIdentifier.fromString(id), amount, requestId));
+    }
+
+    /**
+     * Returns one page of the unconsumed IOUs in this node's vault, [size] IOUs per page and ordered by StateRef so that
+     * pages do not overlap. The total number of IOUs is returned in the `X-Total-Count` header.
+     */
+    @GetMapping(value = "/ious", produces = "application/json")
+    public ResponseEntity<List<Map<String, Object>>> ious(@RequestParam(defaultValue = "1") int page,
+                                                          @RequestParam(defaultValue = "100") int size) throws InterruptedException {
+        if (page < 1) {
+            throw new IllegalArgumentException("The page number must be at least 1.");
+        }
+        if (size < 1 || size > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("The page size must be between 1 and " + MAX_PAGE_SIZE + ".");
+        }
+        Vault.Page<IOUState> states = pool.withProxy(proxy -> proxy.vaultQueryBy(
+                new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED), new PageSpecification(page, size), BY_STATE_REF, IOUState.class));
+        return ResponseEntity.ok()
+                .header("X-Total-Count", Long.toString(states.getTotalStatesAvailable()))
+                .body(json(states.getStates()));
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<String> badRequest(IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(e.getMessage());
+    }
+
+    @ExceptionHandler(NodeRPCConnectionPool.PoolExhaustedException.class)
+    public ResponseEntity<String> unavailable(NodeRPCConnectionPool.PoolExhaustedException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(e.getMessage());
+    }
+
+    @ExceptionHandler(RPCException.class)
+    public ResponseEntity<String> nodeUnreachable(RPCException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("The node could not be reached: " + e.getMessage());
+    }
+
+    private CompletableFuture<ResponseEntity<String>> startFlow(Function<CordaRPCOps, FlowHandle<SignedTransaction>> start) throws InterruptedException {
+        FlowHandle<SignedTransaction> handle = pool.withProxy(start);
+        return handle.getReturnValue().toCompletableFuture().handle((stx, error) -> error == null
+                ? ResponseEntity.status(HttpStatus.CREATED).body("Transaction id " + stx.getId() + " committed to ledger.\n")
+                : ResponseEntity.badRequest().body(rootCause(error).getMessage()));
+    }
+
+    private static Party party(CordaRPCOps proxy, String name) {
+        Party party = proxy.wellKnownPartyFromX500Name(CordaX500Name.parse(name));
+        if (party == null) {
+            throw new IllegalArgumentException("Party named " + name + " cannot be found.");
+        }
+        return party;
+    }
+
+    private static List<Map<String, Object>> json(List<StateAndRef<IOUState>> states) {
+        return states.stream().map(it -> {
+            IOUState iou = it.getState().getData();
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("linearId", iou.getLinearId().toString());
+            json.put("amount", iou.getAmount());
+            json.put("paid", iou.getPaid());
+            json.put("lender", iou.getLender().getName().toString());
+            json.put("borrower", iou.getBorrower().getName().toString());
+            return json;
+        }).collect(Collectors.toList());
+    }
+
+    private static Throwable rootCause(Throwable error) {
+        while (error.getCause() != null && error.getCause() != error) {
+            error = error.getCause();
+        }
+        return error;
+    }
+}
@@ -0,0 +1,294 @@
+package net.corda.samples.obligation.webserver;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.*;
+import net.corda.samples.obligation.states.IOUState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+import rx.Subscription;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes the changes to the node's unconsumed IOUs to any number of WebSocket clients.
+ *
+ * The server subscribes to [net.corda.core.messaging.CordaRPCOps.vaultTrackBy] once and keeps the current IOUs in
+ * memory. They are first loaded page by page, as the snapshot of a feed is only ever a single page. A new client is
+ * sent every current IOU as CREATED, and from then on only the changes: CREATED for a new IOU, UPDATED when an IOU is
+ * replaced by a new version (paid or lender changed) and CONSUMED when it is gone.
+ *
+ * If the feed fails, e.g. because the RPC connection was lost, every client is disconnected, as changes may have been
+ * missed, and the server subscribes again and reloads the current IOUs, retrying every [RESUBSCRIBE_DELAY_SECONDS]
+ * until it succeeds. Reconnecting clients then get a fresh snapshot.
+ *
+ * Each client has at most one message being sent at a time. Changes arriving meanwhile are coalesced per IOU, so a
+ * slow client receives the latest version of each IOU in its next message rather than every intermediate one. A client
+ * whose unsent changes cover more than [maxPendingPerClient] IOUs is disconnected; reconnecting gets a fresh snapshot.
+ */
+@Component
+public class IOUStreamHandler extends TextWebSocketHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(IOUStreamHandler.class);
+    private static final int SNAPSHOT_PAGE_SIZE = 1000;
+    private static final long RESUBSCRIBE_DELAY_SECONDS = 5;
+    private static final Sort BY_STATE_REF = new Sort(Arrays.asList(
+            new Sort.SortColumn(new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF_TXN_ID), Sort.Direction.ASC),
+            new Sort.SortColumn(new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF_INDEX), Sort.Direction.ASC)));
+
+    public enum ChangeType {CREATED, UPDATED, CONSUMED}
+
+    private final NodeRPCConnectionPool pool;
+    private final int maxPendingPerClient;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ExecutorService senders = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "iou-stream-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService resubscriber = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "iou-stream-resubscriber");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<UniqueIdentifier, IOUState> current = new HashMap<>();
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+    private Subscription subscription;
+
+    public IOUStreamHandler(NodeRPCConnectionPool pool, @Value("${config.stream.maxPendingPerClient:10000}") int maxPendingPerClient) {
+        this.pool = pool;
+        this.maxPendingPerClient = maxPendingPerClient;
+    }
+
+    @PostConstruct
+    public void subscribe() throws InterruptedException {
+        // The snapshot of vaultTrackBy is a single page, so only the updates are taken from it.
+        DataFeed<Vault.Page<IOUState>, Vault.Update<IOUState>> feed = pool.withProxy(proxy -> proxy.vaultTrackBy(
+                new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL), new PageSpecification(1, 1), BY_STATE_REF, IOUState.class));
+        synchronized (this) {
+            if (subscription != null) {
+                subscription.unsubscribe();
+            }
+            // The clients of an earlier feed may have missed changes, so they reconnect for the new snapshot.
+            closeClients();
+            current.clear();
+            subscription = feed.getUpdates().subscribe(this::onUpdate, this::onFeedError);
+            // Updates wait for the lock until the snapshot has been loaded, and are then applied on top of it.
+            loadSnapshot(pool.withProxy(CordaRPCOps::currentNodeTime));
+        }
+    }
+
+    private void onFeedError(Throwable error) {
+        logger.error("The IOU vault feed failed, subscribing again", error);
+        synchronized (this) {
+            closeClients();
+        }
+        resubscriber.schedule(this::resubscribe, RESUBSCRIBE_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void resubscribe() {
+        try {
+            subscribe();
+            logger.info("Subscribed to the IOU vault feed again");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logger.warn("Could not subscribe to the IOU vault feed, retrying in {}s", RESUBSCRIBE_DELAY_SECONDS, e);
+            resubscriber.schedule(this::resubscribe, RESUBSCRIBE_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private void closeClients() {
+        // Closing a client removes it from the concurrent map, which is safe while iterating over it.
+        clients.values().forEach(client -> client.close(
+                new CloseStatus(CloseStatus.SERVICE_RESTARTED.getCode(), "The IOU stream restarted, reconnect for a snapshot")));
+    }
+
+    /**
+     * Pages through every IOU recorded up to [recordedBy], consumed or not and ordered by StateRef, so that IOUs consumed
+     * while the pages are read cannot shift the later pages. The IOUs still unconsumed when their page is read become
+     * the current IOUs.
+     */
+    private void loadSnapshot(Instant recordedBy) throws InterruptedException {
+        QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL)
+                .withTimeCondition(new QueryCriteria.TimeCondition(QueryCriteria.TimeInstantType.RECORDED,
+                        new ColumnPredicate.BinaryComparison<>(BinaryComparisonOperator.LESS_THAN_OR_EQUAL, recordedBy)));
+        for (int pageNumber = 1; ; pageNumber++) {
+            PageSpecification paging = new PageSpecification(pageNumber, SNAPSHOT_PAGE_SIZE);
+            Vault.Page<IOUState> page = pool.withProxy(proxy -> proxy.vaultQueryBy(criteria, paging, BY_STATE_REF, IOUState.class));
+            for (int i = 0; i < page.getStates().size(); i++) {
+                if (page.getStatesMetadata().get(i).getStatus() == Vault.StateStatus.UNCONSUMED) {
+                    IOUState iou = page.getStates().get(i).getState().getData();
+                    current.put(iou.getLinearId(), iou);
+                }
+            }
+            if ((long) pageNumber * SNAPSHOT_PAGE_SIZE >= page.getTotalStatesAvailable()) {
+                return;
+            }
+        }
+    }
+
+    @PreDestroy
+    public void unsubscribe() {
+        if (subscription != null) {
+            subscription.unsubscribe();
+        }
+        resubscriber.shutdownNow();
+        senders.shutdownNow();
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+        Client client = new Client(session);
+        synchronized (this) {
+            // Registering and taking the snapshot under the same lock as updates means no change is missed or repeated.
+            current.values().forEach(iou -> client.offer(ChangeType.CREATED, iou));
+            clients.put(session.getId(), client);
+        }
+        client.schedule();
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        clients.remove(session.getId());
+    }
+
+    private synchronized void onUpdate(Vault.Update<IOUState> update) {
+        Map<UniqueIdentifier, ChangeType> types = new LinkedHashMap<>();
+        Map<UniqueIdentifier, IOUState> states = new HashMap<>();
+        for (StateAndRef<IOUState> consumed : update.getConsumed()) {
+            IOUState iou = consumed.getState().getData();
+            types.put(iou.getLinearId(), ChangeType.CONSUMED);
+            states.put(iou.getLinearId(), iou);
+            current.remove(iou.getLinearId());
+        }
+        for (StateAndRef<IOUState> produced : update.getProduced()) {
+            IOUState iou = produced.getState().getData();
+            types.put(iou.getLinearId(), types.containsKey(iou.getLinearId()) ? ChangeType.UPDATED : ChangeType.CREATED);
+            states.put(iou.getLinearId(), iou);
+            current.put(iou.getLinearId(), iou);
+        }
+        for (Client client : clients.values()) {
+            types.forEach((linearId, type) -> client.offer(type, states.get(linearId)));
+            client.schedule();
+        }
+    }
+
+    private Map<String, Object> toJson(ChangeType type, IOUState iou) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("type", type.name());
+        json.put("linearId", iou.getLinearId().toString());
+        json.put("amount", iou.getAmount());
+        json.put("paid", iou.getPaid());
+        json.put("lender", iou.getLender().getName().toString());
+        json.put("borrower", iou.getBorrower().getName().toString());
+        return json;
+    }
+
+    /**
+     * The changes not yet sent to one WebSocket client, at most one per IOU.
+     */
+    private class Client {
+
+        private final WebSocketSession session;
+        private LinkedHashMap<UniqueIdentifier, Map.Entry<ChangeType, IOUState>> pending = new LinkedHashMap<>();
+        private boolean sending = false;
+
+        private Client(WebSocketSession session) {
+            this.session = session;
+        }
+
+        private synchronized void offer(ChangeType type, IOUState iou) {
+            Map.Entry<ChangeType, IOUState> previous = pending.get(iou.getLinearId());
+            ChangeType merged = type;
+            if (previous != null) {
+                if (previous.getKey() == ChangeType.CREATED && type == ChangeType.CONSUMED) {
+                    // The client never saw this IOU, so it need not hear about it at all.
+                    pending.remove(iou.getLinearId());
+                    return;
+                }
+                if (previous.getKey() == ChangeType.CREATED) {
+                    merged = ChangeType.CREATED;
+                } else if (previous.getKey() == ChangeType.CONSUMED && type == ChangeType.CREATED) {
+                    merged = ChangeType.UPDATED;
+                }
+            }
+            pending.put(iou.getLinearId(), new AbstractMap.SimpleImmutableEntry<>(merged, iou));
+        }
+
+        private void schedule() {
+            synchronized (this) {
+                if (pending.size() > maxPendingPerClient) {
+                    pending.clear();
+                    close(new CloseStatus(CloseStatus.POLICY_VIOLATION.getCode(), "Too far behind the IOU stream, reconnect for a snapshot"));
+                    return;
+                }
+                if (sending || pending.isEmpty()) {
+                    return;
+                }
+                sending = true;
+            }
+            senders.execute(this::drain);
+        }
+
+        private void drain() {
+            while (true) {
+                LinkedHashMap<UniqueIdentifier, Map.Entry<ChangeType, IOUState>> batch;
+                synchronized (this) {
+                    if (pending.isEmpty() || !session.isOpen()) {
+                        sending = false;
+                        return;
+                    }
+                    batch = pending;
+                    pending = new LinkedHashMap<>();
+                }
+                List<Map<String, Object>> changes = new ArrayList<>(batch.size());
+                try {
+                    batch.values().forEach(change -> changes.add(toJson(change.getKey(), change.getValue())));
+                    session.sendMessage(new TextMessage(mapper.writeValueAsString(changes)));
+                } catch (JsonProcessingException e) {
+                    logger.error("Could not serialise IOU changes", e);
+                } catch (IOException | RuntimeException e) {
+                    // A runtime error, such as the session being closed under us, must not leave the client marked as
+                    // sending, or it would never be sent anything again.
+                    logger.info("Dropping IOU stream client {}: {}", session.getId(), e.getMessage());
+                    clients.remove(session.getId());
+                    close(CloseStatus.SERVER_ERROR);
+                    synchronized (this) {
+                        sending = false;
+                    }
+                    return;
+                }
+            }
+        }
+
+        private void close(CloseStatus status) {
+            clients.remove(session.getId());
+            try {
+                session.close(status);
+            } catch (IOException e) {
+                logger.debug("Could not close IOU stream client {}", session.getId(), e);
+            }
+        }
+    }
+}
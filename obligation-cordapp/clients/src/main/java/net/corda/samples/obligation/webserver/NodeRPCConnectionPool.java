@@ -0,0 +1,144 @@
+package net.corda.samples.obligation.webserver;
+
+import net.corda.client.rpc.CordaRPCClient;
+import net.corda.client.rpc.CordaRPCConnection;
+import net.corda.client.rpc.RPCException;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.utilities.NetworkHostAndPort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * A bounded pool of RPC connections to the node.
+ *
+ * Connections are opened on demand up to [poolSize] and then reused, so a burst of requests shares a fixed number of
+ * connections instead of opening one each. A request borrows a connection only while it makes its RPC call, which for
+ * a flow is until the node has accepted it rather than until it finishes, and waits at most [borrowTimeoutMillis] for
+ * one to become free.
+ *
+ * A connection whose call fails with an [RPCException], as it does once the node has restarted or the connection has
+ * dropped, is closed and taken out of the pool rather than handed to the next request. The next request which finds no
+ * idle connection opens a new one in its place.
+ */
+@Component
+public class NodeRPCConnectionPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(NodeRPCConnectionPool.class);
+    private static final long RECHECK_MILLIS = 100;
+
+    private final CordaRPCClient client;
+    private final String username;
+    private final String password;
+    private final int poolSize;
+    private final long borrowTimeoutMillis;
+    private final BlockingQueue<CordaRPCConnection> idle;
+    private final List<CordaRPCConnection> opened = new ArrayList<>();
+
+    public NodeRPCConnectionPool(
+            @Value("${config.rpc.host}") String host,
+            @Value("${config.rpc.port}") int rpcPort,
+            @Value("${config.rpc.username}") String username,
+            @Value("${config.rpc.password}") String password,
+            @Value("${config.rpc.poolSize:4}") int poolSize,
+            @Value("${config.rpc.borrowTimeoutMillis:5000}") long borrowTimeoutMillis) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("The RPC connection pool size must be positive");
+        }
+        this.client = new CordaRPCClient(new NetworkHostAndPort(host, rpcPort));
+        this.username = username;
+        this.password = password;
+        this.poolSize = poolSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.idle = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    /**
+     * Runs [call] with a pooled connection's [CordaRPCOps] and returns its result. The connection goes back to the pool
+     * as soon as [call] returns.
+     */
+    public <T> T withProxy(Function<CordaRPCOps, T> call) throws InterruptedException {
+        CordaRPCConnection connection = borrow();
+        boolean broken = false;
+        try {
+            return call.apply(connection.getProxy());
+        } catch (RPCException e) {
+            broken = true;
+            throw e;
+        } finally {
+            if (broken) {
+                discard(connection);
+            } else {
+                idle.offer(connection);
+            }
+        }
+    }
+
+    private void discard(CordaRPCConnection connection) {
+        int remaining;
+        synchronized (opened) {
+            opened.remove(connection);
+            remaining = opened.size();
+        }
+        try {
+            connection.forceClose();
+        } catch (RuntimeException e) {
+            logger.debug("Could not close a broken RPC connection", e);
+        }
+        logger.warn("Dropped a broken RPC connection, {} of {} remain open", remaining, poolSize);
+    }
+
+    private CordaRPCConnection borrow() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+        while (true) {
+            CordaRPCConnection connection = idle.poll();
+            if (connection != null) {
+                return connection;
+            }
+            synchronized (opened) {
+                // Also replaces the connections which have been discarded as broken.
+                if (opened.size() < poolSize) {
+                    connection = client.start(username, password);
+                    opened.add(connection);
+                    logger.info("Opened RPC connection {} of {}", opened.size(), poolSize);
+                    return connection;
+                }
+            }
+            // Wait in short steps, so that a connection discarded meanwhile is replaced instead of waited for.
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                throw new PoolExhaustedException("No RPC connection became free within " + borrowTimeoutMillis + " ms");
+            }
+            connection = idle.poll(Math.min(left, TimeUnit.MILLISECONDS.toNanos(RECHECK_MILLIS)), TimeUnit.NANOSECONDS);
+            if (connection != null) {
+                return connection;
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        synchronized (opened) {
+            opened.forEach(CordaRPCConnection::notifyServerAndClose);
+            opened.clear();
+        }
+    }
+
+    /**
+     * Thrown when every connection of the pool stayed in use for longer than the borrow timeout.
+     */
+    public static class PoolExhaustedException extends RuntimeException {
+        public PoolExhaustedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -1,16 +1,21 @@
 package net.corda.samples.obligation.contracts;
 
 import net.corda.core.contracts.*;
+import net.corda.core.crypto.CryptoUtils;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.crypto.TransactionSignature;
 
 import static net.corda.core.contracts.ContractsDSL.requireSingleCommand;
 import static net.corda.core.contracts.ContractsDSL.requireThat;
 
-import net.corda.core.identity.AbstractParty;
-import net.corda.core.identity.Party;
 import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.LedgerTransaction.InOutGroup;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.states.IOUReissueLock;
 import net.corda.samples.obligation.states.IOUState;
 
 import java.security.PublicKey;
+import java.security.SignatureException;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -27,10 +32,21 @@ public class IOUContract implements Contract {
     public static final String IOU_CONTRACT_ID = "net.corda.samples.obligation.contracts.IOUContract";
 
     /**
-     * The IOUContract can handle three transaction types involving [IOUState]s.
-     * - Issuance: Issuing a new [IOUState] on the ledger, which is a bilateral agreement between two parties.
-     * - Transfer: Re-assigning the lender/beneficiary.
-     * - Settle: Fully or partially settling the [IOUState].
+     * The IOUContract can handle nine transaction types involving [IOUState]s.
+     * - Issuance: Issuing one or more new [IOUState]s on the ledger, each a bilateral agreement between two parties.
+     * - Transfer: Re-assigning the lender/beneficiary of one or more [IOUState]s.
+     * - Settle: Fully or partially settling one or more [IOUState]s, each matched with its output by linearId.
+     * - SettleWithReceipt: Settling one [IOUState] up to the paid-to-date of a [PaymentReceipt] its lender signed for
+     *   that state, which stands in for the lender's signature on the transaction.
+     * - Net: Replacing a set of [IOUState]s, typically a cycle of obligations, by new residual [IOUState]s which leave
+     *   every party owing and owed the same net amount.
+     * - Merge: Replacing several [IOUState]s with the same lender and borrower by one [IOUState] whose amount and paid
+     *   amount are their sums.
+     * - Reissue, Exit and Unlock: Replacing an [IOUState] with a long transaction history by an equal [IOUState] with
+     *   none. The copy is created by a Reissue transaction without inputs, locked by an [IOUReissueLock] naming the
+     *   state it replaces. The original is consumed by an Exit transaction naming the Reissue transaction and the copy,
+     *   which must equal the original. An Unlock transaction carrying the notarised Exit transaction then frees the copy.
+     *   The Exit is carried in the command rather than as an input, so the copy does not inherit the original's history.
      */
     //Used to indicate the transactions intent
     public interface Commands extends CommandData {
@@ -42,11 +58,115 @@ public class IOUContract implements Contract {
 
         class Settle extends TypeOnlyCommandData implements Commands {
         }
+
+        class Net extends TypeOnlyCommandData implements Commands {
+        }
+
+        class Merge extends TypeOnlyCommandData implements Commands {
+        }
+
+        class SettleWithReceipt implements Commands {
+            private final PaymentReceipt receipt;
+
+            public SettleWithReceipt(PaymentReceipt receipt) {
+                this.receipt = receipt;
+            }
+
+            public PaymentReceipt getReceipt() {
+                return receipt;
+            }
+
+            @Override
+            public boolean equals(Object other) {
+                return other instanceof SettleWithReceipt && ((SettleWithReceipt) other).receipt.equals(receipt);
+            }
+
+            @Override
+            public int hashCode() {
+                return receipt.hashCode();
+            }
+        }
+
+        class Reissue implements Commands {
+            private final StateRef replaces;
+
+            public Reissue(StateRef replaces) {
+                this.replaces = replaces;
+            }
+
+            public StateRef getReplaces() {
+                return replaces;
+            }
+
+            @Override
+            public boolean equals(Object other) {
+                return other instanceof Reissue && ((Reissue) other).replaces.equals(replaces);
+            }
+
+            @Override
+            public int hashCode() {
+                return replaces.hashCode();
+            }
+        }
+
+        class Exit implements Commands {
+            private final SecureHash reissuedBy;
+            private final IOUState copy;
+
+            public Exit(SecureHash reissuedBy, IOUState copy) {
+                this.reissuedBy = reissuedBy;
+                this.copy = copy;
+            }
+
+            public SecureHash getReissuedBy() {
+                return reissuedBy;
+            }
+
+            public IOUState getCopy() {
+                return copy;
+            }
+
+            @Override
+            public boolean equals(Object other) {
+                return other instanceof Exit && ((Exit) other).reissuedBy.equals(reissuedBy) && sameIOU(((Exit) other).copy, copy);
+            }
+
+            @Override
+            public int hashCode() {
+                return reissuedBy.hashCode();
+            }
+        }
+
+        class Unlock implements Commands {
+            private final SignedTransaction exit;
+
+            public Unlock(SignedTransaction exit) {
+                this.exit = exit;
+            }
+
+            public SignedTransaction getExit() {
+                return exit;
+            }
+
+            @Override
+            public boolean equals(Object other) {
+                return other instanceof Unlock && ((Unlock) other).exit.getId().equals(exit.getId());
+            }
+
+            @Override
+            public int hashCode() {
+                return exit.getId().hashCode();
+            }
+        }
     }
 
     /**
      * The contracts code for the [IOUContract].
      * The constraints are self documenting so don't require any additional explanation.
+     *
+     * The IOU states of the transaction are grouped by linearId once, and each command checks its groups in a single
+     * pass. The signers of the command are put into a set once and compared with the participant keys collected during
+     * that pass, so a transaction carrying thousands of IOUs verifies in linear time.
      */
     @Override
     public void verify(LedgerTransaction tx) {
@@ -54,6 +174,19 @@ public class IOUContract implements Contract {
         // We can use the requireSingleCommand function to extract command data from transaction.
         final CommandWithParties<Commands> command = requireSingleCommand(tx.getCommands(), Commands.class);
         final Commands commandData = command.getValue();
+        final Set<PublicKey> signers = new HashSet<>(command.getSigners());
+
+        // Each group holds the inputs and outputs of one IOU.
+        final List<InOutGroup<IOUState, UniqueIdentifier>> groups = tx.groupStates(IOUState.class, IOUState::getLinearId);
+
+        // A reissue lock is only ever created by a Reissue and only ever consumed by an Unlock.
+        requireThat(require -> {
+            require.using("A reissue lock may only be created by a Reissue transaction.",
+                    tx.outputsOfType(IOUReissueLock.class).isEmpty() || commandData instanceof Commands.Reissue);
+            require.using("A reissue lock may only be consumed by an Unlock transaction.",
+                    tx.inputsOfType(IOUReissueLock.class).isEmpty() || commandData instanceof Commands.Unlock);
+            return null;
+        });
 
         /**
          * This command data can then be used inside of a conditional statement to indicate which set of tests we
@@ -61,13 +194,31 @@ public class IOUContract implements Contract {
          * for issuing, settling and transferring.
          */
         if (commandData instanceof Commands.Issue)
-            verifyIssue(tx);
+            verifyIssue(tx, groups, signers);
 
         else if (commandData instanceof Commands.Transfer)
-            verifyTransfer(tx);
+            verifyTransfer(tx, groups, signers);
 
         else if (commandData instanceof Commands.Settle)
-            verifySettle(tx);
+            verifySettle(tx, groups, signers);
+
+        else if (commandData instanceof Commands.Net)
+            verifyNet(tx, groups, signers);
+
+        else if (commandData instanceof Commands.Merge)
+            verifyMerge(tx, signers);
+
+        else if (commandData instanceof Commands.SettleWithReceipt)
+            verifySettleWithReceipt(tx, ((Commands.SettleWithReceipt) commandData).getReceipt(), signers);
+
+        else if (commandData instanceof Commands.Reissue)
+            verifyReissue(tx, ((Commands.Reissue) commandData).getReplaces(), signers);
+
+        else if (commandData instanceof Commands.Exit)
+            verifyExit(tx, ((Commands.Exit) commandData).getCopy(), signers);
+
+        else if (commandData instanceof Commands.Unlock)
+            verifyUnlock(tx, ((Commands.Unlock) commandData).getExit(), signers);
 
         else
             throw new IllegalArgumentException("Invalid Command");
@@ -75,88 +226,313 @@ public class IOUContract implements Contract {
     }
 
 
-    private void verifyIssue(LedgerTransaction tx) {
+    private void verifyIssue(LedgerTransaction tx, List<InOutGroup<IOUState, UniqueIdentifier>> groups, Set<PublicKey> signers) {
         requireThat(require -> {
 
             require.using("No inputs should be consumed when issuing an IOU.", tx.getInputStates().size() == 0);
-            require.using("Only one output states should be created when issuing an IOU.", tx.getOutputStates().size() == 1);
+            require.using("At least one output states should be created when issuing an IOU.", tx.getOutputStates().size() >= 1);
+            require.using("Only IOU output states may be created when issuing an IOU.", tx.getOutputStates().size() == tx.outputsOfType(IOUState.class).size());
+
+            // A batched issuance may carry any number of IOUs, each of which must be well formed on its own.
+            Set<PublicKey> participantKeys = new HashSet<>();
+            for (InOutGroup<IOUState, UniqueIdentifier> group : groups) {
+                require.using("Each newly issued IOU must have a unique linearId.", group.getOutputs().size() == 1);
+                IOUState outputState = group.getOutputs().get(0);
+                PublicKey lenderKey = outputState.getLender().getOwningKey();
+                PublicKey borrowerKey = outputState.getBorrower().getOwningKey();
+
+                require.using("A newly issued IOU must have a positive amount.", outputState.getAmount() > 0);
+                require.using("The lender and borrower cannot have the same identity.", !lenderKey.equals(borrowerKey));
+                participantKeys.add(lenderKey);
+                participantKeys.add(borrowerKey);
+            }
+
+            require.using("Both lender and borrower together only may sign IOU issue transaction.", signers.equals(participantKeys));
 
-            IOUState outputState = tx.outputsOfType(IOUState.class).get(0);
-            require.using("A newly issued IOU must have a positive amount.", outputState.getAmount() > 0);
-            require.using("The lender and borrower cannot have the same identity.", outputState.getLender().getOwningKey() != outputState.getBorrower().getOwningKey());
+            return null;
+        });
+
+    }
+
+    private void verifyTransfer(LedgerTransaction tx, List<InOutGroup<IOUState, UniqueIdentifier>> groups, Set<PublicKey> signers) {
+        requireThat(require -> {
+
+            require.using("An IOU transfer transaction must consume at least one IOU.", tx.getInputStates().size() >= 1);
+
+            // Each transferred IOU must be consumed exactly once and re-created exactly once under the same linearId.
+            Set<PublicKey> participantKeys = new HashSet<>();
+            for (InOutGroup<IOUState, UniqueIdentifier> group : groups) {
+                require.using("An IOU transfer transaction should only consume one input states.", group.getInputs().size() <= 1);
+                require.using("An IOU transfer transaction should only create one output states.", group.getInputs().size() == 1 && group.getOutputs().size() == 1);
 
-            List<PublicKey> signers = tx.getCommand(0).getSigners();
-            HashSet<PublicKey> signersSet = new HashSet<>();
-            for (PublicKey key : signers) {
-                signersSet.add(key);
+                IOUState inputState = group.getInputs().get(0);
+                IOUState outputState = group.getOutputs().get(0);
+                require.using("Only the lender property may change.",
+                        (outputState.getAmount() == inputState.getAmount()) && outputState.getBorrower().equals(inputState.getBorrower()) && (outputState.getPaid() == inputState.getPaid()));
+                require.using("The lender property must change in a transfer.", !outputState.getLender().getOwningKey().equals(inputState.getLender().getOwningKey()));
+
+                participantKeys.add(inputState.getLender().getOwningKey());
+                participantKeys.add(inputState.getBorrower().getOwningKey());
+                participantKeys.add(outputState.getLender().getOwningKey());
             }
+            require.using("Every input of an IOU transfer transaction must be an IOU being transferred.", tx.getInputStates().size() == groups.size());
+            require.using("Every output of an IOU transfer transaction must be an IOU being transferred.", tx.getOutputStates().size() == groups.size());
+
+            require.using("The borrower, old lender and new lender only must sign an IOU transfer transaction", signers.equals(participantKeys));
+            return null;
+
+        });
+
+    }
 
-            List<AbstractParty> participants = tx.getOutputStates().get(0).getParticipants();
-            HashSet<PublicKey> participantKeys = new HashSet<>();
-            for (AbstractParty party : participants) {
-                participantKeys.add(party.getOwningKey());
+    private void verifySettle(LedgerTransaction tx, List<InOutGroup<IOUState, UniqueIdentifier>> groups, Set<PublicKey> signers) {
+        requireThat(require -> {
+
+            require.using("One input IOU should be consumed when settling an IOU.", !groups.isEmpty());
+
+            Set<PublicKey> participantKeys = new HashSet<>();
+            for (InOutGroup<IOUState, UniqueIdentifier> group : groups) {
+                // Check that exactly one input IOU is consumed for each IOU being settled.
+                require.using("One input IOU should be consumed when settling an IOU.", group.getInputs().size() == 1);
+                IOUState inputIOU = group.getInputs().get(0);
+
+                // Check if there is no more than 1 Output IOU state per input.
+                require.using("No more than one output IOU should be created", group.getOutputs().size() <= 1);
+                if (group.getOutputs().size() == 1) {
+                    // This means part amount of the obligation is settled.
+                    IOUState outputIOU = group.getOutputs().get(0);
+                    require.using("Only the paid amount can change during part settlement.",
+                            (outputIOU.getAmount() == inputIOU.getAmount()) && outputIOU.getBorrower().equals(inputIOU.getBorrower()) && outputIOU.getLender().equals(inputIOU.getLender()));
+                    require.using("The paid amount must increase in case of part settlement of the IOU.", (outputIOU.getPaid() > inputIOU.getPaid()));
+                    require.using("The paid amount must be less than the total amount of the IOU", (outputIOU.getPaid() < inputIOU.getAmount()));
+                }
+
+                participantKeys.add(inputIOU.getLender().getOwningKey());
+                participantKeys.add(inputIOU.getBorrower().getOwningKey());
             }
 
-            require.using("Both lender and borrower together only may sign IOU issue transaction.", signersSet.containsAll(participantKeys) && signersSet.size() == 2);
+            require.using("Both lender and borrower must sign IOU settle transaction.", signers.equals(participantKeys));
 
             return null;
         });
 
     }
 
-    private void verifyTransfer(LedgerTransaction tx) {
+    private void verifyNet(LedgerTransaction tx, List<InOutGroup<IOUState, UniqueIdentifier>> groups, Set<PublicKey> signers) {
         requireThat(require -> {
 
-            require.using("An IOU transfer transaction should only consume one input states.", tx.getInputStates().size() == 1);
-            require.using("An IOU transfer transaction should only create one output states.", tx.getOutputStates().size() == 1);
+            List<IOUState> inputs = tx.inputsOfType(IOUState.class);
+            List<IOUState> outputs = tx.outputsOfType(IOUState.class);
+            require.using("At least one IOU must be consumed when netting.", !inputs.isEmpty());
+            require.using("Only IOU states may be consumed or created when netting.",
+                    inputs.size() == tx.getInputStates().size() && outputs.size() == tx.getOutputStates().size());
+
+            // A netted IOU is consumed without an output, and a residual IOU is a new IOU with a linearId of its own.
+            for (InOutGroup<IOUState, UniqueIdentifier> group : groups) {
+                require.using("Each netted IOU must be consumed once and each residual IOU must have a new linearId.",
+                        group.getInputs().size() + group.getOutputs().size() == 1);
+            }
 
-            // Copy of input with new lender;
-            IOUState inputState = tx.inputsOfType(IOUState.class).get(0);
-            IOUState outputState = tx.outputsOfType(IOUState.class).get(0);
-            IOUState checkOutputState = new IOUState(outputState.getAmount(), inputState.getLender(), outputState.getBorrower(), outputState.getPaid(), outputState.getLinearId());
+            // The net position of a party is what it is owed minus what it owes, over the outstanding amounts.
+            Map<PublicKey, Long> positions = new HashMap<>();
+            for (IOUState input : inputs) {
+                long outstanding = input.getAmount() - input.getPaid();
+                positions.merge(input.getLender().getOwningKey(), outstanding, Long::sum);
+                positions.merge(input.getBorrower().getOwningKey(), -outstanding, Long::sum);
+            }
+            Set<PublicKey> participantKeys = new HashSet<>(positions.keySet());
+
+            for (IOUState output : outputs) {
+                PublicKey lenderKey = output.getLender().getOwningKey();
+                PublicKey borrowerKey = output.getBorrower().getOwningKey();
+                require.using("A residual IOU must have a positive amount and nothing paid.", output.getAmount() > 0 && output.getPaid() == 0);
+                require.using("The lender and borrower cannot have the same identity.", !lenderKey.equals(borrowerKey));
+                require.using("Residual IOUs may only be between parties of the netted IOUs.",
+                        participantKeys.contains(lenderKey) && participantKeys.contains(borrowerKey));
+                positions.merge(lenderKey, -(long) output.getAmount(), Long::sum);
+                positions.merge(borrowerKey, (long) output.getAmount(), Long::sum);
+            }
+            require.using("Netting must preserve the net position of every party.",
+                    positions.values().stream().allMatch(position -> position == 0));
 
-            require.using("Only the lender property may change.",
-                    (checkOutputState.getAmount() == inputState.getAmount()) && checkOutputState.getLinearId().equals(inputState.getLinearId()) && checkOutputState.getBorrower().equals(inputState.getBorrower()) && (checkOutputState.getPaid() == inputState.getPaid()));
-            require.using("The lender property must change in a transfer.", !outputState.getLender().getOwningKey().equals(inputState.getLender().getOwningKey()));
+            require.using("Every party of the netted IOUs must sign the netting transaction.", signers.equals(participantKeys));
 
-            Set<PublicKey> listOfParticipantPublicKeys = inputState.getParticipants().stream().map(AbstractParty::getOwningKey).collect(Collectors.toSet());
-            listOfParticipantPublicKeys.add(outputState.getLender().getOwningKey());
-            List<PublicKey> arrayOfSigners = tx.getCommand(0).getSigners();
-            Set<PublicKey> setOfSigners = new HashSet<PublicKey>(arrayOfSigners);
-            require.using("The borrower, old lender and new lender only must sign an IOU transfer transaction", setOfSigners.equals(listOfParticipantPublicKeys) && setOfSigners.size() == 3);
             return null;
-
         });
 
     }
 
-    private void verifySettle(LedgerTransaction tx) {
+    private void verifyMerge(LedgerTransaction tx, Set<PublicKey> signers) {
         requireThat(require -> {
 
-            // Check that only one input IOU should be consumed.
-            require.using("One input IOU should be consumed when settling an IOU.", tx.getInputStates().size() == 1);
+            List<IOUState> inputs = tx.inputsOfType(IOUState.class);
+            List<IOUState> outputs = tx.outputsOfType(IOUState.class);
+            require.using("At least two IOUs must be consumed when merging IOUs.", inputs.size() >= 2 && tx.getInputStates().size() == inputs.size());
+            require.using("Exactly one IOU should be created when merging IOUs.", outputs.size() == 1 && tx.getOutputStates().size() == 1);
+
+            IOUState merged = outputs.get(0);
+            long amount = 0;
+            long paid = 0;
+            boolean keepsLinearId = false;
+            for (IOUState input : inputs) {
+                require.using("Only IOUs with the same lender and borrower may be merged.",
+                        input.getLender().equals(merged.getLender()) && input.getBorrower().equals(merged.getBorrower()));
+                amount += input.getAmount();
+                paid += input.getPaid();
+                keepsLinearId |= input.getLinearId().equals(merged.getLinearId());
+            }
+            require.using("The merged IOU must keep the linearId of one of the merged IOUs.", keepsLinearId);
+            require.using("The amount and paid amount of the merged IOU must be the sums of the merged IOUs.",
+                    merged.getAmount() == amount && merged.getPaid() == paid);
 
-            IOUState inputIOU = tx.inputsOfType(IOUState.class).get(0);
-            int inputAmount = inputIOU.getAmount();
+            require.using("Both lender and borrower together only may sign IOU merge transaction.",
+                    signers.equals(new HashSet<>(Arrays.asList(merged.getLender().getOwningKey(), merged.getBorrower().getOwningKey()))));
+
+            return null;
+        });
+
+    }
+
+    private void verifySettleWithReceipt(LedgerTransaction tx, PaymentReceipt receipt, Set<PublicKey> signers) {
+        requireThat(require -> {
 
-            // Check if there is no more than 1 Output IOU state.
-            require.using("No more than one output IOU should be created", tx.getOutputStates().size() <= 1);
-            if (tx.getOutputStates().size() == 1) {
-                // This means part amount of the obligation is settled.
-                IOUState outputIOU = tx.outputsOfType(IOUState.class).get(0);
+            List<IOUState> inputs = tx.inputsOfType(IOUState.class);
+            List<IOUState> outputs = tx.outputsOfType(IOUState.class);
+            require.using("Exactly one IOU should be consumed when settling with a receipt.", inputs.size() == 1 && tx.getInputStates().size() == 1);
+            require.using("No more than one output IOU should be created", outputs.size() <= 1 && tx.getOutputStates().size() == outputs.size());
+
+            IOUState inputIOU = inputs.get(0);
+            PublicKey lenderKey = inputIOU.getLender().getOwningKey();
+            PublicKey borrowerKey = inputIOU.getBorrower().getOwningKey();
+            require.using("The receipt must be for the IOU being settled.", receipt.getLinearId().equals(inputIOU.getLinearId()));
+            require.using("The receipt must be for the version of the IOU being settled.", receipt.getStateRef().equals(tx.getInputs().get(0).getRef()));
+            require.using("The receipt must be signed by the lender of the IOU.", receipt.isSignedBy(lenderKey));
+            require.using("The paid amount must increase in case of settlement with a receipt.", receipt.getPaidToDate() > inputIOU.getPaid());
+            require.using("The receipt cannot be for more than the amount of the IOU.", receipt.getPaidToDate() <= inputIOU.getAmount());
+
+            if (outputs.size() == 1) {
+                IOUState outputIOU = outputs.get(0);
                 require.using("Only the paid amount can change during part settlement.",
-                        (outputIOU.getAmount() == inputAmount) && outputIOU.getLinearId().equals(inputIOU.getLinearId()) && outputIOU.getBorrower().equals(inputIOU.getBorrower()) && outputIOU.getLender().equals(inputIOU.getLender()));
-                require.using("The paid amount must increase in case of part settlement of the IOU.", (outputIOU.getPaid() > inputIOU.getPaid()));
+                        (outputIOU.getAmount() == inputIOU.getAmount()) && outputIOU.getBorrower().equals(inputIOU.getBorrower())
+                                && outputIOU.getLender().equals(inputIOU.getLender()) && outputIOU.getLinearId().equals(inputIOU.getLinearId()));
+                require.using("The paid amount must be the paid-to-date of the receipt.", outputIOU.getPaid() == receipt.getPaidToDate());
                 require.using("The paid amount must be less than the total amount of the IOU", (outputIOU.getPaid() < inputIOU.getAmount()));
+            } else {
+                require.using("The receipt must fully settle an IOU which is consumed without an output.", receipt.getPaidToDate() == inputIOU.getAmount());
             }
-            Set<PublicKey> listOfParticipantPublicKeys = inputIOU.getParticipants().stream().map(AbstractParty::getOwningKey).collect(Collectors.toSet());
-            List<PublicKey> arrayOfSigners = tx.getCommand(0).getSigners();
-            Set<PublicKey> setOfSigners = new HashSet<PublicKey>(arrayOfSigners);
-            require.using("Both lender and borrower must sign IOU settle transaction.", setOfSigners.equals(listOfParticipantPublicKeys));
+
+            // The receipt carries the lender's consent, so either party alone may commit it.
+            require.using("Only the lender or the borrower may sign an IOU settle with receipt transaction.",
+                    !signers.isEmpty() && Arrays.asList(lenderKey, borrowerKey).containsAll(signers));
 
             return null;
         });
 
     }
 
+    private void verifyReissue(LedgerTransaction tx, StateRef replaces, Set<PublicKey> signers) {
+        requireThat(require -> {
+
+            require.using("No inputs should be consumed when reissuing an IOU.", tx.getInputStates().size() == 0);
+            List<IOUState> outputs = tx.outputsOfType(IOUState.class);
+            List<IOUReissueLock> locks = tx.outputsOfType(IOUReissueLock.class);
+            require.using("Exactly one IOU should be created when reissuing an IOU.", outputs.size() == 1);
+            require.using("Exactly one reissue lock should be created when reissuing an IOU.", locks.size() == 1 && tx.getOutputStates().size() == 2);
+
+            IOUState outputState = outputs.get(0);
+            IOUReissueLock lock = locks.get(0);
+            PublicKey lenderKey = outputState.getLender().getOwningKey();
+            PublicKey borrowerKey = outputState.getBorrower().getOwningKey();
+            require.using("A reissued IOU must have a positive amount which is not fully paid.",
+                    outputState.getAmount() > 0 && outputState.getPaid() >= 0 && outputState.getPaid() < outputState.getAmount());
+            require.using("The lender and borrower cannot have the same identity.", !lenderKey.equals(borrowerKey));
+
+            // The copy stays locked until the IOU named by the lock has been exited.
+            int iouIndex = tx.getOutputStates().indexOf(outputState);
+            int lockIndex = tx.getOutputStates().indexOf(lock);
+            require.using("The reissued IOU and its lock must encumber each other.",
+                    Integer.valueOf(lockIndex).equals(tx.getOutputs().get(iouIndex).getEncumbrance())
+                            && Integer.valueOf(iouIndex).equals(tx.getOutputs().get(lockIndex).getEncumbrance()));
+            require.using("The reissue lock must name the IOU being replaced.", lock.getOriginal().equals(replaces));
+            require.using("The reissue lock must have the parties of the reissued IOU.",
+                    lock.getLender().equals(outputState.getLender()) && lock.getBorrower().equals(outputState.getBorrower()));
+
+            require.using("Both lender and borrower together only may sign IOU reissue transaction.",
+                    signers.equals(new HashSet<>(Arrays.asList(lenderKey, borrowerKey))));
+
+            return null;
+        });
+
+    }
+
+    private void verifyExit(LedgerTransaction tx, IOUState copy, Set<PublicKey> signers) {
+        requireThat(require -> {
+
+            List<IOUState> inputs = tx.inputsOfType(IOUState.class);
+            require.using("Exactly one IOU should be consumed when exiting an IOU.", inputs.size() == 1 && tx.getInputStates().size() == 1);
+            require.using("No outputs should be created when exiting an IOU.", tx.getOutputStates().size() == 0);
+
+            IOUState inputState = inputs.get(0);
+            require.using("The reissued IOU must equal the IOU being exited.", sameIOU(inputState, copy));
+            require.using("Both lender and borrower together only may sign IOU exit transaction.",
+                    signers.equals(new HashSet<>(Arrays.asList(inputState.getLender().getOwningKey(), inputState.getBorrower().getOwningKey()))));
+
+            return null;
+        });
+
+    }
+
+    private void verifyUnlock(LedgerTransaction tx, SignedTransaction exit, Set<PublicKey> signers) {
+        requireThat(require -> {
+
+            List<StateAndRef<IOUState>> inputs = tx.filterInRefs(IOUState.class, state -> true);
+            List<StateAndRef<IOUReissueLock>> locks = tx.filterInRefs(IOUReissueLock.class, state -> true);
+            List<IOUState> outputs = tx.outputsOfType(IOUState.class);
+            require.using("An unlock must consume one reissued IOU and its lock.",
+                    inputs.size() == 1 && locks.size() == 1 && tx.getInputStates().size() == 2);
+            require.using("An unlock must create one IOU.", outputs.size() == 1 && tx.getOutputStates().size() == 1);
+
+            IOUState copy = inputs.get(0).getState().getData();
+            IOUReissueLock lock = locks.get(0).getState().getData();
+            require.using("The unlocked IOU must equal the reissued IOU.", sameIOU(copy, outputs.get(0)));
+            require.using("The unlocked IOU must not be encumbered.", tx.getOutputs().get(0).getEncumbrance() == null);
+
+            // The Exit must be a genuine, notarised transaction consuming the original IOU named by the lock.
+            PublicKey lenderKey = copy.getLender().getOwningKey();
+            PublicKey borrowerKey = copy.getBorrower().getOwningKey();
+            boolean validSignatures;
+            try {
+                exit.checkSignaturesAreValid();
+                validSignatures = true;
+            } catch (SignatureException e) {
+                validSignatures = false;
+            }
+            Set<PublicKey> exitSigners = exit.getSigs().stream().map(TransactionSignature::getBy).collect(Collectors.toSet());
+            require.using("The exit must be validly signed by the notary, the lender and the borrower.", validSignatures
+                    && CryptoUtils.isFulfilledBy(tx.getNotary().getOwningKey(), exitSigners)
+                    && CryptoUtils.isFulfilledBy(lenderKey, exitSigners)
+                    && CryptoUtils.isFulfilledBy(borrowerKey, exitSigners));
+            List<Command<?>> exitCommands = exit.getTx().getCommands();
+            Object exitCommand = exitCommands.size() == 1 ? exitCommands.get(0).getValue() : null;
+            require.using("The exit must consume the IOU named by the lock.",
+                    exit.getTx().getInputs().equals(Collections.singletonList(lock.getOriginal())));
+            require.using("The exit must name this reissue and its IOU.", exitCommand instanceof Commands.Exit
+                    && ((Commands.Exit) exitCommand).getReissuedBy().equals(locks.get(0).getRef().getTxhash())
+                    && inputs.get(0).getRef().getTxhash().equals(locks.get(0).getRef().getTxhash())
+                    && sameIOU(((Commands.Exit) exitCommand).getCopy(), copy));
+
+            require.using("Both lender and borrower together only may sign IOU unlock transaction.",
+                    signers.equals(new HashSet<>(Arrays.asList(lenderKey, borrowerKey))));
+
+            return null;
+        });
+
+    }
+
+    private static boolean sameIOU(IOUState a, IOUState b) {
+        return a.getAmount() == b.getAmount() && a.getPaid() == b.getPaid()
+                && a.getLender().equals(b.getLender()) && a.getBorrower().equals(b.getBorrower())
+                && a.getLinearId().equals(b.getLinearId());
+    }
+
 }
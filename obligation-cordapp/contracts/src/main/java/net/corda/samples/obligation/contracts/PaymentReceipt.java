@@ -0,0 +1,85 @@
+package net.corda.samples.obligation.contracts;
+
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.DigitalSignature;
+import net.corda.core.serialization.CordaSerializable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+
+/**
+ * A lender's acknowledgement that the borrower of an IOU has paid [paidToDate] in total, exchanged off-ledger over a
+ * payment channel. Receipts only ever grow, so the latest one replaces all earlier ones, and it can be committed to the
+ * ledger by a SettleWithReceipt transaction without the lender signing that transaction.
+ *
+ * A receipt is signed for one version of the IOU, named by its [stateRef], and can only settle that version. Once the
+ * IOU has been transferred, merged or settled in any other way, the receipts signed for it before can no longer be
+ * committed, so a receipt never overwrites a paid amount it did not know about.
+ */
+@CordaSerializable
+public class PaymentReceipt {
+
+    private final StateRef stateRef;
+    private final UniqueIdentifier linearId;
+    private final int paidToDate;
+    private final DigitalSignature.WithKey lenderSignature;
+
+    public PaymentReceipt(StateRef stateRef, UniqueIdentifier linearId, int paidToDate, DigitalSignature.WithKey lenderSignature) {
+        this.stateRef = stateRef;
+        this.linearId = linearId;
+        this.paidToDate = paidToDate;
+        this.lenderSignature = lenderSignature;
+    }
+
+    /**
+     * The bytes which the lender signs for a receipt. They are built by hand rather than serialized so that they are
+     * the same on every node and every version of the CorDapp.
+     */
+    public static byte[] signableBytes(StateRef stateRef, UniqueIdentifier linearId, int paidToDate) {
+        return ("IOU-RECEIPT:" + stateRef.getTxhash() + ":" + stateRef.getIndex() + ":" + linearId + ":" + paidToDate)
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    public StateRef getStateRef() {
+        return stateRef;
+    }
+
+    public UniqueIdentifier getLinearId() {
+        return linearId;
+    }
+
+    public int getPaidToDate() {
+        return paidToDate;
+    }
+
+    public DigitalSignature.WithKey getLenderSignature() {
+        return lenderSignature;
+    }
+
+    /**
+     * Returns true if the receipt carries a valid signature by the given key.
+     */
+    public boolean isSignedBy(PublicKey lenderKey) {
+        return lenderSignature.getBy().equals(lenderKey) && lenderSignature.isValid(signableBytes(stateRef, linearId, paidToDate));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof PaymentReceipt)) {
+            return false;
+        }
+        PaymentReceipt receipt = (PaymentReceipt) other;
+        return receipt.stateRef.equals(stateRef) && receipt.linearId.equals(linearId) && receipt.paidToDate == paidToDate && receipt.lenderSignature.equals(lenderSignature);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * linearId.hashCode() + paidToDate;
+    }
+
+    @Override
+    public String toString() {
+        return "PaymentReceipt(stateRef=" + stateRef + ", linearId=" + linearId + ", paidToDate=" + paidToDate + ")";
+    }
+}
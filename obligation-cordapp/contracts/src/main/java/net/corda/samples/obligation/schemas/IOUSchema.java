@@ -0,0 +1,7 @@
+package net.corda.samples.obligation.schemas;
+
+/**
+ * The family of schemas for [IOUState]. Each version of the schema is a [MappedSchema] registered against this class.
+ */
+public class IOUSchema {
+}
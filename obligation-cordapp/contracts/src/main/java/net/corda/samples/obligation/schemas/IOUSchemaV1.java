@@ -0,0 +1,100 @@
+package net.corda.samples.obligation.schemas;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import org.hibernate.annotations.Type;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.util.UUID;
+
+/**
+ * An [IOUState] schema. Every unconsumed and consumed [IOUState] is mapped to a row of the "iou_states" table so that
+ * vault queries can filter and sort on the lender, borrower and the amounts without deserializing the states.
+ */
+public class IOUSchemaV1 extends MappedSchema {
+
+    public IOUSchemaV1() {
+        super(IOUSchema.class, 1, ImmutableList.of(PersistentIOU.class));
+    }
+
+    @Override
+    public String getMigrationResource() {
+        return "iou.changelog-master";
+    }
+
+    @Entity
+    @Table(name = "iou_states", indexes = {
+            @Index(name = "iou_linear_id_idx", columnList = "linear_id"),
+            @Index(name = "iou_lender_idx", columnList = "lender"),
+            @Index(name = "iou_borrower_idx", columnList = "borrower"),
+            @Index(name = "iou_outstanding_idx", columnList = "outstanding")
+    })
+    public static class PersistentIOU extends PersistentState {
+
+        @Column(name = "linear_id")
+        @Type(type = "uuid-char")
+        private final UUID linearId;
+
+        @Column(name = "lender")
+        private final String lender;
+
+        @Column(name = "borrower")
+        private final String borrower;
+
+        @Column(name = "amount")
+        private final int amount;
+
+        @Column(name = "paid")
+        private final int paid;
+
+        @Column(name = "outstanding")
+        private final int outstanding;
+
+        public PersistentIOU(UUID linearId, String lender, String borrower, int amount, int paid) {
+            this.linearId = linearId;
+            this.lender = lender;
+            this.borrower = borrower;
+            this.amount = amount;
+            this.paid = paid;
+            this.outstanding = amount - paid;
+        }
+
+        // Default constructor required by hibernate.
+        public PersistentIOU() {
+            this.linearId = null;
+            this.lender = null;
+            this.borrower = null;
+            this.amount = 0;
+            this.paid = 0;
+            this.outstanding = 0;
+        }
+
+        public UUID getLinearId() {
+            return linearId;
+        }
+
+        public String getLender() {
+            return lender;
+        }
+
+        public String getBorrower() {
+            return borrower;
+        }
+
+        public int getAmount() {
+            return amount;
+        }
+
+        public int getPaid() {
+            return paid;
+        }
+
+        public int getOutstanding() {
+            return outstanding;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package net.corda.samples.obligation.states;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.BelongsToContract;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.samples.obligation.contracts.IOUContract;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Locks the copy of an IOU created by a Reissue transaction until the IOU it replaces has been consumed.
+ *
+ * The lock and the copy encumber each other, so the copy can only be spent together with the lock. The only
+ * transaction the [IOUContract] allows to spend the lock is an Unlock, which must carry the notarised Exit transaction
+ * consuming the [original] IOU. Until then the copy cannot be transferred or settled, so the original and its copy
+ * can never both be spendable.
+ */
+@BelongsToContract(IOUContract.class)
+public class IOUReissueLock implements ContractState {
+
+    private final StateRef original;
+    private final Party lender;
+    private final Party borrower;
+
+    public IOUReissueLock(@NotNull StateRef original, @NotNull Party lender, @NotNull Party borrower) {
+        this.original = original;
+        this.lender = lender;
+        this.borrower = borrower;
+    }
+
+    @NotNull
+    public StateRef getOriginal() {
+        return original;
+    }
+
+    @NotNull
+    public Party getLender() {
+        return lender;
+    }
+
+    @NotNull
+    public Party getBorrower() {
+        return borrower;
+    }
+
+    @Override
+    @NotNull
+    public List<AbstractParty> getParticipants() {
+        return ImmutableList.of(lender, borrower);
+    }
+}
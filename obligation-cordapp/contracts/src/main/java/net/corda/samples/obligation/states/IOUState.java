@@ -3,12 +3,16 @@ package net.corda.samples.obligation.states;
 import net.corda.core.contracts.*;
 import net.corda.core.identity.Party;
 import net.corda.core.identity.AbstractParty;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import net.corda.core.schemas.QueryableState;
 
 import java.util.*;
 
 import com.google.common.collect.ImmutableList;
 import net.corda.core.serialization.ConstructorForDeserialization;
 import net.corda.samples.obligation.contracts.IOUContract;
+import net.corda.samples.obligation.schemas.IOUSchemaV1;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -21,10 +25,13 @@ import org.jetbrains.annotations.NotNull;
  * - [linearId] A unique id shared by all LinearState states representing the same agreement throughout history within
  * the vaults of all parties. Verify methods should check that one input and one output share the id in a transaction,
  * except at issuance/termination.
+ *
+ * The state is also a [QueryableState] so that it is mapped to the indexed [IOUSchemaV1] table, allowing the vault to
+ * filter and sort IOUs by lender, borrower and outstanding amount in SQL.
  */
 
 @BelongsToContract(IOUContract.class)
-public class IOUState implements ContractState, LinearState {
+public class IOUState implements ContractState, LinearState, QueryableState {
 
     private final int amount;
     private final Party lender;
@@ -79,5 +86,25 @@ public class IOUState implements ContractState, LinearState {
         return ImmutableList.of(lender, borrower);
     }
 
+    @Override
+    @NotNull
+    public PersistentState generateMappedObject(@NotNull MappedSchema schema) {
+        if (schema instanceof IOUSchemaV1) {
+            return new IOUSchemaV1.PersistentIOU(
+                    linearId.getId(),
+                    lender.getName().toString(),
+                    borrower.getName().toString(),
+                    amount,
+                    paid);
+        } else {
+            throw new IllegalArgumentException("Unrecognised schema " + schema);
+        }
+    }
+
+    @Override
+    @NotNull
+    public Iterable<MappedSchema> supportedSchemas() {
+        return ImmutableList.of(new IOUSchemaV1());
+    }
 
 }
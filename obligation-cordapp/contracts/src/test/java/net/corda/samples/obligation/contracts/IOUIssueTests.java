@@ -77,20 +77,81 @@ public class IOUIssueTests {
 
 
     @Test
-    public void issueTransactionMustHaveOneOutput() {
+    public void issueTransactionMustHaveAtLeastOneOutput() {
         IOUState iou = new IOUState(1, TestUtils.ALICE.getParty(), TestUtils.BOB.getParty());
+        IOUState otherIou = new IOUState(2, TestUtils.ALICE.getParty(), TestUtils.BOB.getParty());
         ledger(ledgerServices, l -> {
             l.transaction(tx -> {
                 tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Issue());
-                tx.output(IOUContract.IOU_CONTRACT_ID, iou); // Two outputs fails.
-                tx.output(IOUContract.IOU_CONTRACT_ID, iou);
-                return tx.failsWith("Only one output states should be created when issuing an IOU.");
+                return tx.failsWith("At least one output states should be created when issuing an IOU."); // No outputs fails.
             });
             l.transaction(tx -> {
                 tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Issue());
                 tx.output(IOUContract.IOU_CONTRACT_ID, iou); // One output passes.
                 return tx.verifies();
             });
+            l.transaction(tx -> {
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Issue());
+                tx.output(IOUContract.IOU_CONTRACT_ID, iou); // A batch of outputs passes.
+                tx.output(IOUContract.IOU_CONTRACT_ID, otherIou);
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+
+    @Test
+    public void batchIssueMustBeSignedByEveryLenderAndBorrower() {
+        IOUState aliceIou = new IOUState(10, TestUtils.ALICE.getParty(), TestUtils.BOB.getParty());
+        IOUState charlieIou = new IOUState(10, TestUtils.CHARLIE.getParty(), TestUtils.BOB.getParty());
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Issue());
+                tx.output(IOUContract.IOU_CONTRACT_ID, aliceIou);
+                tx.output(IOUContract.IOU_CONTRACT_ID, charlieIou);
+                return tx.failsWith("Both lender and borrower together only may sign IOU issue transaction.");
+            });
+            l.transaction(tx -> {
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey(), TestUtils.CHARLIE.getPublicKey()), new IOUContract.Commands.Issue());
+                tx.output(IOUContract.IOU_CONTRACT_ID, aliceIou);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(0, TestUtils.CHARLIE.getParty(), TestUtils.BOB.getParty()));
+                return tx.failsWith("A newly issued IOU must have a positive amount.");
+            });
+            l.transaction(tx -> {
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey(), TestUtils.CHARLIE.getPublicKey()), new IOUContract.Commands.Issue());
+                tx.output(IOUContract.IOU_CONTRACT_ID, aliceIou);
+                tx.output(IOUContract.IOU_CONTRACT_ID, charlieIou);
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+
+    @Test
+    public void issuedIOUsMustHaveUniqueLinearIds() {
+        IOUState iou = new IOUState(1, TestUtils.ALICE.getParty(), TestUtils.BOB.getParty());
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Issue());
+                tx.output(IOUContract.IOU_CONTRACT_ID, iou); // The same IOU twice fails.
+                tx.output(IOUContract.IOU_CONTRACT_ID, iou);
+                return tx.failsWith("Each newly issued IOU must have a unique linearId.");
+            });
+            l.transaction(tx -> {
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Issue());
+                tx.output(IOUContract.IOU_CONTRACT_ID, iou);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new DummyState()); // Only IOUs may be issued.
+                return tx.failsWith("Only IOU output states may be created when issuing an IOU.");
+            });
+            l.transaction(tx -> {
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Issue());
+                for (int i = 0; i < 1000; i++) {
+                    tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(i + 1, TestUtils.ALICE.getParty(), TestUtils.BOB.getParty()));
+                }
+                return tx.verifies();
+            });
             return null;
         });
     }
@@ -0,0 +1,108 @@
+package net.corda.samples.obligation.contracts;
+
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.Party;
+import net.corda.samples.obligation.TestUtils;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.contracts.DummyState;
+import net.corda.testing.node.MockServices;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static net.corda.testing.node.NodeTestUtils.ledger;
+
+/**
+ * The objective here is to write some contracts code that verifies the consolidation of several [IOUState]s between
+ * the same lender and borrower into a single [IOUState].
+ */
+public class IOUMergeTests {
+
+    static private final MockServices ledgerServices = new MockServices(
+            Arrays.asList("net.corda.samples.obligation.contracts")
+    );
+
+    private final Party alice = TestUtils.ALICE.getParty();
+    private final Party bob = TestUtils.BOB.getParty();
+    private final Party charlie = TestUtils.CHARLIE.getParty();
+    private final IOUState first = new IOUState(10, alice, bob, 4, new UniqueIdentifier());
+    private final IOUState second = new IOUState(20, alice, bob, 0, new UniqueIdentifier());
+    private final IOUState merged = new IOUState(30, alice, bob, 4, first.getLinearId());
+
+    @Test
+    public void mergeMustSumTheMergedIOUs() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, first);
+                tx.input(IOUContract.IOU_CONTRACT_ID, second);
+                tx.output(IOUContract.IOU_CONTRACT_ID, merged);
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Merge());
+                tx.verifies();
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, first);
+                tx.input(IOUContract.IOU_CONTRACT_ID, second);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(30, alice, bob, 0, first.getLinearId()));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Merge());
+                tx.failsWith("The amount and paid amount of the merged IOU must be the sums of the merged IOUs.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, first);
+                tx.input(IOUContract.IOU_CONTRACT_ID, second);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(30, alice, bob, 4, new UniqueIdentifier()));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Merge());
+                tx.failsWith("The merged IOU must keep the linearId of one of the merged IOUs.");
+                return null;
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void mergeMustConsumeSeveralIOUsAndCreateOne() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, first);
+                tx.output(IOUContract.IOU_CONTRACT_ID, first);
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Merge());
+                tx.failsWith("At least two IOUs must be consumed when merging IOUs.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, first);
+                tx.input(IOUContract.IOU_CONTRACT_ID, second);
+                tx.output(IOUContract.IOU_CONTRACT_ID, merged);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new DummyState());
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Merge());
+                tx.failsWith("Exactly one IOU should be created when merging IOUs.");
+                return null;
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void mergeMustBeBetweenOnePairAndSignedByIt() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, first);
+                tx.input(IOUContract.IOU_CONTRACT_ID, new IOUState(20, alice, charlie, 0, new UniqueIdentifier()));
+                tx.output(IOUContract.IOU_CONTRACT_ID, merged);
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Merge());
+                tx.failsWith("Only IOUs with the same lender and borrower may be merged.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, first);
+                tx.input(IOUContract.IOU_CONTRACT_ID, second);
+                tx.output(IOUContract.IOU_CONTRACT_ID, merged);
+                tx.command(TestUtils.ALICE.getPublicKey(), new IOUContract.Commands.Merge());
+                tx.failsWith("Both lender and borrower together only may sign IOU merge transaction.");
+                return null;
+            });
+            return null;
+        });
+    }
+}
@@ -0,0 +1,142 @@
+package net.corda.samples.obligation.contracts;
+
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.Party;
+import net.corda.samples.obligation.TestUtils;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.contracts.DummyState;
+import net.corda.testing.node.MockServices;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static net.corda.testing.node.NodeTestUtils.ledger;
+
+/**
+ * The objective here is to write some contracts code that verifies a transaction netting a set of [IOUState]s into
+ * residual [IOUState]s.
+ */
+public class IOUNetTests {
+
+    static private final MockServices ledgerServices = new MockServices(
+            Arrays.asList("net.corda.samples.obligation.contracts")
+    );
+
+    private final Party alice = TestUtils.ALICE.getParty();
+    private final Party bob = TestUtils.BOB.getParty();
+    private final Party charlie = TestUtils.CHARLIE.getParty();
+
+    // Bob owes Alice 10, Charlie owes Bob 7 and Alice owes Charlie 4 (of 6, 2 already paid): Alice is owed 6 net,
+    // Bob owes 3 net and Charlie owes 3 net.
+    private final IOUState bobOwesAlice = new IOUState(10, alice, bob);
+    private final IOUState charlieOwesBob = new IOUState(7, bob, charlie);
+    private final IOUState aliceOwesCharlie = new IOUState(6, charlie, alice, 2, new UniqueIdentifier());
+
+    @Test
+    public void netMustPreserveEveryNetPosition() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwesAlice);
+                tx.input(IOUContract.IOU_CONTRACT_ID, charlieOwesBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, aliceOwesCharlie);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(3, alice, bob));
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(3, alice, charlie));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey(), TestUtils.CHARLIE.getPublicKey()), new IOUContract.Commands.Net());
+                tx.verifies();
+                return null;
+            });
+            l.transaction(tx -> {
+                // Charlie would end up owing less than before.
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwesAlice);
+                tx.input(IOUContract.IOU_CONTRACT_ID, charlieOwesBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, aliceOwesCharlie);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(3, alice, bob));
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(2, alice, charlie));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey(), TestUtils.CHARLIE.getPublicKey()), new IOUContract.Commands.Net());
+                tx.failsWith("Netting must preserve the net position of every party.");
+                return null;
+            });
+            l.transaction(tx -> {
+                // A perfectly balanced cycle leaves nothing behind.
+                tx.input(IOUContract.IOU_CONTRACT_ID, new IOUState(5, alice, bob));
+                tx.input(IOUContract.IOU_CONTRACT_ID, new IOUState(5, bob, alice));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Net());
+                tx.verifies();
+                return null;
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void netMustConsumeOnlyIOUsAndCreateFreshResiduals() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(3, alice, bob));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Net());
+                tx.failsWith("At least one IOU must be consumed when netting.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, new IOUState(5, alice, bob));
+                tx.input(IOUContract.IOU_CONTRACT_ID, new IOUState(5, bob, alice));
+                tx.output(IOUContract.IOU_CONTRACT_ID, new DummyState());
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Net());
+                tx.failsWith("Only IOU states may be consumed or created when netting.");
+                return null;
+            });
+            l.transaction(tx -> {
+                // The residual reuses the linearId of a netted IOU.
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwesAlice);
+                tx.input(IOUContract.IOU_CONTRACT_ID, new IOUState(4, bob, alice));
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(6, alice, bob, 0, bobOwesAlice.getLinearId()));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Net());
+                tx.failsWith("Each netted IOU must be consumed once and each residual IOU must have a new linearId.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwesAlice);
+                tx.input(IOUContract.IOU_CONTRACT_ID, new IOUState(4, bob, alice));
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(8, alice, bob, 2, new UniqueIdentifier()));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Net());
+                tx.failsWith("A residual IOU must have a positive amount and nothing paid.");
+                return null;
+            });
+            l.transaction(tx -> {
+                // Charlie was not party to any netted IOU.
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwesAlice);
+                tx.input(IOUContract.IOU_CONTRACT_ID, new IOUState(4, bob, alice));
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(6, alice, charlie));
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(6, charlie, bob));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Net());
+                tx.failsWith("Residual IOUs may only be between parties of the netted IOUs.");
+                return null;
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void netMustBeSignedByEveryParty() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwesAlice);
+                tx.input(IOUContract.IOU_CONTRACT_ID, charlieOwesBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, aliceOwesCharlie);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(3, alice, bob));
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(3, alice, charlie));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Net());
+                tx.failsWith("Every party of the netted IOUs must sign the netting transaction.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, new IOUState(5, alice, bob));
+                tx.input(IOUContract.IOU_CONTRACT_ID, new IOUState(5, bob, alice));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey(), TestUtils.CHARLIE.getPublicKey()), new IOUContract.Commands.Net());
+                tx.failsWith("Every party of the netted IOUs must sign the netting transaction.");
+                return null;
+            });
+            return null;
+        });
+    }
+}
@@ -0,0 +1,228 @@
+package net.corda.samples.obligation.contracts;
+
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.*;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.WireTransaction;
+import net.corda.samples.obligation.TestUtils;
+import net.corda.samples.obligation.states.IOUReissueLock;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.contracts.DummyState;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.node.MockServices;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static net.corda.testing.node.NodeTestUtils.ledger;
+
+/**
+ * The objective here is to write some contracts code that verifies the transactions which replace an [IOUState] by an
+ * equal [IOUState] without a transaction history: a Reissue creating the copy locked by an [IOUReissueLock], an Exit
+ * consuming the original, and an Unlock carrying the notarised Exit which frees the copy.
+ */
+public class IOUReissueTests {
+
+    static private final MockServices ledgerServices = new MockServices(
+            Arrays.asList("net.corda.samples.obligation.contracts")
+    );
+    static private final TestIdentity NOTARY = new TestIdentity(new CordaX500Name("Notary", "London", "GB"));
+
+    private final Party alice = TestUtils.ALICE.getParty();
+    private final Party bob = TestUtils.BOB.getParty();
+    private final IOUState partlyPaid = new IOUState(10, alice, bob, 4, new UniqueIdentifier());
+    private final StateRef originalRef = new StateRef(SecureHash.zeroHash, 0);
+    private final IOUContract.Commands.Reissue reissue = new IOUContract.Commands.Reissue(originalRef);
+    private final IOUReissueLock lock = new IOUReissueLock(originalRef, alice, bob);
+    private final IOUContract.Commands.Exit exit = new IOUContract.Commands.Exit(SecureHash.zeroHash, partlyPaid);
+
+    private static SignedTransaction signed(WireTransaction wtx, TestIdentity... signers) {
+        List<TransactionSignature> sigs = new ArrayList<>();
+        for (TestIdentity signer : signers) {
+            SignatureMetadata metadata = new SignatureMetadata(4, Crypto.findSignatureScheme(signer.getPublicKey()).getSchemeNumberID());
+            sigs.add(CryptoUtils.sign(signer.getKeyPair(), new SignableData(wtx.getId(), metadata)));
+        }
+        return new SignedTransaction(wtx, sigs);
+    }
+
+    @Test
+    public void reissueMustCreateOneLockedIOUWithoutInputs() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, 1, partlyPaid);
+                tx.output(IOUContract.IOU_CONTRACT_ID, 0, lock);
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), reissue);
+                tx.verifies();
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, partlyPaid);
+                tx.output(IOUContract.IOU_CONTRACT_ID, 2, partlyPaid);
+                tx.output(IOUContract.IOU_CONTRACT_ID, 1, lock);
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), reissue);
+                tx.failsWith("No inputs should be consumed when reissuing an IOU.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, partlyPaid);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new DummyState());
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), reissue);
+                tx.failsWith("Exactly one reissue lock should be created when reissuing an IOU.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, 1, partlyPaid);
+                tx.output(IOUContract.IOU_CONTRACT_ID, 0, new IOUReissueLock(new StateRef(SecureHash.zeroHash, 1), alice, bob));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), reissue);
+                tx.failsWith("The reissue lock must name the IOU being replaced.");
+                return null;
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void reissuedIOUMustBeOutstandingAndSignedByBothParties() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, 1, new IOUState(10, alice, bob, 10, new UniqueIdentifier()));
+                tx.output(IOUContract.IOU_CONTRACT_ID, 0, lock);
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), reissue);
+                tx.failsWith("A reissued IOU must have a positive amount which is not fully paid.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, 1, new IOUState(10, alice, alice));
+                tx.output(IOUContract.IOU_CONTRACT_ID, 0, new IOUReissueLock(originalRef, alice, alice));
+                tx.command(TestUtils.ALICE.getPublicKey(), reissue);
+                tx.failsWith("The lender and borrower cannot have the same identity.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, 1, partlyPaid);
+                tx.output(IOUContract.IOU_CONTRACT_ID, 0, lock);
+                tx.command(TestUtils.ALICE.getPublicKey(), reissue);
+                tx.failsWith("Both lender and borrower together only may sign IOU reissue transaction.");
+                return null;
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void exitMustConsumeOneIOUSignedByBothParties() {
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, partlyPaid);
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), exit);
+                tx.verifies();
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, partlyPaid);
+                tx.input(IOUContract.IOU_CONTRACT_ID, new IOUState(5, alice, bob));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), exit);
+                tx.failsWith("Exactly one IOU should be consumed when exiting an IOU.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, partlyPaid);
+                tx.output(IOUContract.IOU_CONTRACT_ID, partlyPaid);
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), exit);
+                tx.failsWith("No outputs should be created when exiting an IOU.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, partlyPaid);
+                tx.command(TestUtils.BOB.getPublicKey(), exit);
+                tx.failsWith("Both lender and borrower together only may sign IOU exit transaction.");
+                return null;
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void reissuedIOUWhichDiffersFromTheOriginalIsRejected() {
+        IOUState overpaidCopy = new IOUState(partlyPaid.getAmount(), alice, bob, 9, partlyPaid.getLinearId());
+        IOUState otherIOU = new IOUState(partlyPaid.getAmount(), alice, bob, partlyPaid.getPaid(), new UniqueIdentifier());
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, partlyPaid);
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()),
+                        new IOUContract.Commands.Exit(SecureHash.zeroHash, overpaidCopy));
+                tx.failsWith("The reissued IOU must equal the IOU being exited.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, partlyPaid);
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()),
+                        new IOUContract.Commands.Exit(SecureHash.zeroHash, otherIOU));
+                tx.failsWith("The reissued IOU must equal the IOU being exited.");
+                return null;
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void lockedCopyIsOnlyFreedByTheNotarisedExitOfTheOriginal() {
+        List<TestIdentity> allSigners = Arrays.asList(TestUtils.ALICE, TestUtils.BOB, NOTARY);
+        ledger(ledgerServices, NOTARY.getParty(), l -> {
+            WireTransaction issue = l.unverifiedTransaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, partlyPaid);
+                return null;
+            });
+            StateRef original = new StateRef(issue.getId(), 0);
+            WireTransaction reissueTx = l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, 1, partlyPaid);
+                tx.output(IOUContract.IOU_CONTRACT_ID, 0, new IOUReissueLock(original, alice, bob));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Reissue(original));
+                return tx.verifies();
+            });
+            WireTransaction exitTx = l.transaction(tx -> {
+                tx.input(original);
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()),
+                        new IOUContract.Commands.Exit(reissueTx.getId(), partlyPaid));
+                return tx.verifies();
+            });
+
+            // Signed by everyone, the Exit frees the copy.
+            l.transaction(tx -> {
+                tx.input(new StateRef(reissueTx.getId(), 0));
+                tx.input(new StateRef(reissueTx.getId(), 1));
+                tx.output(IOUContract.IOU_CONTRACT_ID, partlyPaid);
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()),
+                        new IOUContract.Commands.Unlock(signed(exitTx, allSigners.toArray(new TestIdentity[0]))));
+                tx.verifies();
+                return null;
+            });
+            // An Exit the notary has not signed may never have been committed.
+            l.transaction(tx -> {
+                tx.input(new StateRef(reissueTx.getId(), 0));
+                tx.input(new StateRef(reissueTx.getId(), 1));
+                tx.output(IOUContract.IOU_CONTRACT_ID, partlyPaid);
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()),
+                        new IOUContract.Commands.Unlock(signed(exitTx, TestUtils.ALICE, TestUtils.BOB)));
+                tx.failsWith("The exit must be validly signed by the notary, the lender and the borrower.");
+                return null;
+            });
+            // The copy cannot be spent in any other way while it is locked.
+            l.transaction(tx -> {
+                tx.input(new StateRef(reissueTx.getId(), 0));
+                tx.input(new StateRef(reissueTx.getId(), 1));
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(partlyPaid.getAmount(), TestUtils.CHARLIE.getParty(), bob, partlyPaid.getPaid(), partlyPaid.getLinearId()));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey(), TestUtils.CHARLIE.getPublicKey()),
+                        new IOUContract.Commands.Transfer());
+                tx.failsWith("A reissue lock may only be consumed by an Unlock transaction.");
+                return null;
+            });
+            return null;
+        });
+    }
+}
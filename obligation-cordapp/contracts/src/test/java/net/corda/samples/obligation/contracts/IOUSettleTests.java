@@ -204,4 +204,58 @@ public class IOUSettleTests {
         });
 
     }
+
+
+    @Test
+    public void batchSettleMatchesOutputsToInputsByLinearId() {
+        IOUState iou = new IOUState(10, TestUtils.ALICE.getParty(), TestUtils.BOB.getParty());
+        IOUState otherIou = new IOUState(20, TestUtils.ALICE.getParty(), TestUtils.BOB.getParty());
+        IOUState charlieIou = new IOUState(30, TestUtils.CHARLIE.getParty(), TestUtils.BOB.getParty());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                // One IOU partially settled, the other fully settled.
+                tx.input(IOUContract.IOU_CONTRACT_ID, iou);
+                tx.input(IOUContract.IOU_CONTRACT_ID, otherIou);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(iou.getAmount(), iou.getLender(), iou.getBorrower(), iou.getPaid() + 5, iou.getLinearId()));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Settle());
+                tx.verifies();
+                return null;
+            });
+            l.transaction(tx -> {
+                // An output whose linearId does not match any input.
+                tx.input(IOUContract.IOU_CONTRACT_ID, iou);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(otherIou.getAmount(), otherIou.getLender(), otherIou.getBorrower(), otherIou.getPaid() + 5, otherIou.getLinearId()));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Settle());
+                tx.failsWith("One input IOU should be consumed when settling an IOU.");
+                return null;
+            });
+            l.transaction(tx -> {
+                // Every pair must obey the part settlement rules.
+                tx.input(IOUContract.IOU_CONTRACT_ID, iou);
+                tx.input(IOUContract.IOU_CONTRACT_ID, otherIou);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(iou.getAmount(), iou.getLender(), iou.getBorrower(), iou.getPaid() + 5, iou.getLinearId()));
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(otherIou.getAmount(), otherIou.getLender(), otherIou.getBorrower(), otherIou.getAmount(), otherIou.getLinearId()));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Settle());
+                tx.failsWith("The paid amount must be less than the total amount of the IOU");
+                return null;
+            });
+            l.transaction(tx -> {
+                // The lenders of every settled IOU must sign.
+                tx.input(IOUContract.IOU_CONTRACT_ID, iou);
+                tx.input(IOUContract.IOU_CONTRACT_ID, charlieIou);
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey()), new IOUContract.Commands.Settle());
+                tx.failsWith("Both lender and borrower must sign IOU settle transaction.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, iou);
+                tx.input(IOUContract.IOU_CONTRACT_ID, charlieIou);
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey(), TestUtils.CHARLIE.getPublicKey()), new IOUContract.Commands.Settle());
+                tx.verifies();
+                return null;
+            });
+            return null;
+        });
+    }
 }
@@ -0,0 +1,157 @@
+package net.corda.samples.obligation.contracts;
+
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.Crypto;
+import net.corda.core.crypto.DigitalSignature;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.Party;
+import net.corda.samples.obligation.TestUtils;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.dsl.LedgerDSL;
+import net.corda.testing.dsl.TestLedgerDSLInterpreter;
+import net.corda.testing.dsl.TestTransactionDSLInterpreter;
+import net.corda.testing.node.MockServices;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static net.corda.testing.node.NodeTestUtils.ledger;
+
+/**
+ * The objective here is to write some contracts code that verifies the commitment of a lender-signed
+ * [PaymentReceipt] to the ledger, which settles an [IOUState] without the lender signing the transaction.
+ */
+public class IOUSettleWithReceiptTests {
+
+    static private final MockServices ledgerServices = new MockServices(
+            Arrays.asList("net.corda.samples.obligation.contracts")
+    );
+
+    private final Party alice = TestUtils.ALICE.getParty();
+    private final Party bob = TestUtils.BOB.getParty();
+    private final IOUState iou = new IOUState(10, alice, bob, 2, new UniqueIdentifier());
+
+    private IOUState paidTo(int paid) {
+        return new IOUState(iou.getAmount(), iou.getLender(), iou.getBorrower(), paid, iou.getLinearId());
+    }
+
+    /**
+     * Records the IOU under test in the ledger and returns its StateRef, which the receipts are signed for.
+     */
+    private StateRef record(LedgerDSL<TestTransactionDSLInterpreter, TestLedgerDSLInterpreter> l) {
+        return new StateRef(l.unverifiedTransaction(tx -> {
+            tx.output(IOUContract.IOU_CONTRACT_ID, iou);
+            return null;
+        }).getId(), 0);
+    }
+
+    private static IOUContract.Commands.SettleWithReceipt receipt(TestIdentity signer, StateRef stateRef, UniqueIdentifier linearId, int paidToDate) {
+        byte[] signature = Crypto.doSign(signer.getKeyPair().getPrivate(), PaymentReceipt.signableBytes(stateRef, linearId, paidToDate));
+        return new IOUContract.Commands.SettleWithReceipt(
+                new PaymentReceipt(stateRef, linearId, paidToDate, new DigitalSignature.WithKey(signer.getPublicKey(), signature)));
+    }
+
+    @Test
+    public void borrowerCanCommitALenderSignedReceipt() {
+        ledger(ledgerServices, l -> {
+            StateRef ref = record(l);
+            l.transaction(tx -> {
+                tx.input(ref);
+                tx.output(IOUContract.IOU_CONTRACT_ID, paidTo(7));
+                tx.command(TestUtils.BOB.getPublicKey(), receipt(TestUtils.ALICE, ref, iou.getLinearId(), 7));
+                tx.verifies();
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(ref);
+                tx.command(TestUtils.BOB.getPublicKey(), receipt(TestUtils.ALICE, ref, iou.getLinearId(), 10));
+                tx.verifies();
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(ref);
+                tx.output(IOUContract.IOU_CONTRACT_ID, paidTo(7));
+                tx.command(TestUtils.CHARLIE.getPublicKey(), receipt(TestUtils.ALICE, ref, iou.getLinearId(), 7));
+                tx.failsWith("Only the lender or the borrower may sign an IOU settle with receipt transaction.");
+                return null;
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void receiptMustBeSignedByTheLenderForThisIOU() {
+        ledger(ledgerServices, l -> {
+            StateRef ref = record(l);
+            l.transaction(tx -> {
+                tx.input(ref);
+                tx.output(IOUContract.IOU_CONTRACT_ID, paidTo(7));
+                tx.command(TestUtils.BOB.getPublicKey(), receipt(TestUtils.BOB, ref, iou.getLinearId(), 7));
+                tx.failsWith("The receipt must be signed by the lender of the IOU.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(ref);
+                tx.output(IOUContract.IOU_CONTRACT_ID, paidTo(7));
+                tx.command(TestUtils.BOB.getPublicKey(), receipt(TestUtils.ALICE, ref, new UniqueIdentifier(), 7));
+                tx.failsWith("The receipt must be for the IOU being settled.");
+                return null;
+            });
+            l.transaction(tx -> {
+                // A receipt signed for an earlier version of the IOU cannot settle this one.
+                tx.input(ref);
+                tx.output(IOUContract.IOU_CONTRACT_ID, paidTo(7));
+                tx.command(TestUtils.BOB.getPublicKey(), receipt(TestUtils.ALICE, new StateRef(SecureHash.zeroHash, 0), iou.getLinearId(), 7));
+                tx.failsWith("The receipt must be for the version of the IOU being settled.");
+                return null;
+            });
+            l.transaction(tx -> {
+                // A signature over a different paid-to-date does not verify.
+                PaymentReceipt signedForSeven = receipt(TestUtils.ALICE, ref, iou.getLinearId(), 7).getReceipt();
+                PaymentReceipt forged = new PaymentReceipt(ref, iou.getLinearId(), 9, signedForSeven.getLenderSignature());
+                tx.input(ref);
+                tx.output(IOUContract.IOU_CONTRACT_ID, paidTo(9));
+                tx.command(TestUtils.BOB.getPublicKey(), new IOUContract.Commands.SettleWithReceipt(forged));
+                tx.failsWith("The receipt must be signed by the lender of the IOU.");
+                return null;
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void outputMustMatchAnIncreasingReceipt() {
+        ledger(ledgerServices, l -> {
+            StateRef ref = record(l);
+            l.transaction(tx -> {
+                tx.input(ref);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iou);
+                tx.command(TestUtils.BOB.getPublicKey(), receipt(TestUtils.ALICE, ref, iou.getLinearId(), 2));
+                tx.failsWith("The paid amount must increase in case of settlement with a receipt.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(ref);
+                tx.output(IOUContract.IOU_CONTRACT_ID, paidTo(5));
+                tx.command(TestUtils.BOB.getPublicKey(), receipt(TestUtils.ALICE, ref, iou.getLinearId(), 7));
+                tx.failsWith("The paid amount must be the paid-to-date of the receipt.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(ref);
+                tx.command(TestUtils.BOB.getPublicKey(), receipt(TestUtils.ALICE, ref, iou.getLinearId(), 7));
+                tx.failsWith("The receipt must fully settle an IOU which is consumed without an output.");
+                return null;
+            });
+            l.transaction(tx -> {
+                tx.input(ref);
+                tx.command(TestUtils.BOB.getPublicKey(), receipt(TestUtils.ALICE, ref, iou.getLinearId(), 11));
+                tx.failsWith("The receipt cannot be for more than the amount of the IOU.");
+                return null;
+            });
+            return null;
+        });
+    }
+}
@@ -112,16 +112,25 @@ public class IOUTransferTests {
         IOUState iou = new IOUState(10, TestUtils.ALICE.getParty(), TestUtils.BOB.getParty());
         ledger(ledgerServices, l -> {
             l.transaction(tx -> {
+                // The same IOU consumed twice.
+                tx.input(IOUContract.IOU_CONTRACT_ID, iou);
                 tx.input(IOUContract.IOU_CONTRACT_ID, iou);
-                tx.input(IOUContract.IOU_CONTRACT_ID, dummyState);
                 tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(iou.getAmount(), TestUtils.CHARLIE.getParty(), iou.getBorrower(), iou.getPaid(), iou.getLinearId()));
                 tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey(), TestUtils.CHARLIE.getPublicKey()), new IOUContract.Commands.Transfer());
                 return tx.failsWith("An IOU transfer transaction should only consume one input states.");
             });
             l.transaction(tx -> {
+                // An IOU consumed without being re-created.
+                tx.input(IOUContract.IOU_CONTRACT_ID, iou);
+                tx.input(IOUContract.IOU_CONTRACT_ID, dummyState);
                 tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(iou.getAmount(), TestUtils.CHARLIE.getParty(), iou.getBorrower(), iou.getPaid(), iou.getLinearId()));
                 tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey(), TestUtils.CHARLIE.getPublicKey()), new IOUContract.Commands.Transfer());
-                return tx.failsWith("An IOU transfer transaction should only consume one input states.");
+                return tx.failsWith("An IOU transfer transaction should only create one output states.");
+            });
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(iou.getAmount(), TestUtils.CHARLIE.getParty(), iou.getBorrower(), iou.getPaid(), iou.getLinearId()));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey(), TestUtils.CHARLIE.getPublicKey()), new IOUContract.Commands.Transfer());
+                return tx.failsWith("An IOU transfer transaction must consume at least one IOU.");
             });
             l.transaction(tx -> {
                 tx.input(IOUContract.IOU_CONTRACT_ID, iou);
@@ -263,4 +272,40 @@ public class IOUTransferTests {
         });
     }
 
+
+    /**
+     * A portfolio of IOUs, possibly with several borrowers, may be transferred to a new lender in one transaction.
+     */
+    @Test
+    public void portfolioTransferMustBeSignedByEveryParticipant() {
+        IOUState bobIou = new IOUState(10, TestUtils.ALICE.getParty(), TestUtils.BOB.getParty());
+        IOUState miniCorpIou = new IOUState(20, TestUtils.ALICE.getParty(), TestUtils.MINICORP.getParty());
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobIou);
+                tx.input(IOUContract.IOU_CONTRACT_ID, miniCorpIou);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(10, TestUtils.CHARLIE.getParty(), TestUtils.BOB.getParty(), 0, bobIou.getLinearId()));
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(20, TestUtils.CHARLIE.getParty(), TestUtils.MINICORP.getParty(), 0, miniCorpIou.getLinearId()));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey(), TestUtils.CHARLIE.getPublicKey()), new IOUContract.Commands.Transfer());
+                return tx.failsWith("The borrower, old lender and new lender only must sign an IOU transfer transaction");
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobIou);
+                tx.input(IOUContract.IOU_CONTRACT_ID, miniCorpIou);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(10, TestUtils.CHARLIE.getParty(), TestUtils.BOB.getParty(), 0, bobIou.getLinearId()));
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(20, TestUtils.CHARLIE.getParty(), TestUtils.MINICORP.getParty(), 5, miniCorpIou.getLinearId()));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey(), TestUtils.CHARLIE.getPublicKey(), TestUtils.MINICORP.getPublicKey()), new IOUContract.Commands.Transfer());
+                return tx.failsWith("Only the lender property may change.");
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobIou);
+                tx.input(IOUContract.IOU_CONTRACT_ID, miniCorpIou);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(10, TestUtils.CHARLIE.getParty(), TestUtils.BOB.getParty(), 0, bobIou.getLinearId()));
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(20, TestUtils.CHARLIE.getParty(), TestUtils.MINICORP.getParty(), 0, miniCorpIou.getLinearId()));
+                tx.command(Arrays.asList(TestUtils.ALICE.getPublicKey(), TestUtils.BOB.getPublicKey(), TestUtils.CHARLIE.getPublicKey(), TestUtils.MINICORP.getPublicKey()), new IOUContract.Commands.Transfer());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
 }
@@ -8,7 +8,9 @@ import net.corda.core.identity.Party;
 import java.lang.reflect.Field;
 import java.lang.reflect.Constructor;
 
+import net.corda.core.schemas.QueryableState;
 import net.corda.samples.obligation.TestUtils;
+import net.corda.samples.obligation.schemas.IOUSchemaV1;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -75,6 +77,26 @@ public class IOUStateTests {
     }
 
 
+    @Test
+    public void isQueryableState() {
+        assert (QueryableState.class.isAssignableFrom(IOUState.class));
+    }
+
+
+    @Test
+    public void mapsToPersistentIOU() {
+        IOUState iouState = new IOUState(10, TestUtils.ALICE.getParty(), TestUtils.BOB.getParty(), 4, new UniqueIdentifier());
+        IOUSchemaV1.PersistentIOU persistentIOU = (IOUSchemaV1.PersistentIOU) iouState.generateMappedObject(new IOUSchemaV1());
+
+        assertEquals(iouState.getLinearId().getId(), persistentIOU.getLinearId());
+        assertEquals(TestUtils.ALICE.getParty().getName().toString(), persistentIOU.getLender());
+        assertEquals(TestUtils.BOB.getParty().getName().toString(), persistentIOU.getBorrower());
+        assertEquals(10, persistentIOU.getAmount());
+        assertEquals(4, persistentIOU.getPaid());
+        assertEquals(6, persistentIOU.getOutstanding());
+    }
+
+
     @Test
     public void hasLinearIdFieldOfCorrectType() throws NoSuchFieldException {
         // Does the linearId field exist?
@@ -0,0 +1,224 @@
+package net.corda.samples.loadtest;
+
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.flows.IOUIssueFlow;
+import net.corda.samples.obligation.flows.IOUSettleFlow;
+import net.corda.samples.obligation.flows.IOUTransferFlow;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.driver.DriverParameters;
+import net.corda.testing.driver.NodeHandle;
+import net.corda.testing.driver.NodeParameters;
+import net.corda.testing.node.NotarySpec;
+import net.corda.testing.node.TestCordapp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static net.corda.testing.driver.Driver.driver;
+
+/**
+ * A load generator for the issue, transfer and settle flows.
+ *
+ * It starts a notary and [participants] nodes with the driver and runs three phases over RPC: every IOU is issued
+ * between a random borrower and lender, then transferred by its lender to another participant, then settled in full
+ * by its borrower. Each phase runs [operations] flows from [concurrency] threads. With a [targetRate] the flows are
+ * started on a fixed schedule, and their latency is measured from the time they were due to start, so a backlog shows
+ * up in the latency rather than hiding it; without one, every thread starts its next flow as soon as the last returns.
+ *
+ * The throughput and p50/p95/p99 latency of each phase are logged and written as JSON to [resultsFile].
+ *
+ * Run it with `./gradlew workflows:loadTest`, passing the settings as `-Dloadtest.<name>=<value>`, e.g.
+ * `./gradlew workflows:loadTest -Dloadtest.participants=4 -Dloadtest.concurrency=16 -Dloadtest.operations=1000`.
+ */
+public class IOULoadGenerator {
+
+    private final int participants = Integer.getInteger("loadtest.participants", 3);
+    private final int concurrency = Integer.getInteger("loadtest.concurrency", 8);
+    private final int operations = Integer.getInteger("loadtest.operations", 200);
+    private final double targetRate = Double.parseDouble(System.getProperty("loadtest.targetRate", "0"));
+    private final boolean inProcess = Boolean.getBoolean("loadtest.inProcess");
+    private final Path resultsFile = Paths.get(System.getProperty("loadtest.results", "build/reports/loadtest/results.json"));
+
+    public static void main(String[] args) throws Exception {
+        new IOULoadGenerator().run();
+    }
+
+    /**
+     * The outcome of one phase of the load test.
+     */
+    public static class PhaseResult {
+
+        private final String flow;
+        private final int operations;
+        private final int failures;
+        private final long durationMillis;
+        private final long[] sortedLatenciesMicros;
+
+        public PhaseResult(String flow, int operations, int failures, long durationMillis, long[] latenciesMicros) {
+            this.flow = flow;
+            this.operations = operations;
+            this.failures = failures;
+            this.durationMillis = durationMillis;
+            this.sortedLatenciesMicros = latenciesMicros.clone();
+            Arrays.sort(this.sortedLatenciesMicros);
+        }
+
+        public double getTransactionsPerSecond() {
+            return (operations - failures) * 1000.0 / Math.max(durationMillis, 1);
+        }
+
+        /**
+         * Returns the latency in milliseconds below which [percentile] percent of the flows completed.
+         */
+        public double getLatencyMillis(double percentile) {
+            if (sortedLatenciesMicros.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * sortedLatenciesMicros.length);
+            return sortedLatenciesMicros[Math.max(rank, 1) - 1] / 1000.0;
+        }
+
+        private String toJson() {
+            return String.format(Locale.ROOT,
+                    "{\"flow\": \"%s\", \"operations\": %d, \"failures\": %d, \"durationMillis\": %d, \"txPerSecond\": %.2f, "
+                            + "\"latencyMillis\": {\"p50\": %.2f, \"p95\": %.2f, \"p99\": %.2f, \"max\": %.2f}}",
+                    flow, operations, failures, durationMillis, getTransactionsPerSecond(),
+                    getLatencyMillis(50), getLatencyMillis(95), getLatencyMillis(99), getLatencyMillis(100));
+        }
+    }
+
+    /**
+     * One flow of a phase, run through the RPC connection of the node which starts it.
+     */
+    private interface Operation {
+        void run(int index) throws Exception;
+    }
+
+    private void run() throws Exception {
+        if (participants < 3) {
+            throw new IllegalArgumentException("At least three participants are needed, so that every IOU can be transferred to a third party");
+        }
+        DriverParameters parameters = new DriverParameters()
+                .withStartNodesInProcess(inProcess)
+                .withCordappsForAllNodes(Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows")))
+                .withNotarySpecs(Collections.singletonList(new NotarySpec(new CordaX500Name("Notary", "London", "GB"))));
+
+        driver(parameters, dsl -> {
+            try {
+                List<CordaFuture<NodeHandle>> handleFutures = new ArrayList<>();
+                for (int i = 0; i < participants; i++) {
+                    handleFutures.add(dsl.startNode(new NodeParameters().withProvidedName(new CordaX500Name("Participant" + i, "London", "GB"))));
+                }
+                List<NodeHandle> nodes = new ArrayList<>();
+                for (CordaFuture<NodeHandle> handleFuture : handleFutures) {
+                    nodes.add(handleFuture.get());
+                }
+                writeResults(runPhases(nodes));
+            } catch (Exception e) {
+                throw new RuntimeException("Caught exception during load test: ", e);
+            }
+            return null;
+        });
+    }
+
+    private List<PhaseResult> runPhases(List<NodeHandle> nodes) throws InterruptedException {
+        List<Party> parties = new ArrayList<>();
+        for (NodeHandle node : nodes) {
+            parties.add(node.getNodeInfo().getLegalIdentities().get(0));
+        }
+        Random random = new Random(42);
+        int[] borrowers = new int[operations];
+        int[] lenders = new int[operations];
+        int[] newLenders = new int[operations];
+        for (int i = 0; i < operations; i++) {
+            borrowers[i] = random.nextInt(participants);
+            lenders[i] = (borrowers[i] + 1 + random.nextInt(participants - 1)) % participants;
+            do {
+                newLenders[i] = random.nextInt(participants);
+            } while (newLenders[i] == borrowers[i] || newLenders[i] == lenders[i]);
+        }
+        UniqueIdentifier[] linearIds = new UniqueIdentifier[operations];
+
+        List<PhaseResult> results = new ArrayList<>();
+        results.add(runPhase("IOUIssueFlow", i -> {
+            CordaRPCOps rpc = nodes.get(borrowers[i]).getRpc();
+            SignedTransaction stx = rpc.startFlowDynamic(IOUIssueFlow.InitiatorFlow.class, 10, parties.get(lenders[i])).getReturnValue().get();
+            linearIds[i] = stx.getTx().outputsOfType(IOUState.class).get(0).getLinearId();
+        }));
+        results.add(runPhase("IOUTransferFlow", i -> nodes.get(lenders[i]).getRpc()
+                .startFlowDynamic(IOUTransferFlow.InitiatorFlow.class, linearIds[i], parties.get(newLenders[i])).getReturnValue().get()));
+        results.add(runPhase("IOUSettleFlow", i -> nodes.get(borrowers[i]).getRpc()
+                .startFlowDynamic(IOUSettleFlow.InitiatorFlow.class, linearIds[i], 10).getReturnValue().get()));
+        return results;
+    }
+
+    private PhaseResult runPhase(String flow, Operation operation) throws InterruptedException {
+        long[] latenciesMicros = new long[operations];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        long phaseStart = System.nanoTime();
+        for (int worker = 0; worker < concurrency; worker++) {
+            workers.execute(() -> {
+                for (int i = next.getAndIncrement(); i < operations; i = next.getAndIncrement()) {
+                    long start = System.nanoTime();
+                    if (targetRate > 0) {
+                        // Measure from when the flow was due rather than when a worker got to it.
+                        long due = phaseStart + (long) (i * 1_000_000_000L / targetRate);
+                        long wait = due - start;
+                        while (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                            wait = due - System.nanoTime();
+                        }
+                        start = due;
+                    }
+                    try {
+                        operation.run(i);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                    latenciesMicros[i] = (System.nanoTime() - start) / 1000;
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        long durationMillis = (System.nanoTime() - phaseStart) / 1_000_000;
+
+        PhaseResult result = new PhaseResult(flow, operations, failures.get(), durationMillis, latenciesMicros);
+        System.out.println(String.format(Locale.ROOT, "%s: %d flows, %d failed, %.1f tx/s, p50 %.1f ms, p95 %.1f ms, p99 %.1f ms",
+                flow, operations, failures.get(), result.getTransactionsPerSecond(),
+                result.getLatencyMillis(50), result.getLatencyMillis(95), result.getLatencyMillis(99)));
+        return result;
+    }
+
+    private void writeResults(List<PhaseResult> results) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append(String.format(Locale.ROOT,
+                "{\n  \"participants\": %d,\n  \"concurrency\": %d,\n  \"operations\": %d,\n  \"targetRate\": %.2f,\n  \"phases\": [\n",
+                participants, concurrency, operations, targetRate));
+        for (int i = 0; i < results.size(); i++) {
+            json.append("    ").append(results.get(i).toJson()).append(i < results.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("  ]\n}\n");
+        if (resultsFile.getParent() != null) {
+            Files.createDirectories(resultsFile.getParent());
+        }
+        Files.write(resultsFile, json.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.println("Load test results written to " + resultsFile.toAbsolutePath());
+    }
+}
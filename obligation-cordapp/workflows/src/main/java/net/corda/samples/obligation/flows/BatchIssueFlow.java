@@ -0,0 +1,221 @@
+package net.corda.samples.obligation.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.samples.obligation.contracts.IOUContract;
+import net.corda.samples.obligation.services.NotarySelectionService;
+import net.corda.samples.obligation.states.IOUState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * This is the flows which handles batched issuance of new IOUs on the ledger.
+ * The entries are grouped by lender and by the notary the [NotarySelectionService] picks for each IOU, and each group
+ * is split into transactions of at most [maxBatchSize] IOUs, so issuing many IOUs to the same lender costs one
+ * signature round and one notarisation per batch rather than per IOU.
+ * The flows returns the linearIds of the issued IOUs, in the same order as the entries it was given.
+ *
+ * The issuance is not atomic: each batch is committed on its own. If a batch fails after earlier batches have been
+ * committed, the flows fails with a [PartialIssueException] which carries the linearIds of the IOUs already issued.
+ */
+public class BatchIssueFlow {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+
+    /**
+     * A single IOU to be issued by the [BatchIssueFlow], with the node running the flows as the borrower.
+     */
+    @CordaSerializable
+    public static class IssueEntry {
+
+        private final int amount;
+        private final Party lender;
+
+        public IssueEntry(int amount, Party lender) {
+            this.amount = amount;
+            this.lender = lender;
+        }
+
+        public int getAmount() {
+            return amount;
+        }
+
+        public Party getLender() {
+            return lender;
+        }
+    }
+
+    /**
+     * Thrown when a batch fails after earlier batches were committed. The IOUs of the committed batches stay on the
+     * ledger, and their linearIds are given by [getIssued].
+     */
+    public static class PartialIssueException extends FlowException {
+
+        private final List<UniqueIdentifier> issued;
+
+        public PartialIssueException(String message, Throwable cause, List<UniqueIdentifier> issued) {
+            super(message, cause);
+            this.issued = issued;
+        }
+
+        public List<UniqueIdentifier> getIssued() {
+            return issued;
+        }
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class InitiatorFlow extends FlowLogic<List<UniqueIdentifier>> {
+
+        private final List<IssueEntry> entries;
+        private final int maxBatchSize;
+
+        public InitiatorFlow(List<IssueEntry> entries) {
+            this(entries, DEFAULT_MAX_BATCH_SIZE);
+        }
+
+        public InitiatorFlow(List<IssueEntry> entries, int maxBatchSize) {
+            this.entries = entries;
+            this.maxBatchSize = maxBatchSize;
+        }
+
+        @Suspendable
+        @Override
+        public List<UniqueIdentifier> call() throws FlowException {
+            if (entries.isEmpty()) {
+                throw new FlowException("At least one IOU must be given to issue");
+            }
+            if (maxBatchSize < 1) {
+                throw new FlowException("The maximum batch size must be positive");
+            }
+
+            // Step 1. Get the service which spreads new IOUs over the notaries of our network.
+            final NotarySelectionService notaries = getServiceHub().cordaService(NotarySelectionService.class);
+
+            // Step 2. Create every state up front so that the linearId of each entry is known, and group the states
+            // by lender and notary so that each transaction only needs a single counterparty's signature.
+            Party me = getOurIdentity();
+            List<UniqueIdentifier> linearIds = new ArrayList<>(entries.size());
+            Map<Party, Map<Party, List<IOUState>>> statesByLender = new LinkedHashMap<>();
+            for (IssueEntry entry : entries) {
+                IOUState state = new IOUState(entry.getAmount(), entry.getLender(), me);
+                linearIds.add(state.getLinearId());
+                statesByLender.computeIfAbsent(entry.getLender(), lender -> new LinkedHashMap<>())
+                        .computeIfAbsent(notaries.notaryForNewState(state.getLinearId()), notary -> new ArrayList<>())
+                        .add(state);
+            }
+
+            // Step 3. Issue each group in batches of at most maxBatchSize IOUs, keeping track of the IOUs committed so
+            // far so that a failing batch can report them.
+            List<UniqueIdentifier> issued = new ArrayList<>();
+            for (Map.Entry<Party, Map<Party, List<IOUState>>> lenderGroup : statesByLender.entrySet()) {
+                for (Map.Entry<Party, List<IOUState>> group : lenderGroup.getValue().entrySet()) {
+                    List<IOUState> states = group.getValue();
+                    for (int from = 0; from < states.size(); from += maxBatchSize) {
+                        int to = Math.min(from + maxBatchSize, states.size());
+                        List<IOUState> batch = new ArrayList<>(states.subList(from, to));
+                        try {
+                            issueBatch(group.getKey(), lenderGroup.getKey(), batch);
+                        } catch (FlowException e) {
+                            if (issued.isEmpty()) {
+                                throw e;
+                            }
+                            throw new PartialIssueException("Issued " + issued.size() + " of " + entries.size()
+                                    + " IOUs before a batch failed: " + e.getMessage(), e, issued);
+                        }
+                        batch.forEach(state -> issued.add(state.getLinearId()));
+                    }
+                }
+            }
+
+            return linearIds;
+        }
+
+        @Suspendable
+        private SignedTransaction issueBatch(Party notary, Party lender, List<IOUState> states) throws FlowException {
+            // Create a single issue command signed by both the lender and us, the borrower.
+            final Command<IOUContract.Commands.Issue> issueCommand = new Command<>(
+                    new IOUContract.Commands.Issue(),
+                    Arrays.asList(lender.getOwningKey(), getOurIdentity().getOwningKey()));
+
+            // Add every IOU of the batch as an output of the same transaction.
+            final TransactionBuilder builder = new TransactionBuilder(notary);
+            for (IOUState state : states) {
+                builder.addOutputState(state, IOUContract.IOU_CONTRACT_ID);
+            }
+            builder.addCommand(issueCommand);
+
+            // Verify and sign it with our KeyPair.
+            builder.verify(getServiceHub());
+            final SignedTransaction ptx = getServiceHub().signInitialTransaction(builder);
+
+            // Collect the lender's signature and finalise the transaction.
+            List<FlowSession> sessions = Collections.singletonList(initiateFlow(lender));
+            SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions));
+            return subFlow(new FinalityFlow(stx, sessions));
+        }
+    }
+
+    /**
+     * This is the flows which signs a batch of IOU issuances.
+     * The signing is handled by the [SignTransactionFlow].
+     */
+    @InitiatedBy(BatchIssueFlow.InitiatorFlow.class)
+    public static class ResponderFlow extends FlowLogic<SignedTransaction> {
+
+        private final FlowSession flowSession;
+        private SecureHash txWeJustSigned;
+
+        public ResponderFlow(FlowSession flowSession) {
+            this.flowSession = flowSession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+
+            class SignTxFlow extends SignTransactionFlow {
+
+                private SignTxFlow(FlowSession flowSession) {
+                    super(flowSession);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                    requireThat(req -> {
+                        for (ContractState output : stx.getTx().getOutputStates()) {
+                            req.using("This must be an IOU transaction", output instanceof IOUState);
+                            IOUState iou = (IOUState) output;
+                            req.using("We must be the lender of every IOU in the batch", iou.getLender().equals(getOurIdentity()));
+                            req.using("The counterparty must be the borrower of every IOU in the batch", iou.getBorrower().equals(flowSession.getCounterparty()));
+                        }
+                        return null;
+                    });
+                    // Once the transaction has verified, initialize txWeJustSignedID variable.
+                    txWeJustSigned = stx.getId();
+                }
+            }
+
+            // Run the sign transaction flows to sign the transaction
+            subFlow(new SignTxFlow(flowSession));
+
+            // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault.
+            return subFlow(new ReceiveFinalityFlow(flowSession, txWeJustSigned));
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package net.corda.samples.obligation.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.samples.obligation.contracts.IOUContract;
+import net.corda.samples.obligation.services.IOUIndexService;
+import net.corda.samples.obligation.states.IOUState;
+
+import java.util.*;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * This is the flows which handles the settlement (partial or complete) of many existing IOUs at once.
+ * The IOUs are grouped by lender and notary, and each group is settled together in a single Settle transaction, so a
+ * borrower paying down many IOUs needs one signature round and one notarisation per lender and notary rather than per
+ * IOU. Every IOU stays on the notary it was issued on.
+ * The flows returns the id of the transaction which settled each IOU.
+ */
+public class BatchSettleFlow {
+
+    /**
+     * Thrown when a transaction fails after earlier transactions of the batch were committed. The IOUs settled by the
+     * committed transactions stay settled, and the id of the transaction which settled each of them is given by
+     * [getSettled].
+     */
+    public static class PartialSettleException extends FlowException {
+
+        private final Map<UniqueIdentifier, SecureHash> settled;
+
+        public PartialSettleException(String message, Throwable cause, Map<UniqueIdentifier, SecureHash> settled) {
+            super(message, cause);
+            this.settled = settled;
+        }
+
+        public Map<UniqueIdentifier, SecureHash> getSettled() {
+            return settled;
+        }
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class InitiatorFlow extends FlowLogic<Map<UniqueIdentifier, SecureHash>> {
+
+        private final Map<UniqueIdentifier, Integer> payments;
+
+        public InitiatorFlow(Map<UniqueIdentifier, Integer> payments) {
+            this.payments = payments;
+        }
+
+        @Suspendable
+        @Override
+        public Map<UniqueIdentifier, SecureHash> call() throws FlowException {
+            if (payments.isEmpty()) {
+                throw new FlowException("At least one IOU must be given to settle");
+            }
+            for (Map.Entry<UniqueIdentifier, Integer> payment : payments.entrySet()) {
+                if (payment.getValue() <= 0) {
+                    throw new FlowException("The payment for IOU " + payment.getKey() + " must be positive");
+                }
+            }
+
+            // Step 1. Retrieve all of the IOU states from the IOU index in a single lookup and group them by lender and notary.
+            Map<Party, Map<Party, List<StateAndRef<IOUState>>>> inputsByLender = new LinkedHashMap<>();
+            List<StateAndRef<IOUState>> inputs = findInputs();
+            for (StateAndRef<IOUState> input : inputs) {
+                IOUState iou = input.getState().getData();
+                // Step 2. Check the party running this flows is the borrower.
+                if (!iou.getBorrower().getOwningKey().equals(getOurIdentity().getOwningKey())) {
+                    throw new IllegalArgumentException("The borrower must issue the flows");
+                }
+                // Reject an overpayment before any transaction of the batch is committed.
+                int payAmount = payments.get(iou.getLinearId());
+                if (payAmount > iou.getAmount() - iou.getPaid()) {
+                    throw new FlowException("The payment of " + payAmount + " for IOU " + iou.getLinearId()
+                            + " is more than the " + (iou.getAmount() - iou.getPaid()) + " still owed");
+                }
+                inputsByLender.computeIfAbsent(iou.getLender(), lender -> new LinkedHashMap<>())
+                        .computeIfAbsent(input.getState().getNotary(), notary -> new ArrayList<>())
+                        .add(input);
+            }
+
+            // Reserve the IOUs so that a concurrent flow on any of them fails now rather than at the notary.
+            getServiceHub().cordaService(IOUIndexService.class).reserve(getRunId().getUuid(), inputs);
+
+            // Step 3. Settle each lender's IOUs on the same notary in a single transaction.
+            Map<UniqueIdentifier, SecureHash> settledBy = new LinkedHashMap<>();
+            try {
+                for (Map.Entry<Party, Map<Party, List<StateAndRef<IOUState>>>> lenderGroup : inputsByLender.entrySet()) {
+                    for (Map.Entry<Party, List<StateAndRef<IOUState>>> group : lenderGroup.getValue().entrySet()) {
+                        SignedTransaction stx = settleWithLender(group.getKey(), lenderGroup.getKey(), group.getValue());
+                        for (StateAndRef<IOUState> input : group.getValue()) {
+                            settledBy.put(input.getState().getData().getLinearId(), stx.getId());
+                        }
+                    }
+                }
+            } catch (FlowException e) {
+                if (settledBy.isEmpty()) {
+                    throw e;
+                }
+                throw new PartialSettleException("Settled " + settledBy.size() + " of " + payments.size()
+                        + " IOUs before a transaction failed: " + e.getMessage(), e, settledBy);
+            }
+            return settledBy;
+        }
+
+        private List<StateAndRef<IOUState>> findInputs() throws FlowException {
+            return getServiceHub().cordaService(IOUIndexService.class).getAll(new ArrayList<>(payments.keySet()));
+        }
+
+        @Suspendable
+        private SignedTransaction settleWithLender(Party notary, Party lender, List<StateAndRef<IOUState>> inputs) throws FlowException {
+            TransactionBuilder tb = new TransactionBuilder(notary);
+
+            // Add the settle command, the IOU inputs and an output for every IOU which has not been fully settled.
+            tb.addCommand(new Command<>(
+                    new IOUContract.Commands.Settle(),
+                    Arrays.asList(lender.getOwningKey(), getOurIdentity().getOwningKey())));
+            for (StateAndRef<IOUState> input : inputs) {
+                IOUState iou = input.getState().getData();
+                int payAmount = payments.get(iou.getLinearId());
+                tb.addInputState(input);
+                if (payAmount < (iou.getAmount() - iou.getPaid())) {
+                    IOUState opState = new IOUState(iou.getAmount(), iou.getLender(), iou.getBorrower(), iou.getPaid() + payAmount, iou.getLinearId());
+                    tb.addOutputState(opState, IOUContract.IOU_CONTRACT_ID);
+                }
+            }
+
+            // Verify and sign the transaction.
+            tb.verify(getServiceHub());
+            final SignedTransaction ptx = getServiceHub().signInitialTransaction(tb);
+
+            // Collect the lender's signature and finalise the transaction.
+            List<FlowSession> sessions = Collections.singletonList(initiateFlow(lender));
+            SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions));
+            return subFlow(new FinalityFlow(stx, sessions));
+        }
+    }
+
+    /**
+     * This is the flows which signs batched IOU settlements.
+     * The signing is handled by the [SignTransactionFlow].
+     */
+    @InitiatedBy(BatchSettleFlow.InitiatorFlow.class)
+    public static class Responder extends FlowLogic<SignedTransaction> {
+
+        private final FlowSession otherPartyFlow;
+        private SecureHash txWeJustSignedId;
+
+        public Responder(FlowSession otherPartyFlow) {
+            this.otherPartyFlow = otherPartyFlow;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            class SignTxFlow extends SignTransactionFlow {
+                private SignTxFlow(FlowSession otherPartyFlow) {
+                    super(otherPartyFlow);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                    requireThat(require -> {
+                        for (ContractState output : stx.getTx().getOutputStates()) {
+                            require.using("This must be an IOU transaction", output instanceof IOUState);
+                        }
+                        return null;
+                    });
+                    // Once the transaction has verified, initialize txWeJustSignedID variable.
+                    txWeJustSignedId = stx.getId();
+                }
+            }
+
+            // Run the sign transaction flows to sign the transaction
+            subFlow(new SignTxFlow(otherPartyFlow));
+
+            // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault.
+            return subFlow(new ReceiveFinalityFlow(otherPartyFlow, txWeJustSignedId));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package net.corda.samples.obligation.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowExternalAsyncOperation;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.samples.obligation.services.IOUIndexService;
+import net.corda.samples.obligation.services.SettlementCoalescer;
+import net.corda.samples.obligation.states.IOUState;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This is the flows which pays part of an existing IOU in coalescing mode.
+ * Instead of settling the payment in a transaction of its own, the payment is handed to the [SettlementCoalescer],
+ * which merges it with the other payments made against the same IOU within a short window into a single
+ * [IOUSettleFlow]. The flows returns the id of that shared Settle transaction.
+ */
+public class CoalescingSettleFlow {
+
+    @StartableByRPC
+    public static class InitiatorFlow extends FlowLogic<SecureHash> {
+
+        private final UniqueIdentifier stateLinearId;
+        private final int payAmount;
+
+        public InitiatorFlow(UniqueIdentifier stateLinearId, int payAmount) {
+            this.stateLinearId = stateLinearId;
+            this.payAmount = payAmount;
+        }
+
+        @Suspendable
+        @Override
+        public SecureHash call() throws FlowException {
+            if (payAmount <= 0) {
+                throw new FlowException("The payment must be positive");
+            }
+
+            // Check the party running this flows is the borrower, and that the payment alone does not overpay the IOU,
+            // before the payment joins a batch, so that one bad payment cannot fail the payments it would be merged with.
+            IOUState iou = getServiceHub().cordaService(IOUIndexService.class).get(stateLinearId).getState().getData();
+            if (!iou.getBorrower().getOwningKey().equals(getOurIdentity().getOwningKey())) {
+                throw new IllegalArgumentException("The borrower must issue the flows");
+            }
+            if (payAmount > iou.getAmount() - iou.getPaid()) {
+                throw new FlowException("The payment of " + payAmount + " is more than the " + (iou.getAmount() - iou.getPaid()) + " still owed");
+            }
+
+            SettlementCoalescer coalescer = getServiceHub().cordaService(SettlementCoalescer.class);
+            return await(new CoalescedPayment(coalescer, stateLinearId, payAmount));
+        }
+    }
+
+    /**
+     * Waits for the [SettlementCoalescer] to settle a payment without holding a flow worker thread. The deduplication id
+     * is the same when the flow is resumed from its checkpoint after a restart of the node, which is how the coalescer
+     * finds the batch the payment was settled in.
+     */
+    private static class CoalescedPayment implements FlowExternalAsyncOperation<SecureHash> {
+
+        private final SettlementCoalescer coalescer;
+        private final UniqueIdentifier stateLinearId;
+        private final int payAmount;
+
+        private CoalescedPayment(SettlementCoalescer coalescer, UniqueIdentifier stateLinearId, int payAmount) {
+            this.coalescer = coalescer;
+            this.stateLinearId = stateLinearId;
+            this.payAmount = payAmount;
+        }
+
+        @NotNull
+        @Override
+        public CompletableFuture<SecureHash> execute(@NotNull String deduplicationId) {
+            return coalescer.submit(deduplicationId, stateLinearId, payAmount);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package net.corda.samples.obligation.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.samples.obligation.contracts.IOUContract;
+import net.corda.samples.obligation.services.ConsolidationScheduler;
+import net.corda.samples.obligation.services.IOUIndexService;
+import net.corda.samples.obligation.services.ObligationConfig;
+import net.corda.samples.obligation.services.PaymentChannelService;
+import net.corda.samples.obligation.services.SettlementCoalescer;
+import net.corda.samples.obligation.states.IOUState;
+
+import java.util.*;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * This is the flows which consolidates the open IOUs a lender holds against one borrower into a single IOU, whose
+ * amount and paid amount are the sums of the merged IOUs and which keeps the linearId of one of them.
+ * As every IOU must stay on the notary it was issued on, the IOUs on each notary are merged separately, and at most
+ * [maxBatchSize] IOUs are merged by one Merge transaction. Only the lender consolidates, so that the two parties of
+ * an IOU never try to merge it at the same time. The borrower refuses to sign a merge of any IOU which is in use on
+ * its node, so the lender's merges never pull an IOU away from the borrower's own pending payments.
+ * The flows returns the linearIds of the merged IOUs.
+ */
+public class ConsolidateFlow {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+
+    @InitiatingFlow
+    @StartableByRPC
+    @StartableByService
+    public static class InitiatorFlow extends FlowLogic<List<UniqueIdentifier>> {
+
+        private final Party borrower;
+        private final int maxBatchSize;
+
+        public InitiatorFlow(Party borrower) {
+            this(borrower, DEFAULT_MAX_BATCH_SIZE);
+        }
+
+        public InitiatorFlow(Party borrower, int maxBatchSize) {
+            this.borrower = borrower;
+            this.maxBatchSize = maxBatchSize;
+        }
+
+        @Suspendable
+        @Override
+        public List<UniqueIdentifier> call() throws FlowException {
+            if (maxBatchSize < 2) {
+                throw new FlowException("At least two IOUs must be merged by each transaction");
+            }
+            if (borrower.getOwningKey().equals(getOurIdentity().getOwningKey())) {
+                throw new IllegalArgumentException("The lender and borrower cannot have the same identity.");
+            }
+
+            // Step 1. Collect our IOUs as lender to the borrower from the IOU index and group them by notary.
+            Map<Party, List<StateAndRef<IOUState>>> iousByNotary = new LinkedHashMap<>();
+            for (StateAndRef<IOUState> state : getServiceHub().cordaService(IOUIndexService.class).all()) {
+                IOUState iou = state.getState().getData();
+                if (iou.getLender().getOwningKey().equals(getOurIdentity().getOwningKey()) && iou.getBorrower().equals(borrower)) {
+                    iousByNotary.computeIfAbsent(state.getState().getNotary(), notary -> new ArrayList<>()).add(state);
+                }
+            }
+
+            // Step 2. Merge each notary's IOUs in batches small enough for one transaction and for the summed amount to
+            // fit an IOU.
+            List<UniqueIdentifier> merged = new ArrayList<>();
+            for (Map.Entry<Party, List<StateAndRef<IOUState>>> group : iousByNotary.entrySet()) {
+                List<StateAndRef<IOUState>> batch = new ArrayList<>();
+                long batchAmount = 0;
+                for (StateAndRef<IOUState> state : group.getValue()) {
+                    int amount = state.getState().getData().getAmount();
+                    if (batch.size() == maxBatchSize || batchAmount + amount > Integer.MAX_VALUE) {
+                        mergeIfSeveral(group.getKey(), batch, merged);
+                        batch = new ArrayList<>();
+                        batchAmount = 0;
+                    }
+                    batch.add(state);
+                    batchAmount += amount;
+                }
+                mergeIfSeveral(group.getKey(), batch, merged);
+            }
+            return merged;
+        }
+
+        @Suspendable
+        private void mergeIfSeveral(Party notary, List<StateAndRef<IOUState>> batch, List<UniqueIdentifier> merged) throws FlowException {
+            if (batch.size() >= 2) {
+                merged.add(merge(notary, batch));
+            }
+        }
+
+        @Suspendable
+        private UniqueIdentifier merge(Party notary, List<StateAndRef<IOUState>> inputs) throws FlowException {
+            // Reserve the IOUs so that a concurrent flow on any of them fails now rather than at the notary.
+            getServiceHub().cordaService(IOUIndexService.class).reserve(getRunId().getUuid(), inputs);
+
+            // Add the IOU inputs and the single merged output, which keeps the linearId of the first input.
+            TransactionBuilder tb = new TransactionBuilder(notary);
+            int amount = 0;
+            int paid = 0;
+            for (StateAndRef<IOUState> input : inputs) {
+                tb.addInputState(input);
+                amount += input.getState().getData().getAmount();
+                paid += input.getState().getData().getPaid();
+            }
+            UniqueIdentifier linearId = inputs.get(0).getState().getData().getLinearId();
+            tb.addOutputState(new IOUState(amount, getOurIdentity(), borrower, paid, linearId), IOUContract.IOU_CONTRACT_ID);
+            tb.addCommand(new Command<>(
+                    new IOUContract.Commands.Merge(),
+                    Arrays.asList(getOurIdentity().getOwningKey(), borrower.getOwningKey())));
+
+            // Verify and sign the transaction.
+            tb.verify(getServiceHub());
+            final SignedTransaction ptx = getServiceHub().signInitialTransaction(tb);
+
+            // Collect the borrower's signature and finalise the transaction.
+            List<FlowSession> sessions = Collections.singletonList(initiateFlow(borrower));
+            SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions));
+            subFlow(new FinalityFlow(stx, sessions));
+            return linearId;
+        }
+    }
+
+    /**
+     * Consolidates the IOUs we hold against every borrower to whom we hold at least [minCount] IOUs. The threshold
+     * defaults to "consolidateMinCount" from the CorDapp config. This is what the [ConsolidationScheduler] runs.
+     */
+    @StartableByRPC
+    @StartableByService
+    public static class All extends FlowLogic<List<UniqueIdentifier>> {
+
+        private final Integer minCount;
+
+        public All() {
+            this.minCount = null;
+        }
+
+        public All(int minCount) {
+            this.minCount = minCount;
+        }
+
+        @Suspendable
+        @Override
+        public List<UniqueIdentifier> call() throws FlowException {
+            int threshold = minCount != null ? minCount
+                    : ObligationConfig.getInt(getServiceHub().getAppContext().getConfig(),
+                    ConsolidationScheduler.MIN_COUNT_CONFIG_KEY, ConsolidationScheduler.DEFAULT_MIN_COUNT);
+
+            Map<Party, Integer> countsByBorrower = new LinkedHashMap<>();
+            for (StateAndRef<IOUState> state : getServiceHub().cordaService(IOUIndexService.class).all()) {
+                IOUState iou = state.getState().getData();
+                if (iou.getLender().getOwningKey().equals(getOurIdentity().getOwningKey())) {
+                    countsByBorrower.merge(iou.getBorrower(), 1, Integer::sum);
+                }
+            }
+
+            List<UniqueIdentifier> merged = new ArrayList<>();
+            for (Map.Entry<Party, Integer> count : countsByBorrower.entrySet()) {
+                if (count.getValue() >= Math.max(threshold, 2)) {
+                    merged.addAll(subFlow(new InitiatorFlow(count.getKey())));
+                }
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * This is the flows which signs IOU consolidations for the borrower.
+     * The signing is handled by the [SignTransactionFlow].
+     */
+    @InitiatedBy(ConsolidateFlow.InitiatorFlow.class)
+    public static class Responder extends FlowLogic<SignedTransaction> {
+
+        private final FlowSession otherPartyFlow;
+        private SecureHash txWeJustSignedId;
+
+        public Responder(FlowSession otherPartyFlow) {
+            this.otherPartyFlow = otherPartyFlow;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            class SignTxFlow extends SignTransactionFlow {
+                private SignTxFlow(FlowSession otherPartyFlow) {
+                    super(otherPartyFlow);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
+                    requireThat(require -> {
+                        require.using("This must be a merge transaction",
+                                stx.getTx().getCommands().stream().allMatch(it -> it.getValue() instanceof IOUContract.Commands.Merge));
+                        for (ContractState output : stx.getTx().getOutputStates()) {
+                            require.using("This must be an IOU transaction", output instanceof IOUState);
+                        }
+                        return null;
+                    });
+                    // Refuse to merge away an IOU which is in use on our node: reserved by another flow, paid into an open
+                    // payment channel or waiting for a coalesced settlement. Its linearId may be held by pending callers.
+                    List<StateAndRef<IOUState>> inputs = getServiceHub().cordaService(IOUIndexService.class)
+                            .reserveBorrowed(getRunId().getUuid(), stx.getTx().getInputs(), getOurIdentity().getOwningKey());
+                    PaymentChannelService channels = getServiceHub().cordaService(PaymentChannelService.class);
+                    SettlementCoalescer coalescer = getServiceHub().cordaService(SettlementCoalescer.class);
+                    for (StateAndRef<IOUState> input : inputs) {
+                        UniqueIdentifier linearId = input.getState().getData().getLinearId();
+                        if (channels.isOpen(linearId) || coalescer.isPending(linearId)) {
+                            throw new FlowException("IOU " + linearId + " has payments pending and cannot be merged");
+                        }
+                    }
+                    // Once the transaction has verified, initialize txWeJustSignedID variable.
+                    txWeJustSignedId = stx.getId();
+                }
+            }
+
+            // Run the sign transaction flows to sign the transaction
+            subFlow(new SignTxFlow(otherPartyFlow));
+
+            // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault.
+            return subFlow(new ReceiveFinalityFlow(otherPartyFlow, txWeJustSignedId));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package net.corda.samples.obligation.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.samples.obligation.services.FlowDeadlineService;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * These are the flows which check that counterparties are answering before an IOU flow waits for them.
+ *
+ * [Check] is run as a sub-flow by the initiators before they collect signatures. Counterparties which have never
+ * kept a flow waiting past its deadline are trusted straight away. The suspect ones are probed by the
+ * [FlowDeadlineService] with a [Ping], and [Check] fails with a [FlowException] if any of them does not answer within
+ * the signature deadline.
+ */
+public class CounterpartyProbeFlow {
+
+    public static class Check extends FlowLogic<Void> {
+
+        private final List<Party> counterparties;
+
+        public Check(List<Party> counterparties) {
+            this.counterparties = counterparties;
+        }
+
+        @Suspendable
+        @Override
+        public Void call() throws FlowException {
+            FlowDeadlineService deadlines = getServiceHub().cordaService(FlowDeadlineService.class);
+            List<Party> suspects = deadlines.suspects(counterparties);
+            if (suspects.isEmpty()) {
+                return null;
+            }
+            List<Party> unresponsive = await(new Probe(deadlines, suspects));
+            if (!unresponsive.isEmpty()) {
+                throw new FlowException("The counterparties " + unresponsive + " are not responding, try again later");
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the [FlowDeadlineService] to probe counterparties without holding a flow worker thread.
+     */
+    private static class Probe implements FlowExternalAsyncOperation<List<Party>> {
+
+        private final FlowDeadlineService deadlines;
+        private final List<Party> counterparties;
+
+        private Probe(FlowDeadlineService deadlines, List<Party> counterparties) {
+            this.deadlines = deadlines;
+            this.counterparties = counterparties;
+        }
+
+        @NotNull
+        @Override
+        public CompletableFuture<List<Party>> execute(@NotNull String deduplicationId) {
+            return deadlines.probe(counterparties);
+        }
+    }
+
+    /**
+     * Sends a counterparty a nonce and returns once it has been echoed back.
+     */
+    @InitiatingFlow
+    @StartableByService
+    public static class Ping extends FlowLogic<Void> {
+
+        private final Party counterparty;
+
+        public Ping(Party counterparty) {
+            this.counterparty = counterparty;
+        }
+
+        @Suspendable
+        @Override
+        public Void call() throws FlowException {
+            long nonce = getRunId().getUuid().getMostSignificantBits();
+            long echoed = initiateFlow(counterparty).sendAndReceive(Long.class, nonce).unwrap(it -> it);
+            if (echoed != nonce) {
+                throw new FlowException(counterparty + " echoed the wrong nonce");
+            }
+            return null;
+        }
+    }
+
+    @InitiatedBy(CounterpartyProbeFlow.Ping.class)
+    public static class Pong extends FlowLogic<Void> {
+
+        private final FlowSession otherPartyFlow;
+
+        public Pong(FlowSession otherPartyFlow) {
+            this.otherPartyFlow = otherPartyFlow;
+        }
+
+        @Suspendable
+        @Override
+        public Void call() throws FlowException {
+            otherPartyFlow.send(otherPartyFlow.receive(Long.class).unwrap(it -> it));
+            return null;
+        }
+    }
+}
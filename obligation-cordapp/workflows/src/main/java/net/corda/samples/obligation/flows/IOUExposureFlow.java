@@ -0,0 +1,46 @@
+package net.corda.samples.obligation.flows;
+
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.identity.Party;
+import net.corda.samples.obligation.services.ExposureService;
+
+import java.util.List;
+
+/**
+ * These are the flows which read the running exposure totals kept by the [ExposureService], so that dashboards and
+ * risk checks can ask how much a counterparty owes us without querying and summing every IOU.
+ */
+public class IOUExposureFlow {
+
+    /**
+     * Returns our exposure to a single counterparty.
+     */
+    @StartableByRPC
+    public static class ForCounterparty extends FlowLogic<ExposureService.Exposure> {
+
+        private final Party counterparty;
+
+        public ForCounterparty(Party counterparty) {
+            this.counterparty = counterparty;
+        }
+
+        @Override
+        public ExposureService.Exposure call() throws FlowException {
+            return getServiceHub().cordaService(ExposureService.class).getExposure(counterparty);
+        }
+    }
+
+    /**
+     * Returns our exposure to every counterparty.
+     */
+    @StartableByRPC
+    public static class All extends FlowLogic<List<ExposureService.Exposure>> {
+
+        @Override
+        public List<ExposureService.Exposure> call() throws FlowException {
+            return getServiceHub().cordaService(ExposureService.class).getExposures();
+        }
+    }
+}
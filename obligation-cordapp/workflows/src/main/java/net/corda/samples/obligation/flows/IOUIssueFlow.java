@@ -16,14 +16,19 @@ import net.corda.core.crypto.SecureHash;
 import net.corda.core.flows.*;
 import net.corda.core.identity.AbstractParty;
 import net.corda.core.identity.Party;
-import net.corda.core.identity.CordaX500Name;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 
 import static net.corda.core.contracts.ContractsDSL.requireThat;
 
 import net.corda.core.utilities.ProgressTracker;
+import net.corda.core.utilities.ProgressTracker.Step;
 import net.corda.samples.obligation.contracts.IOUContract;
+import net.corda.samples.obligation.services.AdmissionControlService;
+import net.corda.samples.obligation.services.FlowDeadlineService;
+import net.corda.samples.obligation.services.FlowMetricsService;
+import net.corda.samples.obligation.services.NotarySelectionService;
+import net.corda.samples.obligation.services.RequestDedupeService;
 import net.corda.samples.obligation.states.IOUState;
 import org.jetbrains.annotations.NotNull;
 
@@ -34,6 +39,7 @@ import static net.corda.samples.obligation.contracts.IOUContract.Commands.*;
  * Gathering the counter-party's signature is handled by the [CollectSignaturesFlow].
  * Notarisation (if required) and commitment to the ledger is handled by the [FinalityFlow].
  * The flows returns the [SignedTransaction] that was committed to the ledger.
+ * The time spent in each step is recorded by the [FlowMetricsService].
  */
 public class IOUIssueFlow {
 
@@ -43,29 +49,95 @@ public class IOUIssueFlow {
 
         private final int amount;
         private final Party lender;
+        private final String requestId;
+        // The transaction signed to serve the request, which still serves it if the flow fails after recording it.
+        private SecureHash attemptedTxId;
+
+        private final Step SELECTING_NOTARY = new Step("Selecting the notary of the new IOU.");
+        private final Step BUILDING = new Step("Building the transaction.");
+        private final Step VERIFYING = new Step("Verifying contract constraints.");
+        private final Step SIGNING = new Step("Signing transaction with our private key.");
+        private final Step GATHERING_SIGS = new Step("Gathering the counterparty's signature.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return CollectSignaturesFlow.Companion.tracker();
+            }
+        };
+        private final Step FINALISING = new Step("Obtaining notary signature and recording transaction.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return FinalityFlow.Companion.tracker();
+            }
+        };
+
+        private final ProgressTracker progressTracker = new ProgressTracker(
+                SELECTING_NOTARY, BUILDING, VERIFYING, SIGNING, GATHERING_SIGS, FINALISING);
 
         public InitiatorFlow(int amount, Party lender) {
+            this(amount, lender, null);
+        }
+
+        /**
+         * @param requestId an id chosen by the client, so that retrying the request returns the IOU issued by the
+         * first attempt instead of issuing another one. See the [RequestDedupeService].
+         */
+        public InitiatorFlow(int amount, Party lender, String requestId) {
 
             this.amount = amount;
             this.lender = lender;
+            this.requestId = requestId;
+
+        }
 
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
         }
 
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
-            // Step 1. Get a reference to the notary service on our network and our key pair.
-
-            /** Explicit selection of notary by CordaX500Name - argument can by coded in flows or parsed from config
-             */
-            final Party notary = getServiceHub().getNetworkMapCache().getNotary(CordaX500Name.parse("O=Notary,L=London,C=GB"));
-            if (notary == null) {
-                throw new FlowException("The desired notary is not known");
+            // Reject the flow straight away if we are already running too many issuances with the lender.
+            AdmissionControlService admission = getServiceHub().cordaService(AdmissionControlService.class);
+            admission.admit(InitiatorFlow.class, lender, getRunId().getUuid());
+            try {
+                // A retried request returns the transaction of the first attempt.
+                RequestDedupeService requests = getServiceHub().cordaService(RequestDedupeService.class);
+                SignedTransaction earlier = requests.begin(requestId, InitiatorFlow.class, getRunId().getUuid());
+                if (earlier != null) {
+                    return earlier;
+                }
+                try {
+                    SignedTransaction stx = issue();
+                    requests.record(requestId, InitiatorFlow.class, getRunId().getUuid(), stx.getId());
+                    return stx;
+                } finally {
+                    requests.release(requestId, getRunId().getUuid(), attemptedTxId);
+                }
+            } finally {
+                admission.release(getRunId().getUuid());
             }
+        }
+
+        @Suspendable
+        private SignedTransaction issue() throws FlowException {
+            FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
 
             // Generate an unsigned transaction
             Party me = getOurIdentity();
             IOUState state = new IOUState(amount, lender, me);
+
+            // Step 1. Get a reference to the notary service on our network.
+            progressTracker.setCurrentStep(SELECTING_NOTARY);
+            long phaseStart = System.nanoTime();
+
+            /** The notary is picked from the pool configured for the CorDapp by the NotarySelectionService, using the
+             * linearId of the new IOU so that IOUs are spread evenly over the pool.
+             */
+            final Party notary = getServiceHub().cordaService(NotarySelectionService.class).notaryForNewState(state.getLinearId());
+            phaseStart = metrics.record(InitiatorFlow.class, "selectNotary", phaseStart);
+            progressTracker.setCurrentStep(BUILDING);
+
             // Step 2. Create a new issue command.
             // Remember that a command is a CommandData object and a list of CompositeKeys
             List<PublicKey> listOfKeys = new ArrayList<>();
@@ -79,10 +151,16 @@ public class IOUIssueFlow {
             // Step 4. Add the iou as an output states, as well as a command to the transaction builder.
             builder.addOutputState(state, IOUContract.IOU_CONTRACT_ID);
             builder.addCommand(issueCommand);
+            phaseStart = metrics.record(InitiatorFlow.class, "build", phaseStart);
 
             // Step 5. Verify and sign it with our KeyPair.
+            progressTracker.setCurrentStep(VERIFYING);
             builder.verify(getServiceHub());
+            phaseStart = metrics.record(InitiatorFlow.class, "verify", phaseStart);
+            progressTracker.setCurrentStep(SIGNING);
             final SignedTransaction ptx = getServiceHub().signInitialTransaction(builder);
+            attemptedTxId = ptx.getId();
+            phaseStart = metrics.record(InitiatorFlow.class, "sign", phaseStart);
 
             // Step 6. Collect the other party's signature using the CollectSignaturesFlow.Each required signer will need to
             // respond by invoking its own SignTransactionFlow subclass to check the transaction (by implementing the checkTransaction method)
@@ -92,15 +170,29 @@ public class IOUIssueFlow {
             otherParties.add(state.getBorrower());
             otherParties.remove(getOurIdentity());
 
-            // Collect all of the required signatures from other Corda nodes using the CollectSignaturesFlow
-            List<FlowSession> sessions = new ArrayList<>();
-            for (Party otherParty : otherParties) {
-                sessions.add(initiateFlow(otherParty));
+            // Fail fast if the lender has left an earlier flow parked past its deadline and does not answer a probe now.
+            progressTracker.setCurrentStep(GATHERING_SIGS);
+            subFlow(new CounterpartyProbeFlow.Check(otherParties));
+            FlowDeadlineService deadlines = getServiceHub().cordaService(FlowDeadlineService.class);
+            deadlines.enter(getRunId().getUuid(), InitiatorFlow.class, FlowDeadlineService.Phase.COLLECT_SIGNATURES, otherParties);
+            try {
+                // Collect all of the required signatures from other Corda nodes using the CollectSignaturesFlow
+                List<FlowSession> sessions = new ArrayList<>();
+                for (Party otherParty : otherParties) {
+                    sessions.add(initiateFlow(otherParty));
+                }
+                SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions, GATHERING_SIGS.childProgressTracker()));
+                phaseStart = metrics.record(InitiatorFlow.class, "collectSignatures", phaseStart);
+
+                // Step 7. Assuming no exceptions, we can now finalise the transaction
+                progressTracker.setCurrentStep(FINALISING);
+                deadlines.enter(getRunId().getUuid(), InitiatorFlow.class, FlowDeadlineService.Phase.FINALITY, otherParties);
+                SignedTransaction finalised = subFlow(new FinalityFlow(stx, sessions, FINALISING.childProgressTracker()));
+                metrics.record(InitiatorFlow.class, "finality", phaseStart);
+                return finalised;
+            } finally {
+                deadlines.exit(getRunId().getUuid());
             }
-            SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions));
-
-            // Step 7. Assuming no exceptions, we can now finalise the transaction
-            return subFlow(new FinalityFlow(stx, sessions));
         }
     }
 
@@ -114,18 +206,33 @@ public class IOUIssueFlow {
         private final FlowSession flowSession;
         private SecureHash txWeJustSigned;
 
+        private final Step SIGNING = new Step("Checking and signing the transaction.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return SignTransactionFlow.Companion.tracker();
+            }
+        };
+        private final Step RECORDING = new Step("Recording the finalised transaction.");
+
+        private final ProgressTracker progressTracker = new ProgressTracker(SIGNING, RECORDING);
+
         public ResponderFlow(FlowSession flowSession) {
             this.flowSession = flowSession;
         }
 
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
 
             class SignTxFlow extends SignTransactionFlow {
 
-                private SignTxFlow(FlowSession flowSession) {
-                    super(flowSession);
+                private SignTxFlow(FlowSession flowSession, ProgressTracker progressTracker) {
+                    super(flowSession, progressTracker);
                 }
 
                 @Override
@@ -141,17 +248,31 @@ public class IOUIssueFlow {
             }
 
             flowSession.getCounterpartyFlowInfo().getFlowVersion();
-
-            // Create a sign transaction flows
-            SignTxFlow signTxFlow = new SignTxFlow(flowSession);
-
-            // Run the sign transaction flows to sign the transaction
-            subFlow(signTxFlow);
-
-            // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault. As the initiator
-            // flow has already called the Finality flow, we call the ReceiveFinalityFlow and not the FinalityFlow as only one
-            // party needs to call the FinalityFlow.
-            return subFlow(new ReceiveFinalityFlow(flowSession, txWeJustSigned));
+            // Refuse to sign straight away if the initiating party is already running too many of these flows with us.
+            AdmissionControlService admission = getServiceHub().cordaService(AdmissionControlService.class);
+            admission.admit(ResponderFlow.class, flowSession.getCounterparty(), getRunId().getUuid());
+            try {
+                FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+
+                // Create a sign transaction flows
+                progressTracker.setCurrentStep(SIGNING);
+                long phaseStart = System.nanoTime();
+                SignTxFlow signTxFlow = new SignTxFlow(flowSession, SIGNING.childProgressTracker());
+
+                // Run the sign transaction flows to sign the transaction
+                subFlow(signTxFlow);
+                phaseStart = metrics.record(ResponderFlow.class, "signTransaction", phaseStart);
+
+                // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault. As the initiator
+                // flow has already called the Finality flow, we call the ReceiveFinalityFlow and not the FinalityFlow as only one
+                // party needs to call the FinalityFlow.
+                progressTracker.setCurrentStep(RECORDING);
+                SignedTransaction recorded = subFlow(new ReceiveFinalityFlow(flowSession, txWeJustSigned));
+                metrics.record(ResponderFlow.class, "receiveFinality", phaseStart);
+                return recorded;
+            } finally {
+                admission.release(getRunId().getUuid());
+            }
 
         }
     }
@@ -0,0 +1,253 @@
+package net.corda.samples.obligation.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.samples.obligation.contracts.IOUContract;
+import net.corda.samples.obligation.netting.NettingEngine;
+import net.corda.samples.obligation.services.IOUIndexService;
+import net.corda.samples.obligation.services.ObligationConfig;
+import net.corda.samples.obligation.states.IOUState;
+
+import java.security.PublicKey;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * This is the flows which nets the cycles of IOUs between the node running it and its counterparties.
+ *
+ * The initiator asks every party it has an IOU with for their IOUs between any two of those parties, and receives
+ * them together with their transaction history. The [NettingEngine] then finds the IOUs lying on cycles and the
+ * residual IOUs which leave every party's net position unchanged. Each set of netted IOUs which involves the initiator
+ * is replaced by its residuals in a single Net transaction, one per notary as every transaction must only consume
+ * IOUs of one notary. Each counterparty is told up front how many of these transactions it will be asked to sign.
+ * The flows returns the Net transactions that were committed to the ledger.
+ *
+ * A counterparty only shares the IOUs the initiator is a party to, unless its CorDapp config sets
+ * "nettingShareThirdPartyIOUs" to true. Without that, only the cycles made of the initiator's own IOUs can be netted.
+ */
+public class IOUNettingFlow {
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class InitiatorFlow extends FlowLogic<List<SignedTransaction>> {
+
+        @Suspendable
+        @Override
+        public List<SignedTransaction> call() throws FlowException {
+            Party me = getOurIdentity();
+            IOUIndexService iouIndex = getServiceHub().cordaService(IOUIndexService.class);
+
+            // Step 1. Find our counterparties and ask each of them for the IOUs between the parties in scope.
+            List<StateAndRef<IOUState>> ours = iouIndex.all();
+            Set<Party> scope = new LinkedHashSet<>();
+            scope.add(me);
+            for (StateAndRef<IOUState> state : ours) {
+                scope.add(state.getState().getData().getLender());
+                scope.add(state.getState().getData().getBorrower());
+            }
+            Map<Party, FlowSession> sessions = new LinkedHashMap<>();
+            for (Party party : scope) {
+                if (!party.equals(me)) {
+                    sessions.put(party, initiateFlow(party));
+                }
+            }
+            if (sessions.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            Map<SecureHash, Map<Integer, StateAndRef<IOUState>>> seen = new HashMap<>();
+            List<StateAndRef<IOUState>> candidates = new ArrayList<>();
+            for (StateAndRef<IOUState> state : ours) {
+                addOnce(state, seen, candidates);
+            }
+            List<Party> scopeList = new ArrayList<>(scope);
+            for (FlowSession session : sessions.values()) {
+                session.send(scopeList);
+                for (StateAndRef<IOUState> state : subFlow(new ReceiveStateAndRefFlow<IOUState>(session))) {
+                    addOnce(state, seen, candidates);
+                }
+            }
+
+            // Step 2. Plan the netting of each notary's IOUs and build a Net transaction for every netting set we
+            // are a party to.
+            List<TransactionBuilder> builders = planNetting(candidates);
+
+            // Step 3. Tell every counterparty how many transactions it will be asked to sign.
+            Map<Party, Integer> toSign = new HashMap<>();
+            for (TransactionBuilder builder : builders) {
+                for (Party signer : signers(builder)) {
+                    toSign.merge(signer, 1, Integer::sum);
+                }
+            }
+            for (Map.Entry<Party, FlowSession> session : sessions.entrySet()) {
+                session.getValue().send(toSign.getOrDefault(session.getKey(), 0));
+            }
+
+            // Step 4. Sign, collect the signatures of and finalise each Net transaction in turn.
+            List<SignedTransaction> results = new ArrayList<>();
+            for (TransactionBuilder builder : builders) {
+                List<FlowSession> txSessions = signers(builder).stream()
+                        .filter(signer -> !signer.equals(me))
+                        .map(sessions::get)
+                        .collect(Collectors.toList());
+                builder.verify(getServiceHub());
+                SignedTransaction ptx = getServiceHub().signInitialTransaction(builder);
+                SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, txSessions));
+                results.add(subFlow(new FinalityFlow(stx, txSessions)));
+            }
+            return results;
+        }
+
+        private static void addOnce(StateAndRef<IOUState> state, Map<SecureHash, Map<Integer, StateAndRef<IOUState>>> seen, List<StateAndRef<IOUState>> candidates) {
+            if (seen.computeIfAbsent(state.getRef().getTxhash(), txId -> new HashMap<>()).putIfAbsent(state.getRef().getIndex(), state) == null) {
+                candidates.add(state);
+            }
+        }
+
+        private List<TransactionBuilder> planNetting(List<StateAndRef<IOUState>> candidates) throws FlowException {
+            Party me = getOurIdentity();
+            Map<Party, List<StateAndRef<IOUState>>> byNotary = new LinkedHashMap<>();
+            for (StateAndRef<IOUState> candidate : candidates) {
+                byNotary.computeIfAbsent(candidate.getState().getNotary(), notary -> new ArrayList<>()).add(candidate);
+            }
+
+            NettingEngine<Party> engine = new NettingEngine<>(Comparator.comparing(party -> party.getName().toString()));
+            List<StateAndRef<IOUState>> ourInputs = new ArrayList<>();
+            List<TransactionBuilder> builders = new ArrayList<>();
+            for (Map.Entry<Party, List<StateAndRef<IOUState>>> partition : byNotary.entrySet()) {
+                List<StateAndRef<IOUState>> states = partition.getValue();
+                List<NettingEngine.Obligation<Party>> obligations = new ArrayList<>();
+                for (StateAndRef<IOUState> state : states) {
+                    IOUState iou = state.getState().getData();
+                    obligations.add(new NettingEngine.Obligation<>(iou.getBorrower(), iou.getLender(), iou.getAmount() - iou.getPaid()));
+                }
+
+                for (NettingEngine.NettingSet<Party> set : engine.plan(obligations)) {
+                    TransactionBuilder builder = new TransactionBuilder(partition.getKey());
+                    Set<Party> participants = new LinkedHashSet<>();
+                    for (int i : set.getNetted()) {
+                        StateAndRef<IOUState> input = states.get(i);
+                        IOUState iou = input.getState().getData();
+                        builder.addInputState(input);
+                        participants.add(iou.getLender());
+                        participants.add(iou.getBorrower());
+                        if (iou.getLender().equals(me) || iou.getBorrower().equals(me)) {
+                            ourInputs.add(input);
+                        }
+                    }
+                    if (!participants.contains(me)) {
+                        // We cannot sign for a netting set we are not a party to.
+                        continue;
+                    }
+                    for (NettingEngine.Obligation<Party> residual : set.getResiduals()) {
+                        // A residual may be larger than a single IOU can hold, in which case it is split into several.
+                        for (long left = residual.getAmount(); left > 0; left -= Integer.MAX_VALUE) {
+                            int amount = (int) Math.min(left, Integer.MAX_VALUE);
+                            builder.addOutputState(new IOUState(amount, residual.getCreditor(), residual.getDebtor()), IOUContract.IOU_CONTRACT_ID);
+                        }
+                    }
+                    List<PublicKey> keys = participants.stream().map(Party::getOwningKey).collect(Collectors.toList());
+                    builder.addCommand(new Command<>(new IOUContract.Commands.Net(), keys));
+                    builders.add(builder);
+                }
+            }
+
+            // Reserve our own netted IOUs so that a concurrent flow on any of them fails now rather than at the notary.
+            getServiceHub().cordaService(IOUIndexService.class).reserve(getRunId().getUuid(), ourInputs);
+            return builders;
+        }
+
+        private Set<Party> signers(TransactionBuilder builder) {
+            Set<Party> signers = new LinkedHashSet<>();
+            for (PublicKey key : builder.commands().get(0).getSigners()) {
+                signers.add(getServiceHub().getIdentityService().partyFromKey(key));
+            }
+            return signers;
+        }
+    }
+
+    /**
+     * This is the flows which shares our IOUs with the netting initiator and then signs the Net transactions it
+     * proposes. The contract guarantees that every Net transaction leaves our net position unchanged.
+     */
+    @InitiatedBy(IOUNettingFlow.InitiatorFlow.class)
+    public static class Responder extends FlowLogic<List<SignedTransaction>> {
+
+        public static final String SHARE_THIRD_PARTY_CONFIG_KEY = "nettingShareThirdPartyIOUs";
+
+        private final FlowSession otherPartyFlow;
+
+        public Responder(FlowSession otherPartyFlow) {
+            this.otherPartyFlow = otherPartyFlow;
+        }
+
+        @Suspendable
+        @Override
+        public List<SignedTransaction> call() throws FlowException {
+            // Share the IOUs between the parties in scope, with their history.
+            Set<Party> scope = new HashSet<>(otherPartyFlow.receive(List.class).unwrap(parties -> {
+                List<Party> checked = new ArrayList<>(parties.size());
+                for (Object party : parties) {
+                    if (!(party instanceof Party)) {
+                        throw new IllegalArgumentException("The netting scope must only hold parties");
+                    }
+                    checked.add((Party) party);
+                }
+                return checked;
+            }));
+            // An IOU is private to its participants, so the IOUs the initiator is not a party to are only shared when
+            // this node has been configured to allow it.
+            Party initiator = otherPartyFlow.getCounterparty();
+            boolean shareThirdParty = ObligationConfig.getBoolean(getServiceHub().getAppContext().getConfig(), SHARE_THIRD_PARTY_CONFIG_KEY, false);
+            List<StateAndRef<IOUState>> shared = getServiceHub().cordaService(IOUIndexService.class).all().stream()
+                    .filter(state -> scope.contains(state.getState().getData().getLender()) && scope.contains(state.getState().getData().getBorrower()))
+                    .filter(state -> shareThirdParty || state.getState().getData().getParticipants().contains(initiator))
+                    .collect(Collectors.toList());
+            subFlow(new SendStateAndRefFlow(otherPartyFlow, shared));
+
+            // Sign and record each of the Net transactions we are a party to.
+            int toSign = otherPartyFlow.receive(Integer.class).unwrap(count -> {
+                if (count < 0) {
+                    throw new IllegalArgumentException("The number of transactions to sign cannot be negative");
+                }
+                return count;
+            });
+            List<SignedTransaction> results = new ArrayList<>();
+            for (int i = 0; i < toSign; i++) {
+                SecureHash txId = subFlow(new SignNetTxFlow(otherPartyFlow)).getId();
+                results.add(subFlow(new ReceiveFinalityFlow(otherPartyFlow, txId)));
+            }
+            return results;
+        }
+    }
+
+    private static class SignNetTxFlow extends SignTransactionFlow {
+        private SignNetTxFlow(FlowSession otherPartyFlow) {
+            super(otherPartyFlow);
+        }
+
+        @Override
+        protected void checkTransaction(SignedTransaction stx) throws FlowException {
+            requireThat(require -> {
+                require.using("This must be a Net transaction",
+                        stx.getTx().getCommands().size() == 1 && stx.getTx().getCommands().get(0).getValue() instanceof IOUContract.Commands.Net);
+                for (ContractState output : stx.getTx().getOutputStates()) {
+                    require.using("This must be an IOU transaction", output instanceof IOUState);
+                }
+                return null;
+            });
+            // Refuse to net away an IOU we owe which is in use on our node, such as by an open payment channel.
+            getServiceHub().cordaService(IOUIndexService.class)
+                    .reserveBorrowed(getRunId().getUuid(), stx.getTx().getInputs(), getOurIdentity().getOwningKey());
+        }
+    }
+}
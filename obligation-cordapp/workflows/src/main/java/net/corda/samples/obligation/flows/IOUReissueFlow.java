@@ -0,0 +1,249 @@
+package net.corda.samples.obligation.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.CommandData;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.samples.obligation.contracts.IOUContract;
+import net.corda.samples.obligation.services.ChainDepthService;
+import net.corda.samples.obligation.services.IOUIndexService;
+import net.corda.samples.obligation.services.ObligationConfig;
+import net.corda.samples.obligation.states.IOUReissueLock;
+import net.corda.samples.obligation.states.IOUState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * These are the flows which compact the transaction history of IOUs. Every transfer and partial settlement adds a
+ * transaction to an IOU's history, which a new lender has to resolve and verify before it can accept the IOU.
+ *
+ * Reissuing an IOU replaces it with an equal IOU, with the same linearId, created by a Reissue transaction without
+ * inputs, so that the copy has no history at all. The copy is created locked by an [IOUReissueLock] and cannot be spent
+ * until the original is gone. The original is consumed by an Exit transaction. The lender and the borrower sign both
+ * transactions before either is finalised, and each names the other: the lock names the state it replaces and the Exit
+ * command names the Reissue transaction and the copy, which the contract checks against the original. Once the Exit
+ * has been notarised, an Unlock transaction carrying it frees the copy. The Exit travels inside the Unlock command
+ * rather than as an input, so the copy's history is just the Reissue and the Unlock.
+ */
+public class IOUReissueFlow {
+
+    public static final String CHAIN_DEPTH_CONFIG_KEY = "reissueChainDepth";
+    public static final int DEFAULT_CHAIN_DEPTH = 10;
+
+    /**
+     * Reissues a single IOU, returning the Unlock transaction which holds the copy. It can be run by the lender or the
+     * borrower.
+     */
+    @InitiatingFlow
+    @StartableByRPC
+    public static class InitiatorFlow extends FlowLogic<SignedTransaction> {
+
+        private final UniqueIdentifier stateLinearId;
+
+        public InitiatorFlow(UniqueIdentifier stateLinearId) {
+            this.stateLinearId = stateLinearId;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            // Step 1. Retrieve and reserve the IOU, which must be ours.
+            IOUIndexService iouIndex = getServiceHub().cordaService(IOUIndexService.class);
+            StateAndRef<IOUState> input = iouIndex.get(stateLinearId);
+            IOUState iou = input.getState().getData();
+            Party me = getOurIdentity();
+            if (!iou.getLender().equals(me) && !iou.getBorrower().equals(me)) {
+                throw new IllegalArgumentException("Only the lender or the borrower can reissue an IOU.");
+            }
+            iouIndex.reserve(getRunId().getUuid(), Collections.singletonList(input));
+            Party counterparty = iou.getLender().equals(me) ? iou.getBorrower() : iou.getLender();
+            Party notary = input.getState().getNotary();
+            FlowSession session = initiateFlow(counterparty);
+
+            // Step 2. Build the Reissue transaction creating an equal IOU without inputs, locked until the original
+            // has been exited, and collect both signatures.
+            IOUState copy = new IOUState(iou.getAmount(), iou.getLender(), iou.getBorrower(), iou.getPaid(), iou.getLinearId());
+            TransactionBuilder reissueBuilder = new TransactionBuilder(notary)
+                    .addOutputState(copy, IOUContract.IOU_CONTRACT_ID, notary, 1)
+                    .addOutputState(new IOUReissueLock(input.getRef(), iou.getLender(), iou.getBorrower()), IOUContract.IOU_CONTRACT_ID, notary, 0)
+                    .addCommand(command(iou, new IOUContract.Commands.Reissue(input.getRef())));
+            SignedTransaction reissue = signAndCollect(reissueBuilder, session);
+
+            // Step 3. Build the Exit transaction consuming the original, and collect both signatures.
+            TransactionBuilder exitBuilder = new TransactionBuilder(notary)
+                    .addInputState(input)
+                    .addCommand(command(iou, new IOUContract.Commands.Exit(reissue.getId(), copy)));
+            SignedTransaction exit = signAndCollect(exitBuilder, session);
+
+            // Step 4. Finalise the Exit first, so that the original is consumed before its copy is recorded.
+            List<FlowSession> sessions = Collections.singletonList(session);
+            SignedTransaction notarisedExit = subFlow(new FinalityFlow(exit, sessions));
+            subFlow(new FinalityFlow(reissue, sessions));
+
+            // Step 5. Free the copy with an Unlock transaction carrying the notarised Exit.
+            TransactionBuilder unlockBuilder = new TransactionBuilder(notary)
+                    .addInputState(reissue.getTx().outRef(0))
+                    .addInputState(reissue.getTx().outRef(1))
+                    .addOutputState(copy, IOUContract.IOU_CONTRACT_ID)
+                    .addCommand(command(iou, new IOUContract.Commands.Unlock(notarisedExit)));
+            return subFlow(new FinalityFlow(signAndCollect(unlockBuilder, session), sessions));
+        }
+
+        private static Command<CommandData> command(IOUState iou, CommandData commandData) {
+            return new Command<>(commandData, Arrays.asList(iou.getLender().getOwningKey(), iou.getBorrower().getOwningKey()));
+        }
+
+        @Suspendable
+        private SignedTransaction signAndCollect(TransactionBuilder builder, FlowSession session) throws FlowException {
+            builder.verify(getServiceHub());
+            SignedTransaction ptx = getServiceHub().signInitialTransaction(builder);
+            return subFlow(new CollectSignaturesFlow(ptx, Collections.singletonList(session)));
+        }
+    }
+
+    /**
+     * Reissues every IOU we lend whose chain depth is above [maxChainDepth], which defaults to the `reissueChainDepth`
+     * setting of the CorDapp config, or 10. Returns the linearIds of the reissued IOUs.
+     */
+    @StartableByRPC
+    public static class Compact extends FlowLogic<List<UniqueIdentifier>> {
+
+        private final Integer maxChainDepth;
+
+        public Compact() {
+            this.maxChainDepth = null;
+        }
+
+        public Compact(int maxChainDepth) {
+            this.maxChainDepth = maxChainDepth;
+        }
+
+        @Suspendable
+        @Override
+        public List<UniqueIdentifier> call() throws FlowException {
+            int threshold = maxChainDepth != null ? maxChainDepth
+                    : ObligationConfig.getInt(getServiceHub().getAppContext().getConfig(), CHAIN_DEPTH_CONFIG_KEY, DEFAULT_CHAIN_DEPTH);
+            ChainDepthService chainDepths = getServiceHub().cordaService(ChainDepthService.class);
+
+            // Only the lender compacts, so that the two parties of an IOU never reissue it at the same time.
+            List<UniqueIdentifier> deepIOUs = new ArrayList<>();
+            for (StateAndRef<IOUState> state : getServiceHub().cordaService(IOUIndexService.class).all()) {
+                if (state.getState().getData().getLender().equals(getOurIdentity()) && chainDepths.depth(state) > threshold) {
+                    deepIOUs.add(state.getState().getData().getLinearId());
+                }
+            }
+            for (UniqueIdentifier linearId : deepIOUs) {
+                subFlow(new InitiatorFlow(linearId));
+            }
+            return deepIOUs;
+        }
+    }
+
+    /**
+     * This is the flows which signs and records the three transactions of a reissue. It checks that the Exit
+     * transaction consumes exactly the IOU which the Reissue transaction it names recreates, and that the Unlock frees
+     * that copy.
+     */
+    @InitiatedBy(IOUReissueFlow.InitiatorFlow.class)
+    public static class Responder extends FlowLogic<SignedTransaction> {
+
+        private final FlowSession otherPartyFlow;
+        private SignedTransaction reissue;
+        private SecureHash exitId;
+
+        public Responder(FlowSession otherPartyFlow) {
+            this.otherPartyFlow = otherPartyFlow;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            class SignReissueFlow extends SignTransactionFlow {
+                private SignReissueFlow(FlowSession otherPartyFlow) {
+                    super(otherPartyFlow);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                    requireThat(require -> {
+                        require.using("This must be a Reissue transaction", stx.getTx().getCommands().size() == 1
+                                && stx.getTx().getCommands().get(0).getValue() instanceof IOUContract.Commands.Reissue);
+                        return null;
+                    });
+                    reissue = stx;
+                }
+            }
+
+            class SignUnlockFlow extends SignTransactionFlow {
+                private SignUnlockFlow(FlowSession otherPartyFlow) {
+                    super(otherPartyFlow);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                    requireThat(require -> {
+                        require.using("This must be an Unlock transaction", stx.getTx().getCommands().size() == 1
+                                && stx.getTx().getCommands().get(0).getValue() instanceof IOUContract.Commands.Unlock);
+                        IOUContract.Commands.Unlock unlock = (IOUContract.Commands.Unlock) stx.getTx().getCommands().get(0).getValue();
+                        require.using("The Unlock must carry the Exit we signed", unlock.getExit().getId().equals(exitId));
+                        require.using("The Unlock must free the copy we signed", stx.getTx().getInputs().equals(
+                                Arrays.asList(new StateRef(reissue.getId(), 0), new StateRef(reissue.getId(), 1))));
+                        return null;
+                    });
+                }
+            }
+
+            class SignExitFlow extends SignTransactionFlow {
+                private SignExitFlow(FlowSession otherPartyFlow) {
+                    super(otherPartyFlow);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
+                    requireThat(require -> {
+                        require.using("This must be an Exit transaction", stx.getTx().getCommands().size() == 1
+                                && stx.getTx().getCommands().get(0).getValue() instanceof IOUContract.Commands.Exit);
+                        return null;
+                    });
+                    IOUContract.Commands.Exit exit = (IOUContract.Commands.Exit) stx.getTx().getCommands().get(0).getValue();
+                    IOUContract.Commands.Reissue reissueCommand = (IOUContract.Commands.Reissue) reissue.getTx().getCommands().get(0).getValue();
+                    StateRef consumed = stx.getTx().getInputs().get(0);
+                    ContractState consumedState = getServiceHub().toStateAndRef(consumed).getState().getData();
+                    IOUState original = consumedState instanceof IOUState ? (IOUState) consumedState : null;
+                    IOUState copy = reissue.getTx().outputsOfType(IOUState.class).get(0);
+                    requireThat(require -> {
+                        require.using("The Exit must name the Reissue transaction", exit.getReissuedBy().equals(reissue.getId()));
+                        require.using("The Exit must name the reissued IOU", exit.getCopy().getLinearId().equals(copy.getLinearId()));
+                        require.using("The Reissue must name the IOU consumed by the Exit", reissueCommand.getReplaces().equals(consumed));
+                        require.using("The reissued IOU must equal the original", original != null
+                                && original.getAmount() == copy.getAmount() && original.getPaid() == copy.getPaid()
+                                && original.getLender().equals(copy.getLender()) && original.getBorrower().equals(copy.getBorrower())
+                                && original.getLinearId().equals(copy.getLinearId()));
+                        return null;
+                    });
+                    exitId = stx.getId();
+                }
+            }
+
+            subFlow(new SignReissueFlow(otherPartyFlow));
+            subFlow(new SignExitFlow(otherPartyFlow));
+            subFlow(new ReceiveFinalityFlow(otherPartyFlow, exitId));
+            subFlow(new ReceiveFinalityFlow(otherPartyFlow, reissue.getId()));
+            SecureHash unlockId = subFlow(new SignUnlockFlow(otherPartyFlow)).getId();
+            return subFlow(new ReceiveFinalityFlow(otherPartyFlow, unlockId));
+        }
+    }
+}
@@ -4,21 +4,23 @@ import co.paralleluniverse.fibers.Suspendable;
 import net.corda.core.contracts.*;
 import net.corda.core.crypto.SecureHash;
 import net.corda.core.flows.*;
-import net.corda.core.identity.CordaX500Name;
 import net.corda.core.identity.Party;
-import net.corda.core.node.services.Vault;
-import net.corda.core.node.services.vault.QueryCriteria;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 import net.corda.core.utilities.ProgressTracker;
+import net.corda.core.utilities.ProgressTracker.Step;
 import net.corda.samples.obligation.contracts.IOUContract;
+import net.corda.samples.obligation.services.AdmissionControlService;
+import net.corda.samples.obligation.services.FlowDeadlineService;
+import net.corda.samples.obligation.services.FlowMetricsService;
+import net.corda.samples.obligation.services.IOUIndexService;
+import net.corda.samples.obligation.services.RequestDedupeService;
 import net.corda.samples.obligation.states.IOUState;
 
 import java.lang.IllegalArgumentException;
 import java.security.PublicKey;
 import java.util.*;
 import java.util.List;
-import java.util.UUID;
 
 public class IOUSettleFlow {
 
@@ -27,41 +29,147 @@ public class IOUSettleFlow {
      * Gathering the counter-party's signature is handled by the [CollectSignaturesFlow].
      * Notarisation (if required) and commitment to the ledger is handled by the [FinalityFlow].
      * The flows returns the [SignedTransaction] that was committed to the ledger.
+     * The time spent in each step is recorded by the [FlowMetricsService].
      */
     @InitiatingFlow
     @StartableByRPC
+    @StartableByService
     public static class InitiatorFlow extends FlowLogic<SignedTransaction> {
 
         private final UniqueIdentifier stateLinearId;
         private final int pay_amount;
+        private final String requestId;
+        // The transaction signed to serve the request, which still serves it if the flow fails after recording it.
+        private SecureHash attemptedTxId;
+
+        private final Step LOADING_IOU = new Step("Loading and reserving the IOU.");
+        private final Step BUILDING = new Step("Building the transaction.");
+        private final Step VERIFYING = new Step("Verifying contract constraints.");
+        private final Step SIGNING = new Step("Signing transaction with our private key.");
+        private final Step GATHERING_SIGS = new Step("Gathering the counterparties' signatures.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return CollectSignaturesFlow.Companion.tracker();
+            }
+        };
+        private final Step FINALISING = new Step("Obtaining notary signature and recording transaction.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return FinalityFlow.Companion.tracker();
+            }
+        };
+
+        private final ProgressTracker progressTracker = new ProgressTracker(
+                LOADING_IOU, BUILDING, VERIFYING, SIGNING, GATHERING_SIGS, FINALISING);
 
         public InitiatorFlow(UniqueIdentifier stateLinearId, int pay_amount) {
+            this(stateLinearId, pay_amount, null);
+        }
+
+        /**
+         * @param requestId an id chosen by the client, so that retrying the request returns the settlement made by the
+         * first attempt instead of paying twice. See the [RequestDedupeService].
+         */
+        public InitiatorFlow(UniqueIdentifier stateLinearId, int pay_amount, String requestId) {
             this.stateLinearId = stateLinearId;
             this.pay_amount = pay_amount;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
         }
 
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
+            // A retried request returns the transaction of the first attempt. This comes before looking up the IOU,
+            // which no longer exists once the first attempt has settled it in full.
+            RequestDedupeService requests = getServiceHub().cordaService(RequestDedupeService.class);
+            SignedTransaction earlier = requests.begin(requestId, InitiatorFlow.class, getRunId().getUuid());
+            if (earlier != null) {
+                return earlier;
+            }
+            try {
+                // Reject the flow straight away if we are already running too many settlements with the lender.
+                AdmissionControlService admission = getServiceHub().cordaService(AdmissionControlService.class);
+                Party lender = getServiceHub().cordaService(IOUIndexService.class).get(stateLinearId).getState().getData().getLender();
+                admission.admit(InitiatorFlow.class, lender, getRunId().getUuid());
+                try {
+                    SignedTransaction stx = settle();
+                    requests.record(requestId, InitiatorFlow.class, getRunId().getUuid(), stx.getId());
+                    return stx;
+                } finally {
+                    admission.release(getRunId().getUuid());
+                }
+            } finally {
+                requests.release(requestId, getRunId().getUuid(), attemptedTxId);
+            }
+        }
 
-            // 1. Retrieve the IOU State from the vault using LinearStateQueryCriteria
-            List<UUID> listOfLinearIds = Arrays.asList(stateLinearId.getId());
-            QueryCriteria queryCriteria = new QueryCriteria.LinearStateQueryCriteria(null, listOfLinearIds);
-            Vault.Page results = getServiceHub().getVaultService().queryBy(IOUState.class, queryCriteria);
-            StateAndRef inputStateAndRefToSettle = (StateAndRef) results.getStates().get(0);
-            IOUState inputStateToSettle = (IOUState) ((StateAndRef) results.getStates().get(0)).getState().getData();
+        @Suspendable
+        private SignedTransaction settle() throws FlowException {
+            FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+
+            // Steps 1 to 5 and 8 build and sign the transaction in a method which never suspends, so that the input
+            // IOU, the transaction builder and the lists used to fill it are not written into any checkpoint.
+            SignedTransaction stx = buildAndSign(metrics);
+            long phaseStart = System.nanoTime();
+
+            // Step 6. Collect the other party's signature using the CollectSignaturesFlow.Each required signer will need to
+            // respond by invoking its own SignTransactionFlow subclass to check the transaction (by implementing the checkTransaction method)
+            // and provide their signature if they are satisfied.
+            progressTracker.setCurrentStep(GATHERING_SIGS);
+            List<Party> counterparties = counterparties(stx);
+            checkResponsive(counterparties);
+            FlowDeadlineService deadlines = getServiceHub().cordaService(FlowDeadlineService.class);
+            deadlines.enter(getRunId().getUuid(), InitiatorFlow.class, FlowDeadlineService.Phase.COLLECT_SIGNATURES, counterparties);
+            try {
+                List<FlowSession> sessions = new ArrayList<>();
+                for (Party otherParty : counterparties) {
+                    sessions.add(initiateFlow(otherParty));
+                }
+
+                // Replace the partially signed transaction rather than keeping both alive across the finality checkpoints.
+                stx = subFlow(new CollectSignaturesFlow(stx, sessions, GATHERING_SIGS.childProgressTracker()));
+                phaseStart = metrics.record(InitiatorFlow.class, "collectSignatures", phaseStart);
+
+                // Step 7. Assuming no exceptions, we can now finalise the transaction
+                progressTracker.setCurrentStep(FINALISING);
+                deadlines.enter(getRunId().getUuid(), InitiatorFlow.class, FlowDeadlineService.Phase.FINALITY, counterparties);
+                stx = subFlow(new FinalityFlow(stx, sessions, FINALISING.childProgressTracker()));
+                metrics.record(InitiatorFlow.class, "finality", phaseStart);
+                return stx;
+            } finally {
+                deadlines.exit(getRunId().getUuid());
+            }
+
+        }
+
+        private SignedTransaction buildAndSign(FlowMetricsService metrics) throws FlowException {
+            // 1. Retrieve the IOU State from the IOU index, which fails cleanly if the IOU is not in the vault.
+            progressTracker.setCurrentStep(LOADING_IOU);
+            long phaseStart = System.nanoTime();
+            IOUIndexService iouIndex = getServiceHub().cordaService(IOUIndexService.class);
+            StateAndRef<IOUState> inputStateAndRefToSettle = iouIndex.get(stateLinearId);
+            IOUState inputStateToSettle = inputStateAndRefToSettle.getState().getData();
             Party counterparty = inputStateToSettle.getLender();
 
             // Step 2. Check the party running this flows is the borrower.
             if (!inputStateToSettle.getBorrower().getOwningKey().equals(getOurIdentity().getOwningKey())) {
                 throw new IllegalArgumentException("The borrower must issue the flows");
             }
+
+            // Reserve the IOU so that a concurrent flow on the same IOU fails now rather than at the notary.
+            iouIndex.reserve(getRunId().getUuid(), Collections.singletonList(inputStateAndRefToSettle));
+            phaseStart = metrics.record(InitiatorFlow.class, "loadIou", phaseStart);
+            progressTracker.setCurrentStep(BUILDING);
+
             // Step 3. Create a transaction builder.
 
-            // Obtain a reference to a notary we wish to use.
-            /** Explicit selection of notary by CordaX500Name - argument can by coded in flows or parsed from config
-             */
-            final Party notary = getServiceHub().getNetworkMapCache().getNotary(CordaX500Name.parse("O=Notary,L=London,C=GB")); // METHOD 2
+            // The IOU must stay on the notary it was issued on, so reuse the notary of the input states.
+            final Party notary = inputStateAndRefToSettle.getState().getNotary();
 
             TransactionBuilder tb = new TransactionBuilder(notary);
 
@@ -85,30 +193,44 @@ public class IOUSettleFlow {
                 tb.addOutputState(opState, IOUContract.IOU_CONTRACT_ID);
             }
 
+            phaseStart = metrics.record(InitiatorFlow.class, "build", phaseStart);
+
             // Step 8. Verify and sign the transaction.
+            progressTracker.setCurrentStep(VERIFYING);
             tb.verify(getServiceHub());
+            phaseStart = metrics.record(InitiatorFlow.class, "verify", phaseStart);
+            progressTracker.setCurrentStep(SIGNING);
             final SignedTransaction ptx = getServiceHub().signInitialTransaction(tb);
+            attemptedTxId = ptx.getId();
+            metrics.record(InitiatorFlow.class, "sign", phaseStart);
+            return ptx;
+        }
 
-
-            // Step 6. Collect the other party's signature using the CollectSignaturesFlow.Each required signer will need to
-            // respond by invoking its own SignTransactionFlow subclass to check the transaction (by implementing the checkTransaction method)
-            // and provide their signature if they are satisfied.
-            List<Party> otherParties = new ArrayList<Party>();
-            otherParties.add(inputStateToSettle.getLender());
-            otherParties.add(inputStateToSettle.getBorrower());
-
-            otherParties.remove(getOurIdentity());
-
-            List<FlowSession> sessions = new ArrayList<>();
-            for (Party otherParty : otherParties) {
-                sessions.add(initiateFlow(otherParty));
+        /**
+         * Fails fast, giving back the reserved IOU, if any of the counterparties has left an earlier flow parked past
+         * its deadline and does not answer a probe now.
+         */
+        @Suspendable
+        private void checkResponsive(List<Party> counterparties) throws FlowException {
+            try {
+                subFlow(new CounterpartyProbeFlow.Check(counterparties));
+            } catch (FlowException e) {
+                getServiceHub().cordaService(IOUIndexService.class).release(getRunId().getUuid());
+                throw e;
             }
+        }
 
-            SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions));
-
-            // Step 7. Assuming no exceptions, we can now finalise the transaction
-            return subFlow(new FinalityFlow(stx, sessions));
-
+        /**
+         * Returns the signers of the settlement other than us, which is the lender.
+         */
+        private List<Party> counterparties(SignedTransaction stx) {
+            List<Party> counterparties = new ArrayList<>();
+            for (PublicKey signer : stx.getTx().getCommands().get(0).getSigners()) {
+                if (!signer.equals(getOurIdentity().getOwningKey())) {
+                    counterparties.add(getServiceHub().getIdentityService().partyFromKey(signer));
+                }
+            }
+            return counterparties;
         }
 
     }
@@ -123,10 +245,25 @@ public class IOUSettleFlow {
         private final FlowSession otherPartyFlow;
         private SecureHash txWeJustSignedId;
 
+        private final Step SIGNING = new Step("Checking and signing the transaction.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return SignTransactionFlow.Companion.tracker();
+            }
+        };
+        private final Step RECORDING = new Step("Recording the finalised transaction.");
+
+        private final ProgressTracker progressTracker = new ProgressTracker(SIGNING, RECORDING);
+
         public Responder(FlowSession otherPartyFlow) {
             this.otherPartyFlow = otherPartyFlow;
         }
 
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
@@ -142,14 +279,29 @@ public class IOUSettleFlow {
                 }
             }
 
-            // Create a sign transaction flows
-            SignTxFlow signTxFlow = new SignTxFlow(otherPartyFlow, SignTransactionFlow.Companion.tracker());
-
-            // Run the sign transaction flows to sign the transaction
-            subFlow(signTxFlow);
-
-            // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault.
-            return subFlow(new ReceiveFinalityFlow(otherPartyFlow, txWeJustSignedId));
+            // Refuse to sign straight away if the initiating party is already running too many of these flows with us.
+            AdmissionControlService admission = getServiceHub().cordaService(AdmissionControlService.class);
+            admission.admit(Responder.class, otherPartyFlow.getCounterparty(), getRunId().getUuid());
+            try {
+                FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+
+                // Create a sign transaction flows
+                progressTracker.setCurrentStep(SIGNING);
+                long phaseStart = System.nanoTime();
+                SignTxFlow signTxFlow = new SignTxFlow(otherPartyFlow, SIGNING.childProgressTracker());
+
+                // Run the sign transaction flows to sign the transaction
+                subFlow(signTxFlow);
+                phaseStart = metrics.record(Responder.class, "signTransaction", phaseStart);
+
+                // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault.
+                progressTracker.setCurrentStep(RECORDING);
+                SignedTransaction recorded = subFlow(new ReceiveFinalityFlow(otherPartyFlow, txWeJustSignedId));
+                metrics.record(Responder.class, "receiveFinality", phaseStart);
+                return recorded;
+            } finally {
+                admission.release(getRunId().getUuid());
+            }
 
         }
     }
@@ -7,68 +7,170 @@ import net.corda.core.contracts.StateAndRef;
 import net.corda.core.crypto.SecureHash;
 import net.corda.core.flows.*;
 import net.corda.core.utilities.ProgressTracker;
+import net.corda.core.utilities.ProgressTracker.Step;
 import net.corda.samples.obligation.contracts.IOUContract.Commands.Transfer;
 import net.corda.core.contracts.UniqueIdentifier;
-import net.corda.core.identity.AbstractParty;
 import net.corda.core.identity.Party;
-import net.corda.core.node.services.Vault;
-import net.corda.core.identity.CordaX500Name;
-import net.corda.core.node.services.vault.QueryCriteria;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 import net.corda.samples.obligation.contracts.IOUContract;
+import net.corda.samples.obligation.services.AdmissionControlService;
+import net.corda.samples.obligation.services.FlowDeadlineService;
+import net.corda.samples.obligation.services.FlowMetricsService;
+import net.corda.samples.obligation.services.IOUIndexService;
+import net.corda.samples.obligation.services.RequestDedupeService;
 import net.corda.samples.obligation.states.IOUState;
 import org.jetbrains.annotations.NotNull;
 
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.UUID;
 
 import static net.corda.core.contracts.ContractsDSL.requireThat;
 
 
 /**
  * This is the flows which handles transfers of existing IOUs on the ledger.
- * Gathering the counter-party's signature is handled by the [CollectSignaturesFlow].
+ * The borrower's and the new lender's signatures are gathered concurrently by the [ParallelSignaturesFlow].
  * Notarisation (if required) and commitment to the ledger is handled by the [FinalityFlow].
  * The flows returns the [SignedTransaction] that was committed to the ledger.
+ * The time spent in each step is recorded by the [FlowMetricsService].
  */
 
 public class IOUTransferFlow {
 
-    @InitiatingFlow
+    // Version 2 collects the signatures with the ParallelSignaturesFlow, version 1 used the CollectSignaturesFlow.
+    @InitiatingFlow(version = 2)
     @StartableByRPC
     public static class InitiatorFlow extends FlowLogic<SignedTransaction> {
         private final UniqueIdentifier stateLinearId;
         private final Party newLender;
+        private final String requestId;
+        // The transaction signed to serve the request, which still serves it if the flow fails after recording it.
+        private SecureHash attemptedTxId;
+
+        private final Step LOADING_IOU = new Step("Loading and reserving the IOU.");
+        private final Step BUILDING = new Step("Building the transaction.");
+        private final Step VERIFYING = new Step("Verifying contract constraints.");
+        private final Step SIGNING = new Step("Signing transaction with our private key.");
+        private final Step GATHERING_SIGS = new Step("Gathering the counterparties' signatures.");
+        private final Step FINALISING = new Step("Obtaining notary signature and recording transaction.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return FinalityFlow.Companion.tracker();
+            }
+        };
+
+        private final ProgressTracker progressTracker = new ProgressTracker(
+                LOADING_IOU, BUILDING, VERIFYING, SIGNING, GATHERING_SIGS, FINALISING);
 
         public InitiatorFlow(UniqueIdentifier stateLinearId, Party newLender) {
+            this(stateLinearId, newLender, null);
+        }
+
+        /**
+         * @param requestId an id chosen by the client, so that retrying the request returns the transfer made by the
+         * first attempt. See the [RequestDedupeService].
+         */
+        public InitiatorFlow(UniqueIdentifier stateLinearId, Party newLender, String requestId) {
             this.stateLinearId = stateLinearId;
             this.newLender = newLender;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
         }
 
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
+            // Reject the flow straight away if we are already running too many transfers to the new lender.
+            AdmissionControlService admission = getServiceHub().cordaService(AdmissionControlService.class);
+            admission.admit(InitiatorFlow.class, newLender, getRunId().getUuid());
+            try {
+                // A retried request returns the transaction of the first attempt.
+                RequestDedupeService requests = getServiceHub().cordaService(RequestDedupeService.class);
+                SignedTransaction earlier = requests.begin(requestId, InitiatorFlow.class, getRunId().getUuid());
+                if (earlier != null) {
+                    return earlier;
+                }
+                try {
+                    SignedTransaction stx = transfer();
+                    requests.record(requestId, InitiatorFlow.class, getRunId().getUuid(), stx.getId());
+                    return stx;
+                } finally {
+                    requests.release(requestId, getRunId().getUuid(), attemptedTxId);
+                }
+            } finally {
+                admission.release(getRunId().getUuid());
+            }
+        }
 
-            // 1. Retrieve the IOU State from the vault using LinearStateQueryCriteria
-            List<UUID> listOfLinearIds = new ArrayList<>();
-            listOfLinearIds.add(stateLinearId.getId());
-            QueryCriteria queryCriteria = new QueryCriteria.LinearStateQueryCriteria(null, listOfLinearIds);
+        @Suspendable
+        private SignedTransaction transfer() throws FlowException {
+            FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+
+            // Steps 1 to 7 build and sign the transaction in a method which never suspends, so that the input IOU, the
+            // transaction builder and the lists used to fill it are not written into any checkpoint.
+            SignedTransaction stx = buildAndSign(metrics);
+            long phaseStart = System.nanoTime();
+
+            // 8. Collect all of the required signatures from other Corda nodes, asking the borrower and the new lender at
+            // the same time rather than one after the other.
+            progressTracker.setCurrentStep(GATHERING_SIGS);
+            List<Party> counterparties = counterparties(stx);
+            checkResponsive(counterparties);
+            FlowDeadlineService deadlines = getServiceHub().cordaService(FlowDeadlineService.class);
+            deadlines.enter(getRunId().getUuid(), InitiatorFlow.class, FlowDeadlineService.Phase.COLLECT_SIGNATURES, counterparties);
+            try {
+                List<FlowSession> sessions = new ArrayList<>();
+                for (Party counterparty : counterparties) {
+                    sessions.add(initiateFlow(counterparty));
+                }
+                // Replace the partially signed transaction rather than keeping both alive across the finality checkpoints.
+                stx = subFlow(new ParallelSignaturesFlow.Collect(stx, sessions));
+                phaseStart = metrics.record(InitiatorFlow.class, "collectSignatures", phaseStart);
+                /* 9. Return the output of the FinalityFlow which sends the transaction to the notary for verification
+                 *     and the causes it to be persisted to the vault of appropriate nodes.
+                 */
+                progressTracker.setCurrentStep(FINALISING);
+                deadlines.enter(getRunId().getUuid(), InitiatorFlow.class, FlowDeadlineService.Phase.FINALITY, counterparties);
+                stx = subFlow(new FinalityFlow(stx, sessions, FINALISING.childProgressTracker()));
+                metrics.record(InitiatorFlow.class, "finality", phaseStart);
+                return stx;
+            } finally {
+                deadlines.exit(getRunId().getUuid());
+            }
+        }
+
+        private SignedTransaction buildAndSign(FlowMetricsService metrics) throws FlowException {
+            // 1. Retrieve the IOU State from the IOU index, which fails cleanly if the IOU is not in the vault.
+            progressTracker.setCurrentStep(LOADING_IOU);
+            long phaseStart = System.nanoTime();
+            IOUIndexService iouIndex = getServiceHub().cordaService(IOUIndexService.class);
+            StateAndRef<IOUState> inputStateAndRefToTransfer = iouIndex.get(stateLinearId);
+
+            // 2. Get a reference to the inputState data that we are going to transfer.
+            IOUState inputStateToTransfer = inputStateAndRefToTransfer.getState().getData();
+
+            // Ensure that this flows is being executed by the current lender before reserving the IOU.
+            if (!inputStateToTransfer.getLender().getOwningKey().equals(getOurIdentity().getOwningKey())) {
+                throw new IllegalArgumentException("This flows must be run by the current lender.");
+            }
 
-            // 2. Get a reference to the inputState data that we are going to settle.
-            Vault.Page results = getServiceHub().getVaultService().queryBy(IOUState.class, queryCriteria);
-            StateAndRef inputStateAndRefToTransfer = (StateAndRef) results.getStates().get(0);
-            IOUState inputStateToTransfer = (IOUState) inputStateAndRefToTransfer.getState().getData();
+            // Reserve the IOU so that a concurrent flow on the same IOU fails now rather than at the notary.
+            iouIndex.reserve(getRunId().getUuid(), Collections.singletonList(inputStateAndRefToTransfer));
+            phaseStart = metrics.record(InitiatorFlow.class, "loadIou", phaseStart);
+            progressTracker.setCurrentStep(BUILDING);
 
             // 3. We should now get some of the components required for to execute the transaction
-            // Here we get a reference to the default notary and instantiate a transaction builder.
+            // Here we get a reference to the notary and instantiate a transaction builder.
 
-            // Obtain a reference to a notary we wish to use.
-            /** Explicit selection of notary by CordaX500Name - argument can by coded in flows or parsed from config
-             */
-            final Party notary = getServiceHub().getNetworkMapCache().getNotary(CordaX500Name.parse("O=Notary,L=London,C=GB")); // METHOD 2
+            // The IOU must stay on the notary it was issued on, so reuse the notary of the input states.
+            final Party notary = inputStateAndRefToTransfer.getState().getNotary();
 
             TransactionBuilder tb = new TransactionBuilder(notary);
 
@@ -90,31 +192,44 @@ public class IOUTransferFlow {
             tb.addInputState(inputStateAndRefToTransfer);
             IOUState opState = new IOUState(inputStateToTransfer.getAmount(), newLender, inputStateToTransfer.getBorrower(), inputStateToTransfer.getPaid(), inputStateToTransfer.getLinearId());
             tb.addOutputState(opState, IOUContract.IOU_CONTRACT_ID);
+            phaseStart = metrics.record(InitiatorFlow.class, "build", phaseStart);
 
-            // 7. Ensure that this flows is being executed by the current lender.
-            if (!inputStateToTransfer.getLender().getOwningKey().equals(getOurIdentity().getOwningKey())) {
-                throw new IllegalArgumentException("This flows must be run by the current lender.");
-            }
-
-            // 8. Verify and sign the transaction
+            // 7. Verify and sign the transaction
+            progressTracker.setCurrentStep(VERIFYING);
             tb.verify(getServiceHub());
+            phaseStart = metrics.record(InitiatorFlow.class, "verify", phaseStart);
+            progressTracker.setCurrentStep(SIGNING);
             SignedTransaction partiallySignedTransaction = getServiceHub().signInitialTransaction(tb);
+            attemptedTxId = partiallySignedTransaction.getId();
+            metrics.record(InitiatorFlow.class, "sign", phaseStart);
+            return partiallySignedTransaction;
+        }
 
-            // 9. Collect all of the required signatures from other Corda nodes using the CollectSignaturesFlow
-            List<FlowSession> sessions = new ArrayList<>();
+        /**
+         * Fails fast, giving back the reserved IOU, if any of the counterparties has left an earlier flow parked past
+         * its deadline and does not answer a probe now.
+         */
+        @Suspendable
+        private void checkResponsive(List<Party> counterparties) throws FlowException {
+            try {
+                subFlow(new CounterpartyProbeFlow.Check(counterparties));
+            } catch (FlowException e) {
+                getServiceHub().cordaService(IOUIndexService.class).release(getRunId().getUuid());
+                throw e;
+            }
+        }
 
-            for (AbstractParty participant : inputStateToTransfer.getParticipants()) {
-                Party partyToInitiateFlow = (Party) participant;
-                if (!partyToInitiateFlow.getOwningKey().equals(getOurIdentity().getOwningKey())) {
-                    sessions.add(initiateFlow(partyToInitiateFlow));
+        /**
+         * Returns the signers of the transfer other than us: the borrower and the new lender.
+         */
+        private List<Party> counterparties(SignedTransaction stx) {
+            List<Party> counterparties = new ArrayList<>();
+            for (PublicKey signer : stx.getTx().getCommands().get(0).getSigners()) {
+                if (!signer.equals(getOurIdentity().getOwningKey())) {
+                    counterparties.add(getServiceHub().getIdentityService().partyFromKey(signer));
                 }
             }
-            sessions.add(initiateFlow(newLender));
-            SignedTransaction fullySignedTransaction = subFlow(new CollectSignaturesFlow(partiallySignedTransaction, sessions));
-            /* 10. Return the output of the FinalityFlow which sends the transaction to the notary for verification
-             *     and the causes it to be persisted to the vault of appropriate nodes.
-             */
-            return subFlow(new FinalityFlow(fullySignedTransaction, sessions));
+            return counterparties;
         }
     }
 
@@ -129,39 +244,95 @@ public class IOUTransferFlow {
         private final FlowSession otherPartyFlow;
         private SecureHash txWeJustSignedId;
 
+        private final Step SIGNING = new Step("Checking and signing the transaction.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return SignTransactionFlow.Companion.tracker();
+            }
+        };
+        private final Step RECORDING = new Step("Recording the finalised transaction.");
+
+        private final ProgressTracker progressTracker = new ProgressTracker(SIGNING, RECORDING);
+
         public Responder(FlowSession otherPartyFlow) {
             this.otherPartyFlow = otherPartyFlow;
         }
 
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
-            class SignTxFlow extends SignTransactionFlow {
-                private SignTxFlow(FlowSession otherPartyFlow, ProgressTracker progressTracker) {
+            class SignTxFlow extends ParallelSignaturesFlow.Sign {
+                private SignTxFlow(FlowSession otherPartyFlow) {
+                    super(otherPartyFlow);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
+                    requireThat(require -> {
+                        ContractState output = stx.getTx().getOutputs().get(0).getData();
+                        require.using("This must be an IOU transaction", output instanceof IOUState);
+                        return null;
+                    });
+                    // Refuse to sign away an IOU we owe which is in use on our node, such as by an open payment channel.
+                    getServiceHub().cordaService(IOUIndexService.class)
+                            .reserveBorrowed(getRunId().getUuid(), stx.getTx().getInputs(), getOurIdentity().getOwningKey());
+                }
+            }
+
+            // Signs for initiators of version 1, which collect the signatures with the CollectSignaturesFlow.
+            class LegacySignTxFlow extends SignTransactionFlow {
+                private LegacySignTxFlow(FlowSession otherPartyFlow, ProgressTracker progressTracker) {
                     super(otherPartyFlow, progressTracker);
                 }
 
                 @Override
                 @NotNull
-                protected void checkTransaction(SignedTransaction stx) {
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
                     requireThat(require -> {
                         ContractState output = stx.getTx().getOutputs().get(0).getData();
                         require.using("This must be an IOU transaction", output instanceof IOUState);
                         return null;
                     });
+                    // Refuse to sign away an IOU we owe which is in use on our node, such as by an open payment channel.
+                    getServiceHub().cordaService(IOUIndexService.class)
+                            .reserveBorrowed(getRunId().getUuid(), stx.getTx().getInputs(), getOurIdentity().getOwningKey());
                     // Once the transaction has verified, initialize txWeJustSignedID variable.
                     txWeJustSignedId = stx.getId();
                 }
             }
 
-            // Create a sign transaction flows
-            SignTxFlow signTxFlow = new SignTxFlow(otherPartyFlow, SignTransactionFlow.Companion.tracker());
-
-            // Run the sign transaction flows to sign the transaction
-            subFlow(signTxFlow);
-
-            // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault.
-            return subFlow(new ReceiveFinalityFlow(otherPartyFlow, txWeJustSignedId));
+            // Refuse to sign straight away if the initiating party is already running too many of these flows with us.
+            AdmissionControlService admission = getServiceHub().cordaService(AdmissionControlService.class);
+            admission.admit(Responder.class, otherPartyFlow.getCounterparty(), getRunId().getUuid());
+            try {
+                FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+
+                // Create a sign transaction flows
+                progressTracker.setCurrentStep(SIGNING);
+                long phaseStart = System.nanoTime();
+                if (otherPartyFlow.getCounterpartyFlowInfo().getFlowVersion() >= 2) {
+                    txWeJustSignedId = subFlow(new SignTxFlow(otherPartyFlow)).getId();
+                } else {
+                    LegacySignTxFlow signTxFlow = new LegacySignTxFlow(otherPartyFlow, SIGNING.childProgressTracker());
+
+                    // Run the sign transaction flows to sign the transaction
+                    subFlow(signTxFlow);
+                }
+                phaseStart = metrics.record(Responder.class, "signTransaction", phaseStart);
+
+                // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault.
+                progressTracker.setCurrentStep(RECORDING);
+                SignedTransaction recorded = subFlow(new ReceiveFinalityFlow(otherPartyFlow, txWeJustSignedId));
+                metrics.record(Responder.class, "receiveFinality", phaseStart);
+                return recorded;
+            } finally {
+                admission.release(getRunId().getUuid());
+            }
         }
 
     }
@@ -0,0 +1,112 @@
+package net.corda.samples.obligation.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.StatesToRecord;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.utilities.UntrustworthyData;
+
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * These are the flows which collect the counterparties' signatures for a transaction concurrently, as a replacement for
+ * the [CollectSignaturesFlow] and [SignTransactionFlow] pair which asks one counterparty after another.
+ *
+ * The initiator sends the partially signed transaction to each counterparty with the [SendTransactionFlow], which also
+ * serves the transaction history the counterparty is missing. As soon as a counterparty has the transaction it checks
+ * and signs it, while the initiator moves on to the next counterparty, and the signatures are then received from all
+ * of them at once. The signing of all counterparties therefore overlaps and the flows is held up by the slowest
+ * counterparty only. The transaction history is still sent to one counterparty at a time, as a flows can only serve
+ * one session at a time.
+ */
+public class ParallelSignaturesFlow {
+
+    /**
+     * Collects the signatures of the given sessions' counterparties, each of which must be a required signer, and
+     * returns the transaction with those signatures added.
+     */
+    public static class Collect extends FlowLogic<SignedTransaction> {
+
+        private final SignedTransaction partiallySignedTx;
+        private final List<FlowSession> sessions;
+
+        public Collect(SignedTransaction partiallySignedTx, List<FlowSession> sessions) {
+            this.partiallySignedTx = partiallySignedTx;
+            this.sessions = sessions;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            // Step 1. Send the transaction to every counterparty, after which each of them checks and signs it.
+            for (FlowSession session : sessions) {
+                subFlow(new SendTransactionFlow(session, partiallySignedTx));
+            }
+
+            // Step 2. Receive the signatures as they arrive and check each was made by its counterparty over this transaction.
+            List<UntrustworthyData<TransactionSignature>> received = receiveAll(TransactionSignature.class, sessions);
+            List<TransactionSignature> signatures = new ArrayList<>();
+            for (int i = 0; i < sessions.size(); i++) {
+                Party counterparty = sessions.get(i).getCounterparty();
+                signatures.add(received.get(i).unwrap(signature -> {
+                    if (!signature.getBy().equals(counterparty.getOwningKey())) {
+                        throw new FlowException("The signature of " + counterparty + " was made by another key");
+                    }
+                    try {
+                        signature.verify(partiallySignedTx.getId());
+                    } catch (InvalidKeyException | SignatureException e) {
+                        throw new FlowException("The signature of " + counterparty + " is not valid", e);
+                    }
+                    return signature;
+                }));
+            }
+            return partiallySignedTx.withAdditionalSignatures(signatures);
+        }
+    }
+
+    /**
+     * Receives a transaction from the initiator, resolving and verifying it, and sends back our signature once
+     * [checkTransaction] accepts it. Returns the transaction that was signed.
+     */
+    public abstract static class Sign extends FlowLogic<SignedTransaction> {
+
+        private final FlowSession otherPartyFlow;
+
+        protected Sign(FlowSession otherPartyFlow) {
+            this.otherPartyFlow = otherPartyFlow;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            // Step 1. Receive, resolve and verify the transaction, which may still lack the other signatures.
+            SignedTransaction stx = subFlow(new ReceiveTransactionFlow(otherPartyFlow, false, StatesToRecord.NONE));
+
+            // Step 2. Check the initiator signed it and that we are asked for our signature.
+            PublicKey ourKey = getOurIdentity().getOwningKey();
+            PublicKey initiatorKey = otherPartyFlow.getCounterparty().getOwningKey();
+            if (stx.getSigs().stream().noneMatch(signature -> signature.getBy().equals(initiatorKey))) {
+                throw new FlowException("The transaction must be signed by the initiator of the flows");
+            }
+            if (!stx.getTx().getRequiredSigningKeys().contains(ourKey)) {
+                throw new FlowException("Our signature is not required on this transaction");
+            }
+            checkTransaction(stx);
+
+            // Step 3. Sign it and send the signature back.
+            otherPartyFlow.send(getServiceHub().createSignature(stx, ourKey));
+            return stx;
+        }
+
+        /**
+         * Checks the transaction is one we are willing to sign, throwing a [FlowException] if it is not.
+         */
+        protected abstract void checkTransaction(SignedTransaction stx) throws FlowException;
+    }
+}
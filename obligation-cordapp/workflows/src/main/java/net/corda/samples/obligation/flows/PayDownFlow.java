@@ -0,0 +1,254 @@
+package net.corda.samples.obligation.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.*;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.samples.obligation.contracts.IOUContract;
+import net.corda.samples.obligation.schemas.IOUSchemaV1;
+import net.corda.samples.obligation.services.IOUIndexService;
+import net.corda.samples.obligation.states.IOUState;
+
+import java.util.*;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * This is the flows which pays down a total amount across the borrower's outstanding IOUs to one lender.
+ * The IOUs are picked in the given [Order] with a query on the indexed "iou_states" table, so only the IOUs which are
+ * needed are loaded from the vault. Every IOU picked is soft locked before the next one is selected, so concurrent
+ * pay-downs to the same lender skip each other's IOUs rather than colliding at the notary. All but the last IOU are
+ * fully settled and the remainder of the payment partially settles the last one, in a single Settle transaction.
+ * The flows returns the amount paid into each IOU, in the order they were paid.
+ */
+public class PayDownFlow {
+
+    /**
+     * The number of IOUs fetched by each selection query.
+     */
+    static final int PAGE_SIZE = 50;
+
+    /**
+     * The number of times a page is selected again when another flow soft locks one of its IOUs first.
+     */
+    static final int MAX_RESERVE_ATTEMPTS = 3;
+
+    /**
+     * The order in which the outstanding IOUs are paid down.
+     */
+    @CordaSerializable
+    public enum Order {
+        OLDEST, SMALLEST, LARGEST
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class InitiatorFlow extends FlowLogic<Map<UniqueIdentifier, Integer>> {
+
+        private final Party lender;
+        private final int amount;
+        private final Order order;
+
+        public InitiatorFlow(Party lender, int amount) {
+            this(lender, amount, Order.OLDEST);
+        }
+
+        public InitiatorFlow(Party lender, int amount, Order order) {
+            this.lender = lender;
+            this.amount = amount;
+            this.order = order;
+        }
+
+        @Suspendable
+        @Override
+        public Map<UniqueIdentifier, Integer> call() throws FlowException {
+            if (amount <= 0) {
+                throw new FlowException("The amount to pay down must be positive");
+            }
+            if (lender.getOwningKey().equals(getOurIdentity().getOwningKey())) {
+                throw new IllegalArgumentException("The lender and borrower cannot have the same identity.");
+            }
+
+            // Step 1. Select and soft lock the IOUs to pay, all on the notary of the first IOU selected.
+            List<StateAndRef<IOUState>> inputs = select();
+
+            // Step 2. Allocate the payment across the IOUs in order.
+            Map<UniqueIdentifier, Integer> allocation = new LinkedHashMap<>();
+            int remaining = amount;
+            for (StateAndRef<IOUState> input : inputs) {
+                IOUState iou = input.getState().getData();
+                int payAmount = Math.min(remaining, iou.getAmount() - iou.getPaid());
+                allocation.put(iou.getLinearId(), payAmount);
+                remaining -= payAmount;
+            }
+
+            // Step 3. Settle all of the IOUs in a single transaction with the lender.
+            TransactionBuilder tb = new TransactionBuilder(inputs.get(0).getState().getNotary());
+            tb.addCommand(new Command<>(
+                    new IOUContract.Commands.Settle(),
+                    Arrays.asList(lender.getOwningKey(), getOurIdentity().getOwningKey())));
+            for (StateAndRef<IOUState> input : inputs) {
+                IOUState iou = input.getState().getData();
+                int payAmount = allocation.get(iou.getLinearId());
+                tb.addInputState(input);
+                if (payAmount < (iou.getAmount() - iou.getPaid())) {
+                    IOUState opState = new IOUState(iou.getAmount(), iou.getLender(), iou.getBorrower(), iou.getPaid() + payAmount, iou.getLinearId());
+                    tb.addOutputState(opState, IOUContract.IOU_CONTRACT_ID);
+                }
+            }
+
+            // Step 4. Verify and sign the transaction.
+            tb.verify(getServiceHub());
+            final SignedTransaction ptx = getServiceHub().signInitialTransaction(tb);
+
+            // Step 5. Collect the lender's signature and finalise the transaction.
+            List<FlowSession> sessions = Collections.singletonList(initiateFlow(lender));
+            SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions));
+            subFlow(new FinalityFlow(stx, sessions));
+            return allocation;
+        }
+
+        /**
+         * Picks outstanding IOUs in order until they cover the amount. Each query only returns IOUs which no flow has
+         * soft locked, and the IOUs picked from a page are locked before the next page is queried, so the first page
+         * always continues where the previous one stopped. If another flow locks one of the IOUs between the query and
+         * our reservation, the page is queried again.
+         */
+        private List<StateAndRef<IOUState>> select() throws FlowException {
+            IOUIndexService index = getServiceHub().cordaService(IOUIndexService.class);
+            UUID lockId = getRunId().getUuid();
+            List<StateAndRef<IOUState>> selected = new ArrayList<>();
+            Party notary = null;
+            long covered = 0;
+            int attempts = 0;
+            while (covered < amount) {
+                List<StateAndRef<IOUState>> page = getServiceHub().getVaultService()
+                        .queryBy(IOUState.class, criteria(notary), new PageSpecification(1, PAGE_SIZE), sort())
+                        .getStates();
+                if (page.isEmpty()) {
+                    throw new FlowException("Only " + covered + " is outstanding to " + lender + ", which cannot cover a payment of " + amount);
+                }
+                if (notary == null) {
+                    notary = page.get(0).getState().getNotary();
+                }
+
+                List<StateAndRef<IOUState>> picked = new ArrayList<>();
+                long pickedCovered = covered;
+                for (StateAndRef<IOUState> input : page) {
+                    if (pickedCovered >= amount) {
+                        break;
+                    }
+                    IOUState iou = input.getState().getData();
+                    picked.add(input);
+                    pickedCovered += iou.getAmount() - iou.getPaid();
+                }
+
+                try {
+                    index.reserve(lockId, picked);
+                } catch (FlowException e) {
+                    if (++attempts >= MAX_RESERVE_ATTEMPTS) {
+                        throw e;
+                    }
+                    continue;
+                }
+                selected.addAll(picked);
+                covered = pickedCovered;
+            }
+            return selected;
+        }
+
+        /**
+         * Our unlocked, outstanding IOUs to the lender, on the given notary once one has been chosen.
+         */
+        private QueryCriteria criteria(Party notary) throws FlowException {
+            QueryCriteria.VaultQueryCriteria generalCriteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED)
+                    .withSoftLockingCondition(new QueryCriteria.SoftLockingCondition(QueryCriteria.SoftLockingType.UNLOCKED_ONLY, Collections.emptyList()));
+            if (notary != null) {
+                generalCriteria = generalCriteria.withNotary(Collections.singletonList(notary));
+            }
+            try {
+                FieldInfo lenderField = QueryCriteriaUtils.getField("lender", IOUSchemaV1.PersistentIOU.class);
+                FieldInfo borrowerField = QueryCriteriaUtils.getField("borrower", IOUSchemaV1.PersistentIOU.class);
+                FieldInfo outstandingField = QueryCriteriaUtils.getField("outstanding", IOUSchemaV1.PersistentIOU.class);
+                return generalCriteria
+                        .and(new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(lenderField, lender.getName().toString())))
+                        .and(new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(borrowerField, getOurIdentity().getName().toString())))
+                        .and(new QueryCriteria.VaultCustomQueryCriteria(Builder.greaterThan(outstandingField, 0)));
+            } catch (NoSuchFieldException e) {
+                throw new FlowException("The IOU schema is missing a column", e);
+            }
+        }
+
+        private Sort sort() {
+            Sort.SortColumn column;
+            switch (order) {
+                case SMALLEST:
+                    column = new Sort.SortColumn(new SortAttribute.Custom(IOUSchemaV1.PersistentIOU.class, "outstanding"), Sort.Direction.ASC);
+                    break;
+                case LARGEST:
+                    column = new Sort.SortColumn(new SortAttribute.Custom(IOUSchemaV1.PersistentIOU.class, "outstanding"), Sort.Direction.DESC);
+                    break;
+                default:
+                    column = new Sort.SortColumn(new SortAttribute.Standard(Sort.VaultStateAttribute.RECORDED_TIME), Sort.Direction.ASC);
+                    break;
+            }
+            // Break ties on the state reference so that the order is deterministic.
+            Sort.SortColumn tieBreak = new Sort.SortColumn(new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF_TXN_ID), Sort.Direction.ASC);
+            return new Sort(Arrays.asList(column, tieBreak));
+        }
+    }
+
+    /**
+     * This is the flows which signs pay-downs for the lender.
+     * The signing is handled by the [SignTransactionFlow].
+     */
+    @InitiatedBy(PayDownFlow.InitiatorFlow.class)
+    public static class Responder extends FlowLogic<SignedTransaction> {
+
+        private final FlowSession otherPartyFlow;
+        private SecureHash txWeJustSignedId;
+
+        public Responder(FlowSession otherPartyFlow) {
+            this.otherPartyFlow = otherPartyFlow;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            class SignTxFlow extends SignTransactionFlow {
+                private SignTxFlow(FlowSession otherPartyFlow) {
+                    super(otherPartyFlow);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                    requireThat(require -> {
+                        require.using("This must be a settle transaction",
+                                stx.getTx().getCommands().stream().allMatch(it -> it.getValue() instanceof IOUContract.Commands.Settle));
+                        for (ContractState output : stx.getTx().getOutputStates()) {
+                            require.using("This must be an IOU transaction", output instanceof IOUState);
+                        }
+                        return null;
+                    });
+                    // Once the transaction has verified, initialize txWeJustSignedID variable.
+                    txWeJustSignedId = stx.getId();
+                }
+            }
+
+            // Run the sign transaction flows to sign the transaction
+            subFlow(new SignTxFlow(otherPartyFlow));
+
+            // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault.
+            return subFlow(new ReceiveFinalityFlow(otherPartyFlow, txWeJustSignedId));
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package net.corda.samples.obligation.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.DigitalSignature;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.samples.obligation.contracts.IOUContract;
+import net.corda.samples.obligation.contracts.PaymentReceipt;
+import net.corda.samples.obligation.services.IOUIndexService;
+import net.corda.samples.obligation.services.PaymentChannelService;
+import net.corda.samples.obligation.states.IOUState;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * These are the flows of a payment channel, which lets a borrower make many small payments against an IOU without a
+ * ledger transaction for each of them.
+ *
+ * The borrower opens the channel with [Open], which keeps a session with the lender for as long as the channel is open.
+ * Payments are made with [Pay]. For each round of payments the borrower sends the new paid-to-date to the lender, who
+ * answers with a [PaymentReceipt] signed with the lender's key for the current version of the IOU. Receipts only ever
+ * grow, and only the latest receipt is committed to the ledger, in a SettleWithReceipt transaction, once it covers
+ * enough unsettled payments, once enough time has passed since the last commit, when the IOU is fully paid or when
+ * the channel is closed with [Close].
+ * The IOU stays soft locked by the channel until it closes, so no other flow on the borrower's node can spend it, and
+ * the borrower's responders refuse to sign the transfers, merges and nettings of a soft locked IOU proposed by others.
+ */
+public class PaymentChannelFlow {
+
+    /**
+     * A message sent by the borrower over the channel's session.
+     */
+    @CordaSerializable
+    public static class ChannelMessage {
+
+        @CordaSerializable
+        public enum Type {
+            OPEN, PAY, COMMIT, CLOSE
+        }
+
+        private final Type type;
+        private final UniqueIdentifier linearId;
+        private final int paidToDate;
+        private final SecureHash txId;
+
+        public ChannelMessage(Type type, UniqueIdentifier linearId, int paidToDate, SecureHash txId) {
+            this.type = type;
+            this.linearId = linearId;
+            this.paidToDate = paidToDate;
+            this.txId = txId;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public UniqueIdentifier getLinearId() {
+            return linearId;
+        }
+
+        public int getPaidToDate() {
+            return paidToDate;
+        }
+
+        public SecureHash getTxId() {
+            return txId;
+        }
+    }
+
+    /**
+     * Runs the borrower's side of the channel until it is closed or the IOU is fully paid, and returns the latest
+     * receipt, which has been committed to the ledger, or null if no payment was made.
+     */
+    @InitiatingFlow
+    @StartableByRPC
+    public static class Open extends FlowLogic<PaymentReceipt> {
+
+        private final UniqueIdentifier stateLinearId;
+
+        public Open(UniqueIdentifier stateLinearId) {
+            this.stateLinearId = stateLinearId;
+        }
+
+        @Suspendable
+        @Override
+        public PaymentReceipt call() throws FlowException {
+            IOUIndexService iouIndex = getServiceHub().cordaService(IOUIndexService.class);
+            PaymentChannelService channels = getServiceHub().cordaService(PaymentChannelService.class);
+
+            // Step 1. Retrieve the IOU, check we are its borrower and keep it reserved while the channel is open.
+            StateAndRef<IOUState> current = iouIndex.get(stateLinearId);
+            IOUState iou = current.getState().getData();
+            if (!iou.getBorrower().getOwningKey().equals(getOurIdentity().getOwningKey())) {
+                throw new IllegalArgumentException("The borrower must issue the flows");
+            }
+            iouIndex.reserve(getRunId().getUuid(), Collections.singletonList(current));
+            channels.open(stateLinearId);
+
+            PaymentReceipt latest = null;
+            try {
+                // Step 2. Open the session with the lender, which stays open for the life of the channel.
+                Party lender = iou.getLender();
+                FlowSession session = initiateFlow(lender);
+                session.send(new ChannelMessage(ChannelMessage.Type.OPEN, stateLinearId, iou.getPaid(), null));
+
+                int committedPaid = iou.getPaid();
+                long lastCommit = System.currentTimeMillis();
+                while (true) {
+                    // Step 3. Wait for the next payments, a close request or the commit timer.
+                    long maxWait = lastCommit + channels.getCommitIntervalMillis() - System.currentTimeMillis();
+                    PaymentChannelService.Round round = await(new NextRound(channels, stateLinearId, maxWait));
+
+                    // Step 4. Have the lender receipt the new paid-to-date.
+                    PaymentReceipt receipt = null;
+                    if (round.getAmount() > 0) {
+                        int paidToDate = (latest == null ? committedPaid : latest.getPaidToDate()) + round.getAmount();
+                        if (paidToDate > iou.getAmount()) {
+                            channels.reject(stateLinearId, new FlowException("The payments would pay " + paidToDate
+                                    + " against IOU " + stateLinearId + " of " + iou.getAmount()));
+                        } else {
+                            receipt = requestReceipt(session, lender, current.getRef(), paidToDate);
+                            latest = receipt;
+                        }
+                    }
+                    channels.acknowledge(stateLinearId, receipt);
+
+                    // Step 5. Commit the latest receipt when one of the triggers has fired.
+                    boolean fullyPaid = latest != null && latest.getPaidToDate() == iou.getAmount();
+                    boolean due = System.currentTimeMillis() - lastCommit >= channels.getCommitIntervalMillis();
+                    if (latest != null && latest.getPaidToDate() > committedPaid
+                            && (latest.getPaidToDate() - committedPaid >= channels.getCommitAmount() || due || fullyPaid || round.isCloseRequested())) {
+                        current = commit(session, current, latest);
+                        committedPaid = latest.getPaidToDate();
+                        lastCommit = System.currentTimeMillis();
+                    } else if (due) {
+                        lastCommit = System.currentTimeMillis();
+                    }
+
+                    if (fullyPaid || round.isCloseRequested()) {
+                        session.send(new ChannelMessage(ChannelMessage.Type.CLOSE, stateLinearId, committedPaid, null));
+                        break;
+                    }
+                }
+            } catch (FlowException | RuntimeException e) {
+                channels.closed(stateLinearId, latest, e);
+                throw e;
+            }
+            channels.closed(stateLinearId, latest, null);
+            return latest;
+        }
+
+        @Suspendable
+        private PaymentReceipt requestReceipt(FlowSession session, Party lender, StateRef stateRef, int paidToDate) throws FlowException {
+            session.send(new ChannelMessage(ChannelMessage.Type.PAY, stateLinearId, paidToDate, null));
+            return session.receive(PaymentReceipt.class).unwrap(receipt -> {
+                if (!receipt.getStateRef().equals(stateRef) || !receipt.getLinearId().equals(stateLinearId) || receipt.getPaidToDate() != paidToDate) {
+                    throw new FlowException("The lender receipted " + receipt + " instead of " + paidToDate + " paid against IOU "
+                            + stateLinearId + " at " + stateRef);
+                }
+                if (!receipt.isSignedBy(lender.getOwningKey())) {
+                    throw new FlowException("The receipt for IOU " + stateLinearId + " is not signed by the lender");
+                }
+                return receipt;
+            });
+        }
+
+        /**
+         * Settles the IOU up to the receipt in a transaction signed by us alone, as the receipt carries the lender's
+         * consent, and returns the settled IOU, reserved for the channel, or null if it was fully paid.
+         */
+        @Suspendable
+        private StateAndRef<IOUState> commit(FlowSession session, StateAndRef<IOUState> input, PaymentReceipt receipt) throws FlowException {
+            IOUState iou = input.getState().getData();
+            TransactionBuilder tb = new TransactionBuilder(input.getState().getNotary());
+            tb.addCommand(new Command<>(new IOUContract.Commands.SettleWithReceipt(receipt), getOurIdentity().getOwningKey()));
+            tb.addInputState(input);
+            boolean fullyPaid = receipt.getPaidToDate() == iou.getAmount();
+            if (!fullyPaid) {
+                IOUState opState = new IOUState(iou.getAmount(), iou.getLender(), iou.getBorrower(), receipt.getPaidToDate(), iou.getLinearId());
+                tb.addOutputState(opState, IOUContract.IOU_CONTRACT_ID);
+            }
+            tb.verify(getServiceHub());
+            SignedTransaction stx = getServiceHub().signInitialTransaction(tb);
+
+            // The lender records the commit from the same session.
+            session.send(new ChannelMessage(ChannelMessage.Type.COMMIT, stateLinearId, receipt.getPaidToDate(), stx.getId()));
+            stx = subFlow(new FinalityFlow(stx, Collections.singletonList(session)));
+            if (fullyPaid) {
+                return null;
+            }
+            StateAndRef<IOUState> settled = stx.getTx().outRef(0);
+            getServiceHub().cordaService(IOUIndexService.class).reserve(getRunId().getUuid(), Collections.singletonList(settled));
+            return settled;
+        }
+    }
+
+    /**
+     * Pays an amount into the open channel of an IOU and returns the receipt which covers it.
+     */
+    @StartableByRPC
+    public static class Pay extends FlowLogic<PaymentReceipt> {
+
+        private final UniqueIdentifier stateLinearId;
+        private final int payAmount;
+
+        public Pay(UniqueIdentifier stateLinearId, int payAmount) {
+            this.stateLinearId = stateLinearId;
+            this.payAmount = payAmount;
+        }
+
+        @Suspendable
+        @Override
+        public PaymentReceipt call() throws FlowException {
+            if (payAmount <= 0) {
+                throw new FlowException("The payment must be positive");
+            }
+            return await(new ChannelPayment(getServiceHub().cordaService(PaymentChannelService.class), stateLinearId, payAmount));
+        }
+    }
+
+    /**
+     * Closes the open channel of an IOU and returns the receipt it committed last.
+     */
+    @StartableByRPC
+    public static class Close extends FlowLogic<PaymentReceipt> {
+
+        private final UniqueIdentifier stateLinearId;
+
+        public Close(UniqueIdentifier stateLinearId) {
+            this.stateLinearId = stateLinearId;
+        }
+
+        @Suspendable
+        @Override
+        public PaymentReceipt call() throws FlowException {
+            return await(new ChannelClose(getServiceHub().cordaService(PaymentChannelService.class), stateLinearId));
+        }
+    }
+
+    /**
+     * Runs the lender's side of the channel: signs a receipt for every increase of the paid-to-date and records the
+     * commits of the borrower.
+     */
+    @InitiatedBy(PaymentChannelFlow.Open.class)
+    public static class Responder extends FlowLogic<PaymentReceipt> {
+
+        private final FlowSession otherPartyFlow;
+
+        public Responder(FlowSession otherPartyFlow) {
+            this.otherPartyFlow = otherPartyFlow;
+        }
+
+        @Suspendable
+        @Override
+        public PaymentReceipt call() throws FlowException {
+            ChannelMessage open = otherPartyFlow.receive(ChannelMessage.class).unwrap(message -> {
+                if (message.getType() != ChannelMessage.Type.OPEN) {
+                    throw new FlowException("Expected the channel to be opened, but received " + message.getType());
+                }
+                return message;
+            });
+
+            // Only the lender of the IOU receipts payments, and only from its borrower.
+            StateAndRef<IOUState> current = getServiceHub().cordaService(IOUIndexService.class).get(open.getLinearId());
+            IOUState iou = current.getState().getData();
+            if (!iou.getLender().getOwningKey().equals(getOurIdentity().getOwningKey())
+                    || !iou.getBorrower().getOwningKey().equals(otherPartyFlow.getCounterparty().getOwningKey())) {
+                throw new FlowException("A payment channel can only be opened by the borrower of an IOU with its lender");
+            }
+
+            PaymentReceipt latest = null;
+            int receipted = iou.getPaid();
+            while (true) {
+                ChannelMessage message = otherPartyFlow.receive(ChannelMessage.class).unwrap(it -> it);
+                switch (message.getType()) {
+                    case PAY:
+                        if (message.getPaidToDate() <= receipted || message.getPaidToDate() > iou.getAmount()) {
+                            throw new FlowException("Cannot receipt " + message.getPaidToDate() + " paid against IOU "
+                                    + open.getLinearId() + " after " + receipted);
+                        }
+                        latest = sign(current.getRef(), open.getLinearId(), message.getPaidToDate());
+                        receipted = message.getPaidToDate();
+                        otherPartyFlow.send(latest);
+                        break;
+                    case COMMIT:
+                        // The contract checks the transaction settles no more than our own receipt. Later receipts are
+                        // signed for the settled IOU it creates.
+                        SignedTransaction committed = subFlow(new ReceiveFinalityFlow(otherPartyFlow, message.getTxId()));
+                        if (!committed.getTx().getOutputs().isEmpty()) {
+                            current = committed.getTx().outRef(0);
+                        }
+                        break;
+                    case CLOSE:
+                        return latest;
+                    default:
+                        throw new FlowException("Unexpected channel message " + message.getType());
+                }
+            }
+        }
+
+        private PaymentReceipt sign(StateRef stateRef, UniqueIdentifier linearId, int paidToDate) {
+            DigitalSignature.WithKey signature = getServiceHub().getKeyManagementService()
+                    .sign(PaymentReceipt.signableBytes(stateRef, linearId, paidToDate), getOurIdentity().getOwningKey());
+            return new PaymentReceipt(stateRef, linearId, paidToDate, signature);
+        }
+    }
+
+    /**
+     * Waits for the next round of a channel without holding a flow worker thread.
+     */
+    private static class NextRound implements FlowExternalAsyncOperation<PaymentChannelService.Round> {
+
+        private final PaymentChannelService channels;
+        private final UniqueIdentifier stateLinearId;
+        private final long maxWaitMillis;
+
+        private NextRound(PaymentChannelService channels, UniqueIdentifier stateLinearId, long maxWaitMillis) {
+            this.channels = channels;
+            this.stateLinearId = stateLinearId;
+            this.maxWaitMillis = maxWaitMillis;
+        }
+
+        @NotNull
+        @Override
+        public CompletableFuture<PaymentChannelService.Round> execute(@NotNull String deduplicationId) {
+            return channels.next(stateLinearId, maxWaitMillis);
+        }
+    }
+
+    /**
+     * Waits for a payment to be receipted without holding a flow worker thread.
+     */
+    private static class ChannelPayment implements FlowExternalAsyncOperation<PaymentReceipt> {
+
+        private final PaymentChannelService channels;
+        private final UniqueIdentifier stateLinearId;
+        private final int payAmount;
+
+        private ChannelPayment(PaymentChannelService channels, UniqueIdentifier stateLinearId, int payAmount) {
+            this.channels = channels;
+            this.stateLinearId = stateLinearId;
+            this.payAmount = payAmount;
+        }
+
+        @NotNull
+        @Override
+        public CompletableFuture<PaymentReceipt> execute(@NotNull String deduplicationId) {
+            return channels.pay(deduplicationId, stateLinearId, payAmount);
+        }
+    }
+
+    /**
+     * Waits for a channel to commit and close without holding a flow worker thread.
+     */
+    private static class ChannelClose implements FlowExternalAsyncOperation<PaymentReceipt> {
+
+        private final PaymentChannelService channels;
+        private final UniqueIdentifier stateLinearId;
+
+        private ChannelClose(PaymentChannelService channels, UniqueIdentifier stateLinearId) {
+            this.channels = channels;
+            this.stateLinearId = stateLinearId;
+        }
+
+        @NotNull
+        @Override
+        public CompletableFuture<PaymentReceipt> execute(@NotNull String deduplicationId) {
+            return channels.close(stateLinearId);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package net.corda.samples.obligation.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.samples.obligation.contracts.IOUContract;
+import net.corda.samples.obligation.services.IOUIndexService;
+import net.corda.samples.obligation.states.IOUState;
+
+import java.security.PublicKey;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * This is the flows which transfers a portfolio of existing IOUs, possibly owed by several borrowers, to a new lender.
+ * The IOUs are moved in batches of at most [maxBatchSize] IOUs. The IOUs of a batch are split by the notary they live
+ * on, and each part is a single Transfer transaction which is signed once by every distinct participant and notarised
+ * once. The flows returns a [BatchReport] for each transaction with its id, size and throughput.
+ *
+ * The portfolio is not transferred atomically: each transaction is committed on its own. If one fails after earlier
+ * transactions have been committed, the flows fails with a [PartialTransferException] which carries the reports of the
+ * committed transactions, so that the remaining IOUs can be transferred again.
+ */
+public class PortfolioTransferFlow {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+
+    /**
+     * The outcome of transferring one batch of the portfolio.
+     */
+    @CordaSerializable
+    public static class BatchReport {
+
+        private final int batchNumber;
+        private final int size;
+        private final SecureHash txId;
+        private final long durationMillis;
+
+        public BatchReport(int batchNumber, int size, SecureHash txId, long durationMillis) {
+            this.batchNumber = batchNumber;
+            this.size = size;
+            this.txId = txId;
+            this.durationMillis = durationMillis;
+        }
+
+        public int getBatchNumber() {
+            return batchNumber;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public SecureHash getTxId() {
+            return txId;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public double getIousPerSecond() {
+            return durationMillis == 0 ? size * 1000.0 : size * 1000.0 / durationMillis;
+        }
+    }
+
+    /**
+     * Thrown when a transaction fails after earlier transactions of the portfolio were committed. The IOUs of the
+     * committed transactions stay with the new lender, and their reports are given by [getCompleted].
+     */
+    public static class PartialTransferException extends FlowException {
+
+        private final List<BatchReport> completed;
+
+        public PartialTransferException(String message, Throwable cause, List<BatchReport> completed) {
+            super(message, cause);
+            this.completed = completed;
+        }
+
+        public List<BatchReport> getCompleted() {
+            return completed;
+        }
+    }
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class InitiatorFlow extends FlowLogic<List<BatchReport>> {
+
+        private final List<UniqueIdentifier> stateLinearIds;
+        private final Party newLender;
+        private final int maxBatchSize;
+
+        public InitiatorFlow(List<UniqueIdentifier> stateLinearIds, Party newLender) {
+            this(stateLinearIds, newLender, DEFAULT_MAX_BATCH_SIZE);
+        }
+
+        public InitiatorFlow(List<UniqueIdentifier> stateLinearIds, Party newLender, int maxBatchSize) {
+            this.stateLinearIds = stateLinearIds;
+            this.newLender = newLender;
+            this.maxBatchSize = maxBatchSize;
+        }
+
+        @Suspendable
+        @Override
+        public List<BatchReport> call() throws FlowException {
+            if (stateLinearIds.isEmpty()) {
+                throw new FlowException("At least one IOU must be given to transfer");
+            }
+            if (maxBatchSize < 1) {
+                throw new FlowException("The maximum batch size must be positive");
+            }
+
+            List<BatchReport> reports = new ArrayList<>();
+            try {
+                transferInBatches(reports);
+            } catch (FlowException e) {
+                if (reports.isEmpty()) {
+                    throw e;
+                }
+                int transferred = reports.stream().mapToInt(BatchReport::getSize).sum();
+                throw new PartialTransferException("Transferred " + transferred + " of " + stateLinearIds.size()
+                        + " IOUs before a batch failed: " + e.getMessage(), e, reports);
+            }
+            return reports;
+        }
+
+        /**
+         * Transfers the portfolio batch by batch, adding the report of each committed transaction to [reports].
+         */
+        @Suspendable
+        private void transferInBatches(List<BatchReport> reports) throws FlowException {
+            for (int from = 0; from < stateLinearIds.size(); from += maxBatchSize) {
+                int to = Math.min(from + maxBatchSize, stateLinearIds.size());
+
+                // Retrieve the IOU states of the batch from the IOU index in a single lookup and split them by notary, as
+                // every IOU must stay on the notary it was issued on.
+                Map<Party, List<StateAndRef<IOUState>>> inputsByNotary = new LinkedHashMap<>();
+                for (StateAndRef<IOUState> input : findInputs(new ArrayList<>(stateLinearIds.subList(from, to)))) {
+                    inputsByNotary.computeIfAbsent(input.getState().getNotary(), notary -> new ArrayList<>()).add(input);
+                }
+
+                for (Map.Entry<Party, List<StateAndRef<IOUState>>> group : inputsByNotary.entrySet()) {
+                    long start = System.currentTimeMillis();
+                    SignedTransaction stx = transferBatch(group.getKey(), group.getValue());
+                    BatchReport report = new BatchReport(reports.size() + 1, group.getValue().size(), stx.getId(), System.currentTimeMillis() - start);
+                    reports.add(report);
+                    getLogger().info("Transferred batch {} of {} IOUs to {} in {} ms ({} IOUs/s), {} of {} IOUs done",
+                            report.getBatchNumber(), report.getSize(), newLender, report.getDurationMillis(),
+                            String.format("%.1f", report.getIousPerSecond()), to, stateLinearIds.size());
+                }
+            }
+        }
+
+        @Suspendable
+        private SignedTransaction transferBatch(Party notary, List<StateAndRef<IOUState>> inputs) throws FlowException {
+            TransactionBuilder tb = new TransactionBuilder(notary);
+
+            // 1. Add input and output states, collecting every participant which must sign.
+            Set<Party> participants = new LinkedHashSet<>();
+            participants.add(newLender);
+            for (StateAndRef<IOUState> input : inputs) {
+                IOUState iou = input.getState().getData();
+                // Ensure that this flows is being executed by the current lender.
+                if (!iou.getLender().getOwningKey().equals(getOurIdentity().getOwningKey())) {
+                    throw new IllegalArgumentException("This flows must be run by the current lender.");
+                }
+                participants.add(iou.getBorrower());
+                tb.addInputState(input);
+                tb.addOutputState(new IOUState(iou.getAmount(), newLender, iou.getBorrower(), iou.getPaid(), iou.getLinearId()), IOUContract.IOU_CONTRACT_ID);
+            }
+            participants.add(getOurIdentity());
+
+            // Reserve the IOUs so that a concurrent flow on any of them fails now rather than at the notary.
+            getServiceHub().cordaService(IOUIndexService.class).reserve(getRunId().getUuid(), inputs);
+
+            // 2. Construct a single transfer command signed by every participant.
+            List<PublicKey> listOfRequiredSigners = participants.stream().map(Party::getOwningKey).collect(Collectors.toList());
+            tb.addCommand(new Command<>(new IOUContract.Commands.Transfer(), listOfRequiredSigners));
+
+            // 3. Verify and sign the transaction
+            tb.verify(getServiceHub());
+            SignedTransaction partiallySignedTransaction = getServiceHub().signInitialTransaction(tb);
+
+            // 4. Collect the signatures with one session per distinct counterparty and finalise the transaction.
+            List<FlowSession> sessions = new ArrayList<>();
+            for (Party participant : participants) {
+                if (!participant.getOwningKey().equals(getOurIdentity().getOwningKey())) {
+                    sessions.add(initiateFlow(participant));
+                }
+            }
+            SignedTransaction fullySignedTransaction = subFlow(new CollectSignaturesFlow(partiallySignedTransaction, sessions));
+            return subFlow(new FinalityFlow(fullySignedTransaction, sessions));
+        }
+
+        private List<StateAndRef<IOUState>> findInputs(List<UniqueIdentifier> batch) throws FlowException {
+            return getServiceHub().cordaService(IOUIndexService.class).getAll(batch);
+        }
+    }
+
+    /**
+     * This is the flows which signs portfolio transfers, for both the borrowers and the new lender.
+     * The signing is handled by the [SignTransactionFlow].
+     */
+    @InitiatedBy(PortfolioTransferFlow.InitiatorFlow.class)
+    public static class Responder extends FlowLogic<SignedTransaction> {
+
+        private final FlowSession otherPartyFlow;
+        private SecureHash txWeJustSignedId;
+
+        public Responder(FlowSession otherPartyFlow) {
+            this.otherPartyFlow = otherPartyFlow;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            class SignTxFlow extends SignTransactionFlow {
+                private SignTxFlow(FlowSession otherPartyFlow) {
+                    super(otherPartyFlow);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) throws FlowException {
+                    requireThat(require -> {
+                        for (ContractState output : stx.getTx().getOutputStates()) {
+                            require.using("This must be an IOU transaction", output instanceof IOUState);
+                        }
+                        return null;
+                    });
+                    // Refuse to sign away an IOU we owe which is in use on our node, such as by an open payment channel.
+                    getServiceHub().cordaService(IOUIndexService.class)
+                            .reserveBorrowed(getRunId().getUuid(), stx.getTx().getInputs(), getOurIdentity().getOwningKey());
+                    // Once the transaction has verified, initialize txWeJustSignedID variable.
+                    txWeJustSignedId = stx.getId();
+                }
+            }
+
+            // Run the sign transaction flows to sign the transaction
+            subFlow(new SignTxFlow(otherPartyFlow));
+
+            // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault.
+            return subFlow(new ReceiveFinalityFlow(otherPartyFlow, txWeJustSignedId));
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package net.corda.samples.obligation.netting;
+
+import java.util.*;
+
+/**
+ * Finds the obligations which lie on cycles of an obligation graph and computes the residual obligations which can
+ * replace them.
+ *
+ * The graph has an edge from the debtor to the creditor of every obligation. An obligation lies on a cycle exactly
+ * when both of its parties are in the same strongly connected component, so the components are found with Tarjan's
+ * algorithm and each component with more than one party is netted on its own. The net position of every party of the
+ * component is computed, and the parties which owe the most are matched greedily with the parties which are owed the
+ * most. This leaves at most one residual obligation fewer than there are parties with a non-zero position, which is
+ * always fewer obligations than the cycles held.
+ *
+ * Obligations outside of any cycle are left untouched, so netting never adds an obligation between two parties which
+ * had none on a common cycle.
+ *
+ * @param <P> the type of the parties.
+ */
+public final class NettingEngine<P> {
+
+    /**
+     * An obligation of [debtor] to pay [amount] to [creditor].
+     */
+    public static final class Obligation<P> {
+
+        private final P debtor;
+        private final P creditor;
+        private final long amount;
+
+        public Obligation(P debtor, P creditor, long amount) {
+            this.debtor = debtor;
+            this.creditor = creditor;
+            this.amount = amount;
+        }
+
+        public P getDebtor() {
+            return debtor;
+        }
+
+        public P getCreditor() {
+            return creditor;
+        }
+
+        public long getAmount() {
+            return amount;
+        }
+
+        @Override
+        public String toString() {
+            return debtor + " owes " + creditor + " " + amount;
+        }
+    }
+
+    /**
+     * A set of obligations, given by their positions in the list passed to [plan], and the residual obligations which
+     * replace them.
+     */
+    public static final class NettingSet<P> {
+
+        private final List<Integer> netted;
+        private final List<Obligation<P>> residuals;
+
+        public NettingSet(List<Integer> netted, List<Obligation<P>> residuals) {
+            this.netted = Collections.unmodifiableList(netted);
+            this.residuals = Collections.unmodifiableList(residuals);
+        }
+
+        public List<Integer> getNetted() {
+            return netted;
+        }
+
+        public List<Obligation<P>> getResiduals() {
+            return residuals;
+        }
+    }
+
+    private final Comparator<P> partyOrder;
+
+    /**
+     * @param partyOrder a total order of the parties, which makes the residuals independent of the order in which the
+     *                   obligations are given.
+     */
+    public NettingEngine(Comparator<P> partyOrder) {
+        this.partyOrder = partyOrder;
+    }
+
+    /**
+     * Returns one [NettingSet] for every group of obligations lying on cycles between the same parties. Obligations of
+     * zero or negative amount are ignored.
+     */
+    public List<NettingSet<P>> plan(List<Obligation<P>> obligations) {
+        // Number the parties and build the adjacency lists of the graph.
+        Map<P, Integer> ids = new HashMap<>();
+        List<P> parties = new ArrayList<>();
+        List<List<Integer>> edges = new ArrayList<>();
+        for (Obligation<P> obligation : obligations) {
+            if (obligation.getAmount() > 0) {
+                int debtor = id(obligation.getDebtor(), ids, parties, edges);
+                int creditor = id(obligation.getCreditor(), ids, parties, edges);
+                edges.get(debtor).add(creditor);
+            }
+        }
+
+        int[] component = stronglyConnectedComponents(edges);
+
+        // Collect the obligations within each component.
+        Map<Integer, List<Integer>> obligationsByComponent = new TreeMap<>();
+        for (int i = 0; i < obligations.size(); i++) {
+            Obligation<P> obligation = obligations.get(i);
+            if (obligation.getAmount() > 0) {
+                int debtor = ids.get(obligation.getDebtor());
+                int creditor = ids.get(obligation.getCreditor());
+                if (debtor != creditor && component[debtor] == component[creditor]) {
+                    obligationsByComponent.computeIfAbsent(component[debtor], c -> new ArrayList<>()).add(i);
+                }
+            }
+        }
+
+        List<NettingSet<P>> sets = new ArrayList<>();
+        for (List<Integer> netted : obligationsByComponent.values()) {
+            sets.add(new NettingSet<>(netted, residuals(obligations, netted)));
+        }
+        return sets;
+    }
+
+    private List<Obligation<P>> residuals(List<Obligation<P>> obligations, List<Integer> netted) {
+        // The net position of a party is what it is owed minus what it owes.
+        Map<P, Long> positions = new TreeMap<>(partyOrder);
+        for (int i : netted) {
+            Obligation<P> obligation = obligations.get(i);
+            positions.merge(obligation.getCreditor(), obligation.getAmount(), Long::sum);
+            positions.merge(obligation.getDebtor(), -obligation.getAmount(), Long::sum);
+        }
+
+        // Match the largest debtors with the largest creditors until every position is zero.
+        Comparator<Map.Entry<P, Long>> bySize = Comparator.<Map.Entry<P, Long>>comparingLong(e -> Math.abs(e.getValue())).reversed()
+                .thenComparing(Map.Entry::getKey, partyOrder);
+        PriorityQueue<Map.Entry<P, Long>> debtors = new PriorityQueue<>(bySize);
+        PriorityQueue<Map.Entry<P, Long>> creditors = new PriorityQueue<>(bySize);
+        for (Map.Entry<P, Long> position : positions.entrySet()) {
+            if (position.getValue() < 0) {
+                debtors.add(new AbstractMap.SimpleEntry<>(position.getKey(), position.getValue()));
+            } else if (position.getValue() > 0) {
+                creditors.add(new AbstractMap.SimpleEntry<>(position.getKey(), position.getValue()));
+            }
+        }
+
+        List<Obligation<P>> residuals = new ArrayList<>();
+        while (!debtors.isEmpty() && !creditors.isEmpty()) {
+            Map.Entry<P, Long> debtor = debtors.poll();
+            Map.Entry<P, Long> creditor = creditors.poll();
+            long amount = Math.min(-debtor.getValue(), creditor.getValue());
+            residuals.add(new Obligation<>(debtor.getKey(), creditor.getKey(), amount));
+            if (-debtor.getValue() > amount) {
+                debtors.add(new AbstractMap.SimpleEntry<>(debtor.getKey(), debtor.getValue() + amount));
+            }
+            if (creditor.getValue() > amount) {
+                creditors.add(new AbstractMap.SimpleEntry<>(creditor.getKey(), creditor.getValue() - amount));
+            }
+        }
+        return residuals;
+    }
+
+    private static <P> int id(P party, Map<P, Integer> ids, List<P> parties, List<List<Integer>> edges) {
+        Integer id = ids.get(party);
+        if (id == null) {
+            id = parties.size();
+            ids.put(party, id);
+            parties.add(party);
+            edges.add(new ArrayList<>());
+        }
+        return id;
+    }
+
+    /**
+     * Tarjan's algorithm, written iteratively so that long chains of obligations cannot overflow the stack. Returns
+     * the component of every vertex.
+     */
+    private static int[] stronglyConnectedComponents(List<List<Integer>> edges) {
+        int size = edges.size();
+        int[] index = new int[size];
+        int[] lowLink = new int[size];
+        int[] component = new int[size];
+        int[] nextEdge = new int[size];
+        boolean[] onStack = new boolean[size];
+        Arrays.fill(index, -1);
+        Deque<Integer> stack = new ArrayDeque<>();
+        Deque<Integer> callStack = new ArrayDeque<>();
+        int counter = 0;
+        int components = 0;
+
+        for (int root = 0; root < size; root++) {
+            if (index[root] != -1) {
+                continue;
+            }
+            callStack.push(root);
+            while (!callStack.isEmpty()) {
+                int vertex = callStack.peek();
+                if (index[vertex] == -1) {
+                    index[vertex] = lowLink[vertex] = counter++;
+                    stack.push(vertex);
+                    onStack[vertex] = true;
+                }
+                if (nextEdge[vertex] < edges.get(vertex).size()) {
+                    int next = edges.get(vertex).get(nextEdge[vertex]++);
+                    if (index[next] == -1) {
+                        callStack.push(next);
+                    } else if (onStack[next]) {
+                        lowLink[vertex] = Math.min(lowLink[vertex], index[next]);
+                    }
+                    continue;
+                }
+                callStack.pop();
+                if (!callStack.isEmpty()) {
+                    int parent = callStack.peek();
+                    lowLink[parent] = Math.min(lowLink[parent], lowLink[vertex]);
+                }
+                if (lowLink[vertex] == index[vertex]) {
+                    int member;
+                    do {
+                        member = stack.pop();
+                        onStack[member] = false;
+                        component[member] = components;
+                    } while (member != vertex);
+                    components++;
+                }
+            }
+        }
+        return component;
+    }
+}
@@ -0,0 +1,136 @@
+package net.corda.samples.obligation.services;
+
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.flows.FlowException;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many IOU flows of each type may run against each counterparty, so that one client flooding a
+ * counterparty with flows cannot exhaust that counterparty's flows or this node. A flow asks to be [admit]ted before
+ * doing any work and is rejected straight away with a [FlowException] when either limit of its flow type and
+ * counterparty is reached:
+ *
+ * - a token bucket holding up to "admissionBurst" (default 200) flow starts, refilled at "admissionRatePerSecond"
+ *   (default 100) starts per second, and
+ * - at most "admissionMaxInFlight" (default 100) admitted flows which have not yet been [release]d.
+ *
+ * Setting a limit to 0 in the CorDapp config turns it off. Both initiators and responders are limited, the latter
+ * against the party which initiated them. Every rejection is counted by the `<flow>.throttled.rate` or
+ * `<flow>.throttled.inFlight` meter of the [FlowMetricsService].
+ */
+@CordaService
+public class AdmissionControlService extends SingletonSerializeAsToken {
+
+    public static final String RATE_CONFIG_KEY = "admissionRatePerSecond";
+    public static final String BURST_CONFIG_KEY = "admissionBurst";
+    public static final String MAX_IN_FLIGHT_CONFIG_KEY = "admissionMaxInFlight";
+    public static final int DEFAULT_RATE = 100;
+    public static final int DEFAULT_BURST = 200;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 100;
+
+    private final AppServiceHub serviceHub;
+    private final int ratePerSecond;
+    private final int burst;
+    private final int maxInFlight;
+
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final Map<String, Set<UUID>> inFlight = new ConcurrentHashMap<>();
+    private final Map<UUID, String> keysByRunId = new ConcurrentHashMap<>();
+
+    public AdmissionControlService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.ratePerSecond = ObligationConfig.getInt(config, RATE_CONFIG_KEY, DEFAULT_RATE);
+        this.burst = ObligationConfig.getInt(config, BURST_CONFIG_KEY, DEFAULT_BURST);
+        this.maxInFlight = ObligationConfig.getInt(config, MAX_IN_FLIGHT_CONFIG_KEY, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Admits the flow with the given run id against the counterparty, or rejects it. An admitted flow must be
+     * [release]d when it ends, however it ends. Admitting a flow which is already admitted does nothing.
+     *
+     * @throws FlowException if the flow type has started too many flows against the counterparty recently, or has too
+     * many of them running.
+     */
+    public void admit(Class<?> flow, Party counterparty, UUID runId) throws FlowException {
+        if (keysByRunId.containsKey(runId)) {
+            return;
+        }
+        String key = flow.getName() + "|" + counterparty.getName();
+        FlowMetricsService metrics = serviceHub.cordaService(FlowMetricsService.class);
+
+        Set<UUID> running = inFlight.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet());
+        synchronized (running) {
+            if (maxInFlight > 0 && running.size() >= maxInFlight) {
+                metrics.meter(flow, "throttled.inFlight").mark();
+                throw new FlowException("Too many " + flow.getSimpleName() + " flows are running with " + counterparty.getName()
+                        + " (limit " + maxInFlight + "), try again later");
+            }
+            if (ratePerSecond > 0 && burst > 0
+                    && !buckets.computeIfAbsent(key, k -> new TokenBucket(ratePerSecond, burst)).tryTake()) {
+                metrics.meter(flow, "throttled.rate").mark();
+                throw new FlowException("Too many " + flow.getSimpleName() + " flows were started with " + counterparty.getName()
+                        + " (limit " + ratePerSecond + " per second), try again later");
+            }
+            running.add(runId);
+        }
+        keysByRunId.put(runId, key);
+    }
+
+    /**
+     * Releases the in-flight slot of the flow with the given run id, if it was admitted.
+     */
+    public void release(UUID runId) {
+        String key = keysByRunId.remove(runId);
+        if (key != null) {
+            Set<UUID> running = inFlight.get(key);
+            synchronized (running) {
+                running.remove(runId);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of admitted flows of the given type running against the counterparty.
+     */
+    public int inFlight(Class<?> flow, Party counterparty) {
+        Set<UUID> running = inFlight.get(flow.getName() + "|" + counterparty.getName());
+        return running == null ? 0 : running.size();
+    }
+
+    /**
+     * A bucket of up to [capacity] tokens, refilled at [ratePerSecond] tokens per second.
+     */
+    private static final class TokenBucket {
+        private final double ratePerNano;
+        private final int capacity;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        private TokenBucket(int ratePerSecond, int capacity) {
+            this.ratePerNano = ratePerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        private synchronized boolean tryTake() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * ratePerNano);
+            refilledAt = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+}
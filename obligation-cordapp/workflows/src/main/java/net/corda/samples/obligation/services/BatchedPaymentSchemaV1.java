@@ -0,0 +1,90 @@
+package net.corda.samples.obligation.services;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+
+import javax.persistence.*;
+import java.time.Instant;
+
+/**
+ * The table of payments batched by the [SettlementCoalescer]. Each row maps the deduplication id of a payment to the
+ * request id of the settlement which pays its batch, along with the IOU and the amount of that settlement, so that a
+ * payment replayed after a restart of the node rejoins the settlement of its batch instead of paying again.
+ */
+public class BatchedPaymentSchemaV1 extends MappedSchema {
+
+    /**
+     * The family of schemas for batched payments.
+     */
+    public static class BatchedPaymentSchema {
+    }
+
+    public BatchedPaymentSchemaV1() {
+        super(BatchedPaymentSchema.class, 1, ImmutableList.of(BatchedPayment.class));
+    }
+
+    @Override
+    public String getMigrationResource() {
+        return "batched-payments.changelog-master";
+    }
+
+    @Entity
+    @Table(name = "iou_batched_payments", indexes = {
+            @Index(name = "iou_batched_payments_time_idx", columnList = "recorded_at")
+    })
+    public static class BatchedPayment {
+
+        @Id
+        @Column(name = "deduplication_id", nullable = false)
+        private final String deduplicationId;
+
+        @Column(name = "request_id")
+        private final String requestId;
+
+        @Column(name = "linear_id")
+        private final String linearId;
+
+        @Column(name = "batch_amount")
+        private final int batchAmount;
+
+        @Column(name = "recorded_at")
+        private final Instant recordedAt;
+
+        public BatchedPayment(String deduplicationId, String requestId, String linearId, int batchAmount, Instant recordedAt) {
+            this.deduplicationId = deduplicationId;
+            this.requestId = requestId;
+            this.linearId = linearId;
+            this.batchAmount = batchAmount;
+            this.recordedAt = recordedAt;
+        }
+
+        // Default constructor required by hibernate.
+        public BatchedPayment() {
+            this.deduplicationId = null;
+            this.requestId = null;
+            this.linearId = null;
+            this.batchAmount = 0;
+            this.recordedAt = null;
+        }
+
+        public String getDeduplicationId() {
+            return deduplicationId;
+        }
+
+        public String getRequestId() {
+            return requestId;
+        }
+
+        public String getLinearId() {
+            return linearId;
+        }
+
+        public int getBatchAmount() {
+            return batchAmount;
+        }
+
+        public Instant getRecordedAt() {
+            return recordedAt;
+        }
+    }
+}
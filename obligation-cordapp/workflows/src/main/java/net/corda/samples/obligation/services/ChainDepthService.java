@@ -0,0 +1,128 @@
+package net.corda.samples.obligation.services;
+
+import com.codahale.metrics.Gauge;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowException;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.ServiceLifecycleEvent;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.states.IOUState;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Measures the chain depth of IOUs, which is the length of the longest path of transactions from the IOU back to a
+ * transaction without inputs. A freshly issued or reissued IOU has depth 1 and every transfer or partial settlement
+ * adds one, so the depth bounds the number of transactions a new lender has to resolve and verify.
+ *
+ * The depths of the last [RETAINED_TRANSACTIONS] transactions used are remembered, so measuring an IOU usually walks
+ * back only to the first transaction already measured; a transaction whose depth was forgotten is measured again. The
+ * depth of every unconsumed IOU measured is published through the [FlowMetricsService] as the
+ * `IOU.chainDepth` histogram and the `IOU.maxChainDepth` gauge.
+ *
+ * Depths are measured on demand, from flows, as reading the transaction storage needs the flow's database transaction.
+ */
+@CordaService
+public class ChainDepthService extends SingletonSerializeAsToken implements IOUIndexService.Listener {
+
+    public static final int RETAINED_TRANSACTIONS = 100_000;
+
+    private final AppServiceHub serviceHub;
+    private final Map<SecureHash, Integer> transactionDepths = Collections.synchronizedMap(new LinkedHashMap<SecureHash, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SecureHash, Integer> eldest) {
+            return size() > RETAINED_TRANSACTIONS;
+        }
+    });
+    private final Map<StateRef, Integer> stateDepths = new ConcurrentHashMap<>();
+
+    public ChainDepthService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        serviceHub.register(AppServiceHub.SERVICE_PRIORITY_HIGH, event -> {
+            if (event == ServiceLifecycleEvent.STATE_MACHINE_STARTED) {
+                serviceHub.cordaService(IOUIndexService.class).addListener(this);
+                serviceHub.cordaService(FlowMetricsService.class).getRegistry().register("IOU.maxChainDepth",
+                        (Gauge<Integer>) () -> stateDepths.values().stream().mapToInt(Integer::intValue).max().orElse(0));
+            }
+        });
+    }
+
+    /**
+     * Returns the chain depth of the given IOU.
+     *
+     * @throws FlowException if a transaction of its history is missing from the transaction storage.
+     */
+    public int depth(StateAndRef<IOUState> state) throws FlowException {
+        Integer known = stateDepths.get(state.getRef());
+        if (known != null) {
+            return known;
+        }
+        int depth = transactionDepth(state.getRef().getTxhash());
+        if (stateDepths.putIfAbsent(state.getRef(), depth) == null) {
+            serviceHub.cordaService(FlowMetricsService.class).getRegistry().histogram("IOU.chainDepth").update(depth);
+        }
+        return depth;
+    }
+
+    @Override
+    public void onAdded(StateAndRef<IOUState> state) {
+        // Measured on demand, see [depth].
+    }
+
+    @Override
+    public void onRemoved(StateAndRef<IOUState> state) {
+        stateDepths.remove(state.getRef());
+    }
+
+    private int transactionDepth(SecureHash txId) throws FlowException {
+        // Walk the history iteratively, as a deep chain would overflow the stack of a recursive walk. The depths measured
+        // by this walk are also kept in [measured], as the shared map may forget them before the walk is over.
+        Map<SecureHash, Integer> measured = new HashMap<>();
+        Deque<SecureHash> pending = new ArrayDeque<>();
+        pending.push(txId);
+        while (!pending.isEmpty()) {
+            SecureHash id = pending.peek();
+            if (knownDepth(measured, id) != null) {
+                pending.pop();
+                continue;
+            }
+            SignedTransaction stx = serviceHub.getValidatedTransactions().getTransaction(id);
+            if (stx == null) {
+                throw new FlowException("Transaction " + id + " of the IOU's history is not in the transaction storage");
+            }
+            int deepestInput = 0;
+            boolean inputsMeasured = true;
+            for (StateRef input : stx.getInputs()) {
+                Integer inputDepth = knownDepth(measured, input.getTxhash());
+                if (inputDepth == null) {
+                    pending.push(input.getTxhash());
+                    inputsMeasured = false;
+                } else {
+                    deepestInput = Math.max(deepestInput, inputDepth);
+                }
+            }
+            if (inputsMeasured) {
+                measured.put(id, deepestInput + 1);
+                transactionDepths.put(id, deepestInput + 1);
+                pending.pop();
+            }
+        }
+        return measured.get(txId);
+    }
+
+    private Integer knownDepth(Map<SecureHash, Integer> measured, SecureHash txId) {
+        Integer depth = measured.get(txId);
+        if (depth == null) {
+            depth = transactionDepths.get(txId);
+            if (depth != null) {
+                measured.put(txId, depth);
+            }
+        }
+        return depth;
+    }
+}
@@ -0,0 +1,59 @@
+package net.corda.samples.obligation.services;
+
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.ServiceLifecycleEvent;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.samples.obligation.flows.ConsolidateFlow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs [ConsolidateFlow.All] on a schedule, so that the IOUs this node has lent to each borrower are merged once there
+ * are "consolidateMinCount" (default 10) of them.
+ *
+ * The schedule is off unless "consolidateIntervalMillis" is set in the CorDapp config. A run starts that long after
+ * the previous one finished, so runs never overlap.
+ */
+@CordaService
+public class ConsolidationScheduler extends SingletonSerializeAsToken {
+
+    public static final String INTERVAL_CONFIG_KEY = "consolidateIntervalMillis";
+    public static final String MIN_COUNT_CONFIG_KEY = "consolidateMinCount";
+    public static final long DEFAULT_INTERVAL_MILLIS = 0;
+    public static final int DEFAULT_MIN_COUNT = 10;
+
+    private static final Logger logger = LoggerFactory.getLogger(ConsolidationScheduler.class);
+
+    public ConsolidationScheduler(AppServiceHub serviceHub) {
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        long intervalMillis = ObligationConfig.getLong(config, INTERVAL_CONFIG_KEY, DEFAULT_INTERVAL_MILLIS);
+        if (intervalMillis <= 0) {
+            return;
+        }
+
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "iou-consolidation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Flows can only be started once the state machine is running.
+        serviceHub.register(AppServiceHub.SERVICE_PRIORITY_NORMAL, event -> {
+            if (event == ServiceLifecycleEvent.STATE_MACHINE_STARTED) {
+                timer.scheduleWithFixedDelay(() -> {
+                    try {
+                        int merged = serviceHub.startFlow(new ConsolidateFlow.All()).getReturnValue().get().size();
+                        logger.info("Scheduled consolidation merged {} IOUs", merged);
+                    } catch (Exception e) {
+                        logger.warn("Scheduled consolidation failed", e);
+                    }
+                }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+}
@@ -0,0 +1,151 @@
+package net.corda.samples.obligation.services;
+
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.ServiceLifecycleEvent;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.samples.obligation.states.IOUState;
+
+import java.util.*;
+
+/**
+ * Keeps running totals of what every counterparty owes us and what we owe it, over the outstanding amounts of the
+ * unconsumed IOUs, together with the number of IOUs each way.
+ *
+ * The totals follow the [IOUIndexService], so they are rebuilt while the index warms up at startup and then updated
+ * by one addition or subtraction per IOU created or consumed. Each counterparty is given a slot in arrays of
+ * primitives the first time it is seen, which makes reading a counterparty's exposure a single lookup.
+ */
+@CordaService
+public class ExposureService extends SingletonSerializeAsToken implements IOUIndexService.Listener {
+
+    /**
+     * Our exposure to one counterparty.
+     */
+    @CordaSerializable
+    public static class Exposure {
+
+        private final Party counterparty;
+        private final long owedToUs;
+        private final long owedByUs;
+        private final int iousLent;
+        private final int iousBorrowed;
+
+        public Exposure(Party counterparty, long owedToUs, long owedByUs, int iousLent, int iousBorrowed) {
+            this.counterparty = counterparty;
+            this.owedToUs = owedToUs;
+            this.owedByUs = owedByUs;
+            this.iousLent = iousLent;
+            this.iousBorrowed = iousBorrowed;
+        }
+
+        public Party getCounterparty() {
+            return counterparty;
+        }
+
+        public long getOwedToUs() {
+            return owedToUs;
+        }
+
+        public long getOwedByUs() {
+            return owedByUs;
+        }
+
+        public int getIousLent() {
+            return iousLent;
+        }
+
+        public int getIousBorrowed() {
+            return iousBorrowed;
+        }
+
+        public long getNet() {
+            return owedToUs - owedByUs;
+        }
+    }
+
+    private final AppServiceHub serviceHub;
+    private final Map<Party, Integer> slots = new HashMap<>();
+    private final List<Party> counterparties = new ArrayList<>();
+    private long[] owedToUs = new long[16];
+    private long[] owedByUs = new long[16];
+    private int[] iousLent = new int[16];
+    private int[] iousBorrowed = new int[16];
+
+    public ExposureService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        // Listen before the IOU index warms up, so that the totals include every IOU already in the vault.
+        serviceHub.register(AppServiceHub.SERVICE_PRIORITY_HIGH, event -> {
+            if (event == ServiceLifecycleEvent.STATE_MACHINE_STARTED) {
+                serviceHub.cordaService(IOUIndexService.class).addListener(this);
+            }
+        });
+    }
+
+    /**
+     * Returns our exposure to the given counterparty, which is all zeros if we have no IOUs with it.
+     */
+    public synchronized Exposure getExposure(Party counterparty) {
+        Integer slot = slots.get(counterparty);
+        return slot == null ? new Exposure(counterparty, 0, 0, 0, 0) : exposure(slot);
+    }
+
+    /**
+     * Returns our exposure to every counterparty we have had IOUs with.
+     */
+    public synchronized List<Exposure> getExposures() {
+        List<Exposure> exposures = new ArrayList<>(counterparties.size());
+        for (int slot = 0; slot < counterparties.size(); slot++) {
+            exposures.add(exposure(slot));
+        }
+        return exposures;
+    }
+
+    @Override
+    public void onAdded(StateAndRef<IOUState> state) {
+        apply(state.getState().getData(), 1);
+    }
+
+    @Override
+    public void onRemoved(StateAndRef<IOUState> state) {
+        apply(state.getState().getData(), -1);
+    }
+
+    private synchronized void apply(IOUState iou, int sign) {
+        Party me = serviceHub.getMyInfo().getLegalIdentities().get(0);
+        long outstanding = sign * (long) (iou.getAmount() - iou.getPaid());
+        if (iou.getLender().equals(me)) {
+            int slot = slot(iou.getBorrower());
+            owedToUs[slot] += outstanding;
+            iousLent[slot] += sign;
+        } else if (iou.getBorrower().equals(me)) {
+            int slot = slot(iou.getLender());
+            owedByUs[slot] += outstanding;
+            iousBorrowed[slot] += sign;
+        }
+    }
+
+    private int slot(Party counterparty) {
+        Integer slot = slots.get(counterparty);
+        if (slot == null) {
+            slot = counterparties.size();
+            slots.put(counterparty, slot);
+            counterparties.add(counterparty);
+            if (slot == owedToUs.length) {
+                int capacity = slot * 2;
+                owedToUs = Arrays.copyOf(owedToUs, capacity);
+                owedByUs = Arrays.copyOf(owedByUs, capacity);
+                iousLent = Arrays.copyOf(iousLent, capacity);
+                iousBorrowed = Arrays.copyOf(iousBorrowed, capacity);
+            }
+        }
+        return slot;
+    }
+
+    private Exposure exposure(int slot) {
+        return new Exposure(counterparties.get(slot), owedToUs[slot], owedByUs[slot], iousLent[slot], iousBorrowed[slot]);
+    }
+}
@@ -0,0 +1,209 @@
+package net.corda.samples.obligation.services;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.ServiceLifecycleEvent;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.samples.obligation.flows.CounterpartyProbeFlow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the IOU flows from piling up behind counterparties which have stopped responding.
+ *
+ * A Corda 4 flow waiting for a counterparty cannot be timed out, so each initiator instead tells this service when it
+ * starts collecting signatures and when it starts finality, and the phase is given a deadline of
+ * "signatureDeadlineMillis" (default 30000) or "finalityDeadlineMillis" (default 120000) from the CorDapp config. A
+ * flow still in its phase after the deadline counts as parked. It is logged once with its run id, so that it can be
+ * killed, and published in the `IOU.parkedFlows.collectSignatures` and `IOU.parkedFlows.finality` gauges.
+ *
+ * The counterparties of a parked flow become suspect. Before a flow asks a suspect counterparty for anything, it
+ * [probe]s it with the [CounterpartyProbeFlow], and fails fast if the counterparty does not answer within the signature
+ * deadline. Only one probe per counterparty is outstanding at a time, however many flows want it. The counterparties
+ * whose probe went unanswered are counted by the `IOU.unresponsiveCounterparties` gauge.
+ */
+@CordaService
+public class FlowDeadlineService extends SingletonSerializeAsToken {
+
+    public static final String SIGNATURES_CONFIG_KEY = "signatureDeadlineMillis";
+    public static final String FINALITY_CONFIG_KEY = "finalityDeadlineMillis";
+    public static final long DEFAULT_SIGNATURES_MILLIS = 30_000;
+    public static final long DEFAULT_FINALITY_MILLIS = 120_000;
+
+    private static final Logger logger = LoggerFactory.getLogger(FlowDeadlineService.class);
+
+    /**
+     * The phases of a flow which wait for counterparties.
+     */
+    public enum Phase {
+        COLLECT_SIGNATURES("collectSignatures"),
+        FINALITY("finality");
+
+        private final String metricName;
+
+        Phase(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    private static class Tracked {
+        private final Class<?> flow;
+        private final Phase phase;
+        private final List<Party> counterparties;
+        private final long deadline;
+        private boolean reported;
+
+        private Tracked(Class<?> flow, Phase phase, List<Party> counterparties, long deadline) {
+            this.flow = flow;
+            this.phase = phase;
+            this.counterparties = counterparties;
+            this.deadline = deadline;
+        }
+    }
+
+    private final AppServiceHub serviceHub;
+    private final Map<Phase, Long> deadlineMillis = new EnumMap<>(Phase.class);
+    private final ScheduledExecutorService timer;
+    private final Map<UUID, Tracked> tracked = new ConcurrentHashMap<>();
+    private final Map<Party, Long> respondedAt = new ConcurrentHashMap<>();
+    private final Map<Party, CompletableFuture<Boolean>> probes = new ConcurrentHashMap<>();
+
+    public FlowDeadlineService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        deadlineMillis.put(Phase.COLLECT_SIGNATURES, ObligationConfig.getLong(config, SIGNATURES_CONFIG_KEY, DEFAULT_SIGNATURES_MILLIS));
+        deadlineMillis.put(Phase.FINALITY, ObligationConfig.getLong(config, FINALITY_CONFIG_KEY, DEFAULT_FINALITY_MILLIS));
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "iou-flow-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        serviceHub.register(AppServiceHub.SERVICE_PRIORITY_NORMAL, event -> {
+            if (event == ServiceLifecycleEvent.STATE_MACHINE_STARTED) {
+                MetricRegistry registry = serviceHub.cordaService(FlowMetricsService.class).getRegistry();
+                for (Phase phase : Phase.values()) {
+                    registry.register("IOU.parkedFlows." + phase.metricName, (Gauge<Integer>) () -> parked(phase));
+                }
+                registry.register("IOU.unresponsiveCounterparties", (Gauge<Integer>) () -> unresponsive().size());
+                timer.scheduleWithFixedDelay(this::reportParked, 1, 1, TimeUnit.SECONDS);
+            }
+        });
+    }
+
+    /**
+     * Records that the flow with the given run id has entered the given phase, waiting for the given counterparties.
+     * Entering finality from signature collection records that the counterparties answered.
+     */
+    public void enter(UUID runId, Class<?> flow, Phase phase, List<Party> counterparties) {
+        long now = System.currentTimeMillis();
+        Tracked previous = tracked.put(runId, new Tracked(flow, phase, new ArrayList<>(counterparties), now + deadlineMillis.get(phase)));
+        if (previous != null && previous.phase == Phase.COLLECT_SIGNATURES && phase == Phase.FINALITY) {
+            previous.counterparties.forEach(party -> respondedAt.put(party, now));
+        }
+    }
+
+    /**
+     * Records that the flow with the given run id is no longer waiting for counterparties, however it ended.
+     */
+    public void exit(UUID runId) {
+        tracked.remove(runId);
+    }
+
+    /**
+     * Returns those of the given counterparties which must be probed before a flow relies on them: the ones a flow has
+     * been parked on since they last answered, and the ones with an unanswered probe.
+     */
+    public List<Party> suspects(List<Party> counterparties) {
+        long now = System.currentTimeMillis();
+        Set<Party> suspects = new LinkedHashSet<>();
+        for (Tracked flow : tracked.values()) {
+            if (flow.deadline < now) {
+                for (Party party : flow.counterparties) {
+                    if (counterparties.contains(party) && flow.deadline > respondedAt.getOrDefault(party, 0L)) {
+                        suspects.add(party);
+                    }
+                }
+            }
+        }
+        counterparties.stream().filter(probes::containsKey).forEach(suspects::add);
+        return new ArrayList<>(suspects);
+    }
+
+    /**
+     * Probes the given counterparties.
+     *
+     * @return a future which completes, within the signature deadline, with those of the counterparties which did not
+     * answer in time.
+     */
+    public CompletableFuture<List<Party>> probe(List<Party> counterparties) {
+        Map<Party, CompletableFuture<Boolean>> answers = new LinkedHashMap<>();
+        for (Party party : counterparties) {
+            answers.put(party, probes.computeIfAbsent(party, this::startProbe));
+        }
+        return CompletableFuture.allOf(answers.values().toArray(new CompletableFuture[0])).thenApply(done ->
+                answers.entrySet().stream()
+                        .filter(answer -> !answer.getValue().join())
+                        .map(Map.Entry::getKey)
+                        .collect(Collectors.toList()));
+    }
+
+    private CompletableFuture<Boolean> startProbe(Party party) {
+        CompletableFuture<Boolean> answered = new CompletableFuture<>();
+        timer.schedule(() -> answered.complete(false), deadlineMillis.get(Phase.COLLECT_SIGNATURES), TimeUnit.MILLISECONDS);
+        // Starting a flow blocks until the node has accepted it, so it is done on the service's own thread. The probe
+        // stays outstanding after its deadline, so that a dead counterparty is never probed by more than one flow.
+        timer.execute(() -> {
+            try {
+                serviceHub.startFlow(new CounterpartyProbeFlow.Ping(party)).getReturnValue().then(result -> {
+                    respondedAt.put(party, System.currentTimeMillis());
+                    probes.remove(party, answered);
+                    answered.complete(true);
+                    return null;
+                });
+            } catch (RuntimeException e) {
+                logger.warn("Could not probe {}", party, e);
+                probes.remove(party, answered);
+                answered.complete(false);
+            }
+        });
+        return answered;
+    }
+
+    /**
+     * Returns the number of flows which have been in the given phase for longer than its deadline.
+     */
+    public int parked(Phase phase) {
+        long now = System.currentTimeMillis();
+        return (int) tracked.values().stream().filter(flow -> flow.phase == phase && flow.deadline < now).count();
+    }
+
+    /**
+     * Returns the counterparties which have not answered their probe within the deadline.
+     */
+    public List<Party> unresponsive() {
+        return probes.entrySet().stream()
+                .filter(probe -> !probe.getValue().getNow(true))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    private void reportParked() {
+        long now = System.currentTimeMillis();
+        tracked.forEach((runId, flow) -> {
+            if (flow.deadline < now && !flow.reported) {
+                flow.reported = true;
+                logger.warn("Flow {} ({}) has been waiting for {} in {} for longer than {} ms; kill it with `flow kill {}` if they will not come back",
+                        runId, flow.flow.getSimpleName(), flow.counterparties, flow.phase.metricName, deadlineMillis.get(flow.phase), runId);
+            }
+        });
+    }
+}
@@ -0,0 +1,74 @@
+package net.corda.samples.obligation.services;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.jmx.JmxReporter;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.ServiceLifecycleEvent;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each phase of the IOU flows takes, as one [Timer] per flow and phase named
+ * `<flow>.<phase>`, e.g. `IOUSettleFlow.InitiatorFlow.collectSignatures`. A timer keeps a histogram of the durations
+ * together with the rate at which the phase runs.
+ *
+ * The timers are published over JMX in the domain `net.corda.samples.obligation.<node organisation>`, so that they
+ * can be read with any JMX console or agent next to the node's own metrics.
+ */
+@CordaService
+public class FlowMetricsService extends SingletonSerializeAsToken {
+
+    public static final String JMX_DOMAIN = "net.corda.samples.obligation";
+
+    private final MetricRegistry registry = new MetricRegistry();
+    private JmxReporter reporter;
+
+    public FlowMetricsService(AppServiceHub serviceHub) {
+        serviceHub.register(AppServiceHub.SERVICE_PRIORITY_NORMAL, event -> {
+            if (event == ServiceLifecycleEvent.STATE_MACHINE_STARTED) {
+                String organisation = serviceHub.getMyInfo().getLegalIdentities().get(0).getName().getOrganisation();
+                reporter = JmxReporter.forRegistry(registry)
+                        .inDomain(JMX_DOMAIN + "." + organisation.replaceAll("[^A-Za-z0-9]", ""))
+                        .convertDurationsTo(TimeUnit.MILLISECONDS)
+                        .build();
+                reporter.start();
+            }
+        });
+    }
+
+    /**
+     * Records that the given phase of the given flow started at [startNanos], as returned by [System.nanoTime], and
+     * has just finished. Returns the current time so that consecutive phases can be chained.
+     */
+    public long record(Class<?> flow, String phase, long startNanos) {
+        long now = System.nanoTime();
+        timer(flow, phase).update(now - startNanos, TimeUnit.NANOSECONDS);
+        return now;
+    }
+
+    /**
+     * Returns the timer of the given phase of the given flow.
+     */
+    public Timer timer(Class<?> flow, String phase) {
+        return registry.timer(metricName(flow, phase));
+    }
+
+    /**
+     * Returns the meter of the given event of the given flow, named like the timers.
+     */
+    public Meter meter(Class<?> flow, String event) {
+        return registry.meter(metricName(flow, event));
+    }
+
+    private static String metricName(Class<?> flow, String name) {
+        return MetricRegistry.name(flow.getName().substring(flow.getName().lastIndexOf('.') + 1).replace('$', '.'), name);
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+}
@@ -0,0 +1,289 @@
+package net.corda.samples.obligation.services;
+
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.FlowException;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.ServiceLifecycleEvent;
+import net.corda.core.node.services.StatesNotAvailableException;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.*;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.utilities.NonEmptySet;
+import net.corda.samples.obligation.states.IOUState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.PublicKey;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Keeps an in-memory index from linearId to the unconsumed [StateAndRef] of every IOU in the vault, so that flows can
+ * resolve their inputs without a vault query.
+ *
+ * The index subscribes to vault updates first and is then warmed by paging through the vault once the node has
+ * started. The pages are taken from a snapshot which concurrent flows cannot change: every IOU, consumed or not,
+ * recorded before the warm-up began, sorted by StateRef. Only the IOUs the page reports as unconsumed are added, and
+ * IOUs recorded later arrive as vault updates. States consumed while the vault is being paged are remembered, under
+ * the same lock as the warm-up adds states, so that the warm-up never re-adds them.
+ * A linearId which is not in the index is looked up in the vault before it is reported as missing, so a lookup is
+ * never wrong just because the index is still warming up. Those vault results are not added to the index, which is
+ * only ever changed by the warm-up and by vault updates.
+ *
+ * Flows which consume IOUs [reserve] them before doing any signing work. Two flows on this node racing for the same
+ * IOU then fail fast on the reservation instead of one of them failing late at the notary, while flows on different
+ * IOUs are not held up at all.
+ */
+@CordaService
+public class IOUIndexService extends SingletonSerializeAsToken {
+
+    private static final Logger logger = LoggerFactory.getLogger(IOUIndexService.class);
+    private static final int PAGE_SIZE = 1000;
+
+    /**
+     * Is told about every IOU added to or removed from the index, exactly once per change. Calls may come from
+     * several threads and in any order between different IOUs.
+     */
+    public interface Listener {
+        void onAdded(StateAndRef<IOUState> state);
+
+        void onRemoved(StateAndRef<IOUState> state);
+    }
+
+    private final AppServiceHub serviceHub;
+    private final ConcurrentHashMap<UniqueIdentifier, StateAndRef<IOUState>> index = new ConcurrentHashMap<>();
+    private final Set<StateRef> consumedWhileWarming = new HashSet<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean warm;
+
+    public IOUIndexService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        serviceHub.register(AppServiceHub.SERVICE_PRIORITY_NORMAL, event -> {
+            if (event == ServiceLifecycleEvent.STATE_MACHINE_STARTED) {
+                warmUp();
+            }
+        });
+    }
+
+    /**
+     * Returns the unconsumed IOU with the given linearId.
+     *
+     * @throws FlowException if there is no such IOU in the vault.
+     */
+    public StateAndRef<IOUState> get(UniqueIdentifier linearId) throws FlowException {
+        return getAll(Collections.singletonList(linearId)).get(0);
+    }
+
+    /**
+     * Returns the unconsumed IOUs with the given linearIds, in the same order.
+     *
+     * @throws FlowException listing every linearId which has no unconsumed IOU in the vault.
+     */
+    public List<StateAndRef<IOUState>> getAll(List<UniqueIdentifier> linearIds) throws FlowException {
+        Map<UniqueIdentifier, StateAndRef<IOUState>> found = new HashMap<>();
+        List<UniqueIdentifier> notIndexed = new ArrayList<>();
+        for (UniqueIdentifier linearId : linearIds) {
+            StateAndRef<IOUState> state = index.get(linearId);
+            if (state != null) {
+                found.put(linearId, state);
+            } else {
+                notIndexed.add(linearId);
+            }
+        }
+        if (!notIndexed.isEmpty()) {
+            queryVault(notIndexed).forEach(state -> found.put(state.getState().getData().getLinearId(), state));
+        }
+
+        List<StateAndRef<IOUState>> states = new ArrayList<>(linearIds.size());
+        List<UniqueIdentifier> missing = new ArrayList<>();
+        for (UniqueIdentifier linearId : linearIds) {
+            StateAndRef<IOUState> state = found.get(linearId);
+            if (state == null) {
+                missing.add(linearId);
+            } else {
+                states.add(state);
+            }
+        }
+        if (!missing.isEmpty()) {
+            throw new FlowException("Unconsumed IOUs not found in the vault: " + missing);
+        }
+        return states;
+    }
+
+    /**
+     * Registers a listener for the changes of the index. Listeners must be added before the node's state machine has
+     * started, so that they also see the IOUs added while the index warms up.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Returns every unconsumed IOU held in the index.
+     */
+    public List<StateAndRef<IOUState>> all() {
+        return new ArrayList<>(index.values());
+    }
+
+    /**
+     * Soft locks the given IOUs in the vault for the flow with the given lock id, usually the flow's run id. The locks
+     * are released when the IOUs are consumed or the flow ends.
+     *
+     * @throws FlowException if any of the IOUs is already reserved by another flow, or has been consumed since it was
+     * looked up.
+     */
+    public void reserve(UUID lockId, List<StateAndRef<IOUState>> states) throws FlowException {
+        if (states.isEmpty()) {
+            return;
+        }
+        Set<StateRef> refs = states.stream().map(StateAndRef::getRef).collect(Collectors.toCollection(LinkedHashSet::new));
+        try {
+            serviceHub.getVaultService().softLockReserve(lockId, NonEmptySet.copyOf(refs));
+        } catch (StatesNotAvailableException e) {
+            List<UniqueIdentifier> linearIds = states.stream()
+                    .map(state -> state.getState().getData().getLinearId())
+                    .collect(Collectors.toList());
+            throw new FlowException("Some of the IOUs " + linearIds + " are in use by another flow, try again once it has finished", e);
+        }
+    }
+
+    /**
+     * Reserves, for a responder about to sign a transaction proposed by a counterparty, those of the given inputs which
+     * the given borrower owes. The counterparty cannot know that such an IOU is in use on the borrower's node, for
+     * instance by an open payment channel, so the borrower must refuse to sign it away rather than rely on the notary.
+     *
+     * @return the IOUs which were reserved.
+     * @throws FlowException if any of those IOUs is already reserved by another flow on this node.
+     */
+    public List<StateAndRef<IOUState>> reserveBorrowed(UUID lockId, List<StateRef> inputs, PublicKey borrowerKey) throws FlowException {
+        if (inputs.isEmpty()) {
+            return Collections.emptyList();
+        }
+        QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria().withStateRefs(inputs);
+        List<StateAndRef<IOUState>> borrowed = serviceHub.getVaultService()
+                .queryBy(IOUState.class, criteria, new PageSpecification(DEFAULT_PAGE_NUM, inputs.size()))
+                .getStates().stream()
+                .filter(state -> state.getState().getData().getBorrower().getOwningKey().equals(borrowerKey))
+                .collect(Collectors.toList());
+        reserve(lockId, borrowed);
+        return borrowed;
+    }
+
+    /**
+     * Releases every IOU reserved with the given lock id, for a flow which gives up before consuming them.
+     */
+    public void release(UUID lockId) {
+        serviceHub.getVaultService().softLockRelease(lockId, null);
+    }
+
+    /**
+     * Returns the number of IOUs currently held in the index.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Returns true once the index holds every IOU which was in the vault when the node started.
+     */
+    public boolean isWarm() {
+        return warm;
+    }
+
+    private void warmUp() {
+        // Subscribe to every change of an IOU, including updates which only consume IOUs, before fixing the snapshot.
+        DataFeed<Vault.Page<IOUState>, Vault.Update<IOUState>> feed = serviceHub.getVaultService().trackBy(
+                IOUState.class, new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL), new PageSpecification(DEFAULT_PAGE_NUM, 1));
+        feed.getUpdates().subscribe(this::apply, error -> logger.error("IOU index stopped receiving vault updates", error));
+
+        // Every IOU recorded up to now, whatever its status, in StateRef order. Consuming an IOU does not take it out of
+        // this snapshot, so no IOU can move between pages while they are read.
+        Instant warmStart = serviceHub.getClock().instant();
+        QueryCriteria snapshot = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL)
+                .withTimeCondition(new QueryCriteria.TimeCondition(QueryCriteria.TimeInstantType.RECORDED,
+                        new ColumnPredicate.BinaryComparison<>(BinaryComparisonOperator.LESS_THAN_OR_EQUAL, warmStart)));
+        Sort byStateRef = new Sort(Arrays.asList(
+                new Sort.SortColumn(new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF_TXN_ID), Sort.Direction.ASC),
+                new Sort.SortColumn(new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF_INDEX), Sort.Direction.ASC)));
+
+        int pageNumber = DEFAULT_PAGE_NUM;
+        while (true) {
+            Vault.Page<IOUState> page = serviceHub.getVaultService().queryBy(
+                    IOUState.class, snapshot, new PageSpecification(pageNumber, PAGE_SIZE), byStateRef);
+            for (int i = 0; i < page.getStates().size(); i++) {
+                if (page.getStatesMetadata().get(i).getStatus() == Vault.StateStatus.UNCONSUMED) {
+                    addIfUnconsumed(page.getStates().get(i));
+                }
+            }
+            if ((long) pageNumber * PAGE_SIZE >= page.getTotalStatesAvailable()) {
+                break;
+            }
+            pageNumber++;
+        }
+        synchronized (consumedWhileWarming) {
+            warm = true;
+            consumedWhileWarming.clear();
+        }
+        logger.info("IOU index warmed with {} IOUs", index.size());
+    }
+
+    private void apply(Vault.Update<IOUState> update) {
+        for (StateAndRef<IOUState> consumed : update.getConsumed()) {
+            boolean removed;
+            synchronized (consumedWhileWarming) {
+                if (!warm) {
+                    consumedWhileWarming.add(consumed.getRef());
+                }
+                removed = index.remove(consumed.getState().getData().getLinearId(), consumed);
+            }
+            if (removed) {
+                listeners.forEach(listener -> listener.onRemoved(consumed));
+            }
+        }
+        for (StateAndRef<IOUState> produced : update.getProduced()) {
+            StateAndRef<IOUState> previous = index.put(produced.getState().getData().getLinearId(), produced);
+            if (previous != null) {
+                listeners.forEach(listener -> listener.onRemoved(previous));
+            }
+            listeners.forEach(listener -> listener.onAdded(produced));
+        }
+    }
+
+    private List<StateAndRef<IOUState>> queryVault(List<UniqueIdentifier> linearIds) {
+        List<StateAndRef<IOUState>> states = new ArrayList<>();
+        Set<UniqueIdentifier> distinct = new LinkedHashSet<>(linearIds);
+        List<UUID> ids = distinct.stream().map(UniqueIdentifier::getId).collect(Collectors.toList());
+        for (int from = 0; from < ids.size(); from += PAGE_SIZE) {
+            List<UUID> chunk = ids.subList(from, Math.min(from + PAGE_SIZE, ids.size()));
+            QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria(null, chunk);
+            states.addAll(serviceHub.getVaultService()
+                    .queryBy(IOUState.class, criteria, new PageSpecification(DEFAULT_PAGE_NUM, chunk.size()))
+                    .getStates());
+        }
+        return states;
+    }
+
+    /**
+     * Adds a state read by the warm-up, unless a vault update has consumed it or produced a newer state for its linearId.
+     * The check and the add are one step with respect to [apply], which records consumed states under the same lock.
+     */
+    private void addIfUnconsumed(StateAndRef<IOUState> state) {
+        boolean added;
+        synchronized (consumedWhileWarming) {
+            added = !consumedWhileWarming.contains(state.getRef())
+                    && index.putIfAbsent(state.getState().getData().getLinearId(), state) == null;
+        }
+        if (added) {
+            listeners.forEach(listener -> listener.onAdded(state));
+        }
+    }
+}
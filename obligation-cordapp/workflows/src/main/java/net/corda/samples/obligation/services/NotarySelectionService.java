@@ -0,0 +1,86 @@
+package net.corda.samples.obligation.services;
+
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.FlowException;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Chooses the notary of every new IOU from a pool of notaries.
+ *
+ * The pool is read from the "notaries" key of the CorDapp config as a ';' separated list of X500 names, for example
+ * "O=Notary,L=London,C=GB;O=Notary2,L=Paris,C=FR". When the key is not set every notary on the network is used.
+ * New IOUs are spread over the pool with a stable hash of their linearId, so the choice does not depend on which node
+ * or flow asks. Transfers and settlements must keep using the notary the IOU already lives on.
+ *
+ * The pool is resolved against the network map once and cached.
+ */
+@CordaService
+public class NotarySelectionService extends SingletonSerializeAsToken {
+
+    public static final String NOTARIES_CONFIG_KEY = "notaries";
+
+    private final AppServiceHub serviceHub;
+    private final List<CordaX500Name> configuredNotaries;
+    private volatile List<Party> pool;
+
+    public NotarySelectionService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        String notaries = ObligationConfig.getString(serviceHub.getAppContext().getConfig(), NOTARIES_CONFIG_KEY, "");
+        this.configuredNotaries = Arrays.stream(notaries.split(";"))
+                .map(String::trim)
+                .filter(name -> !name.isEmpty())
+                .map(CordaX500Name::parse)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the notary which an IOU with the given linearId should be issued on.
+     */
+    public Party notaryForNewState(UniqueIdentifier linearId) throws FlowException {
+        List<Party> notaries = getPool();
+        return notaries.get(Math.floorMod(linearId.getId().hashCode(), notaries.size()));
+    }
+
+    /**
+     * Returns the notaries IOUs are spread over, in a stable order.
+     */
+    public List<Party> getPool() throws FlowException {
+        List<Party> notaries = pool;
+        if (notaries == null) {
+            notaries = resolvePool();
+            pool = notaries;
+        }
+        return notaries;
+    }
+
+    private List<Party> resolvePool() throws FlowException {
+        List<Party> notaries = new ArrayList<>();
+        if (configuredNotaries.isEmpty()) {
+            notaries.addAll(serviceHub.getNetworkMapCache().getNotaryIdentities());
+            notaries.sort(Comparator.comparing(notary -> notary.getName().toString()));
+        } else {
+            for (CordaX500Name name : configuredNotaries) {
+                Party notary = serviceHub.getNetworkMapCache().getNotary(name);
+                if (notary == null) {
+                    throw new FlowException("The desired notary " + name + " is not known");
+                }
+                notaries.add(notary);
+            }
+        }
+        if (notaries.isEmpty()) {
+            throw new FlowException("There are no notaries on the network");
+        }
+        return Collections.unmodifiableList(notaries);
+    }
+}
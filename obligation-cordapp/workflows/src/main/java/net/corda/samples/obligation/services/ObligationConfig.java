@@ -0,0 +1,29 @@
+package net.corda.samples.obligation.services;
+
+import net.corda.core.cordapp.CordappConfig;
+
+/**
+ * Reads the optional settings of the Obligation CorDapp from its CorDapp config file, falling back to a default value
+ * when a key is not set.
+ */
+public final class ObligationConfig {
+
+    private ObligationConfig() {
+    }
+
+    public static String getString(CordappConfig config, String path, String defaultValue) {
+        return config.exists(path) ? config.getString(path) : defaultValue;
+    }
+
+    public static int getInt(CordappConfig config, String path, int defaultValue) {
+        return config.exists(path) ? config.getInt(path) : defaultValue;
+    }
+
+    public static long getLong(CordappConfig config, String path, long defaultValue) {
+        return config.exists(path) ? config.getLong(path) : defaultValue;
+    }
+
+    public static boolean getBoolean(CordappConfig config, String path, boolean defaultValue) {
+        return config.exists(path) ? config.getBoolean(path) : defaultValue;
+    }
+}
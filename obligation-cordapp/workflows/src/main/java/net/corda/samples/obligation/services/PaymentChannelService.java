@@ -0,0 +1,298 @@
+package net.corda.samples.obligation.services;
+
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.flows.FlowException;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.samples.obligation.contracts.PaymentReceipt;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Hands payments made against an IOU to the payment channel flow of that IOU, on the borrower's node.
+ *
+ * A channel is opened by [PaymentChannelFlow.Open], which then repeatedly takes the payments made since its last
+ * round with [next], has the lender sign a receipt for their sum, and completes them with [acknowledge]. A round is
+ * taken as soon as a payment arrives, or with no payments once the wait given by the flow has passed, so that the
+ * flow can commit on a timer. Closing a channel ends the flow once it has committed the latest receipt.
+ *
+ * A payment is remembered by its deduplication id after it has completed, so that a flow which retries its request
+ * then gets the same receipt instead of paying again. The ids of the last [RETAINED_PAYMENTS] completed payments are
+ * kept.
+ *
+ * The channels and their payments are only held in memory. When the node restarts, the channel flow resumes from its
+ * checkpoint and finds its channel gone; it then commits the latest receipt it holds and closes, as if a close had
+ * been requested. The payments which were not receipted yet are lost with the channel, and the flows which made them
+ * fail on resuming. A payment which was receipted but whose flow had not finished also fails on resuming, even though
+ * the receipt committed by the channel covers it, so its caller must check the IOU before paying again.
+ *
+ * The flow commits the latest receipt once it covers "channelCommitAmount" more than the last commit, or
+ * "channelCommitIntervalMillis" after the last commit, both read from the CorDapp config.
+ */
+@CordaService
+public class PaymentChannelService extends SingletonSerializeAsToken {
+
+    public static final String COMMIT_AMOUNT_CONFIG_KEY = "channelCommitAmount";
+    public static final String COMMIT_INTERVAL_CONFIG_KEY = "channelCommitIntervalMillis";
+    public static final int DEFAULT_COMMIT_AMOUNT = 1000;
+    public static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 60_000;
+    public static final int RETAINED_PAYMENTS = 10_000;
+
+    /**
+     * The payments taken by one round of a channel.
+     */
+    @CordaSerializable
+    public static class Round {
+
+        private final int amount;
+        private final int count;
+        private final boolean closeRequested;
+
+        public Round(int amount, int count, boolean closeRequested) {
+            this.amount = amount;
+            this.count = count;
+            this.closeRequested = closeRequested;
+        }
+
+        public int getAmount() {
+            return amount;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public boolean isCloseRequested() {
+            return closeRequested;
+        }
+    }
+
+    private static class Channel {
+        private final List<Integer> amounts = new ArrayList<>();
+        private final List<CompletableFuture<PaymentReceipt>> payments = new ArrayList<>();
+        private List<CompletableFuture<PaymentReceipt>> taken;
+        private Round takenRound;
+        private boolean closeRequested;
+        private CompletableFuture<Round> waiting;
+        private ScheduledFuture<?> timer;
+        private PaymentReceipt latest;
+        private final CompletableFuture<PaymentReceipt> closed = new CompletableFuture<>();
+    }
+
+    private final int commitAmount;
+    private final long commitIntervalMillis;
+    private final Map<UniqueIdentifier, Channel> channels = new HashMap<>();
+    private final Map<String, CompletableFuture<PaymentReceipt>> byDeduplicationId = new LinkedHashMap<String, CompletableFuture<PaymentReceipt>>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<PaymentReceipt>> eldest) {
+            return size() > RETAINED_PAYMENTS && eldest.getValue().isDone();
+        }
+    };
+    private final ScheduledExecutorService timer;
+
+    public PaymentChannelService(AppServiceHub serviceHub) {
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.commitAmount = ObligationConfig.getInt(config, COMMIT_AMOUNT_CONFIG_KEY, DEFAULT_COMMIT_AMOUNT);
+        this.commitIntervalMillis = ObligationConfig.getLong(config, COMMIT_INTERVAL_CONFIG_KEY, DEFAULT_COMMIT_INTERVAL_MILLIS);
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "payment-channels");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getCommitAmount() {
+        return commitAmount;
+    }
+
+    public long getCommitIntervalMillis() {
+        return commitIntervalMillis;
+    }
+
+    /**
+     * Registers the channel of the given IOU.
+     */
+    public synchronized void open(UniqueIdentifier linearId) throws FlowException {
+        if (channels.containsKey(linearId)) {
+            throw new FlowException("A payment channel is already open for IOU " + linearId);
+        }
+        channels.put(linearId, new Channel());
+    }
+
+    /**
+     * Adds a payment to the next round of the channel of the given IOU.
+     *
+     * @param deduplicationId identifies the payment, so that a flow which retries its request is added only once.
+     * @return a future which completes with the first receipt which covers the payment.
+     */
+    public synchronized CompletableFuture<PaymentReceipt> pay(String deduplicationId, UniqueIdentifier linearId, int amount) {
+        return byDeduplicationId.computeIfAbsent(deduplicationId, id -> enqueue(linearId, amount));
+    }
+
+    private CompletableFuture<PaymentReceipt> enqueue(UniqueIdentifier linearId, int amount) {
+        CompletableFuture<PaymentReceipt> payment = new CompletableFuture<>();
+        Channel channel = channels.get(linearId);
+        if (channel == null || channel.closeRequested) {
+            payment.completeExceptionally(new FlowException("No payment channel is open for IOU " + linearId));
+            return payment;
+        }
+        channel.amounts.add(amount);
+        channel.payments.add(payment);
+        wake(channel);
+        return payment;
+    }
+
+    /**
+     * Asks the channel of the given IOU to commit its latest receipt and close.
+     *
+     * @return a future which completes with the receipt committed when the channel closed.
+     */
+    public synchronized CompletableFuture<PaymentReceipt> close(UniqueIdentifier linearId) {
+        Channel channel = channels.get(linearId);
+        if (channel == null) {
+            CompletableFuture<PaymentReceipt> closed = new CompletableFuture<>();
+            closed.completeExceptionally(new FlowException("No payment channel is open for IOU " + linearId));
+            return closed;
+        }
+        channel.closeRequested = true;
+        wake(channel);
+        return channel.closed;
+    }
+
+    /**
+     * Returns true if a channel is open for the given IOU.
+     */
+    public synchronized boolean isOpen(UniqueIdentifier linearId) {
+        return channels.containsKey(linearId);
+    }
+
+    /**
+     * Returns the latest receipt of the channel of the given IOU, or null if it has none yet.
+     */
+    public synchronized PaymentReceipt latest(UniqueIdentifier linearId) {
+        Channel channel = channels.get(linearId);
+        return channel == null ? null : channel.latest;
+    }
+
+    /**
+     * Takes the payments made since the last round. The future completes as soon as there is a payment or a close
+     * request, or with an empty round after [maxWaitMillis]. A round which was taken but not acknowledged yet, because
+     * the flow was retried from its last checkpoint while the node kept running, is returned again.
+     *
+     * A channel is only removed once its flow has ended, so a flow which finds its channel gone has been resumed after
+     * a restart of the node. It is then asked to close, so that it commits the receipt it holds.
+     */
+    public synchronized CompletableFuture<Round> next(UniqueIdentifier linearId, long maxWaitMillis) {
+        Channel channel = channels.get(linearId);
+        if (channel == null) {
+            return CompletableFuture.completedFuture(new Round(0, 0, true));
+        }
+        if (channel.takenRound != null) {
+            return CompletableFuture.completedFuture(channel.takenRound);
+        }
+        CompletableFuture<Round> round = new CompletableFuture<>();
+        channel.waiting = round;
+        if (!channel.payments.isEmpty() || channel.closeRequested) {
+            wake(channel);
+        } else {
+            channel.timer = timer.schedule(() -> expire(channel, round), Math.max(maxWaitMillis, 0), TimeUnit.MILLISECONDS);
+        }
+        return round;
+    }
+
+    /**
+     * Completes the payments of the last round with the receipt the lender signed for them.
+     */
+    public synchronized void acknowledge(UniqueIdentifier linearId, PaymentReceipt receipt) {
+        Channel channel = channels.get(linearId);
+        if (channel == null) {
+            return;
+        }
+        if (receipt != null) {
+            channel.latest = receipt;
+        }
+        if (channel.taken != null) {
+            channel.taken.forEach(payment -> payment.complete(receipt));
+        }
+        channel.taken = null;
+        channel.takenRound = null;
+    }
+
+    /**
+     * Fails the payments of the last round, which the lender would not receipt.
+     */
+    public synchronized void reject(UniqueIdentifier linearId, FlowException error) {
+        Channel channel = channels.get(linearId);
+        if (channel == null) {
+            return;
+        }
+        if (channel.taken != null) {
+            channel.taken.forEach(payment -> payment.completeExceptionally(error));
+        }
+        channel.taken = null;
+        channel.takenRound = null;
+    }
+
+    /**
+     * Removes the channel of the given IOU once its flow has ended, failing the payments which were never receipted.
+     */
+    public void closed(UniqueIdentifier linearId, PaymentReceipt committed, Throwable error) {
+        Channel channel;
+        synchronized (this) {
+            channel = channels.remove(linearId);
+        }
+        if (channel == null) {
+            return;
+        }
+        if (channel.timer != null) {
+            channel.timer.cancel(false);
+        }
+        FlowException failure = new FlowException("The payment channel for IOU " + linearId + " closed before the payment was receipted", error);
+        List<CompletableFuture<PaymentReceipt>> unreceipted = new ArrayList<>(channel.payments);
+        if (channel.taken != null) {
+            unreceipted.addAll(channel.taken);
+        }
+        unreceipted.forEach(payment -> payment.completeExceptionally(failure));
+        if (channel.waiting != null) {
+            channel.waiting.completeExceptionally(failure);
+        }
+        if (error == null) {
+            channel.closed.complete(committed);
+        } else {
+            channel.closed.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Hands the pending payments to the waiting flow, if there is one.
+     */
+    private void wake(Channel channel) {
+        CompletableFuture<Round> round = channel.waiting;
+        if (round == null) {
+            return;
+        }
+        if (channel.timer != null) {
+            channel.timer.cancel(false);
+            channel.timer = null;
+        }
+        channel.waiting = null;
+        int amount = channel.amounts.stream().mapToInt(Integer::intValue).sum();
+        channel.takenRound = new Round(amount, channel.payments.size(), channel.closeRequested);
+        channel.taken = new ArrayList<>(channel.payments);
+        channel.amounts.clear();
+        channel.payments.clear();
+        // Complete the future outside of the lock of the service, as it resumes the flow.
+        Round taken = channel.takenRound;
+        timer.execute(() -> round.complete(taken));
+    }
+
+    private synchronized void expire(Channel channel, CompletableFuture<Round> round) {
+        if (channel.waiting == round) {
+            wake(channel);
+        }
+    }
+}
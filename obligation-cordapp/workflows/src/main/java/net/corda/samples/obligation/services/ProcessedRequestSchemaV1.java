@@ -0,0 +1,94 @@
+package net.corda.samples.obligation.services;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+
+import javax.persistence.*;
+import java.time.Instant;
+
+/**
+ * The table of client requests served by the IOU flows, used by the [RequestDedupeService]. Each row maps a
+ * client-supplied request id to the flow which serves it and the run id of that flow, and once the flow has finished,
+ * to the id of the transaction it recorded. A row without a transaction id is a request still being served.
+ */
+public class ProcessedRequestSchemaV1 extends MappedSchema {
+
+    /**
+     * The family of schemas for processed requests.
+     */
+    public static class ProcessedRequestSchema {
+    }
+
+    public ProcessedRequestSchemaV1() {
+        super(ProcessedRequestSchema.class, 1, ImmutableList.of(ProcessedRequest.class));
+    }
+
+    @Override
+    public String getMigrationResource() {
+        return "processed-requests.changelog-master";
+    }
+
+    @Entity
+    @Table(name = "iou_processed_requests", indexes = {
+            @Index(name = "iou_processed_requests_time_idx", columnList = "recorded_at")
+    })
+    public static class ProcessedRequest {
+
+        @Id
+        @Column(name = "request_id", nullable = false)
+        private final String requestId;
+
+        @Column(name = "flow_name")
+        private final String flowName;
+
+        @Column(name = "transaction_id")
+        private final String transactionId;
+
+        @Column(name = "recorded_at")
+        private final Instant recordedAt;
+
+        @Column(name = "run_id")
+        private final String runId;
+
+        public ProcessedRequest(String requestId, String flowName, String transactionId, Instant recordedAt, String runId) {
+            this.requestId = requestId;
+            this.flowName = flowName;
+            this.transactionId = transactionId;
+            this.recordedAt = recordedAt;
+            this.runId = runId;
+        }
+
+        // Default constructor required by hibernate.
+        public ProcessedRequest() {
+            this.requestId = null;
+            this.flowName = null;
+            this.transactionId = null;
+            this.recordedAt = null;
+            this.runId = null;
+        }
+
+        public String getRequestId() {
+            return requestId;
+        }
+
+        public String getFlowName() {
+            return flowName;
+        }
+
+        public String getTransactionId() {
+            return transactionId;
+        }
+
+        public Instant getRecordedAt() {
+            return recordedAt;
+        }
+
+        public String getRunId() {
+            return runId;
+        }
+
+        public boolean isPending() {
+            return transactionId == null;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package net.corda.samples.obligation.services;
+
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowException;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.SignedTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Makes the IOU flows idempotent for clients which retry a request, e.g. after an RPC timeout. A client passes the
+ * same request id on every attempt. The first flow to claim the id writes a pending row for it to the
+ * "iou_processed_requests" table, which is committed with the flow's next checkpoint and then fills in the id of its
+ * transaction when it completes. Every later flow with that request id returns the recorded transaction instead of
+ * doing the work again, and fails straight away while the row is still pending, including after a restart of the node
+ * while the first flow resumes from its checkpoint. Within the node, concurrent flows with the same id are also turned
+ * away by an in-memory claim before either has reached a checkpoint.
+ *
+ * A flow which fails without recording a transaction has its pending row removed, so that the client can retry. As the
+ * flow's own database transaction is rolled back with the failure, the row is removed in a transaction of its own. A
+ * flow which fails after its transaction was notarised and recorded in the vault, e.g. while sending it to a
+ * counterparty, has still served the request, so its row is completed with that transaction instead.
+ *
+ * Recorded and pending requests expire after "requestIdTtlMillis" (default one day) from the CorDapp config. Expired
+ * rows are ignored when read and deleted in bulk at most once per [PURGE_INTERVAL].
+ *
+ * [begin] and [record] must be called from a flow, as they use the flow's database transaction.
+ */
+@CordaService
+public class RequestDedupeService extends SingletonSerializeAsToken {
+
+    public static final String TTL_CONFIG_KEY = "requestIdTtlMillis";
+    public static final long DEFAULT_TTL_MILLIS = Duration.ofDays(1).toMillis();
+    static final Duration PURGE_INTERVAL = Duration.ofMinutes(1);
+
+    private static final Logger logger = LoggerFactory.getLogger(RequestDedupeService.class);
+
+    private final AppServiceHub serviceHub;
+    private final Duration ttl;
+    private final Map<String, UUID> inFlight = new ConcurrentHashMap<>();
+    private final ExecutorService cleaner = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "request-dedupe-cleaner");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Instant lastPurge = Instant.EPOCH;
+
+    public RequestDedupeService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.ttl = Duration.ofMillis(ObligationConfig.getLong(config, TTL_CONFIG_KEY, DEFAULT_TTL_MILLIS));
+    }
+
+    /**
+     * Claims the request id for the flow with the given run id. A flow which claims the id again, because it was
+     * retried from a checkpoint, keeps its claim.
+     *
+     * @return the transaction recorded for an earlier request with the same id, in which case the flow must return it
+     * without doing anything else, or null if the flow should serve the request. A null request id is never claimed.
+     * @throws FlowException if the request id is being served by another flow, or was served by a different flow.
+     */
+    public SignedTransaction begin(String requestId, Class<?> flowClass, UUID runId) throws FlowException {
+        if (requestId == null) {
+            return null;
+        }
+        UUID claimedBy = inFlight.putIfAbsent(requestId, runId);
+        if (claimedBy != null && !claimedBy.equals(runId)) {
+            throw new FlowException("Request " + requestId + " is already being served by flow " + claimedBy);
+        }
+
+        Instant now = Instant.now();
+        ProcessedRequestSchemaV1.ProcessedRequest processed = find(requestId);
+        if (processed == null || processed.getRecordedAt().isBefore(now.minus(ttl))) {
+            // Each call of withEntityManager has its own session, so an expired row is replaced in the same one.
+            ProcessedRequestSchemaV1.ProcessedRequest pending =
+                    new ProcessedRequestSchemaV1.ProcessedRequest(requestId, flowClass.getName(), null, now, runId.toString());
+            serviceHub.withEntityManager(entityManager -> {
+                ProcessedRequestSchemaV1.ProcessedRequest expired = entityManager.find(ProcessedRequestSchemaV1.ProcessedRequest.class, requestId);
+                if (expired != null) {
+                    entityManager.remove(expired);
+                    entityManager.flush();
+                }
+                entityManager.persist(pending);
+            });
+            return null;
+        }
+
+        if (processed.isPending()) {
+            if (runId.toString().equals(processed.getRunId())) {
+                return null;
+            }
+            inFlight.remove(requestId, runId);
+            throw new FlowException("Request " + requestId + " is already being served by flow " + processed.getRunId());
+        }
+
+        inFlight.remove(requestId, runId);
+        if (!processed.getFlowName().equals(flowClass.getName())) {
+            throw new FlowException("Request " + requestId + " was already served by " + processed.getFlowName());
+        }
+        SignedTransaction earlier = serviceHub.getValidatedTransactions().getTransaction(SecureHash.parse(processed.getTransactionId()));
+        if (earlier == null) {
+            throw new FlowException("The transaction " + processed.getTransactionId() + " of request " + requestId + " is missing");
+        }
+        return earlier;
+    }
+
+    /**
+     * Records that the flow served the request id with the given transaction. The row is committed with the flow's
+     * next checkpoint; until then it stays pending for every other flow.
+     */
+    public void record(String requestId, Class<?> flowClass, UUID runId, SecureHash txId) {
+        if (requestId == null) {
+            return;
+        }
+        Instant now = Instant.now();
+        serviceHub.withEntityManager(entityManager -> {
+            entityManager.merge(new ProcessedRequestSchemaV1.ProcessedRequest(requestId, flowClass.getName(), txId.toString(), now, runId.toString()));
+        });
+        inFlight.remove(requestId, runId);
+        if (lastPurge.plus(PURGE_INTERVAL).isBefore(now)) {
+            lastPurge = now;
+            serviceHub.withEntityManager(entityManager -> {
+                entityManager.createQuery("DELETE FROM " + ProcessedRequestSchemaV1.ProcessedRequest.class.getName() + " r WHERE r.recordedAt < :cutoff")
+                        .setParameter("cutoff", now.minus(ttl))
+                        .executeUpdate();
+            });
+        }
+    }
+
+    ProcessedRequestSchemaV1.ProcessedRequest find(String requestId) {
+        // Only the Consumer overload of withEntityManager can be called from Java without a cast.
+        List<ProcessedRequestSchemaV1.ProcessedRequest> found = new ArrayList<>(1);
+        serviceHub.withEntityManager(entityManager -> {
+            ProcessedRequestSchemaV1.ProcessedRequest row = entityManager.find(ProcessedRequestSchemaV1.ProcessedRequest.class, requestId);
+            if (row != null) {
+                found.add(row);
+            }
+        });
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    /**
+     * Gives up the claim of the flow with the given run id on the request id, unless the flow has recorded a
+     * transaction for it. Called when the flow ends, whether or not it served the request.
+     *
+     * @param attemptedTxId the id of the transaction the flow signed to serve the request, or null if it got no
+     * further. If that transaction has been committed to the node's storage the request was served, and it is recorded
+     * instead of being given up.
+     */
+    public void release(String requestId, UUID runId, SecureHash attemptedTxId) {
+        if (requestId == null) {
+            return;
+        }
+        ProcessedRequestSchemaV1.ProcessedRequest processed = find(requestId);
+        if (processed != null && !processed.isPending()) {
+            return;
+        }
+        inFlight.remove(requestId, runId);
+        if (processed != null && runId.toString().equals(processed.getRunId())) {
+            // The flow is failing, and its database transaction will be rolled back, so the committed pending row is
+            // completed or removed from a transaction of its own, which only sees what the flow has committed.
+            cleaner.execute(() -> {
+                try {
+                    if (attemptedTxId != null && serviceHub.getValidatedTransactions().getTransaction(attemptedTxId) != null) {
+                        serviceHub.withEntityManager(entityManager -> {
+                            entityManager.merge(new ProcessedRequestSchemaV1.ProcessedRequest(requestId, processed.getFlowName(),
+                                    attemptedTxId.toString(), Instant.now(), runId.toString()));
+                        });
+                        return;
+                    }
+                    serviceHub.withEntityManager(entityManager -> {
+                        entityManager.createQuery("DELETE FROM " + ProcessedRequestSchemaV1.ProcessedRequest.class.getName()
+                                + " r WHERE r.requestId = :requestId AND r.runId = :runId AND r.transactionId IS NULL")
+                                .setParameter("requestId", requestId)
+                                .setParameter("runId", runId.toString())
+                                .executeUpdate();
+                    });
+                } catch (RuntimeException e) {
+                    logger.warn("Could not release request {}, it can be retried once it expires", requestId, e);
+                }
+            });
+        }
+    }
+}
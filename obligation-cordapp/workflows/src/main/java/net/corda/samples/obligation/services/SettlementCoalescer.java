@@ -0,0 +1,332 @@
+package net.corda.samples.obligation.services;
+
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowException;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.flows.IOUSettleFlow;
+import net.corda.samples.obligation.states.IOUState;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Merges payments made against the same IOU within a short window into a single Settle transaction.
+ *
+ * The first payment for an IOU opens a batch which is settled [windowMillis] later, or as soon as it holds
+ * [maxCount] payments. The batch is settled by an [IOUSettleFlow] paying the sum of its payments, and every payment
+ * completes with the id of that shared transaction. Only one settlement per IOU is in flight at a time; payments
+ * arriving meanwhile form the next batch, which is settled as soon as the current one finishes.
+ *
+ * A batch never pays more than the IOU still owes. When it is flushed, its payments are taken in the order they arrived
+ * for as long as their sum fits the outstanding amount, and each payment which would overpay the IOU fails on its own
+ * instead of failing the whole batch.
+ *
+ * A payment is remembered by its deduplication id after it has completed, so that a flow which retries its request
+ * then gets the same result instead of paying again. The ids of the last [RETAINED_PAYMENTS] completed payments are
+ * kept.
+ *
+ * Each batch is settled under a request id derived from the deduplication ids of its payments, so that the
+ * [RequestDedupeService] records the settlement, and before it is started every payment of the batch is written to the
+ * "iou_batched_payments" table along with that request id. The batches themselves are only held in memory, so a restart
+ * of the node loses the payments which were waiting in a batch and the result of every settlement. When a flow waiting
+ * on a payment is resumed from its checkpoint and submits the payment again, a payment which was never settled joins a
+ * new batch, while a payment found in the table rejoins the settlement of its earlier batch: it completes with the
+ * recorded transaction, waits for a settlement still being served, and settles the earlier batch again under the same
+ * request id if that settlement failed or never started. A payment is never paid twice.
+ *
+ * The window and the maximum count are read from the "coalesceWindowMillis" and "coalesceMaxCount" keys of the
+ * CorDapp config.
+ */
+@CordaService
+public class SettlementCoalescer extends SingletonSerializeAsToken {
+
+    public static final String WINDOW_CONFIG_KEY = "coalesceWindowMillis";
+    public static final String MAX_COUNT_CONFIG_KEY = "coalesceMaxCount";
+    public static final long DEFAULT_WINDOW_MILLIS = 200;
+    public static final int DEFAULT_MAX_COUNT = 50;
+    public static final int RETAINED_PAYMENTS = 10_000;
+    static final long REJOIN_POLL_MILLIS = 1_000;
+
+    private static class Payment {
+        private final String deduplicationId;
+        private final int amount;
+        private final CompletableFuture<SecureHash> result = new CompletableFuture<>();
+
+        private Payment(String deduplicationId, int amount) {
+            this.deduplicationId = deduplicationId;
+            this.amount = amount;
+        }
+    }
+
+    private static class Batch {
+        private int amount;
+        private final List<Payment> payments = new ArrayList<>();
+        private ScheduledFuture<?> timer;
+    }
+
+    private final AppServiceHub serviceHub;
+    private final long windowMillis;
+    private final int maxCount;
+    private final Duration ttl;
+    private final ScheduledExecutorService timer;
+    private final Map<UniqueIdentifier, Batch> pending = new HashMap<>();
+    private final Set<UniqueIdentifier> inFlight = new HashSet<>();
+    private final Map<String, CompletableFuture<SecureHash>> byDeduplicationId = new LinkedHashMap<String, CompletableFuture<SecureHash>>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<SecureHash>> eldest) {
+            return size() > RETAINED_PAYMENTS && eldest.getValue().isDone();
+        }
+    };
+    private final Map<String, CompletableFuture<SecureHash>> rejoined = new HashMap<>();
+    private volatile Instant lastPurge = Instant.EPOCH;
+
+    public SettlementCoalescer(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.windowMillis = ObligationConfig.getLong(config, WINDOW_CONFIG_KEY, DEFAULT_WINDOW_MILLIS);
+        this.maxCount = ObligationConfig.getInt(config, MAX_COUNT_CONFIG_KEY, DEFAULT_MAX_COUNT);
+        this.ttl = Duration.ofMillis(ObligationConfig.getLong(config, RequestDedupeService.TTL_CONFIG_KEY, RequestDedupeService.DEFAULT_TTL_MILLIS));
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "settlement-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Adds a payment against the given IOU to its pending batch.
+     *
+     * @param deduplicationId identifies the payment, so that a flow which retries its request joins the batch only once.
+     * @return a future which completes with the id of the transaction which settled the payment.
+     */
+    public synchronized CompletableFuture<SecureHash> submit(String deduplicationId, UniqueIdentifier linearId, int payAmount) {
+        return byDeduplicationId.computeIfAbsent(deduplicationId, id -> {
+            BatchedPaymentSchemaV1.BatchedPayment batched = findBatched(id);
+            return batched == null ? enqueue(id, linearId, payAmount) : rejoin(batched);
+        });
+    }
+
+    /**
+     * Returns true if payments against the given IOU are waiting in a batch or being settled.
+     */
+    public synchronized boolean isPending(UniqueIdentifier linearId) {
+        return pending.containsKey(linearId) || inFlight.contains(linearId);
+    }
+
+    private CompletableFuture<SecureHash> enqueue(String deduplicationId, UniqueIdentifier linearId, int payAmount) {
+        Batch batch = pending.computeIfAbsent(linearId, id -> new Batch());
+        Payment payment = new Payment(deduplicationId, payAmount);
+        batch.amount += payAmount;
+        batch.payments.add(payment);
+        if (batch.payments.size() >= maxCount) {
+            timer.execute(() -> flush(linearId));
+        } else if (batch.timer == null) {
+            batch.timer = timer.schedule(() -> flush(linearId), windowMillis, TimeUnit.MILLISECONDS);
+        }
+        return payment.result;
+    }
+
+    /**
+     * Settles the pending batch of the given IOU, unless a settlement of the IOU is already in flight. Always runs on
+     * the coalescer's own thread, as starting a flow blocks until the node has accepted it.
+     */
+    private void flush(UniqueIdentifier linearId) {
+        Batch batch;
+        synchronized (this) {
+            if (inFlight.contains(linearId)) {
+                // The batch is settled when the settlement in flight finishes.
+                return;
+            }
+            batch = pending.remove(linearId);
+            if (batch == null) {
+                return;
+            }
+            if (batch.timer != null) {
+                batch.timer.cancel(false);
+            }
+            inFlight.add(linearId);
+        }
+
+        try {
+            dropOverpayments(linearId, batch);
+            if (batch.payments.isEmpty()) {
+                onFinished(linearId);
+                return;
+            }
+            String requestId = requestId(batch);
+            writeBatched(linearId, batch, requestId);
+            CordaFuture<SignedTransaction> settlement = serviceHub.startFlow(new IOUSettleFlow.InitiatorFlow(linearId, batch.amount, requestId)).getReturnValue();
+            settlement.then(result -> {
+                timer.execute(() -> onSettled(linearId, batch, result));
+                return null;
+            });
+        } catch (RuntimeException e) {
+            fail(linearId, batch, e);
+            onFinished(linearId);
+        }
+    }
+
+    /**
+     * Fails, and takes out of the batch, each payment which would take the sum of the batch past what the IOU still
+     * owes. The payments which fit are kept in the order they arrived.
+     */
+    private void dropOverpayments(UniqueIdentifier linearId, Batch batch) {
+        int outstanding;
+        try {
+            IOUState iou = serviceHub.cordaService(IOUIndexService.class).get(linearId).getState().getData();
+            outstanding = iou.getAmount() - iou.getPaid();
+        } catch (FlowException e) {
+            fail(linearId, batch, e);
+            batch.payments.clear();
+            return;
+        }
+        batch.amount = 0;
+        for (Iterator<Payment> payments = batch.payments.iterator(); payments.hasNext(); ) {
+            Payment payment = payments.next();
+            if (batch.amount + payment.amount > outstanding) {
+                payment.result.completeExceptionally(new FlowException("A payment of " + payment.amount + " against IOU "
+                        + linearId + " would pay more than the " + (outstanding - batch.amount) + " it still owes"));
+                payments.remove();
+            } else {
+                batch.amount += payment.amount;
+            }
+        }
+    }
+
+    private static String requestId(Batch batch) {
+        StringBuilder ids = new StringBuilder();
+        batch.payments.forEach(payment -> ids.append(payment.deduplicationId).append('\n'));
+        return "coalesced-" + SecureHash.sha256(ids.toString());
+    }
+
+    /**
+     * Writes every payment of the batch to the table of batched payments, in a database transaction of its own which
+     * is committed before the batch is settled.
+     */
+    private void writeBatched(UniqueIdentifier linearId, Batch batch, String requestId) {
+        Instant now = Instant.now();
+        serviceHub.withEntityManager(entityManager -> {
+            batch.payments.forEach(payment -> entityManager.persist(new BatchedPaymentSchemaV1.BatchedPayment(
+                    payment.deduplicationId, requestId, linearId.getId().toString(), batch.amount, now)));
+        });
+        if (lastPurge.plus(RequestDedupeService.PURGE_INTERVAL).isBefore(now)) {
+            lastPurge = now;
+            serviceHub.withEntityManager(entityManager -> {
+                entityManager.createQuery("DELETE FROM " + BatchedPaymentSchemaV1.BatchedPayment.class.getName() + " p WHERE p.recordedAt < :cutoff")
+                        .setParameter("cutoff", now.minus(ttl))
+                        .executeUpdate();
+            });
+        }
+    }
+
+    private BatchedPaymentSchemaV1.BatchedPayment findBatched(String deduplicationId) {
+        // Only the Consumer overload of withEntityManager can be called from Java without a cast.
+        List<BatchedPaymentSchemaV1.BatchedPayment> found = new ArrayList<>(1);
+        serviceHub.withEntityManager(entityManager -> {
+            BatchedPaymentSchemaV1.BatchedPayment row = entityManager.find(BatchedPaymentSchemaV1.BatchedPayment.class, deduplicationId);
+            if (row != null) {
+                found.add(row);
+            }
+        });
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    /**
+     * Returns the result of the settlement of the earlier batch of a payment which was batched before a restart of the
+     * node. Every payment of that batch shares the one result.
+     */
+    private CompletableFuture<SecureHash> rejoin(BatchedPaymentSchemaV1.BatchedPayment batched) {
+        return rejoined.computeIfAbsent(batched.getRequestId(), requestId -> {
+            CompletableFuture<SecureHash> result = new CompletableFuture<>();
+            UniqueIdentifier linearId = new UniqueIdentifier(null, UUID.fromString(batched.getLinearId()));
+            result.whenComplete((txId, error) -> {
+                synchronized (this) {
+                    rejoined.remove(requestId);
+                }
+            });
+            timer.execute(() -> resettle(linearId, batched.getBatchAmount(), requestId, result));
+            return result;
+        });
+    }
+
+    /**
+     * Completes the result of an earlier batch with the transaction recorded for its request id, or waits while that
+     * request is still being served, or else settles the batch again under the same request id. Like [flush], runs on
+     * the coalescer's own thread and only while no other settlement of the IOU is in flight.
+     */
+    private void resettle(UniqueIdentifier linearId, int amount, String requestId, CompletableFuture<SecureHash> result) {
+        synchronized (this) {
+            if (inFlight.contains(linearId)) {
+                timer.schedule(() -> resettle(linearId, amount, requestId, result), REJOIN_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            }
+            inFlight.add(linearId);
+        }
+
+        try {
+            ProcessedRequestSchemaV1.ProcessedRequest processed = serviceHub.cordaService(RequestDedupeService.class).find(requestId);
+            if (processed != null && processed.isPending()) {
+                // The settlement was resumed from its checkpoint and has not finished yet.
+                onFinished(linearId);
+                timer.schedule(() -> resettle(linearId, amount, requestId, result), REJOIN_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            }
+            if (processed != null) {
+                result.complete(SecureHash.parse(processed.getTransactionId()));
+                onFinished(linearId);
+                return;
+            }
+            CordaFuture<SignedTransaction> settlement = serviceHub.startFlow(new IOUSettleFlow.InitiatorFlow(linearId, amount, requestId)).getReturnValue();
+            settlement.then(settled -> {
+                timer.execute(() -> {
+                    try {
+                        result.complete(settled.get().getId());
+                    } catch (ExecutionException e) {
+                        result.completeExceptionally(new FlowException("The settlement " + requestId + " against IOU " + linearId + " failed", e.getCause()));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        result.completeExceptionally(e);
+                    }
+                    onFinished(linearId);
+                });
+                return null;
+            });
+        } catch (RuntimeException e) {
+            result.completeExceptionally(new FlowException("The settlement " + requestId + " against IOU " + linearId + " failed", e));
+            onFinished(linearId);
+        }
+    }
+
+    private void onSettled(UniqueIdentifier linearId, Batch batch, CordaFuture<SignedTransaction> result) {
+        try {
+            SecureHash txId = result.get().getId();
+            batch.payments.forEach(payment -> payment.result.complete(txId));
+        } catch (ExecutionException e) {
+            fail(linearId, batch, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(linearId, batch, e);
+        }
+        onFinished(linearId);
+    }
+
+    private void fail(UniqueIdentifier linearId, Batch batch, Throwable cause) {
+        FlowException error = new FlowException("The settlement of " + batch.payments.size() + " payments against IOU " + linearId + " failed", cause);
+        batch.payments.forEach(payment -> payment.result.completeExceptionally(error));
+    }
+
+    private void onFinished(UniqueIdentifier linearId) {
+        synchronized (this) {
+            inFlight.remove(linearId);
+        }
+        flush(linearId);
+    }
+}
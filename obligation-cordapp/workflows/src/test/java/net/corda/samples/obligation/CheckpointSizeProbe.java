@@ -0,0 +1,65 @@
+package net.corda.samples.obligation;
+
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.StartedMockNode;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Measures the checkpoints written for a flow, as the largest checkpoint in bytes seen during each of the flow's
+ * top-level progress steps.
+ *
+ * The flow is run by pumping the mock network one round at a time, and after every round the size of the flow's row
+ * in the node's checkpoint table is read together with the flow's current step. Use it to check that a change to a
+ * flow does not drag large objects into its checkpoints.
+ */
+public class CheckpointSizeProbe {
+
+    private static final int MAX_ROUNDS = 1000;
+
+    public static <T> Map<String, Long> measure(MockNetwork network, StartedMockNode node, FlowLogic<T> flow) throws ExecutionException, InterruptedException {
+        Map<String, Long> largestPerStep = new LinkedHashMap<>();
+        CordaFuture<T> future = node.startFlow(flow);
+        for (int round = 0; round < MAX_ROUNDS && !future.isDone(); round++) {
+            network.runNetwork(1);
+            sample(node, flow, largestPerStep);
+        }
+        network.runNetwork();
+        future.get();
+        return largestPerStep;
+    }
+
+    private static void sample(StartedMockNode node, FlowLogic<?> flow, Map<String, Long> largestPerStep) {
+        String flowId;
+        try {
+            flowId = flow.getRunId().getUuid().toString();
+        } catch (RuntimeException e) {
+            // The flow has not been started by the node yet.
+            return;
+        }
+        ProgressTracker tracker = flow.getProgressTracker();
+        String step = tracker == null ? "" : tracker.getCurrentStep().getLabel();
+        Long bytes = node.transaction(() -> {
+            try (PreparedStatement statement = node.getServices().jdbcSession().prepareStatement(
+                    "SELECT COALESCE(LENGTH(checkpoint_value), 0) + COALESCE(LENGTH(flow_state), 0) FROM node_checkpoint_blobs WHERE flow_id = ?")) {
+                statement.setString(1, flowId);
+                try (ResultSet result = statement.executeQuery()) {
+                    return result.next() ? result.getLong(1) : null;
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException("Could not read the checkpoint of flow " + flowId, e);
+            }
+        });
+        if (bytes != null) {
+            largestPerStep.merge(step, bytes, Math::max);
+        }
+    }
+}
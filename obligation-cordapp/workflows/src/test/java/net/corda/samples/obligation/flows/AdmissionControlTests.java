@@ -0,0 +1,112 @@
+package net.corda.samples.obligation.flows;
+
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.flows.FlowException;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.services.AdmissionControlService;
+import net.corda.samples.obligation.services.FlowMetricsService;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControlTests {
+
+    private static final Map<String, Object> UNLIMITED = ImmutableMap.of(
+            AdmissionControlService.RATE_CONFIG_KEY, 0,
+            AdmissionControlService.MAX_IN_FLIGHT_CONFIG_KEY, 0);
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b;
+
+    private void startNetwork(Map<String, Object> configA, Map<String, Object> configB) {
+        mockNetwork = new MockNetwork(new MockNetworkParameters()
+                .withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB")))));
+        a = mockNetwork.createNode(parameters(configA));
+        b = mockNetwork.createNode(parameters(configB));
+        mockNetwork.runNetwork();
+    }
+
+    private static MockNodeParameters parameters(Map<String, Object> config) {
+        return new MockNodeParameters().withAdditionalCordapps(Arrays.asList(
+                TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                TestCordapp.findCordapp("net.corda.samples.obligation.flows").withConfig(config)));
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    private List<Future<SignedTransaction>> issue(int count) {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        List<Future<SignedTransaction>> futures = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            futures.add(a.startFlow(new IOUIssueFlow.InitiatorFlow(10, lender)));
+        }
+        mockNetwork.runNetwork();
+        return futures;
+    }
+
+    private static int rejected(List<Future<SignedTransaction>> futures) throws InterruptedException {
+        int rejected = 0;
+        for (Future<SignedTransaction> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof FlowException);
+                rejected++;
+            }
+        }
+        return rejected;
+    }
+
+    private static long throttled(StartedMockNode node, Class<?> flow, String reason) {
+        return node.getServices().cordaService(FlowMetricsService.class).meter(flow, "throttled." + reason).getCount();
+    }
+
+    @Test
+    public void initiatorsBeyondTheBurstAreRejected() throws Exception {
+        startNetwork(ImmutableMap.of(
+                AdmissionControlService.RATE_CONFIG_KEY, 1,
+                AdmissionControlService.BURST_CONFIG_KEY, 3), UNLIMITED);
+
+        assertEquals(2, rejected(issue(5)));
+        assertEquals(2, throttled(a, IOUIssueFlow.InitiatorFlow.class, "rate"));
+    }
+
+    @Test
+    public void initiatorsBeyondTheInFlightLimitAreRejected() throws Exception {
+        startNetwork(ImmutableMap.of(
+                AdmissionControlService.RATE_CONFIG_KEY, 0,
+                AdmissionControlService.MAX_IN_FLIGHT_CONFIG_KEY, 2), UNLIMITED);
+
+        assertEquals(2, rejected(issue(4)));
+        assertEquals(2, throttled(a, IOUIssueFlow.InitiatorFlow.class, "inFlight"));
+
+        // The slots are released once the admitted flows end.
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        assertEquals(0, a.getServices().cordaService(AdmissionControlService.class).inFlight(IOUIssueFlow.InitiatorFlow.class, lender));
+        assertEquals(0, rejected(issue(2)));
+    }
+
+    @Test
+    public void respondersBeyondTheLimitAreRejected() throws Exception {
+        startNetwork(UNLIMITED, ImmutableMap.of(
+                AdmissionControlService.RATE_CONFIG_KEY, 0,
+                AdmissionControlService.MAX_IN_FLIGHT_CONFIG_KEY, 1));
+
+        assertEquals(2, rejected(issue(3)));
+        assertEquals(2, throttled(b, IOUIssueFlow.ResponderFlow.class, "inFlight"));
+    }
+}
@@ -0,0 +1,129 @@
+package net.corda.samples.obligation.flows;
+
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class BatchIssueFlowTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b, c;
+
+    @Before
+    public void setup() {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows")
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        c = mockNetwork.createNode(new MockNodeParameters());
+
+        ArrayList<StartedMockNode> startedNodes = new ArrayList<>();
+        startedNodes.add(a);
+        startedNodes.add(b);
+        startedNodes.add(c);
+
+        // For real nodes this happens automatically, but we have to manually register the flows for tests
+        startedNodes.forEach(el -> el.registerInitiatedFlow(BatchIssueFlow.ResponderFlow.class));
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    private List<StateAndRef<IOUState>> iousInVault(StartedMockNode node) {
+        return node.transaction(() -> node.getServices().getVaultService().queryBy(IOUState.class).getStates());
+    }
+
+
+    @Test
+    public void flowReturnsOneLinearIdPerEntryInOrder() throws Exception {
+        Party lenderB = b.getInfo().getLegalIdentities().get(0);
+        Party lenderC = c.getInfo().getLegalIdentities().get(0);
+        List<BatchIssueFlow.IssueEntry> entries = Arrays.asList(
+                new BatchIssueFlow.IssueEntry(1, lenderB),
+                new BatchIssueFlow.IssueEntry(2, lenderC),
+                new BatchIssueFlow.IssueEntry(3, lenderB));
+
+        Future<List<UniqueIdentifier>> future = a.startFlow(new BatchIssueFlow.InitiatorFlow(entries));
+        mockNetwork.runNetwork();
+        List<UniqueIdentifier> linearIds = future.get();
+
+        assertEquals(3, linearIds.size());
+        Map<UniqueIdentifier, IOUState> issued = iousInVault(a).stream()
+                .map(it -> it.getState().getData())
+                .collect(Collectors.toMap(IOUState::getLinearId, it -> it));
+        for (int i = 0; i < entries.size(); i++) {
+            IOUState iou = issued.get(linearIds.get(i));
+            assertEquals(entries.get(i).getAmount(), iou.getAmount());
+            assertEquals(entries.get(i).getLender(), iou.getLender());
+        }
+    }
+
+
+    @Test
+    public void entriesAreGroupedByLenderAndSplitByMaxBatchSize() throws Exception {
+        Party lenderB = b.getInfo().getLegalIdentities().get(0);
+        Party lenderC = c.getInfo().getLegalIdentities().get(0);
+        List<BatchIssueFlow.IssueEntry> entries = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            entries.add(new BatchIssueFlow.IssueEntry(i, lenderB));
+        }
+        entries.add(new BatchIssueFlow.IssueEntry(10, lenderC));
+
+        Future<List<UniqueIdentifier>> future = a.startFlow(new BatchIssueFlow.InitiatorFlow(entries, 2));
+        mockNetwork.runNetwork();
+        future.get();
+
+        // Five IOUs to B in batches of two, and a single IOU to C.
+        Set<SecureHash> transactions = iousInVault(a).stream()
+                .map(it -> it.getRef().getTxhash())
+                .collect(Collectors.toSet());
+        assertEquals(4, transactions.size());
+        assertEquals(5, iousInVault(b).size());
+        assertEquals(1, iousInVault(c).size());
+    }
+
+    @Test
+    public void failingBatchReportsTheIOUsAlreadyIssued() throws Exception {
+        Party lenderB = b.getInfo().getLegalIdentities().get(0);
+        Party self = a.getInfo().getLegalIdentities().get(0);
+        // The IOU to ourselves fails verification, after the batch to B was committed.
+        List<BatchIssueFlow.IssueEntry> entries = Arrays.asList(
+                new BatchIssueFlow.IssueEntry(1, lenderB),
+                new BatchIssueFlow.IssueEntry(2, self));
+
+        Future<List<UniqueIdentifier>> future = a.startFlow(new BatchIssueFlow.InitiatorFlow(entries));
+        mockNetwork.runNetwork();
+        try {
+            future.get();
+            fail("The issuance should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BatchIssueFlow.PartialIssueException);
+            List<UniqueIdentifier> issued = ((BatchIssueFlow.PartialIssueException) e.getCause()).getIssued();
+            assertEquals(1, issued.size());
+            assertEquals(issued.get(0), iousInVault(b).get(0).getState().getData().getLinearId());
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package net.corda.samples.obligation.flows;
+
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.FlowSession;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchSettleFlowTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b, c;
+
+    @Before
+    public void setup() {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows")
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        c = mockNetwork.createNode(new MockNodeParameters());
+
+        ArrayList<StartedMockNode> startedNodes = new ArrayList<>();
+        startedNodes.add(a);
+        startedNodes.add(b);
+        startedNodes.add(c);
+
+        // For real nodes this happens automatically, but we have to manually register the flows for tests
+        startedNodes.forEach(el -> el.registerInitiatedFlow(BatchIssueFlow.ResponderFlow.class));
+        startedNodes.forEach(el -> el.registerInitiatedFlow(BatchSettleFlow.Responder.class));
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    private List<UniqueIdentifier> issueIOUs(BatchIssueFlow.IssueEntry... entries) throws InterruptedException, ExecutionException {
+        Future<List<UniqueIdentifier>> future = a.startFlow(new BatchIssueFlow.InitiatorFlow(Arrays.asList(entries)));
+        mockNetwork.runNetwork();
+        return future.get();
+    }
+
+
+    @Test
+    public void flowSettlesEachLendersIOUsInOneTransaction() throws Exception {
+        Party lenderB = b.getInfo().getLegalIdentities().get(0);
+        Party lenderC = c.getInfo().getLegalIdentities().get(0);
+        List<UniqueIdentifier> linearIds = issueIOUs(
+                new BatchIssueFlow.IssueEntry(10, lenderB),
+                new BatchIssueFlow.IssueEntry(20, lenderB),
+                new BatchIssueFlow.IssueEntry(30, lenderC));
+
+        Map<UniqueIdentifier, Integer> payments = new LinkedHashMap<>();
+        payments.put(linearIds.get(0), 4);
+        payments.put(linearIds.get(1), 20);
+        payments.put(linearIds.get(2), 30);
+        Future<Map<UniqueIdentifier, SecureHash>> future = a.startFlow(new BatchSettleFlow.InitiatorFlow(payments));
+        mockNetwork.runNetwork();
+        Map<UniqueIdentifier, SecureHash> settledBy = future.get();
+
+        assertEquals(settledBy.get(linearIds.get(0)), settledBy.get(linearIds.get(1)));
+        assertNotEquals(settledBy.get(linearIds.get(0)), settledBy.get(linearIds.get(2)));
+
+        // Only the partially settled IOU remains.
+        List<StateAndRef<IOUState>> remaining = a.transaction(() ->
+                a.getServices().getVaultService().queryBy(IOUState.class).getStates());
+        assertEquals(1, remaining.size());
+        assertEquals(linearIds.get(0), remaining.get(0).getState().getData().getLinearId());
+        assertEquals(4, remaining.get(0).getState().getData().getPaid());
+    }
+
+
+    @Test
+    public void flowFailsWhenAnIOUIsMissing() throws Exception {
+        Party lenderB = b.getInfo().getLegalIdentities().get(0);
+        List<UniqueIdentifier> linearIds = issueIOUs(new BatchIssueFlow.IssueEntry(10, lenderB));
+
+        Map<UniqueIdentifier, Integer> payments = new LinkedHashMap<>();
+        payments.put(linearIds.get(0), 5);
+        payments.put(new UniqueIdentifier(), 5);
+        Future<Map<UniqueIdentifier, SecureHash>> future = a.startFlow(new BatchSettleFlow.InitiatorFlow(payments));
+        mockNetwork.runNetwork();
+
+        exception.expectCause(instanceOf(FlowException.class));
+        future.get();
+    }
+
+
+    @Test
+    public void flowRejectsAnOverpaymentBeforeSettlingAnything() throws Exception {
+        Party lenderB = b.getInfo().getLegalIdentities().get(0);
+        List<UniqueIdentifier> linearIds = issueIOUs(
+                new BatchIssueFlow.IssueEntry(10, lenderB),
+                new BatchIssueFlow.IssueEntry(20, lenderB));
+
+        Map<UniqueIdentifier, Integer> payments = new LinkedHashMap<>();
+        payments.put(linearIds.get(0), 5);
+        payments.put(linearIds.get(1), 21);
+        Future<Map<UniqueIdentifier, SecureHash>> future = a.startFlow(new BatchSettleFlow.InitiatorFlow(payments));
+        mockNetwork.runNetwork();
+
+        try {
+            future.get();
+            fail("The settlement should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof FlowException);
+        }
+        List<StateAndRef<IOUState>> unchanged = a.transaction(() ->
+                a.getServices().getVaultService().queryBy(IOUState.class).getStates());
+        assertEquals(2, unchanged.size());
+        unchanged.forEach(it -> assertEquals(0, it.getState().getData().getPaid()));
+    }
+
+    /**
+     * A responder which refuses every settlement, to fail a transaction after earlier ones have been committed.
+     */
+    public static class RefusingResponder extends FlowLogic<Void> {
+
+        private final FlowSession otherPartyFlow;
+
+        public RefusingResponder(FlowSession otherPartyFlow) {
+            this.otherPartyFlow = otherPartyFlow;
+        }
+
+        @Override
+        public Void call() throws FlowException {
+            throw new FlowException("Refused to settle");
+        }
+    }
+
+    @Test
+    public void failingTransactionReportsTheSettlementsAlreadyCommitted() throws Exception {
+        Party lenderB = b.getInfo().getLegalIdentities().get(0);
+        Party lenderC = c.getInfo().getLegalIdentities().get(0);
+        List<UniqueIdentifier> linearIds = issueIOUs(
+                new BatchIssueFlow.IssueEntry(10, lenderB),
+                new BatchIssueFlow.IssueEntry(30, lenderC));
+        c.registerInitiatedFlow(BatchSettleFlow.InitiatorFlow.class, RefusingResponder.class);
+
+        Map<UniqueIdentifier, Integer> payments = new LinkedHashMap<>();
+        payments.put(linearIds.get(0), 10);
+        payments.put(linearIds.get(1), 30);
+        Future<Map<UniqueIdentifier, SecureHash>> future = a.startFlow(new BatchSettleFlow.InitiatorFlow(payments));
+        mockNetwork.runNetwork();
+
+        try {
+            future.get();
+            fail("The settlement should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BatchSettleFlow.PartialSettleException);
+            Map<UniqueIdentifier, SecureHash> settled = ((BatchSettleFlow.PartialSettleException) e.getCause()).getSettled();
+            assertEquals(Collections.singleton(linearIds.get(0)), settled.keySet());
+        }
+        // Only the IOU of the refusing lender remains.
+        List<StateAndRef<IOUState>> remaining = a.transaction(() ->
+                a.getServices().getVaultService().queryBy(IOUState.class).getStates());
+        assertEquals(1, remaining.size());
+        assertEquals(linearIds.get(1), remaining.get(0).getState().getData().getLinearId());
+    }
+}
@@ -0,0 +1,78 @@
+package net.corda.samples.obligation.flows;
+
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.CheckpointSizeProbe;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointSizeTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b, c;
+
+    @Before
+    public void setup() {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows")
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        c = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    private UniqueIdentifier issueIOU(int amount, Party lender) throws Exception {
+        Future<SignedTransaction> future = a.startFlow(new IOUIssueFlow.InitiatorFlow(amount, lender));
+        mockNetwork.runNetwork();
+        return future.get().getTx().outputsOfType(IOUState.class).get(0).getLinearId();
+    }
+
+    private static void assertCheckpointed(String flow, Map<String, Long> largestPerStep) {
+        System.out.println(flow + " checkpoint bytes per step: " + largestPerStep);
+        assertTrue(flow + " was not checkpointed while collecting signatures",
+                largestPerStep.getOrDefault("Gathering the counterparties' signatures.", 0L) > 0);
+        assertTrue(flow + " was not checkpointed while finalising",
+                largestPerStep.getOrDefault("Obtaining notary signature and recording transaction.", 0L) > 0);
+    }
+
+    @Test
+    public void transferCheckpointsAreMeasuredPerStep() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        Party newLender = c.getInfo().getLegalIdentities().get(0);
+        UniqueIdentifier linearId = issueIOU(10, lender);
+
+        assertCheckpointed("IOUTransferFlow",
+                CheckpointSizeProbe.measure(mockNetwork, b, new IOUTransferFlow.InitiatorFlow(linearId, newLender)));
+    }
+
+    @Test
+    public void settleCheckpointsAreMeasuredPerStep() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        UniqueIdentifier linearId = issueIOU(10, lender);
+
+        assertCheckpointed("IOUSettleFlow",
+                CheckpointSizeProbe.measure(mockNetwork, a, new IOUSettleFlow.InitiatorFlow(linearId, 5)));
+    }
+}
@@ -0,0 +1,124 @@
+package net.corda.samples.obligation.flows;
+
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowException;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.services.SettlementCoalescer;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingSettleFlowTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b;
+
+    private void startNetwork(long windowMillis, int maxCount) {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows").withConfig(ImmutableMap.of(
+                                SettlementCoalescer.WINDOW_CONFIG_KEY, windowMillis,
+                                SettlementCoalescer.MAX_COUNT_CONFIG_KEY, maxCount))
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))))
+                .withThreadPerNode(true);
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.startNodes();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    private UniqueIdentifier issueIOU(int amount) throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        Future<SignedTransaction> future = a.startFlow(new IOUIssueFlow.InitiatorFlow(amount, lender));
+        return future.get(30, TimeUnit.SECONDS).getTx().outputsOfType(IOUState.class).get(0).getLinearId();
+    }
+
+    private List<SecureHash> pay(UniqueIdentifier linearId, int... amounts) throws Exception {
+        List<Future<SecureHash>> futures = new ArrayList<>();
+        for (int amount : amounts) {
+            futures.add(a.startFlow(new CoalescingSettleFlow.InitiatorFlow(linearId, amount)));
+        }
+        List<SecureHash> txIds = new ArrayList<>();
+        for (Future<SecureHash> future : futures) {
+            txIds.add(future.get(30, TimeUnit.SECONDS));
+        }
+        return txIds;
+    }
+
+    private IOUState iouOnBorrower() {
+        List<StateAndRef<IOUState>> states = a.transaction(() ->
+                a.getServices().getVaultService().queryBy(IOUState.class).getStates());
+        assertEquals(1, states.size());
+        return states.get(0).getState().getData();
+    }
+
+    @Test
+    public void paymentsUpToTheMaximumCountShareOneTransaction() throws Exception {
+        startNetwork(60_000, 5);
+        UniqueIdentifier linearId = issueIOU(100);
+
+        List<SecureHash> txIds = pay(linearId, 1, 2, 3, 4, 5);
+
+        assertEquals(1, new HashSet<>(txIds).size());
+        assertEquals(15, iouOnBorrower().getPaid());
+    }
+
+    @Test
+    public void paymentsWithinTheWindowShareOneTransaction() throws Exception {
+        startNetwork(2_000, 100);
+        UniqueIdentifier linearId = issueIOU(100);
+
+        List<SecureHash> txIds = pay(linearId, 10, 10, 10);
+        assertEquals(1, new HashSet<>(txIds).size());
+
+        // A later payment gets a transaction of its own.
+        List<SecureHash> laterTxIds = pay(linearId, 5);
+        assertNotEquals(txIds.get(0), laterTxIds.get(0));
+        assertEquals(35, iouOnBorrower().getPaid());
+    }
+
+    @Test
+    public void aPaymentWhichWouldOverpayTheIOUFailsAlone() throws Exception {
+        startNetwork(60_000, 2);
+        UniqueIdentifier linearId = issueIOU(10);
+
+        // Each payment fits the IOU on its own, but the two together would overpay it.
+        Future<SecureHash> first = a.startFlow(new CoalescingSettleFlow.InitiatorFlow(linearId, 6));
+        Future<SecureHash> second = a.startFlow(new CoalescingSettleFlow.InitiatorFlow(linearId, 6));
+        int settled = 0;
+        for (Future<SecureHash> payment : Arrays.asList(first, second)) {
+            try {
+                payment.get(30, TimeUnit.SECONDS);
+                settled++;
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof FlowException);
+            }
+        }
+
+        assertEquals(1, settled);
+        assertEquals(6, iouOnBorrower().getPaid());
+    }
+}
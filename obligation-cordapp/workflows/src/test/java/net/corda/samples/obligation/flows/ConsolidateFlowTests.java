@@ -0,0 +1,152 @@
+package net.corda.samples.obligation.flows;
+
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.StatesNotAvailableException;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.utilities.NonEmptySet;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConsolidateFlowTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b, c;
+
+    @Before
+    public void setup() {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows")
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        c = mockNetwork.createNode(new MockNodeParameters());
+
+        ArrayList<StartedMockNode> startedNodes = new ArrayList<>();
+        startedNodes.add(a);
+        startedNodes.add(b);
+        startedNodes.add(c);
+
+        // For real nodes this happens automatically, but we have to manually register the flows for tests
+        startedNodes.forEach(el -> el.registerInitiatedFlow(IOUIssueFlow.ResponderFlow.class));
+        startedNodes.forEach(el -> el.registerInitiatedFlow(IOUSettleFlow.Responder.class));
+        startedNodes.forEach(el -> el.registerInitiatedFlow(ConsolidateFlow.Responder.class));
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    private UniqueIdentifier issueIOU(StartedMockNode borrower, int amount, Party lender) throws InterruptedException, ExecutionException {
+        Future<SignedTransaction> future = borrower.startFlow(new IOUIssueFlow.InitiatorFlow(amount, lender));
+        mockNetwork.runNetwork();
+        return future.get().getTx().outputsOfType(IOUState.class).get(0).getLinearId();
+    }
+
+    private List<IOUState> iousOn(StartedMockNode node) {
+        List<StateAndRef<IOUState>> states = node.transaction(() ->
+                node.getServices().getVaultService().queryBy(IOUState.class).getStates());
+        return states.stream().map(it -> it.getState().getData()).collect(Collectors.toList());
+    }
+
+
+    @Test
+    public void flowMergesTheIOUsOfOneBorrower() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        Party borrower = a.getInfo().getLegalIdentities().get(0);
+        UniqueIdentifier first = issueIOU(a, 10, lender);
+        UniqueIdentifier second = issueIOU(a, 20, lender);
+        UniqueIdentifier third = issueIOU(a, 30, lender);
+        issueIOU(c, 40, lender);
+
+        // Partly settle one of the IOUs, so that the merged IOU has a paid amount.
+        Future<SignedTransaction> settle = a.startFlow(new IOUSettleFlow.InitiatorFlow(second, 5));
+        mockNetwork.runNetwork();
+        settle.get();
+
+        Future<List<UniqueIdentifier>> future = b.startFlow(new ConsolidateFlow.InitiatorFlow(borrower));
+        mockNetwork.runNetwork();
+        List<UniqueIdentifier> merged = future.get();
+        assertEquals(1, merged.size());
+        assertTrue(Arrays.asList(first, second, third).contains(merged.get(0)));
+
+        List<IOUState> owedByA = iousOn(a);
+        assertEquals(1, owedByA.size());
+        assertEquals(merged.get(0), owedByA.get(0).getLinearId());
+        assertEquals(60, owedByA.get(0).getAmount());
+        assertEquals(5, owedByA.get(0).getPaid());
+
+        // The IOU owed by the other borrower is left alone.
+        assertEquals(2, iousOn(b).size());
+    }
+
+
+    @Test
+    public void allOnlyMergesBorrowersWithEnoughIOUs() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        issueIOU(a, 10, lender);
+        issueIOU(a, 20, lender);
+        issueIOU(a, 30, lender);
+        issueIOU(c, 40, lender);
+        issueIOU(c, 50, lender);
+
+        Future<List<UniqueIdentifier>> future = b.startFlow(new ConsolidateFlow.All(3));
+        mockNetwork.runNetwork();
+        assertEquals(1, future.get().size());
+
+        assertEquals(1, iousOn(a).size());
+        assertEquals(2, iousOn(c).size());
+        assertTrue(iousOn(b).stream().anyMatch(iou -> iou.getAmount() == 60));
+    }
+
+    @Test
+    public void borrowerRefusesToMergeAnIOUInUseOnItsNode() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        Party borrower = a.getInfo().getLegalIdentities().get(0);
+        issueIOU(a, 10, lender);
+        issueIOU(a, 20, lender);
+
+        // Another flow on the borrower's node, such as a payment channel, holds one of the IOUs.
+        a.transaction(() -> {
+            StateAndRef<IOUState> held = a.getServices().getVaultService().queryBy(IOUState.class).getStates().get(0);
+            try {
+                a.getServices().getVaultService().softLockReserve(UUID.randomUUID(), NonEmptySet.of(held.getRef()));
+            } catch (StatesNotAvailableException e) {
+                throw new IllegalStateException(e);
+            }
+            return null;
+        });
+
+        Future<List<UniqueIdentifier>> future = b.startFlow(new ConsolidateFlow.InitiatorFlow(borrower));
+        mockNetwork.runNetwork();
+        try {
+            future.get();
+            fail("The borrower should have refused to sign the merge");
+        } catch (ExecutionException e) {
+            // Expected.
+        }
+        assertEquals(2, iousOn(a).size());
+        assertEquals(2, iousOn(b).size());
+    }
+}
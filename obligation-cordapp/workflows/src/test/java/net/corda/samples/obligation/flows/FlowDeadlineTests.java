@@ -0,0 +1,104 @@
+package net.corda.samples.obligation.flows;
+
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.FlowException;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.services.FlowDeadlineService;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FlowDeadlineTests {
+
+    private static final long DEADLINE_MILLIS = 500;
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b;
+
+    @Before
+    public void setup() {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows").withConfig(ImmutableMap.of(
+                                FlowDeadlineService.SIGNATURES_CONFIG_KEY, DEADLINE_MILLIS,
+                                FlowDeadlineService.FINALITY_CONFIG_KEY, DEADLINE_MILLIS))
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))))
+                .withThreadPerNode(true);
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.startNodes();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    private UniqueIdentifier issueIOU(int amount) throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        Future<SignedTransaction> future = a.startFlow(new IOUIssueFlow.InitiatorFlow(amount, lender));
+        return future.get(30, TimeUnit.SECONDS).getTx().outputsOfType(IOUState.class).get(0).getLinearId();
+    }
+
+    @Test
+    public void flowsFailFastOnceACounterpartyHasLeftAFlowParked() throws Exception {
+        UniqueIdentifier first = issueIOU(10);
+        UniqueIdentifier second = issueIOU(10);
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        b.stop();
+
+        // The first settlement waits for the lender's signature and is reported as parked after the deadline.
+        a.startFlow(new IOUSettleFlow.InitiatorFlow(first, 5));
+        FlowDeadlineService deadlines = a.getServices().cordaService(FlowDeadlineService.class);
+        for (int i = 0; i < 100 && deadlines.parked(FlowDeadlineService.Phase.COLLECT_SIGNATURES) == 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(1, deadlines.parked(FlowDeadlineService.Phase.COLLECT_SIGNATURES));
+
+        // The second settlement probes the lender, gets no answer and gives its IOU back.
+        Future<SignedTransaction> settlement = a.startFlow(new IOUSettleFlow.InitiatorFlow(second, 5));
+        try {
+            settlement.get(30, TimeUnit.SECONDS);
+            fail("The settlement should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof FlowException);
+        }
+        assertEquals(Collections.singletonList(lender), deadlines.unresponsive());
+
+        QueryCriteria unlocked = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED)
+                .withSoftLockingCondition(new QueryCriteria.SoftLockingCondition(QueryCriteria.SoftLockingType.UNLOCKED_ONLY, Collections.emptyList()))
+                .and(new QueryCriteria.LinearStateQueryCriteria(null, Collections.singletonList(second.getId())));
+        assertEquals(1, a.transaction(() -> a.getServices().getVaultService().queryBy(IOUState.class, unlocked).getStates().size()).intValue());
+    }
+
+    @Test
+    public void healthyCounterpartiesAreNotProbed() throws Exception {
+        issueIOU(10);
+        issueIOU(10);
+
+        FlowDeadlineService deadlines = a.getServices().cordaService(FlowDeadlineService.class);
+        assertEquals(0, deadlines.parked(FlowDeadlineService.Phase.COLLECT_SIGNATURES));
+        assertEquals(0, deadlines.parked(FlowDeadlineService.Phase.FINALITY));
+        assertTrue(deadlines.suspects(b.getInfo().getLegalIdentities()).isEmpty());
+        assertTrue(deadlines.unresponsive().isEmpty());
+    }
+}
@@ -0,0 +1,125 @@
+package net.corda.samples.obligation.flows;
+
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.NotaryException;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Races many settlements against the same IOUs and counts how many of them were only rejected by the notary, after
+ * all of the signing work had been done. With the IOUs reserved up front that wasted notarisation rate must be zero.
+ */
+public class IOUContentionTests {
+
+    private static final int CONCURRENT_FLOWS = 20;
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b;
+
+    @Before
+    public void setup() {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows")
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    private List<UniqueIdentifier> issueIOUs(int count) throws InterruptedException, ExecutionException {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        List<BatchIssueFlow.IssueEntry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            entries.add(new BatchIssueFlow.IssueEntry(CONCURRENT_FLOWS, lender));
+        }
+        Future<List<UniqueIdentifier>> future = a.startFlow(new BatchIssueFlow.InitiatorFlow(entries));
+        mockNetwork.runNetwork();
+        return future.get();
+    }
+
+    private static boolean causedBy(Throwable error, Class<? extends Throwable> type) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (type.isInstance(cause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void concurrentSettlementsOfOneIOUNeverReachTheNotaryTwice() throws Exception {
+        UniqueIdentifier linearId = issueIOUs(1).get(0);
+
+        List<Future<SignedTransaction>> futures = new ArrayList<>();
+        for (int i = 0; i < CONCURRENT_FLOWS; i++) {
+            futures.add(a.startFlow(new IOUSettleFlow.InitiatorFlow(linearId, 1)));
+        }
+        mockNetwork.runNetwork();
+
+        int settled = 0;
+        int rejectedEarly = 0;
+        int rejectedByNotary = 0;
+        for (Future<SignedTransaction> future : futures) {
+            try {
+                future.get();
+                settled++;
+            } catch (ExecutionException e) {
+                if (causedBy(e, NotaryException.class)) {
+                    rejectedByNotary++;
+                } else {
+                    assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("in use by another flow"));
+                    rejectedEarly++;
+                }
+            }
+        }
+        System.out.println(String.format("%d flows on one IOU: %d settled, %d rejected before signing, %d rejected by the notary (wasted notarisation rate %.1f%%)",
+                CONCURRENT_FLOWS, settled, rejectedEarly, rejectedByNotary, 100.0 * rejectedByNotary / CONCURRENT_FLOWS));
+
+        assertEquals(0, rejectedByNotary);
+        assertTrue(settled >= 1);
+        List<StateAndRef<IOUState>> remaining = a.transaction(() ->
+                a.getServices().getVaultService().queryBy(IOUState.class).getStates());
+        assertEquals(settled, remaining.get(0).getState().getData().getPaid());
+    }
+
+    @Test
+    public void settlementsOfDifferentIOUsDoNotContend() throws Exception {
+        List<UniqueIdentifier> linearIds = issueIOUs(CONCURRENT_FLOWS);
+
+        List<Future<SignedTransaction>> futures = new ArrayList<>();
+        for (UniqueIdentifier linearId : linearIds) {
+            futures.add(a.startFlow(new IOUSettleFlow.InitiatorFlow(linearId, 1)));
+        }
+        mockNetwork.runNetwork();
+
+        for (Future<SignedTransaction> future : futures) {
+            future.get();
+        }
+    }
+}
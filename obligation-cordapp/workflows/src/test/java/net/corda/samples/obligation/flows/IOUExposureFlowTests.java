@@ -0,0 +1,103 @@
+package net.corda.samples.obligation.flows;
+
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.services.ExposureService;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+public class IOUExposureFlowTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b, c;
+    private Party partyA, partyB, partyC;
+
+    @Before
+    public void setup() {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows")
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        c = mockNetwork.createNode(new MockNodeParameters());
+        partyA = a.getInfo().getLegalIdentities().get(0);
+        partyB = b.getInfo().getLegalIdentities().get(0);
+        partyC = c.getInfo().getLegalIdentities().get(0);
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    private UniqueIdentifier issueIOU(StartedMockNode borrower, int amount, Party lender) throws InterruptedException, ExecutionException {
+        Future<SignedTransaction> future = borrower.startFlow(new IOUIssueFlow.InitiatorFlow(amount, lender));
+        mockNetwork.runNetwork();
+        return future.get().getTx().outputsOfType(IOUState.class).get(0).getLinearId();
+    }
+
+    private ExposureService.Exposure exposure(StartedMockNode node, Party counterparty) throws InterruptedException, ExecutionException {
+        Future<ExposureService.Exposure> future = node.startFlow(new IOUExposureFlow.ForCounterparty(counterparty));
+        mockNetwork.runNetwork();
+        return future.get();
+    }
+
+    @Test
+    public void exposureFollowsIssuanceAndSettlement() throws Exception {
+        UniqueIdentifier first = issueIOU(a, 10, partyB);
+        issueIOU(a, 20, partyB);
+        issueIOU(c, 5, partyA);
+
+        ExposureService.Exposure toB = exposure(a, partyB);
+        assertEquals(0, toB.getOwedToUs());
+        assertEquals(30, toB.getOwedByUs());
+        assertEquals(2, toB.getIousBorrowed());
+        assertEquals(-30, toB.getNet());
+        assertEquals(30, exposure(b, partyA).getOwedToUs());
+        assertEquals(5, exposure(a, partyC).getOwedToUs());
+
+        // A part payment lowers the total, a full payment also removes the IOU.
+        Future<SignedTransaction> partly = a.startFlow(new IOUSettleFlow.InitiatorFlow(first, 4));
+        mockNetwork.runNetwork();
+        partly.get();
+        assertEquals(26, exposure(a, partyB).getOwedByUs());
+        assertEquals(2, exposure(a, partyB).getIousBorrowed());
+
+        Future<SignedTransaction> fully = a.startFlow(new IOUSettleFlow.InitiatorFlow(first, 6));
+        mockNetwork.runNetwork();
+        fully.get();
+        assertEquals(20, exposure(a, partyB).getOwedByUs());
+        assertEquals(1, exposure(a, partyB).getIousBorrowed());
+    }
+
+    @Test
+    public void allListsEveryCounterparty() throws Exception {
+        issueIOU(a, 10, partyB);
+        issueIOU(c, 5, partyA);
+
+        Future<List<ExposureService.Exposure>> future = a.startFlow(new IOUExposureFlow.All());
+        mockNetwork.runNetwork();
+        List<ExposureService.Exposure> exposures = future.get();
+
+        assertEquals(2, exposures.size());
+        assertEquals(-5, exposures.stream().mapToLong(ExposureService.Exposure::getNet).sum());
+    }
+}
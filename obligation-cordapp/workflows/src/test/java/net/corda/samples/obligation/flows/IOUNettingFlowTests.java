@@ -0,0 +1,133 @@
+package net.corda.samples.obligation.flows;
+
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.contracts.IOUContract;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IOUNettingFlowTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b, c;
+    private Party partyA, partyB, partyC;
+
+    private void startNetwork(boolean shareThirdPartyIOUs) {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows").withConfig(Collections.singletonMap(
+                                IOUNettingFlow.Responder.SHARE_THIRD_PARTY_CONFIG_KEY, shareThirdPartyIOUs))
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        c = mockNetwork.createNode(new MockNodeParameters());
+        partyA = a.getInfo().getLegalIdentities().get(0);
+        partyB = b.getInfo().getLegalIdentities().get(0);
+        partyC = c.getInfo().getLegalIdentities().get(0);
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    private void issueIOU(StartedMockNode borrower, int amount, Party lender) throws InterruptedException, ExecutionException {
+        Future<SignedTransaction> future = borrower.startFlow(new IOUIssueFlow.InitiatorFlow(amount, lender));
+        mockNetwork.runNetwork();
+        future.get();
+    }
+
+    private List<IOUState> ious(StartedMockNode node) {
+        return node.transaction(() -> node.getServices().getVaultService().queryBy(IOUState.class).getStates().stream()
+                .map(StateAndRef::getState)
+                .map(state -> state.getData())
+                .collect(Collectors.toList()));
+    }
+
+    private static long netPosition(List<IOUState> ious, Party party) {
+        long position = 0;
+        for (IOUState iou : ious) {
+            if (iou.getLender().equals(party)) {
+                position += iou.getAmount() - iou.getPaid();
+            }
+            if (iou.getBorrower().equals(party)) {
+                position -= iou.getAmount() - iou.getPaid();
+            }
+        }
+        return position;
+    }
+
+    @Test
+    public void cycleIsReplacedByResidualsInOneNetTransaction() throws Exception {
+        startNetwork(true);
+        // A owes B 10, B owes C 7 and C owes A 4.
+        issueIOU(a, 10, partyB);
+        issueIOU(b, 7, partyC);
+        issueIOU(c, 4, partyA);
+
+        Future<List<SignedTransaction>> future = a.startFlow(new IOUNettingFlow.InitiatorFlow());
+        mockNetwork.runNetwork();
+        List<SignedTransaction> netTransactions = future.get();
+
+        assertEquals(1, netTransactions.size());
+        SignedTransaction netTx = netTransactions.get(0);
+        assertTrue(netTx.getTx().getCommands().get(0).getValue() instanceof IOUContract.Commands.Net);
+        assertEquals(3, netTx.getTx().getInputs().size());
+        assertEquals(2, netTx.getTx().getOutputStates().size());
+
+        // A now owes B 3 and C 3, and nobody's net position has changed.
+        List<IOUState> onA = ious(a);
+        assertEquals(2, onA.size());
+        assertEquals(-6, netPosition(onA, partyA));
+        assertEquals(1, ious(b).size());
+        assertEquals(3, netPosition(ious(b), partyB));
+        assertEquals(1, ious(c).size());
+        assertEquals(3, netPosition(ious(c), partyC));
+    }
+
+    @Test
+    public void obligationsWithoutCyclesAreLeftAlone() throws Exception {
+        startNetwork(true);
+        issueIOU(a, 10, partyB);
+        issueIOU(b, 7, partyC);
+
+        Future<List<SignedTransaction>> future = a.startFlow(new IOUNettingFlow.InitiatorFlow());
+        mockNetwork.runNetwork();
+
+        assertTrue(future.get().isEmpty());
+        assertEquals(1, ious(a).size());
+        assertEquals(2, ious(b).size());
+    }
+
+    @Test
+    public void iousOfOtherPartiesAreNotSharedByDefault() throws Exception {
+        startNetwork(false);
+        // A owes B 10, B owes C 7 and C owes A 4, but A is told nothing of the IOU between B and C.
+        issueIOU(a, 10, partyB);
+        issueIOU(b, 7, partyC);
+        issueIOU(c, 4, partyA);
+
+        Future<List<SignedTransaction>> future = a.startFlow(new IOUNettingFlow.InitiatorFlow());
+        mockNetwork.runNetwork();
+
+        assertTrue(future.get().isEmpty());
+        assertEquals(2, ious(a).size());
+    }
+}
@@ -0,0 +1,126 @@
+package net.corda.samples.obligation.flows;
+
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.contracts.IOUContract;
+import net.corda.samples.obligation.services.ChainDepthService;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IOUReissueFlowTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b, c;
+
+    @Before
+    public void setup() {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows")
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        c = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    private <T> T run(StartedMockNode node, FlowLogic<T> flow) throws Exception {
+        Future<T> future = node.startFlow(flow);
+        mockNetwork.runNetwork();
+        return future.get();
+    }
+
+    /**
+     * Issues an IOU from a to b and pays it down in three steps, giving it a chain depth of four.
+     */
+    private UniqueIdentifier issueDeepIOU() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        SignedTransaction issued = run(a, new IOUIssueFlow.InitiatorFlow(10, lender));
+        UniqueIdentifier linearId = issued.getTx().outputsOfType(IOUState.class).get(0).getLinearId();
+        for (int i = 0; i < 3; i++) {
+            run(a, new IOUSettleFlow.InitiatorFlow(linearId, 1));
+        }
+        return linearId;
+    }
+
+    private StateAndRef<IOUState> unconsumed(StartedMockNode node) {
+        List<StateAndRef<IOUState>> states = node.transaction(() ->
+                node.getServices().getVaultService().queryBy(IOUState.class).getStates());
+        assertEquals(1, states.size());
+        return states.get(0);
+    }
+
+    private int depth(StartedMockNode node, StateAndRef<IOUState> state) {
+        return node.transaction(() -> {
+            try {
+                return node.getServices().cordaService(ChainDepthService.class).depth(state);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    @Test
+    public void compactionReissuesDeepIOUsWithoutHistory() throws Exception {
+        UniqueIdentifier linearId = issueDeepIOU();
+        assertEquals(4, depth(b, unconsumed(b)));
+
+        List<UniqueIdentifier> reissued = run(b, new IOUReissueFlow.Compact(3));
+        assertEquals(Collections.singletonList(linearId), reissued);
+
+        for (StartedMockNode node : Arrays.asList(a, b)) {
+            StateAndRef<IOUState> state = unconsumed(node);
+            assertEquals(linearId, state.getState().getData().getLinearId());
+            assertEquals(10, state.getState().getData().getAmount());
+            assertEquals(3, state.getState().getData().getPaid());
+            // The IOU is held by an Unlock transaction, whose only history is the Reissue transaction without inputs.
+            SignedTransaction unlock = node.transaction(() ->
+                    node.getServices().getValidatedTransactions().getTransaction(state.getRef().getTxhash()));
+            assertTrue(unlock.getTx().getCommands().get(0).getValue() instanceof IOUContract.Commands.Unlock);
+            assertNull(state.getState().getEncumbrance());
+            SignedTransaction reissue = node.transaction(() ->
+                    node.getServices().getValidatedTransactions().getTransaction(unlock.getInputs().get(0).getTxhash()));
+            assertTrue(reissue.getInputs().isEmpty());
+            assertEquals(2, depth(node, state));
+        }
+
+        // The reissued IOU can be traded as before.
+        Party newLender = c.getInfo().getLegalIdentities().get(0);
+        run(b, new IOUTransferFlow.InitiatorFlow(linearId, newLender));
+        assertEquals(newLender, unconsumed(c).getState().getData().getLender());
+    }
+
+    @Test
+    public void compactionLeavesShallowIOUsAlone() throws Exception {
+        issueDeepIOU();
+        StateAndRef<IOUState> before = unconsumed(b);
+
+        assertTrue(run(b, new IOUReissueFlow.Compact(4)).isEmpty());
+        assertEquals(before.getRef(), unconsumed(b).getRef());
+    }
+}
@@ -0,0 +1,221 @@
+package net.corda.samples.obligation.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.FlowSession;
+import net.corda.core.flows.SignTransactionFlow;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.services.ProcessedRequestSchemaV1;
+import net.corda.samples.obligation.services.RequestDedupeService;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+public class IdempotentRequestTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b;
+
+    private void startNetwork(long ttlMillis) {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows").withConfig(ImmutableMap.of(
+                                RequestDedupeService.TTL_CONFIG_KEY, ttlMillis))
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    private SignedTransaction issue(int amount, String requestId) throws InterruptedException, ExecutionException {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        Future<SignedTransaction> future = a.startFlow(new IOUIssueFlow.InitiatorFlow(amount, lender, requestId));
+        mockNetwork.runNetwork();
+        return future.get();
+    }
+
+    private int iouCount() {
+        return a.transaction(() -> a.getServices().getVaultService().queryBy(IOUState.class).getStates().size());
+    }
+
+    @Test
+    public void retriedIssueReturnsTheFirstTransaction() throws Exception {
+        startNetwork(RequestDedupeService.DEFAULT_TTL_MILLIS);
+
+        SignedTransaction first = issue(10, "client-request-1");
+        SignedTransaction retry = issue(10, "client-request-1");
+
+        assertEquals(first.getId(), retry.getId());
+        assertEquals(1, iouCount());
+
+        // A different request id issues a new IOU.
+        assertNotEquals(first.getId(), issue(10, "client-request-2").getId());
+        assertEquals(2, iouCount());
+    }
+
+    @Test
+    public void retriedSettleDoesNotPayTwice() throws Exception {
+        startNetwork(RequestDedupeService.DEFAULT_TTL_MILLIS);
+        UniqueIdentifier linearId = issue(10, null).getTx().outputsOfType(IOUState.class).get(0).getLinearId();
+
+        for (int i = 0; i < 2; i++) {
+            Future<SignedTransaction> future = a.startFlow(new IOUSettleFlow.InitiatorFlow(linearId, 4, "client-settle-1"));
+            mockNetwork.runNetwork();
+            future.get();
+        }
+
+        int paid = a.transaction(() -> a.getServices().getVaultService().queryBy(IOUState.class).getStates().get(0).getState().getData().getPaid());
+        assertEquals(4, paid);
+    }
+
+    @Test
+    public void retriedFullSettleReturnsTheFirstTransaction() throws Exception {
+        startNetwork(RequestDedupeService.DEFAULT_TTL_MILLIS);
+        UniqueIdentifier linearId = issue(10, null).getTx().outputsOfType(IOUState.class).get(0).getLinearId();
+
+        SignedTransaction[] settlements = new SignedTransaction[2];
+        for (int i = 0; i < 2; i++) {
+            Future<SignedTransaction> future = a.startFlow(new IOUSettleFlow.InitiatorFlow(linearId, 10, "client-settle-1"));
+            mockNetwork.runNetwork();
+            settlements[i] = future.get();
+        }
+
+        // The IOU is gone after the first attempt, and the retry still returns its transaction.
+        assertEquals(settlements[0].getId(), settlements[1].getId());
+        assertEquals(0, iouCount());
+    }
+
+    @Test
+    public void requestIdsExpireAfterTheirTtl() throws Exception {
+        startNetwork(1);
+
+        SignedTransaction first = issue(10, "client-request-1");
+        Thread.sleep(10);
+        SignedTransaction retry = issue(10, "client-request-1");
+
+        assertNotEquals(first.getId(), retry.getId());
+        assertEquals(2, iouCount());
+    }
+
+    @Test
+    public void requestIdCannotBeReusedByAnotherFlow() throws Exception {
+        startNetwork(RequestDedupeService.DEFAULT_TTL_MILLIS);
+        UniqueIdentifier linearId = issue(10, "client-request-1").getTx().outputsOfType(IOUState.class).get(0).getLinearId();
+
+        Future<SignedTransaction> future = a.startFlow(new IOUSettleFlow.InitiatorFlow(linearId, 4, "client-request-1"));
+        mockNetwork.runNetwork();
+
+        exception.expectCause(instanceOf(FlowException.class));
+        future.get();
+    }
+
+    @Test
+    public void requestStillBeingServedIsNotServedAgain() throws Exception {
+        startNetwork(RequestDedupeService.DEFAULT_TTL_MILLIS);
+
+        // The pending row of a flow which claimed the request before the node restarted, and is still serving it.
+        a.transaction(() -> {
+            a.getServices().withEntityManager(entityManager -> {
+                entityManager.persist(new ProcessedRequestSchemaV1.ProcessedRequest("client-request-1",
+                        IOUIssueFlow.InitiatorFlow.class.getName(), null, Instant.now(), UUID.randomUUID().toString()));
+            });
+            return null;
+        });
+
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        Future<SignedTransaction> future = a.startFlow(new IOUIssueFlow.InitiatorFlow(10, lender, "client-request-1"));
+        mockNetwork.runNetwork();
+        assertEquals(0, iouCount());
+
+        exception.expectCause(instanceOf(FlowException.class));
+        future.get();
+    }
+
+    /**
+     * A lender which signs the IOU and then fails instead of receiving the finalised transaction, so that the
+     * borrower's flow fails after the transaction was recorded.
+     */
+    public static class SignThenFailResponder extends FlowLogic<Void> {
+
+        private final FlowSession otherPartyFlow;
+
+        public SignThenFailResponder(FlowSession otherPartyFlow) {
+            this.otherPartyFlow = otherPartyFlow;
+        }
+
+        @Suspendable
+        @Override
+        public Void call() throws FlowException {
+            class SignTxFlow extends SignTransactionFlow {
+                private SignTxFlow(FlowSession otherPartyFlow) {
+                    super(otherPartyFlow);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                }
+            }
+
+            subFlow(new SignTxFlow(otherPartyFlow));
+            throw new FlowException("Gone before finality");
+        }
+    }
+
+    @Test
+    public void requestServedByAFailedFlowIsNotServedAgain() throws Exception {
+        startNetwork(RequestDedupeService.DEFAULT_TTL_MILLIS);
+        b.registerInitiatedFlow(IOUIssueFlow.InitiatorFlow.class, SignThenFailResponder.class);
+
+        try {
+            issue(10, "client-request-1");
+            fail("The issuance should have failed after recording its transaction");
+        } catch (ExecutionException e) {
+            assertEquals(1, iouCount());
+        }
+
+        // The request is completed with the recorded transaction in the background, and is reported as still being
+        // served until then.
+        SignedTransaction retry = null;
+        for (int attempt = 0; retry == null && attempt < 50; attempt++) {
+            try {
+                retry = issue(10, "client-request-1");
+            } catch (ExecutionException e) {
+                Thread.sleep(100);
+            }
+        }
+        assertNotNull(retry);
+        assertEquals(1, iouCount());
+    }
+}
@@ -0,0 +1,206 @@
+package net.corda.samples.obligation.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.flows.*;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.StatesToRecord;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.samples.obligation.contracts.IOUContract;
+import net.corda.samples.obligation.services.IOUIndexService;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelSignaturesFlowTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b, c;
+
+    @Before
+    public void setup() {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows")
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        c = mockNetwork.createNode(new MockNodeParameters());
+
+        ArrayList<StartedMockNode> startedNodes = new ArrayList<>();
+        startedNodes.add(a);
+        startedNodes.add(b);
+        startedNodes.add(c);
+
+        // For real nodes this happens automatically, but we have to manually register the flows for tests
+        startedNodes.forEach(el -> el.registerInitiatedFlow(IOUTransferFlow.Responder.class));
+        startedNodes.forEach(el -> el.registerInitiatedFlow(IOUIssueFlow.ResponderFlow.class));
+        startedNodes.forEach(el -> el.registerInitiatedFlow(LegacyTransferFlow.class, IOUTransferFlow.Responder.class));
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    private UniqueIdentifier issueIOU(int amount, Party lender) throws InterruptedException, ExecutionException {
+        Future<SignedTransaction> future = a.startFlow(new IOUIssueFlow.InitiatorFlow(amount, lender));
+        mockNetwork.runNetwork();
+        return future.get().getTx().outputsOfType(IOUState.class).get(0).getLinearId();
+    }
+
+    /**
+     * Transfers an IOU the way initiators of version 1 did, collecting the signatures with the CollectSignaturesFlow.
+     */
+    @InitiatingFlow(version = 1)
+    public static class LegacyTransferFlow extends FlowLogic<SignedTransaction> {
+
+        private final UniqueIdentifier stateLinearId;
+        private final Party newLender;
+
+        public LegacyTransferFlow(UniqueIdentifier stateLinearId, Party newLender) {
+            this.stateLinearId = stateLinearId;
+            this.newLender = newLender;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            StateAndRef<IOUState> input = getServiceHub().cordaService(IOUIndexService.class).get(stateLinearId);
+            IOUState iou = input.getState().getData();
+            TransactionBuilder tb = new TransactionBuilder(input.getState().getNotary())
+                    .addInputState(input)
+                    .addOutputState(new IOUState(iou.getAmount(), newLender, iou.getBorrower(), iou.getPaid(), iou.getLinearId()), IOUContract.IOU_CONTRACT_ID)
+                    .addCommand(new IOUContract.Commands.Transfer(),
+                            Arrays.asList(iou.getLender().getOwningKey(), iou.getBorrower().getOwningKey(), newLender.getOwningKey()));
+            tb.verify(getServiceHub());
+            SignedTransaction ptx = getServiceHub().signInitialTransaction(tb);
+
+            List<FlowSession> sessions = Arrays.asList(initiateFlow(iou.getBorrower()), initiateFlow(newLender));
+            SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions));
+            return subFlow(new FinalityFlow(stx, sessions));
+        }
+    }
+
+    /**
+     * Collects the lender's signature for the issuance of a new IOU with the [ParallelSignaturesFlow].
+     */
+    @InitiatingFlow
+    public static class CollectIssueSignatureFlow extends FlowLogic<SignedTransaction> {
+
+        private final Party lender;
+
+        public CollectIssueSignatureFlow(Party lender) {
+            this.lender = lender;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+            TransactionBuilder tb = new TransactionBuilder(notary)
+                    .addOutputState(new IOUState(10, lender, getOurIdentity()), IOUContract.IOU_CONTRACT_ID)
+                    .addCommand(new IOUContract.Commands.Issue(),
+                            Arrays.asList(lender.getOwningKey(), getOurIdentity().getOwningKey()));
+            tb.verify(getServiceHub());
+            SignedTransaction ptx = getServiceHub().signInitialTransaction(tb);
+            return subFlow(new ParallelSignaturesFlow.Collect(ptx, Collections.singletonList(initiateFlow(lender))));
+        }
+    }
+
+    /**
+     * A counterparty which answers with a signature made by a fresh key rather than its identity key.
+     */
+    public static class WrongKeySigner extends FlowLogic<Void> {
+
+        private final FlowSession otherPartyFlow;
+
+        public WrongKeySigner(FlowSession otherPartyFlow) {
+            this.otherPartyFlow = otherPartyFlow;
+        }
+
+        @Suspendable
+        @Override
+        public Void call() throws FlowException {
+            SignedTransaction stx = subFlow(new ReceiveTransactionFlow(otherPartyFlow, false, StatesToRecord.NONE));
+            otherPartyFlow.send(getServiceHub().createSignature(stx, getServiceHub().getKeyManagementService().freshKey()));
+            return null;
+        }
+    }
+
+    @Test
+    public void transferIsSignedByEachCounterparty() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        Party borrower = a.getInfo().getLegalIdentities().get(0);
+        Party newLender = c.getInfo().getLegalIdentities().get(0);
+        UniqueIdentifier linearId = issueIOU(10, lender);
+
+        Future<SignedTransaction> future = b.startFlow(new IOUTransferFlow.InitiatorFlow(linearId, newLender));
+        mockNetwork.runNetwork();
+        SignedTransaction stx = future.get();
+
+        // Each signature collected in parallel is the counterparty's own, over this transaction.
+        for (Party counterparty : Arrays.asList(borrower, newLender)) {
+            List<TransactionSignature> signatures = new ArrayList<>();
+            stx.getSigs().stream().filter(signature -> signature.getBy().equals(counterparty.getOwningKey())).forEach(signatures::add);
+            assertEquals(1, signatures.size());
+            signatures.get(0).verify(stx.getId());
+        }
+        stx.verifyRequiredSignatures();
+    }
+
+    @Test
+    public void signatureMadeByTheWrongKeyIsRejected() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        b.registerInitiatedFlow(CollectIssueSignatureFlow.class, WrongKeySigner.class);
+
+        Future<SignedTransaction> future = a.startFlow(new CollectIssueSignatureFlow(lender));
+        mockNetwork.runNetwork();
+        try {
+            future.get();
+            fail("A signature made by another key should have been rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof FlowException);
+            assertTrue(e.getCause().getMessage().contains("was made by another key"));
+        }
+    }
+
+    @Test
+    public void responderStillSignsForVersionOneInitiators() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        Party newLender = c.getInfo().getLegalIdentities().get(0);
+        UniqueIdentifier linearId = issueIOU(10, lender);
+
+        Future<SignedTransaction> future = b.startFlow(new LegacyTransferFlow(linearId, newLender));
+        mockNetwork.runNetwork();
+        SignedTransaction stx = future.get();
+        stx.verifyRequiredSignatures();
+
+        // The borrower and the new lender both recorded the transfer.
+        for (StartedMockNode node : Arrays.asList(a, c)) {
+            List<StateAndRef<IOUState>> ious = node.transaction(() ->
+                    node.getServices().getVaultService().queryBy(IOUState.class).getStates());
+            assertEquals(1, ious.size());
+            assertEquals(newLender, ious.get(0).getState().getData().getLender());
+        }
+    }
+}
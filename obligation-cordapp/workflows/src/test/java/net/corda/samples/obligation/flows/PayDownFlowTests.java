@@ -0,0 +1,144 @@
+package net.corda.samples.obligation.flows;
+
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.FlowException;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
+import static org.junit.Assert.assertEquals;
+
+public class PayDownFlowTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b;
+
+    @Before
+    public void setup() {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows")
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+
+        ArrayList<StartedMockNode> startedNodes = new ArrayList<>();
+        startedNodes.add(a);
+        startedNodes.add(b);
+
+        // For real nodes this happens automatically, but we have to manually register the flows for tests
+        startedNodes.forEach(el -> el.registerInitiatedFlow(IOUIssueFlow.ResponderFlow.class));
+        startedNodes.forEach(el -> el.registerInitiatedFlow(PayDownFlow.Responder.class));
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    private UniqueIdentifier issueIOU(int amount, Party lender) throws InterruptedException, ExecutionException {
+        Future<SignedTransaction> future = a.startFlow(new IOUIssueFlow.InitiatorFlow(amount, lender));
+        mockNetwork.runNetwork();
+        return future.get().getTx().outputsOfType(IOUState.class).get(0).getLinearId();
+    }
+
+    private Map<UniqueIdentifier, Integer> payDown(Party lender, int amount, PayDownFlow.Order order) throws InterruptedException, ExecutionException {
+        Future<Map<UniqueIdentifier, Integer>> future = a.startFlow(new PayDownFlow.InitiatorFlow(lender, amount, order));
+        mockNetwork.runNetwork();
+        return future.get();
+    }
+
+    private Map<UniqueIdentifier, Integer> paidByLinearId() {
+        List<StateAndRef<IOUState>> states = a.transaction(() ->
+                a.getServices().getVaultService().queryBy(IOUState.class).getStates());
+        return states.stream().map(it -> it.getState().getData())
+                .collect(Collectors.toMap(IOUState::getLinearId, IOUState::getPaid));
+    }
+
+
+    @Test
+    public void flowPaysDownSmallestIOUsFirst() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        UniqueIdentifier thirty = issueIOU(30, lender);
+        UniqueIdentifier ten = issueIOU(10, lender);
+        UniqueIdentifier twenty = issueIOU(20, lender);
+
+        Map<UniqueIdentifier, Integer> allocation = payDown(lender, 25, PayDownFlow.Order.SMALLEST);
+
+        assertEquals(Arrays.asList(ten, twenty), new ArrayList<>(allocation.keySet()));
+        assertEquals(Integer.valueOf(10), allocation.get(ten));
+        assertEquals(Integer.valueOf(15), allocation.get(twenty));
+
+        Map<UniqueIdentifier, Integer> paid = paidByLinearId();
+        assertEquals(2, paid.size());
+        assertEquals(Integer.valueOf(15), paid.get(twenty));
+        assertEquals(Integer.valueOf(0), paid.get(thirty));
+    }
+
+
+    @Test
+    public void flowPaysDownLargestIOUsFirst() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        UniqueIdentifier ten = issueIOU(10, lender);
+        UniqueIdentifier thirty = issueIOU(30, lender);
+        UniqueIdentifier twenty = issueIOU(20, lender);
+
+        Map<UniqueIdentifier, Integer> allocation = payDown(lender, 35, PayDownFlow.Order.LARGEST);
+
+        assertEquals(Arrays.asList(thirty, twenty), new ArrayList<>(allocation.keySet()));
+        Map<UniqueIdentifier, Integer> paid = paidByLinearId();
+        assertEquals(2, paid.size());
+        assertEquals(Integer.valueOf(5), paid.get(twenty));
+        assertEquals(Integer.valueOf(0), paid.get(ten));
+    }
+
+
+    @Test
+    public void flowPaysDownOldestIOUsFirst() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        UniqueIdentifier first = issueIOU(20, lender);
+        UniqueIdentifier second = issueIOU(10, lender);
+
+        Map<UniqueIdentifier, Integer> allocation = payDown(lender, 5, PayDownFlow.Order.OLDEST);
+
+        assertEquals(Collections.singletonList(first), new ArrayList<>(allocation.keySet()));
+        Map<UniqueIdentifier, Integer> paid = paidByLinearId();
+        assertEquals(Integer.valueOf(5), paid.get(first));
+        assertEquals(Integer.valueOf(0), paid.get(second));
+    }
+
+
+    @Test
+    public void flowFailsWhenTheAmountExceedsWhatIsOutstanding() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        issueIOU(10, lender);
+
+        Future<Map<UniqueIdentifier, Integer>> future = a.startFlow(new PayDownFlow.InitiatorFlow(lender, 11));
+        mockNetwork.runNetwork();
+
+        exception.expectCause(instanceOf(FlowException.class));
+        future.get();
+    }
+}
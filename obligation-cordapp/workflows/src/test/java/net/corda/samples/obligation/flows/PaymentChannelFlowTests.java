@@ -0,0 +1,152 @@
+package net.corda.samples.obligation.flows;
+
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.contracts.PaymentReceipt;
+import net.corda.samples.obligation.services.PaymentChannelService;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PaymentChannelFlowTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b, c;
+
+    private void startNetwork(int commitAmount) {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows").withConfig(ImmutableMap.of(
+                                PaymentChannelService.COMMIT_AMOUNT_CONFIG_KEY, commitAmount,
+                                PaymentChannelService.COMMIT_INTERVAL_CONFIG_KEY, 600_000))
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))))
+                .withThreadPerNode(true);
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        c = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.startNodes();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    private UniqueIdentifier issueIOU(int amount) throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        Future<SignedTransaction> future = a.startFlow(new IOUIssueFlow.InitiatorFlow(amount, lender));
+        return future.get(30, TimeUnit.SECONDS).getTx().outputsOfType(IOUState.class).get(0).getLinearId();
+    }
+
+    private Future<PaymentReceipt> open(UniqueIdentifier linearId) throws Exception {
+        Future<PaymentReceipt> channel = a.startFlow(new PaymentChannelFlow.Open(linearId));
+        PaymentChannelService channels = a.getServices().cordaService(PaymentChannelService.class);
+        for (int i = 0; i < 300 && !channels.isOpen(linearId); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(channels.isOpen(linearId));
+        return channel;
+    }
+
+    private PaymentReceipt pay(UniqueIdentifier linearId, int amount) throws Exception {
+        return a.startFlow(new PaymentChannelFlow.Pay(linearId, amount)).get(30, TimeUnit.SECONDS);
+    }
+
+    private List<StateAndRef<IOUState>> iousOn(StartedMockNode node) {
+        return node.transaction(() -> node.getServices().getVaultService().queryBy(IOUState.class).getStates());
+    }
+
+    @Test
+    public void paymentsAreReceiptedOffLedgerAndCommittedOnClose() throws Exception {
+        startNetwork(1000);
+        UniqueIdentifier linearId = issueIOU(100);
+        Future<PaymentReceipt> channel = open(linearId);
+
+        PaymentReceipt receipt = null;
+        for (int i = 0; i < 5; i++) {
+            receipt = pay(linearId, 3);
+        }
+        assertEquals(15, receipt.getPaidToDate());
+        assertTrue(receipt.isSignedBy(b.getInfo().getLegalIdentities().get(0).getOwningKey()));
+
+        // Nothing has been settled on the ledger yet.
+        assertEquals(0, iousOn(a).get(0).getState().getData().getPaid());
+
+        PaymentReceipt committed = a.startFlow(new PaymentChannelFlow.Close(linearId)).get(30, TimeUnit.SECONDS);
+        assertEquals(15, committed.getPaidToDate());
+        assertEquals(15, channel.get(30, TimeUnit.SECONDS).getPaidToDate());
+        assertEquals(15, iousOn(a).get(0).getState().getData().getPaid());
+        assertEquals(15, iousOn(b).get(0).getState().getData().getPaid());
+    }
+
+    @Test
+    public void channelCommitsOnceTheThresholdIsReached() throws Exception {
+        startNetwork(10);
+        UniqueIdentifier linearId = issueIOU(100);
+        open(linearId);
+
+        pay(linearId, 4);
+        pay(linearId, 4);
+        assertEquals(0, iousOn(b).get(0).getState().getData().getPaid());
+
+        pay(linearId, 4);
+        for (int i = 0; i < 300 && iousOn(b).get(0).getState().getData().getPaid() == 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(12, iousOn(b).get(0).getState().getData().getPaid());
+    }
+
+    @Test
+    public void channelClosesOnceTheIOUIsFullyPaid() throws Exception {
+        startNetwork(1000);
+        UniqueIdentifier linearId = issueIOU(20);
+        Future<PaymentReceipt> channel = open(linearId);
+
+        pay(linearId, 20);
+
+        assertEquals(20, channel.get(30, TimeUnit.SECONDS).getPaidToDate());
+        assertTrue(iousOn(a).isEmpty());
+        assertTrue(iousOn(b).isEmpty());
+    }
+
+    @Test
+    public void borrowerRefusesToSignAwayAnIOUWithAnOpenChannel() throws Exception {
+        startNetwork(1000);
+        UniqueIdentifier linearId = issueIOU(100);
+        open(linearId);
+        pay(linearId, 5);
+
+        // The lender cannot transfer the IOU while its payments are receipted off-ledger.
+        Party newLender = c.getInfo().getLegalIdentities().get(0);
+        try {
+            b.startFlow(new IOUTransferFlow.InitiatorFlow(linearId, newLender)).get(30, TimeUnit.SECONDS);
+            fail("The transfer should have been refused by the borrower");
+        } catch (ExecutionException e) {
+            // Expected.
+        }
+
+        // So the receipts of the channel can still be committed.
+        assertEquals(5, a.startFlow(new PaymentChannelFlow.Close(linearId)).get(30, TimeUnit.SECONDS).getPaidToDate());
+        assertEquals(5, iousOn(b).get(0).getState().getData().getPaid());
+        assertTrue(iousOn(c).isEmpty());
+    }
+}
@@ -0,0 +1,126 @@
+package net.corda.samples.obligation.flows;
+
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PortfolioTransferFlowTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b, c, d;
+
+    @Before
+    public void setup() {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows")
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        c = mockNetwork.createNode(new MockNodeParameters());
+        d = mockNetwork.createNode(new MockNodeParameters());
+
+        ArrayList<StartedMockNode> startedNodes = new ArrayList<>();
+        startedNodes.add(a);
+        startedNodes.add(b);
+        startedNodes.add(c);
+        startedNodes.add(d);
+
+        // For real nodes this happens automatically, but we have to manually register the flows for tests
+        startedNodes.forEach(el -> el.registerInitiatedFlow(IOUIssueFlow.ResponderFlow.class));
+        startedNodes.forEach(el -> el.registerInitiatedFlow(PortfolioTransferFlow.Responder.class));
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    private UniqueIdentifier issueIOU(StartedMockNode borrower, int amount, Party lender) throws InterruptedException, ExecutionException {
+        Future<SignedTransaction> future = borrower.startFlow(new IOUIssueFlow.InitiatorFlow(amount, lender));
+        mockNetwork.runNetwork();
+        return future.get().getTx().outputsOfType(IOUState.class).get(0).getLinearId();
+    }
+
+
+    @Test
+    public void flowTransfersIOUsOfSeveralBorrowersInBatches() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        Party newLender = d.getInfo().getLegalIdentities().get(0);
+        List<UniqueIdentifier> portfolio = Arrays.asList(
+                issueIOU(a, 10, lender),
+                issueIOU(c, 20, lender),
+                issueIOU(a, 30, lender));
+
+        Future<List<PortfolioTransferFlow.BatchReport>> future = b.startFlow(new PortfolioTransferFlow.InitiatorFlow(portfolio, newLender, 2));
+        mockNetwork.runNetwork();
+        List<PortfolioTransferFlow.BatchReport> reports = future.get();
+
+        assertEquals(2, reports.size());
+        assertEquals(2, reports.get(0).getSize());
+        assertEquals(1, reports.get(1).getSize());
+        assertTrue(reports.get(0).getIousPerSecond() > 0);
+
+        List<StateAndRef<IOUState>> transferred = d.transaction(() ->
+                d.getServices().getVaultService().queryBy(IOUState.class).getStates());
+        assertEquals(3, transferred.size());
+        transferred.forEach(it -> assertEquals(newLender, it.getState().getData().getLender()));
+    }
+
+
+    @Test
+    public void flowCanOnlyBeRunByCurrentLender() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        Party newLender = d.getInfo().getLegalIdentities().get(0);
+        List<UniqueIdentifier> portfolio = Collections.singletonList(issueIOU(a, 10, lender));
+
+        Future<List<PortfolioTransferFlow.BatchReport>> future = a.startFlow(new PortfolioTransferFlow.InitiatorFlow(portfolio, newLender));
+        try {
+            mockNetwork.runNetwork();
+            future.get();
+        } catch (Exception exception) {
+            assert exception.getMessage().equals("java.lang.IllegalArgumentException: This flows must be run by the current lender.");
+        }
+    }
+
+    @Test
+    public void failingBatchReportsTheBatchesAlreadyCommitted() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        Party newLender = d.getInfo().getLegalIdentities().get(0);
+        // The second IOU does not exist, so the second batch fails after the first one was committed.
+        List<UniqueIdentifier> portfolio = Arrays.asList(issueIOU(a, 10, lender), new UniqueIdentifier());
+
+        Future<List<PortfolioTransferFlow.BatchReport>> future = b.startFlow(new PortfolioTransferFlow.InitiatorFlow(portfolio, newLender, 1));
+        mockNetwork.runNetwork();
+        try {
+            future.get();
+            fail("The transfer should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PortfolioTransferFlow.PartialTransferException);
+            List<PortfolioTransferFlow.BatchReport> completed = ((PortfolioTransferFlow.PartialTransferException) e.getCause()).getCompleted();
+            assertEquals(1, completed.size());
+            assertEquals(1, completed.get(0).getSize());
+        }
+        assertEquals(1, d.transaction(() -> d.getServices().getVaultService().queryBy(IOUState.class).getStates().size()).intValue());
+    }
+}
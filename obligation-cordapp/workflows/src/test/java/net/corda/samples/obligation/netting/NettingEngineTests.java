@@ -0,0 +1,109 @@
+package net.corda.samples.obligation.netting;
+
+import net.corda.samples.obligation.netting.NettingEngine.NettingSet;
+import net.corda.samples.obligation.netting.NettingEngine.Obligation;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NettingEngineTests {
+
+    private final NettingEngine<String> engine = new NettingEngine<>(Comparator.<String>naturalOrder());
+
+    private static Map<String, Long> positions(List<Obligation<String>> obligations) {
+        Map<String, Long> positions = new HashMap<>();
+        for (Obligation<String> obligation : obligations) {
+            positions.merge(obligation.getCreditor(), obligation.getAmount(), Long::sum);
+            positions.merge(obligation.getDebtor(), -obligation.getAmount(), Long::sum);
+        }
+        positions.values().removeIf(position -> position == 0);
+        return positions;
+    }
+
+    private static void assertPreservesPositions(List<Obligation<String>> obligations, NettingSet<String> set) {
+        List<Obligation<String>> netted = new ArrayList<>();
+        set.getNetted().forEach(i -> netted.add(obligations.get(i)));
+        assertEquals(positions(netted), positions(set.getResiduals()));
+        set.getResiduals().forEach(residual -> assertTrue(residual.getAmount() > 0));
+    }
+
+    @Test
+    public void triangleIsNettedToItsResiduals() {
+        List<Obligation<String>> obligations = Arrays.asList(
+                new Obligation<>("A", "B", 10),
+                new Obligation<>("B", "C", 7),
+                new Obligation<>("C", "A", 4));
+
+        List<NettingSet<String>> sets = engine.plan(obligations);
+
+        assertEquals(1, sets.size());
+        assertEquals(Arrays.asList(0, 1, 2), sets.get(0).getNetted());
+        assertEquals(2, sets.get(0).getResiduals().size());
+        assertPreservesPositions(obligations, sets.get(0));
+    }
+
+    @Test
+    public void balancedCycleLeavesNoResiduals() {
+        List<Obligation<String>> obligations = Arrays.asList(
+                new Obligation<>("A", "B", 5),
+                new Obligation<>("B", "C", 5),
+                new Obligation<>("C", "A", 5));
+
+        List<NettingSet<String>> sets = engine.plan(obligations);
+
+        assertEquals(1, sets.size());
+        assertTrue(sets.get(0).getResiduals().isEmpty());
+    }
+
+    @Test
+    public void obligationsOffCyclesAreLeftAlone() {
+        List<Obligation<String>> obligations = Arrays.asList(
+                new Obligation<>("A", "B", 10),
+                new Obligation<>("B", "A", 3),
+                new Obligation<>("B", "C", 7),
+                new Obligation<>("C", "D", 4));
+
+        List<NettingSet<String>> sets = engine.plan(obligations);
+
+        assertEquals(1, sets.size());
+        assertEquals(Arrays.asList(0, 1), sets.get(0).getNetted());
+        assertEquals(Collections.singletonList("A owes B 7"), Collections.singletonList(sets.get(0).getResiduals().get(0).toString()));
+    }
+
+    @Test
+    public void disjointCyclesAreNettedSeparately() {
+        List<Obligation<String>> obligations = Arrays.asList(
+                new Obligation<>("A", "B", 10),
+                new Obligation<>("C", "D", 2),
+                new Obligation<>("B", "A", 4),
+                new Obligation<>("D", "C", 6));
+
+        List<NettingSet<String>> sets = engine.plan(obligations);
+
+        assertEquals(2, sets.size());
+        for (NettingSet<String> set : sets) {
+            assertEquals(2, set.getNetted().size());
+            assertEquals(1, set.getResiduals().size());
+            assertPreservesPositions(obligations, set);
+        }
+    }
+
+    @Test
+    public void longCycleNeedsFewerResidualsThanParties() {
+        int parties = 10_000;
+        List<Obligation<String>> obligations = new ArrayList<>();
+        for (int i = 0; i < parties; i++) {
+            obligations.add(new Obligation<>("P" + i, "P" + ((i + 1) % parties), 100 + i % 7));
+        }
+
+        List<NettingSet<String>> sets = engine.plan(obligations);
+
+        assertEquals(1, sets.size());
+        assertEquals(parties, sets.get(0).getNetted().size());
+        assertTrue(sets.get(0).getResiduals().size() < parties);
+        assertPreservesPositions(obligations, sets.get(0));
+    }
+}
@@ -0,0 +1,96 @@
+package net.corda.samples.obligation.services;
+
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.flows.IOUIssueFlow;
+import net.corda.samples.obligation.flows.IOUSettleFlow;
+import net.corda.samples.obligation.flows.IOUTransferFlow;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+public class FlowMetricsServiceTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b, c;
+
+    @Before
+    public void setup() {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows")
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        c = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    private long count(StartedMockNode node, Class<?> flow, String phase) {
+        return node.getServices().cordaService(FlowMetricsService.class).timer(flow, phase).getCount();
+    }
+
+    @Test
+    public void everyPhaseOfTheIOUFlowsIsTimed() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        Party newLender = c.getInfo().getLegalIdentities().get(0);
+
+        Future<SignedTransaction> issue = a.startFlow(new IOUIssueFlow.InitiatorFlow(10, lender));
+        mockNetwork.runNetwork();
+        UniqueIdentifier linearId = issue.get().getTx().outputsOfType(IOUState.class).get(0).getLinearId();
+        Future<SignedTransaction> transfer = b.startFlow(new IOUTransferFlow.InitiatorFlow(linearId, newLender));
+        mockNetwork.runNetwork();
+        transfer.get();
+        Future<SignedTransaction> settle = a.startFlow(new IOUSettleFlow.InitiatorFlow(linearId, 10));
+        mockNetwork.runNetwork();
+        settle.get();
+
+        for (String phase : Arrays.asList("selectNotary", "build", "verify", "sign", "collectSignatures", "finality")) {
+            assertEquals(phase, 1, count(a, IOUIssueFlow.InitiatorFlow.class, phase));
+        }
+        for (String phase : Arrays.asList("loadIou", "build", "verify", "sign", "collectSignatures", "finality")) {
+            assertEquals(phase, 1, count(b, IOUTransferFlow.InitiatorFlow.class, phase));
+            assertEquals(phase, 1, count(a, IOUSettleFlow.InitiatorFlow.class, phase));
+        }
+        for (String phase : Arrays.asList("signTransaction", "receiveFinality")) {
+            assertEquals(phase, 1, count(b, IOUIssueFlow.ResponderFlow.class, phase));
+            assertEquals(phase, 1, count(c, IOUTransferFlow.Responder.class, phase));
+            assertEquals(phase, 1, count(c, IOUSettleFlow.Responder.class, phase));
+        }
+    }
+
+    @Test
+    public void timersArePublishedOverJmx() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        Future<SignedTransaction> issue = a.startFlow(new IOUIssueFlow.InitiatorFlow(10, lender));
+        mockNetwork.runNetwork();
+        issue.get();
+
+        String organisation = a.getInfo().getLegalIdentities().get(0).getName().getOrganisation();
+        String domain = FlowMetricsService.JMX_DOMAIN + "." + organisation.replaceAll("[^A-Za-z0-9]", "");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = server.queryNames(new ObjectName(domain + ":name=IOUIssueFlow.InitiatorFlow.finality,*"), null).iterator().next();
+        assertEquals(1L, server.getAttribute(name, "Count"));
+    }
+}
@@ -0,0 +1,111 @@
+package net.corda.samples.obligation.services;
+
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.FlowException;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.flows.BatchIssueFlow;
+import net.corda.samples.obligation.flows.IOUSettleFlow;
+import net.corda.samples.obligation.flows.IOUTransferFlow;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.*;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IOUIndexServiceTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b, c;
+
+    @Before
+    public void setup() {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows")
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        c = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    @Rule
+    public final ExpectedException exception = ExpectedException.none();
+
+    private List<UniqueIdentifier> issueIOUs(int count) throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        List<BatchIssueFlow.IssueEntry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            entries.add(new BatchIssueFlow.IssueEntry(10 + i, lender));
+        }
+        Future<List<UniqueIdentifier>> future = a.startFlow(new BatchIssueFlow.InitiatorFlow(entries));
+        mockNetwork.runNetwork();
+        return future.get();
+    }
+
+    @Test
+    public void indexFollowsIssuanceAndReturnsStatesInRequestOrder() throws Exception {
+        List<UniqueIdentifier> linearIds = issueIOUs(3);
+        IOUIndexService index = b.getServices().cordaService(IOUIndexService.class);
+        assertTrue(index.isWarm());
+        assertEquals(3, index.size());
+
+        List<UniqueIdentifier> reversed = new ArrayList<>(linearIds);
+        Collections.reverse(reversed);
+        List<StateAndRef<IOUState>> states = index.getAll(reversed);
+        for (int i = 0; i < reversed.size(); i++) {
+            assertEquals(reversed.get(i), states.get(i).getState().getData().getLinearId());
+        }
+    }
+
+    @Test
+    public void indexFollowsConsumedAndProducedStates() throws Exception {
+        UniqueIdentifier linearId = issueIOUs(1).get(0);
+
+        Future<SignedTransaction> settled = a.startFlow(new IOUSettleFlow.InitiatorFlow(linearId, 5));
+        mockNetwork.runNetwork();
+        SignedTransaction settleTx = settled.get();
+        StateAndRef<IOUState> afterSettle = a.getServices().cordaService(IOUIndexService.class).get(linearId);
+        assertEquals(settleTx.getId(), afterSettle.getRef().getTxhash());
+        assertEquals(5, afterSettle.getState().getData().getPaid());
+
+        // Once the IOU has moved to a new lender, the old lender no longer holds it.
+        Party newLender = c.getInfo().getLegalIdentities().get(0);
+        Future<SignedTransaction> transferred = b.startFlow(new IOUTransferFlow.InitiatorFlow(linearId, newLender));
+        mockNetwork.runNetwork();
+        transferred.get();
+        assertEquals(0, b.getServices().cordaService(IOUIndexService.class).size());
+        assertEquals(newLender, c.getServices().cordaService(IOUIndexService.class).get(linearId).getState().getData().getLender());
+    }
+
+    @Test
+    public void transferOfMissingIOUFailsCleanly() throws Exception {
+        Party newLender = c.getInfo().getLegalIdentities().get(0);
+        Future<SignedTransaction> future = b.startFlow(new IOUTransferFlow.InitiatorFlow(new UniqueIdentifier(), newLender));
+        mockNetwork.runNetwork();
+
+        exception.expectCause(instanceOf(FlowException.class));
+        future.get();
+    }
+}
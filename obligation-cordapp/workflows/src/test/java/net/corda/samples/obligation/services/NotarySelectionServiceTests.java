@@ -0,0 +1,99 @@
+package net.corda.samples.obligation.services;
+
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.samples.obligation.flows.BatchIssueFlow;
+import net.corda.samples.obligation.flows.IOUTransferFlow;
+import net.corda.samples.obligation.states.IOUState;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class NotarySelectionServiceTests {
+
+    private static final CordaX500Name NOTARY_A = new CordaX500Name("Notary A", "London", "GB");
+    private static final CordaX500Name NOTARY_B = new CordaX500Name("Notary B", "Paris", "FR");
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b, c;
+
+    @Before
+    public void setup() {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.samples.obligation.contracts"),
+                        TestCordapp.findCordapp("net.corda.samples.obligation.flows").withConfig(ImmutableMap.of(
+                                NotarySelectionService.NOTARIES_CONFIG_KEY, NOTARY_A + ";" + NOTARY_B))
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(NOTARY_A), new MockNetworkNotarySpec(NOTARY_B)));
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        c = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    @Test
+    public void poolFollowsTheConfiguredOrder() throws Exception {
+        List<CordaX500Name> pool = a.getServices().cordaService(NotarySelectionService.class).getPool().stream()
+                .map(Party::getName)
+                .collect(Collectors.toList());
+        assertEquals(Arrays.asList(NOTARY_A, NOTARY_B), pool);
+    }
+
+    @Test
+    public void everyNodePicksTheSameNotaryForAState() throws Exception {
+        NotarySelectionService onA = a.getServices().cordaService(NotarySelectionService.class);
+        NotarySelectionService onB = b.getServices().cordaService(NotarySelectionService.class);
+        for (int i = 0; i < 20; i++) {
+            UniqueIdentifier linearId = new UniqueIdentifier();
+            assertEquals(onA.notaryForNewState(linearId), onB.notaryForNewState(linearId));
+        }
+    }
+
+    @Test
+    public void issuedIOUsAreSpreadOverThePoolAndKeepTheirNotary() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        List<BatchIssueFlow.IssueEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            entries.add(new BatchIssueFlow.IssueEntry(10, lender));
+        }
+        Future<List<UniqueIdentifier>> issued = a.startFlow(new BatchIssueFlow.InitiatorFlow(entries));
+        mockNetwork.runNetwork();
+        issued.get();
+
+        List<StateAndRef<IOUState>> states = b.transaction(() ->
+                b.getServices().getVaultService().queryBy(IOUState.class).getStates());
+        NotarySelectionService notaries = b.getServices().cordaService(NotarySelectionService.class);
+        Set<CordaX500Name> used = new HashSet<>();
+        for (StateAndRef<IOUState> state : states) {
+            assertEquals(notaries.notaryForNewState(state.getState().getData().getLinearId()), state.getState().getNotary());
+            used.add(state.getState().getNotary().getName());
+        }
+        assertEquals(new HashSet<>(Arrays.asList(NOTARY_A, NOTARY_B)), used);
+
+        // A transfer must stay on the notary the IOU was issued on.
+        StateAndRef<IOUState> toTransfer = states.get(0);
+        Party newLender = c.getInfo().getLegalIdentities().get(0);
+        Future<SignedTransaction> transferred = b.startFlow(new IOUTransferFlow.InitiatorFlow(toTransfer.getState().getData().getLinearId(), newLender));
+        mockNetwork.runNetwork();
+        assertEquals(toTransfer.getState().getNotary(), transferred.get().getNotary());
+    }
+}